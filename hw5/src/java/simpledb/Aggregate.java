@@ -5,9 +5,8 @@ import java.util.*;
 import simpledb.Aggregator.Op;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), each over a single column, grouped by any number of columns.
  */
 public class Aggregate extends Operator {
 
@@ -16,18 +15,11 @@ public class Aggregate extends Operator {
     private DbIterator child = null;
     private DbIterator it = null;
     private Aggregator agg = null;
-    private Aggregator.Op aop = null;
-    private String gFieldName = null;
-    private String aFieldName = null;
-    private int afield, gfield;
+    private Aggregator.Op[] aops;
+    private int[] afields, gfields;
 
     /**
-     * Constructor.
-     * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
+     * Constructor for a single aggregate, grouped by at most one column.
      * 
      * @param child
      *            The DbIterator that is feeding us tuples.
@@ -40,92 +32,113 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+	this(child, new int[] { afield },
+		gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+		new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Creates an Aggregate that computes several aggregates at once with a
+     * {@link HashAggregator}, grouped by several columns.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result, none if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to use for each of afields
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+	if (afields.length == 0 || afields.length != aops.length)
+	    throw new IllegalArgumentException("need an operator for each aggregate");
 	this.child = child;
-	this.afield = afield;
-	this.gfield = gfield;
-	this.aop = aop;
+	this.afields = afields.clone();
+	this.gfields = gfields.clone();
+	this.aops = aops.clone();
 	TupleDesc child_td = child.getTupleDesc();
 
-	if (child_td.getFieldType(afield) == Type.INT_TYPE) {
-	    this.agg = new IntegerAggregator(gfield,
-		    gfield == Aggregator.NO_GROUPING ? null
-		            : child_td.getFieldType(gfield), afield, aop);
-	} else {
-	    this.agg = new StringAggregator(gfield,
-		    gfield == Aggregator.NO_GROUPING ? null
-		            : child_td.getFieldType(gfield), afield, aop);
+	int nFields = gfields.length + afields.length;
+	Type typeAr[] = new Type[nFields];
+	String fields[] = new String[nFields];
+	Type gtypes[] = new Type[gfields.length];
+	Type atypes[] = new Type[afields.length];
+	for (int i = 0; i < gfields.length; i++) {
+	    gtypes[i] = typeAr[i] = child_td.getFieldType(gfields[i]);
+	    fields[i] = child_td.getFieldName(gfields[i]);
 	}
-
-	if (gfield == Aggregator.NO_GROUPING) {
-	    int nFields = 1;
-	    Type typeAr[] = new Type[nFields];
-	    String fields[] = new String[nFields];
-
-	    typeAr[0] = Type.INT_TYPE;//child_td.getFieldType(afield);
-
-	    fields[0] = nameOfAggregatorOp(aop) + "("
-		        + child_td.getFieldName(afield) + ")";
-	    aFieldName = fields[0];
-
-	    td = new TupleDesc(typeAr, fields);
-	} else {
-	    int nFields = 2;
-
-	    Type typeAr[] = new Type[nFields];
-	    String fields[] = new String[nFields];
-
-	    typeAr[0] = child_td.getFieldType(gfield);
-	    typeAr[1] = Type.INT_TYPE;//child_td.getFieldType(afield);
-	    fields[0] = child_td.getFieldName(gfield);
-	    gFieldName = fields[0];
-
-	    fields[1] = nameOfAggregatorOp(aop) + "("
-		        + child_td.getFieldName(afield) + ")";
-	    
-	    aFieldName = fields[1];
-
-	    td = new TupleDesc(typeAr, fields);
+	for (int j = 0; j < afields.length; j++) {
+	    atypes[j] = child_td.getFieldType(afields[j]);
+	    typeAr[gfields.length + j] = Type.INT_TYPE;
+	    fields[gfields.length + j] = nameOfAggregatorOp(aops[j]) + "("
+		        + child_td.getFieldName(afields[j]) + ")";
 	}
+	td = new TupleDesc(typeAr, fields);
+	agg = new HashAggregator(gfields, gtypes, afields, atypes, aops);
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
-     *         {@link simpledb.Aggregator#NO_GROUPING}
+     * @return If this aggregate is accompanied by a groupby, return the
+     *         (first) groupby field index in the <b>INPUT</b> tuples. If not,
+     *         return {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	return this.gfield;
+	return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     *         of the groupby field in the <b>OUTPUT</b> tuples If not, return
-     *         null;
+     *         of the (first) groupby field in the <b>OUTPUT</b> tuples If not,
+     *         return null;
      * */
     public String groupFieldName() {
-	return this.gFieldName;
+	return gfields.length == 0 ? null : td.getFieldName(0);
     }
 
     /**
-     * @return the aggregate field
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, none if
+     *         there is no grouping
+     * */
+    public int[] groupFields() {
+	return gfields.clone();
+    }
+
+    /**
+     * @return the (first) aggregate field
      * */
     public int aggregateField() {
-	return this.afield;
+	return this.afields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name of the (first) aggregate field in the
+     *         <b>OUTPUT</b> tuples
      * */
     public String aggregateFieldName() {
-	return this.aFieldName;
+	return td.getFieldName(gfields.length);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-	return this.aop;
+	return this.aops[0];
+    }
+
+    /**
+     * @return the aggregate field indexes in the <b>INPUT</b> tuples
+     * */
+    public int[] aggregateFields() {
+	return afields.clone();
+    }
+
+    /**
+     * @return the operator of each aggregate
+     * */
+    public Aggregator.Op[] aggregateOps() {
+	return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -141,19 +154,19 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and those after them
+     * the results of computing the aggregates. If there is no group by field,
+     * then the result tuple contains only the results of the aggregates.
+     * Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// Actually perform the aggregation
 	if (it == null) {
-	    while (child.hasNext()) {
-		Tuple t = child.next();
-		agg.mergeTupleIntoGroup(t);
-	    }
+	    // the child is read a batch at a time
+	    TupleBatch b;
+	    while ((b = child.nextBatch()) != null)
+		agg.mergeBatchIntoGroup(b);
 
 	    it = agg.iterator();
 	    it.open();
@@ -170,10 +183,8 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by a column for each aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -57,6 +57,15 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merges the tuples of a batch into the aggregate, as
+     * {@link #mergeTupleIntoGroup} does for each.
+     *
+     * @param b a batch of tuples containing an aggregate field and a
+     *   group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch b);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
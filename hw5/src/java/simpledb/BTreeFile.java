@@ -0,0 +1,746 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BTreeFile is an implementation of a DbFile that stores a table as a B+
+ * tree on one of its fields, the key: tuples are kept in leaf pages in key
+ * order, and internal pages lead from the root to the leaf any key is on,
+ * so tuples with a key or range of keys are found without reading the
+ * whole table (see {@link #indexIterator} and {@link IndexScan}). Leaves
+ * are linked from left to right, so a range is read by following them.
+ * The layout of the pages is described in {@link BTreePage}.
+ * <p>
+ * The root is always page 0. When it splits, its contents move to two new
+ * pages and it becomes an internal page above them, so the tree grows at
+ * the top. Pages are not merged when tuples are deleted: a leaf left empty
+ * stays in the tree and takes tuples inserted later.
+ * <p>
+ * Leaves hold the tuples, and are locked through the BufferPool like the
+ * pages of a HeapFile. Internal pages take no transaction locks; each has
+ * a latch instead, held only while the page is read or changed. A search
+ * goes down holding the latch of each page shared until it has the latch
+ * of the child, and lets go of the last before it locks the leaf, so no
+ * latch is held while waiting for a transaction lock. The leaf may split
+ * in between, so each leaf keeps a high key as well as the link to the
+ * next leaf, and a search for a key beyond the high key moves right, as
+ * in a B-link tree. While the tree has a single page the root is a leaf,
+ * and is locked like one.
+ * <p>
+ * An insert write-locks just the leaf it goes to. If that leaf is full, it
+ * keeps the lock and goes down again latching pages exclusively, letting
+ * go of the latches above a page that has room, since the split cannot go
+ * past it; the full pages below it are then split from the top down before
+ * the tuple is added, so no page ever holds more than fits on disk. The
+ * split is committed at once by a system transaction of its own, and its
+ * latches are let go of when it is done, so other transactions use the
+ * new pages straight away. The leaves it changes keep the changes of the
+ * inserting transaction, which keeps them locked; their committed images
+ * are split the same way and are what an abort restores, so an abort takes
+ * back the inserting transaction's tuples but not the split.
+ * Deletes and updates only change the leaf their tuple is on.
+ * <p>
+ * Read-only transactions read the versions of the pages that their
+ * snapshot sees, which no split changes, so they take no latches.
+ * <p>
+ * Page ids are {@link HeapPageId}s, so the BufferPool, LockManager and
+ * LogFile handle these pages like any other.
+ */
+public class BTreeFile implements DbFile {
+
+    /** Page number of the root. */
+    static final int ROOT = 0;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    // opened on first use, guarded by this
+    private volatile FileChannel channel;
+    // the latches of the internal pages, by page number
+    private final ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches =
+        new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();
+
+    // one direct buffer per thread for transferring pages, as in HeapFile
+    private static final ThreadLocal<ByteBuffer> pageBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BufferPool.PAGE_SIZE);
+        }
+    };
+
+    /**
+     * Constructs a B+ tree file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            B+ tree; an empty file is an empty tree.
+     * @param keyField
+     *            the index of the field of td the tuples are ordered by
+     */
+    public BTreeFile(File f, TupleDesc td, int keyField) {
+        this.f = f;
+        this.td = td;
+        this.keyField = keyField;
+        this.tableid = f.getAbsoluteFile().hashCode();
+    }
+
+    /** @return the File backing this BTreeFile on disk */
+    public File getFile() {
+        return f;
+    }
+
+    // see DbFile.java for javadocs
+    public int getId() {
+        return tableid;
+    }
+
+    // see DbFile.java for javadocs
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the index of the field the tuples are ordered by */
+    public int keyField() {
+        return keyField;
+    }
+
+    /** Returns the number of pages in this BTreeFile. */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.PAGE_SIZE);
+    }
+
+    /** @return the open channel of this file, opening it if needed */
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    ch = new RandomAccessFile(f, "rw").getChannel();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Closes the channel this file keeps open. It is opened again if the
+     * file is used after this.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        if (pid.pageNumber() < 0 || pid.pageNumber() >= numPages())
+            throw new IllegalArgumentException("Read past end of table");
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        try {
+            ByteBuffer buf = pageBuffer.get();
+            buf.clear();
+            transfer(buf, (long) pid.pageNumber() * BufferPool.PAGE_SIZE, false);
+            if (buf.hasRemaining())
+                throw new IllegalArgumentException("Unable to read "
+                        + BufferPool.PAGE_SIZE + " bytes from B+ tree file");
+            buf.flip();
+            buf.get(data);
+            Debug.log(1, "BTreeFile.readPage: read page %d", pid.pageNumber());
+            return new BTreePage(new HeapPageId(tableid, pid.pageNumber()), td, keyField, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        write(page.getPageData(), page.getId().pageNumber());
+    }
+
+    private void write(byte[] data, int pgno) throws IOException {
+        ByteBuffer buf = pageBuffer.get();
+        buf.clear();
+        buf.put(data);
+        buf.flip();
+        transfer(buf, (long) pgno * BufferPool.PAGE_SIZE, true);
+    }
+
+    /**
+     * Reads into or writes from buf at offset until buf is full or empty,
+     * or a read reaches the end of the file. As in HeapFile, the interrupt
+     * status is cleared for the duration of the transfer, since an
+     * interrupt would close the channel for every thread, and a channel
+     * closed anyway is replaced.
+     */
+    private void transfer(ByteBuffer buf, long offset, boolean write)
+            throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                FileChannel ch = channel();
+                try {
+                    while (buf.hasRemaining()) {
+                        int n = write ? ch.write(buf, offset + buf.position())
+                                : ch.read(buf, offset + buf.position());
+                        if (n == -1)
+                            break;
+                    }
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    synchronized (this) {
+                        if (channel == ch)
+                            channel = null;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return page pgno of this file, locked for tid with perm */
+    private BTreePage getPage(TransactionId tid, int pgno, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return (BTreePage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(tableid, pgno), perm);
+    }
+
+    /** @return page pgno of this file, which the caller has latched, without locking it */
+    private BTreePage getLatchedPage(int pgno) throws DbException {
+        return (BTreePage) Database.getBufferPool().getUnlockedPage(new HeapPageId(tableid, pgno));
+    }
+
+    /** @return the latch of page pgno */
+    private ReentrantReadWriteLock latch(int pgno) {
+        ReentrantReadWriteLock latch = latches.get(pgno);
+        if (latch == null) {
+            ReentrantReadWriteLock created = new ReentrantReadWriteLock();
+            latch = latches.putIfAbsent(pgno, created);
+            if (latch == null)
+                latch = created;
+        }
+        return latch;
+    }
+
+    private boolean holdsLock(TransactionId tid, int pgno) {
+        return Database.getBufferPool().holdsLock(tid, new HeapPageId(tableid, pgno));
+    }
+
+    /** Releases tid's lock on p unless it held it before this operation. */
+    private void release(TransactionId tid, BTreePage p, boolean heldBefore) {
+        if (!heldBefore)
+            Database.getBufferPool().releasePage(tid, p.getId());
+    }
+
+    /**
+     * Appends an empty page, which is read as an empty leaf, to the file.
+     *
+     * @return its page number
+     */
+    private synchronized int appendPage() throws IOException {
+        int pgno = numPages();
+        write(BTreePage.createEmptyPageData(), pgno);
+        return pgno;
+    }
+
+    /**
+     * Finds the leaf that key belongs on: the leftmost that may hold it, or
+     * with rightmost the one a new tuple with key goes to, and locks it with
+     * perm. The leaf is looked up under the latches of the pages above it
+     * (see {@link #leafFor}) and locked after they are let go of, so it may
+     * have split meanwhile; then the leaves after it are locked in turn,
+     * each releasing the one before, until key is not beyond the high key.
+     *
+     * @param key the key, or null for the leftmost leaf
+     * @param leafHeld if not null, leafHeld[0] is set to whether tid held
+     *   a lock on the leaf before
+     */
+    private BTreePage findLeaf(TransactionId tid, Field key, boolean rightmost,
+            Permissions perm, boolean[] leafHeld) throws TransactionAbortedException, DbException {
+        if (Database.getBufferPool().getVersionStore().isSnapshot(tid)) {
+            BTreePage p = getPage(tid, ROOT, perm);
+            while (!p.isLeaf())
+                p = getPage(tid, p.childFor(key, rightmost), perm);
+            return p;
+        }
+        while (true) {
+            int pgno = leafFor(key, rightmost);
+            boolean held = holdsLock(tid, pgno);
+            BTreePage p = getPage(tid, pgno, perm);
+            if (!p.isLeaf()) {
+                // the root, which split before tid locked it
+                release(tid, p, held);
+                continue;
+            }
+            while (key != null && isBeyond(p, key, rightmost)) {
+                int next = p.getNext();
+                boolean nextHeld = holdsLock(tid, next);
+                BTreePage n = getPage(tid, next, perm);
+                release(tid, p, held);
+                p = n;
+                held = nextHeld;
+            }
+            if (leafHeld != null)
+                leafHeld[0] = held;
+            return p;
+        }
+    }
+
+    /**
+     * Goes down the internal pages by latch coupling: the latch of each is
+     * held shared until the latch of its child is, so no split changes a
+     * page while it is read.
+     *
+     * @return the leaf key belongs on as the parent of the leaf has it, or
+     *   ROOT while the root is a leaf
+     */
+    private int leafFor(Field key, boolean rightmost) throws DbException {
+        ReentrantReadWriteLock latch = latch(ROOT);
+        latch.readLock().lock();
+        try {
+            BTreePage p = getLatchedPage(ROOT);
+            while (!p.isLeaf()) {
+                int child = p.childFor(key, rightmost);
+                if (p.hasLeafChildren())
+                    return child;
+                ReentrantReadWriteLock c = latch(child);
+                c.readLock().lock();
+                latch.readLock().unlock();
+                latch = c;
+                p = getLatchedPage(child);
+            }
+            return ROOT;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if key belongs on a leaf after leaf, which split off the
+     *   upper part of its keys since its parent was read
+     */
+    private static boolean isBeyond(BTreePage leaf, Field key, boolean rightmost) {
+        Field high = leaf.getHighKey();
+        if (high == null)
+            return false;
+        int c = BTreePage.compareKeys(key, high);
+        return c > 0 || (c == 0 && rightmost);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in insertTuple");
+        synchronized (this) {
+            if (numPages() == 0)
+                appendPage();
+        }
+        ArrayList<Page> dirtypages = new ArrayList<Page>();
+        Field key = t.getField(keyField);
+
+        BTreePage leaf = findLeaf(tid, key, true, Permissions.READ_WRITE, null);
+        if (!leaf.hasRoom())
+            leaf = split(tid, leaf, key);
+        leaf.insertTuple(t);
+        dirtypages.add(leaf);
+        return dirtypages;
+    }
+
+    /**
+     * Splits leaf, a full leaf tid has write-locked, and the full pages
+     * above it, latching exclusively from the root down the pages the split
+     * may reach. The new leaves are locked by tid, which keeps its locks on
+     * the halves.
+     *
+     * @param key the key of the tuple tid is inserting
+     * @return the half of leaf key goes in
+     */
+    private BTreePage split(TransactionId tid, BTreePage leaf, Field key)
+            throws DbException, IOException, TransactionAbortedException {
+        boolean rootLeaf = leaf.getId().pageNumber() == ROOT;
+        // nobody else knows the new pages, so locking them does not wait;
+        // a root that is a leaf moves its tuples to two of them
+        LinkedList<BTreePage> newLeaves = new LinkedList<BTreePage>();
+        for (int i = rootLeaf ? 2 : 1; i > 0; i--)
+            newLeaves.add(getPage(tid, appendPage(), Permissions.READ_WRITE));
+
+        ArrayList<BTreePage> path = new ArrayList<BTreePage>();
+        ArrayList<ReentrantReadWriteLock> latched = new ArrayList<ReentrantReadWriteLock>();
+        try {
+            int pgno = ROOT;
+            while (true) {
+                ReentrantReadWriteLock l = latch(pgno);
+                l.writeLock().lock();
+                latched.add(l);
+                // searches tell whether the root is a leaf under its latch
+                if (rootLeaf)
+                    break;
+                BTreePage p = getLatchedPage(pgno);
+                if (p.hasRoom()) {
+                    for (int i = 0; i < latched.size() - 1; i++)
+                        latched.get(i).writeLock().unlock();
+                    latched.subList(0, latched.size() - 1).clear();
+                    path.clear();
+                }
+                path.add(p);
+                if (p.hasLeafChildren())
+                    break;
+                pgno = p.childFor(key, true);
+            }
+            LinkedList<BTreePage> newInternal = new LinkedList<BTreePage>();
+            for (BTreePage p : path) {
+                if (p.hasRoom())
+                    continue;
+                newInternal.add(getLatchedPage(appendPage()));
+                if (p.getId().pageNumber() == ROOT)
+                    newInternal.add(getLatchedPage(appendPage()));
+            }
+            return split(tid, path, leaf, key, newInternal, newLeaves);
+        } finally {
+            for (ReentrantReadWriteLock l : latched)
+                l.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Splits the full pages of path, the latched pages above leaf from the
+     * first the split changes down to the parent of leaf, and then leaf,
+     * and commits the split as a system transaction. The BufferPool is
+     * held throughout, so no page is flushed half split.
+     *
+     * @param newInternal the new pages the internal pages split into
+     * @param newLeaves the new pages leaf splits into, locked by tid
+     * @return the half of leaf key goes in
+     */
+    private BTreePage split(TransactionId tid, List<BTreePage> path, BTreePage leaf, Field key,
+            LinkedList<BTreePage> newInternal, LinkedList<BTreePage> newLeaves)
+            throws DbException, IOException {
+        BufferPool bp = Database.getBufferPool();
+        VersionStore versions = bp.getVersionStore();
+        TransactionId sys = TransactionId.newSystemId();
+        boolean rootLeaf = leaf.getId().pageNumber() == ROOT;
+        synchronized (bp) {
+            // the committed image of leaf, without the changes of tid
+            Page committed = versions.newestVersion(leaf.getId());
+            if (committed == null)
+                committed = leaf.getBeforeImage();
+
+            ArrayList<Page> changed = new ArrayList<Page>();
+            changed.addAll(path);
+            changed.addAll(newInternal);
+            changed.add(leaf);
+            changed.addAll(newLeaves);
+            ArrayList<Page> before = new ArrayList<Page>();
+            for (Page p : changed) {
+                versions.beginWrite(sys, p);
+                before.add(p == leaf ? committed : p.getBeforeImage());
+            }
+
+            BTreePage parent = null;
+            BTreePage[] halves = new BTreePage[2];
+            for (BTreePage p : path) {
+                if (!p.hasRoom()) {
+                    Field up = splitPage(p, parent, newInternal, halves);
+                    // go on in the half key belongs in
+                    p = halves[BTreePage.compareKeys(key, up) >= 0 ? 1 : 0];
+                }
+                parent = p;
+            }
+            Field up = splitPage(leaf, parent, newLeaves, halves);
+
+            // split the committed image at the same key, for an abort of
+            // tid to restore
+            BTreePage left = new BTreePage(leaf.getId(), td, keyField, committed.getPageData());
+            if (rootLeaf) {
+                BTreePage moved = emptyPage(halves[0].getId());
+                left.moveAllTo(moved);
+                left = moved;
+            }
+            BTreePage right = emptyPage(halves[1].getId());
+            left.splitAt(up, right);
+            halves[0].setBeforeImage(left);
+            halves[1].setBeforeImage(right);
+
+            ArrayList<Page> after = new ArrayList<Page>();
+            for (Page p : changed)
+                after.add(p == halves[0] ? left : p == halves[1] ? right : null);
+            bp.commitSystemChange(sys, tid, changed, before, after);
+            if (rootLeaf) {
+                // the root holds no tuples any more
+                versions.endWrite(tid, leaf.getId());
+                bp.releasePage(tid, leaf.getId());
+            }
+            return halves[BTreePage.compareKeys(key, up) >= 0 ? 1 : 0];
+        }
+    }
+
+    /** @return an empty leaf with id pid */
+    private BTreePage emptyPage(HeapPageId pid) throws IOException {
+        return new BTreePage(pid, td, keyField, BTreePage.createEmptyPageData());
+    }
+
+    /**
+     * Splits p, a full page, moving the upper half of its contents to a new
+     * page that is added to parent. The root instead moves its contents to
+     * two new pages and becomes their parent, so the tree grows a level.
+     *
+     * @param parent the parent of p, which has room; null for the root
+     * @param fresh the new pages to take the pages split into from
+     * @param halves set to the pages holding the lower and upper halves
+     * @return the key separating the halves
+     */
+    private static Field splitPage(BTreePage p, BTreePage parent, LinkedList<BTreePage> fresh,
+            BTreePage[] halves) throws DbException {
+        BTreePage left = p;
+        if (p.getId().pageNumber() == ROOT) {
+            left = fresh.removeFirst();
+            p.moveAllTo(left);
+        }
+        BTreePage right = fresh.removeFirst();
+        Field up = left.splitInto(right);
+        if (p.getId().pageNumber() == ROOT) {
+            p.makeRoot(left.getId().pageNumber(), up, right.getId().pageNumber(),
+                    left.isLeaf());
+        } else {
+            parent.insertChild(left.getId().pageNumber(), up, right.getId().pageNumber());
+        }
+        halves[0] = left;
+        halves[1] = right;
+        return up;
+    }
+
+    /**
+     * Finds the leaf holding the tuple t's RecordId names, or if t has none
+     * from this table a tuple whose fields equal those of t, and returns it
+     * write-locked with the tuple's position in pos[0]. The page the
+     * RecordId names, where the tuple was inserted, is tried first unless it
+     * is the root, which is internal once the tree has split; tuples move
+     * when leaves split, so if it is not there the leaves with t's key are
+     * searched.
+     */
+    private BTreePage findTuple(TransactionId tid, Tuple t, int[] pos)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid != null && rid.getPageId().getTableId() == tableid
+                && rid.getPageId().pageNumber() != ROOT
+                && rid.getPageId().pageNumber() < numPages()) {
+            int pgno = rid.getPageId().pageNumber();
+            boolean held = holdsLock(tid, pgno);
+            BTreePage p = getPage(tid, pgno, Permissions.READ_WRITE);
+            if (p.isLeaf() && (pos[0] = p.indexOf(t)) >= 0)
+                return p;
+            release(tid, p, held);
+        }
+        Field key = t.getField(keyField);
+        if (numPages() == 0 || key == null)
+            throw new DbException("tuple is not in this table");
+        boolean[] held = new boolean[1];
+        BTreePage p = findLeaf(tid, key, false, Permissions.READ_WRITE, held);
+        while (true) {
+            if ((pos[0] = p.indexOf(t)) >= 0)
+                return p;
+            // the tuples with key may go on in the next leaf
+            int next = p.getNext();
+            if (next == 0 || (p.numTuples() > 0
+                    && BTreePage.compareKeys(p.getKey(p.numTuples() - 1), key) > 0))
+                throw new DbException("tuple is not in this table");
+            boolean nextHeld = holdsLock(tid, next);
+            BTreePage n = getPage(tid, next, Permissions.READ_WRITE);
+            release(tid, p, held[0]);
+            p = n;
+            held[0] = nextHeld;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        int[] pos = new int[1];
+        BTreePage p = findTuple(tid, t, pos);
+        p.deleteTuple(pos[0]);
+        t.setRecordId(null);
+        return p;
+    }
+
+    /**
+     * Replaces the tuple stored under t's RecordId with t. The key field
+     * cannot change, as that would move the tuple to another place in the
+     * tree.
+     */
+    public Page updateTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tried to update tuple on invalid page or table");
+        int[] pos = new int[1];
+        BTreePage p = findTuple(tid, t, pos);
+        p.updateTuple(pos[0], t);
+        return p;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BTreeFileIterator(this, tid, null, null);
+    }
+
+    /**
+     * Returns the least and greatest keys in the tree, for estimating the
+     * selectivity of predicates on the key. The pages are read from disk,
+     * without locks or the BufferPool, so changes not yet flushed are not
+     * seen. The least key is on the first leaf with tuples and the greatest
+     * on the rightmost leaf, unless deletes emptied it, when the leaves are
+     * all read.
+     *
+     * @return the least and greatest keys, or null if the tree is empty
+     */
+    public Field[] keyRange() {
+        if (numPages() == 0)
+            return null;
+        BTreePage p = leaf(false);
+        Field max = p.numTuples() > 0 ? p.getKey(p.numTuples() - 1) : null;
+        boolean scan = max == null;
+        Field min = null;
+        p = leaf(true);
+        while (min == null || scan) {
+            if (p.numTuples() > 0) {
+                if (min == null)
+                    min = p.getKey(0);
+                if (scan)
+                    max = p.getKey(p.numTuples() - 1);
+            }
+            if (p.getNext() == 0)
+                break;
+            p = (BTreePage) readPage(new HeapPageId(tableid, p.getNext()));
+        }
+        return min == null ? null : new Field[] { min, max };
+    }
+
+    /** @return the leftmost or rightmost leaf, read from disk */
+    private BTreePage leaf(boolean leftmost) {
+        BTreePage p = (BTreePage) readPage(new HeapPageId(tableid, ROOT));
+        while (!p.isLeaf())
+            p = (BTreePage) readPage(new HeapPageId(tableid,
+                    p.getChild(leftmost ? 0 : p.numKeys())));
+        return p;
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies
+     * <tt>key op value</tt>, in key order, which reads only the leaves that
+     * may hold them. op is one of those {@link IndexScan#handles}.
+     */
+    public DbFileIterator indexIterator(TransactionId tid, Predicate.Op op, Field value) {
+        if (!IndexScan.handles(op))
+            throw new IllegalArgumentException("a B+ tree cannot search for " + op);
+        return new BTreeFileIterator(this, tid, op, value);
+    }
+
+    /**
+     * Reads the leaves from the one the search starts on to the right,
+     * returning the tuples of each that are in range.
+     */
+    private static class BTreeFileIterator extends AbstractDbFileIterator {
+        private final BTreeFile bf;
+        private final TransactionId tid;
+        private final Predicate.Op op;
+        private final Field value;
+        // the tuples of the current leaf, as they were when it was reached
+        private List<Tuple> tuples = null;
+        private int pos = 0;
+        // the leaf to read after these, 0 if none
+        private int next = 0;
+
+        BTreeFileIterator(BTreeFile bf, TransactionId tid, Predicate.Op op, Field value) {
+            this.bf = bf;
+            this.tid = tid;
+            this.op = op;
+            this.value = value;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            tuples = new ArrayList<Tuple>();
+            pos = 0;
+            next = 0;
+            if (bf.numPages() == 0)
+                return;
+            // searches for small keys start at the leftmost leaf
+            boolean fromLeft = op == null || op == Predicate.Op.LESS_THAN
+                    || op == Predicate.Op.LESS_THAN_OR_EQ;
+            read(bf.findLeaf(tid, fromLeft ? null : value, false, Permissions.READ_ONLY, null));
+        }
+
+        private void read(BTreePage leaf) {
+            tuples = leaf.getTuples();
+            pos = 0;
+            next = leaf.getNext();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (tuples == null)
+                return null;
+            while (true) {
+                while (pos < tuples.size()) {
+                    Tuple t = tuples.get(pos++);
+                    if (op == null)
+                        return t;
+                    int c = BTreePage.compareKeys(t.getField(bf.keyField), value);
+                    switch (op) {
+                    case EQUALS:
+                        if (c > 0)
+                            return done();
+                        if (c == 0)
+                            return t;
+                        break;
+                    case GREATER_THAN:
+                        if (c > 0)
+                            return t;
+                        break;
+                    case GREATER_THAN_OR_EQ:
+                        if (c >= 0)
+                            return t;
+                        break;
+                    case LESS_THAN:
+                        return c < 0 ? t : done();
+                    case LESS_THAN_OR_EQ:
+                        return c <= 0 ? t : done();
+                    default:
+                        throw new IllegalStateException();
+                    }
+                }
+                if (next == 0)
+                    return done();
+                read(bf.getPage(tid, next, Permissions.READ_ONLY));
+            }
+        }
+
+        /** Ends the scan. */
+        private Tuple done() {
+            tuples = null;
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            tuples = null;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of BTreePage stores one node of a {@link BTreeFile}: either
+ * a leaf, which holds tuples of the table in order of their key field, or
+ * an internal node, which holds keys and the page numbers of the children
+ * between them.
+ * <p>
+ * The first byte of a page tells which it is. A leaf is laid out as
+ * <pre>
+ *   byte 0      LEAF
+ *   bytes 1-4   number of tuples n
+ *   bytes 5-8   page number of the next leaf to the right, 0 if none
+ *   bytes 9-12  the number the next tuple inserted here gets
+ *   byte 13     1 if the leaf has a high key
+ *   the high key, or zeroes, of the key field's size
+ *   n tuples in key order, each the page it was inserted on and its
+ *   number there, 4 bytes each, then td.getSize() bytes of fields
+ * </pre>
+ * and an internal node with m keys as
+ * <pre>
+ *   byte 0      INTERNAL
+ *   byte 1      1 if the children are leaves
+ *   bytes 2-5   number of keys m
+ *   m + 1 child page numbers of 4 bytes each
+ *   m keys of the key field's size
+ * </pre>
+ * All keys in the subtree of child i are at most key i, and all keys in
+ * the subtree of child i + 1 at least key i; equal keys may be found on
+ * both sides. The high key of a leaf is the key that separates it from the
+ * next leaf in their parent, so a search that reached a leaf just before
+ * it split can tell that the key it wants has moved right; the rightmost
+ * leaf has none. A page of zeroes is an empty leaf.
+ * <p>
+ * Tuples are decoded when the page is read, and the page is written out
+ * again by {@link #getPageData}. Tuples handed out are copies. Their
+ * RecordId names the page they were inserted on and the number that page
+ * gave them, which they keep when a split moves them to another page, so
+ * it names the tuple for as long as it exists but need not give the page
+ * it is on now.
+ *
+ * @see BTreeFile
+ */
+public class BTreePage implements Page {
+
+    static final byte LEAF = 0;
+    static final byte INTERNAL = 1;
+
+    private static final int LEAF_HEADER_SIZE = 14;
+    // the page a tuple was inserted on and its number there
+    private static final int TUPLE_ID_SIZE = 8;
+    private static final int INTERNAL_HEADER_SIZE = 6;
+
+    private volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int keyField;
+    private final int maxTuples;
+    private final int maxKeys;
+
+    private boolean leaf;
+    // a leaf's tuples and right sibling
+    private ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    private int next = 0;
+    private int nextNumber = 0;
+    private Field high = null;
+    // an internal node's keys and children
+    private ArrayList<Field> keys = new ArrayList<Field>();
+    private ArrayList<Integer> children = new ArrayList<Integer>();
+    private boolean leafChildren = false;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a BTreePage from the bytes of a page read from disk, in the
+     * format described above. The TupleDesc and key field are those of the
+     * BTreeFile registered in the catalog under the page's table.
+     */
+    public BTreePage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()),
+                ((BTreeFile) Database.getCatalog().getDbFile(id.getTableId())).keyField(),
+                data);
+    }
+
+    /** Create a BTreePage of a table with the given TupleDesc and key field. */
+    BTreePage(HeapPageId id, TupleDesc td, int keyField, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = td;
+        this.keyField = keyField;
+        this.maxTuples = leafCapacity(td, keyField);
+        this.maxKeys = internalCapacity(td.getFieldType(keyField));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            leaf = dis.readByte() == LEAF;
+            if (leaf) {
+                int n = dis.readInt();
+                next = dis.readInt();
+                nextNumber = dis.readInt();
+                boolean hasHigh = dis.readByte() != 0;
+                Type keyType = td.getFieldType(keyField);
+                if (hasHigh)
+                    high = keyType.parse(dis);
+                else
+                    dis.skipBytes(keyType.getLen());
+                for (int i = 0; i < n; i++) {
+                    Tuple t = new Tuple(td);
+                    int origin = dis.readInt();
+                    t.setRecordId(new RecordId(new HeapPageId(id.getTableId(), origin),
+                            dis.readInt()));
+                    for (int j = 0; j < td.numFields(); j++)
+                        t.setField(j, td.getFieldType(j).parse(dis));
+                    tuples.add(t);
+                }
+            } else {
+                leafChildren = dis.readByte() != 0;
+                int m = dis.readInt();
+                for (int i = 0; i <= m; i++)
+                    children.add(dis.readInt());
+                Type keyType = td.getFieldType(keyField);
+                for (int i = 0; i < m; i++)
+                    keys.add(keyType.parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("could not parse B+ tree page: " + e);
+        }
+        oldData = data.clone();
+    }
+
+    /** @return the number of tuples a leaf of a table of td keyed on keyField holds */
+    static int leafCapacity(TupleDesc td, int keyField) {
+        int header = LEAF_HEADER_SIZE + td.getFieldType(keyField).getLen();
+        return (BufferPool.PAGE_SIZE - header) / (TUPLE_ID_SIZE + td.getSize());
+    }
+
+    /** @return the number of keys of keyType an internal node holds */
+    static int internalCapacity(Type keyType) {
+        return (BufferPool.PAGE_SIZE - INTERNAL_HEADER_SIZE - 4) / (4 + keyType.getLen());
+    }
+
+    /** @return -1, 0 or 1 as a is less than, equal to or greater than b */
+    static int compareKeys(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public boolean isLeaf() {
+        return leaf;
+    }
+
+    /** @return true if this page can take one more tuple or key without splitting */
+    public synchronized boolean hasRoom() {
+        return leaf ? tuples.size() < maxTuples : keys.size() < maxKeys;
+    }
+
+    // ---- leaves ----
+
+    public synchronized int numTuples() {
+        return tuples.size();
+    }
+
+    /** @return the page number of the next leaf to the right, 0 if none */
+    public synchronized int getNext() {
+        return next;
+    }
+
+    /** @return the high key of this leaf, or null if it is the rightmost */
+    public synchronized Field getHighKey() {
+        return high;
+    }
+
+    /** @return the key of tuple i of this leaf */
+    synchronized Field getKey(int i) {
+        return tuples.get(i).getField(keyField);
+    }
+
+    /** @return a copy of tuple i of this leaf */
+    public synchronized Tuple getTuple(int i) {
+        Tuple t = new Tuple(td);
+        Tuple s = tuples.get(i);
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, s.getField(j));
+        t.setRecordId(s.getRecordId());
+        return t;
+    }
+
+    /** @return copies of the tuples of this leaf, in key order */
+    public synchronized List<Tuple> getTuples() {
+        List<Tuple> l = new ArrayList<Tuple>(tuples.size());
+        for (int i = 0; i < tuples.size(); i++)
+            l.add(getTuple(i));
+        return l;
+    }
+
+    /**
+     * Adds t to this leaf after any tuples with the same key, and sets its
+     * RecordId to this page and the next number it gives. The leaf must
+     * have room.
+     */
+    synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in insertTuple");
+        if (!hasRoom())
+            throw new DbException("called insertTuple on a full B+ tree leaf");
+        Field key = t.getField(keyField);
+        int lo = 0, hi = tuples.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKeys(tuples.get(mid).getField(keyField), key) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        Tuple s = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++)
+            s.setField(j, t.getField(j));
+        s.setRecordId(new RecordId(pid, nextNumber++));
+        tuples.add(lo, s);
+        t.setRecordId(s.getRecordId());
+    }
+
+    /**
+     * @return the position on this leaf of the tuple t's RecordId names,
+     *   or if t has none from this table, of a tuple whose fields equal
+     *   the set fields of t; -1 if there is none
+     */
+    synchronized int indexOf(Tuple t) {
+        RecordId rid = t.getRecordId();
+        boolean byId = rid != null && rid.getPageId().getTableId() == pid.getTableId();
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple s = tuples.get(i);
+            if (byId) {
+                if (rid.equals(s.getRecordId()))
+                    return i;
+                continue;
+            }
+            boolean same = true;
+            for (int j = 0; j < td.numFields() && same; j++) {
+                Field f = t.getField(j);
+                same = f == null || f.equals(s.getField(j));
+            }
+            if (same)
+                return i;
+        }
+        return -1;
+    }
+
+    /** Removes tuple i from this leaf. */
+    synchronized void deleteTuple(int i) {
+        tuples.remove(i);
+    }
+
+    /** Replaces tuple i of this leaf with t, which must have the same key. */
+    synchronized void updateTuple(int i, Tuple t) throws DbException {
+        if (compareKeys(getKey(i), t.getField(keyField)) != 0)
+            throw new DbException("the key of a tuple in a B+ tree cannot change in place");
+        Tuple s = tuples.get(i);
+        for (int j = 0; j < td.numFields(); j++)
+            s.setField(j, t.getField(j));
+        t.setRecordId(s.getRecordId());
+    }
+
+    // ---- internal nodes ----
+
+    public synchronized int numKeys() {
+        return keys.size();
+    }
+
+    /** @return true if the children of this internal node are leaves */
+    public synchronized boolean hasLeafChildren() {
+        return leafChildren;
+    }
+
+    /** @return the page number of child i of this internal node */
+    public synchronized int getChild(int i) {
+        return children.get(i);
+    }
+
+    /**
+     * Returns the child of this internal node whose subtree key belongs
+     * in: the leftmost one that may hold it, or the rightmost one, where
+     * a new tuple with key goes after all others with that key. A null key
+     * comes before all keys.
+     */
+    public synchronized int childFor(Field key, boolean rightmost) {
+        if (key == null)
+            return children.get(0);
+        int lo = 0, hi = keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareKeys(key, keys.get(mid));
+            if (c > 0 || (c == 0 && rightmost))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return children.get(lo);
+    }
+
+    /**
+     * Adds key and child to this internal node, just to the right of the
+     * existing child left. The node must have room.
+     */
+    synchronized void insertChild(int left, Field key, int child) throws DbException {
+        if (!hasRoom())
+            throw new DbException("called insertChild on a full B+ tree node");
+        int i = children.indexOf(left);
+        if (i < 0)
+            throw new DbException("page " + left + " is not a child of page " + pid.pageNumber());
+        keys.add(i, key);
+        children.add(i + 1, child);
+    }
+
+    // ---- splitting ----
+
+    /**
+     * Moves the upper half of this page's tuples, or keys and children, to
+     * right, an empty page, and links right in after this page if they are
+     * leaves.
+     *
+     * @return the key to separate this page from right in their parent
+     */
+    synchronized Field splitInto(BTreePage right) {
+        if (leaf) {
+            List<Tuple> upper = tuples.subList(tuples.size() / 2, tuples.size());
+            right.tuples.addAll(upper);
+            upper.clear();
+            Field up = right.tuples.get(0).getField(keyField);
+            link(right, up);
+            return up;
+        }
+        // the middle key moves up to the parent instead of to either side
+        int mid = keys.size() / 2;
+        Field up = keys.get(mid);
+        right.leaf = false;
+        right.leafChildren = leafChildren;
+        right.keys.addAll(keys.subList(mid + 1, keys.size()));
+        right.children.addAll(children.subList(mid + 1, children.size()));
+        keys.subList(mid, keys.size()).clear();
+        children.subList(mid + 1, children.size()).clear();
+        return up;
+    }
+
+    /**
+     * Moves the tuples of this leaf with keys of at least up to right, an
+     * empty page, and links right in after this leaf, as a split of this
+     * leaf at up does.
+     */
+    synchronized void splitAt(Field up, BTreePage right) {
+        Iterator<Tuple> it = tuples.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (compareKeys(t.getField(keyField), up) >= 0) {
+                right.tuples.add(t);
+                it.remove();
+            }
+        }
+        link(right, up);
+    }
+
+    /** Links right in after this leaf, with up separating them. */
+    private void link(BTreePage right, Field up) {
+        right.next = next;
+        right.high = high;
+        next = right.pid.pageNumber();
+        high = up;
+    }
+
+    /** Moves everything on this page to dst, an empty page, leaving this one empty. */
+    synchronized void moveAllTo(BTreePage dst) {
+        dst.leaf = leaf;
+        dst.next = next;
+        dst.high = high;
+        dst.leafChildren = leafChildren;
+        dst.tuples.addAll(tuples);
+        dst.keys.addAll(keys);
+        dst.children.addAll(children);
+        tuples.clear();
+        keys.clear();
+        children.clear();
+        next = 0;
+        high = null;
+    }
+
+    /**
+     * Turns this empty page into an internal node with one key between the
+     * children left and right.
+     */
+    synchronized void makeRoot(int left, Field key, int right, boolean leafChildren) {
+        leaf = false;
+        this.leafChildren = leafChildren;
+        keys.clear();
+        children.clear();
+        keys.add(key);
+        children.add(left);
+        children.add(right);
+    }
+
+    // ---- Page ----
+
+    public synchronized byte[] getPageData() {
+        try {
+            if (leaf)
+                return leafData(td, keyField, tuples, next, nextNumber, high);
+            return createInternalData(keys, children, leafChildren);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return the bytes of an empty page, which is read as an empty leaf */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.PAGE_SIZE];
+    }
+
+    /**
+     * @return the bytes of leaf page pgno holding tuples, already in key
+     *   order, numbered as if inserted there in that order
+     * @param high the high key of the leaf, null for the rightmost
+     */
+    static byte[] createLeafData(TupleDesc td, int keyField, int pgno, List<Tuple> tuples,
+            int next, Field high) throws IOException {
+        List<Tuple> numbered = new ArrayList<Tuple>(tuples.size());
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, tuples.get(i).getField(j));
+            t.setRecordId(new RecordId(new HeapPageId(0, pgno), i));
+            numbered.add(t);
+        }
+        return leafData(td, keyField, numbered, next, tuples.size(), high);
+    }
+
+    private static byte[] leafData(TupleDesc td, int keyField, List<Tuple> tuples, int next,
+            int nextNumber, Field high) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(LEAF);
+        dos.writeInt(tuples.size());
+        dos.writeInt(next);
+        dos.writeInt(nextNumber);
+        dos.writeByte(high != null ? 1 : 0);
+        if (high != null)
+            high.serialize(dos);
+        else
+            dos.write(new byte[td.getFieldType(keyField).getLen()]);
+        for (Tuple t : tuples) {
+            dos.writeInt(t.getRecordId().getPageId().pageNumber());
+            dos.writeInt(t.getRecordId().tupleno());
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+        }
+        return pageOf(dos, baos);
+    }
+
+    /** @return the bytes of an internal node with the given keys and children */
+    static byte[] createInternalData(List<Field> keys, List<Integer> children,
+            boolean leafChildren) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(INTERNAL);
+        dos.writeByte(leafChildren ? 1 : 0);
+        dos.writeInt(keys.size());
+        for (int c : children)
+            dos.writeInt(c);
+        for (Field k : keys)
+            k.serialize(dos);
+        return pageOf(dos, baos);
+    }
+
+    /** @return what was written to dos, padded to a page */
+    private static byte[] pageOf(DataOutputStream dos, ByteArrayOutputStream baos)
+            throws IOException {
+        dos.flush();
+        if (baos.size() > BufferPool.PAGE_SIZE)
+            throw new IllegalStateException("B+ tree page overflows");
+        return Arrays.copyOf(baos.toByteArray(), BufferPool.PAGE_SIZE);
+    }
+
+    public BTreePage getBeforeImage() {
+        try {
+            byte[] image;
+            synchronized (oldDataLock) {
+                image = oldData;
+            }
+            return new BTreePage(pid, td, keyField, image);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        byte[] image = getPageData();
+        synchronized (oldDataLock) {
+            oldData = image;
+        }
+    }
+
+    /** Makes image, a page with this page's id, the before-image of this page. */
+    void setBeforeImage(BTreePage image) {
+        byte[] data = image.getPageData();
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+}
@@ -2,13 +2,11 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Random;
-import java.util.Vector;
-
 import java.util.HashMap;
-
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -20,6 +18,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Read-only transactions started with {@link #beginSnapshot} do not take
+ * locks. They read the committed versions of pages as of the moment they
+ * began, which the BufferPool keeps in a {@link VersionStore}.
  * 
  * @Threadsafe, all fields are final
  */
@@ -32,10 +34,49 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private final Random random = new Random();
+    /** Replacement policy used when none is passed to the constructor.
+    CLOCK unless overridden with a system property, for example
+    -Dsimpledb.ReplacementPolicy=LRU_K (see {@link ReplacementPolicy.Kind}). */
+    public static final ReplacementPolicy.Kind DEFAULT_POLICY;
+    static {
+        String policy = System.getProperty("simpledb.ReplacementPolicy");
+        if (policy == null || policy.equals(""))
+            DEFAULT_POLICY = ReplacementPolicy.Kind.CLOCK;
+        else
+            DEFAULT_POLICY = ReplacementPolicy.Kind.valueOf(policy.toUpperCase());
+    }
+
+    /** Deadlock policy used when none is passed to the constructor.
+    DETECT unless overridden with a system property, for example
+    -Dsimpledb.DeadlockPolicy=WAIT_DIE (see {@link DeadlockPolicy}). */
+    public static final DeadlockPolicy DEFAULT_DEADLOCK_POLICY;
+    static {
+        String policy = System.getProperty("simpledb.DeadlockPolicy");
+        if (policy == null || policy.equals(""))
+            DEFAULT_DEADLOCK_POLICY = DeadlockPolicy.DETECT;
+        else
+            DEFAULT_DEADLOCK_POLICY = DeadlockPolicy.valueOf(policy.toUpperCase());
+    }
+
+    /** Number of latches that page misses are partitioned over. */
+    static final int NUM_STRIPES = 16;
+
     final int numPages;   // number of pages -- currently, not enforced
     final ConcurrentHashMap<PageId,Page> pages; // hash table storing current pages in memory
+    final ReplacementPolicy policy; // tracks the pages in this.pages and picks eviction victims
     final LockManager lm;
+    final VersionStore versions;
+
+    // a miss holds the latch of its pid's stripe while it reads the page, so
+    // two misses on the same page do only one read. Lock order: stripe latch,
+    // then this.
+    private final Object[] stripes;
+    // frames reserved by misses whose read has not finished; guarded by this
+    private int inFlight = 0;
+    // number of pages dropped from each stripe, guarded by this. A miss that
+    // sees the count of its stripe change during its read may have read the
+    // page just before a flush rewrote it, so it reads again.
+    private final int[] dropCounts;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -43,9 +84,39 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_POLICY.create(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts the
+     * pages chosen by policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy a new, empty replacement policy for this pool.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, DEFAULT_DEADLOCK_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicts the
+     * pages chosen by policy and handles deadlocks according to
+     * deadlockPolicy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy a new, empty replacement policy for this pool.
+     * @param deadlockPolicy how lock waits that may never end are resolved.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, DeadlockPolicy deadlockPolicy) {
         this.numPages = numPages;
         this.pages = new ConcurrentHashMap<PageId, Page>();
-        this.lm = new LockManager();
+        this.policy = policy;
+        this.lm = new LockManager(deadlockPolicy);
+        this.versions = new VersionStore();
+        this.dropCounts = new int[NUM_STRIPES];
+        this.stripes = new Object[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++)
+            stripes[i] = new Object();
     }
 
     /**
@@ -58,6 +129,14 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * A hit does not take any BufferPool-wide lock. A miss latches only the
+     * stripe its pid hashes to and enters the BufferPool monitor just long
+     * enough to reserve a frame and, later, to install the page; the read
+     * itself happens outside the monitor.
+     * <p>
+     * A read-only transaction gets the version of the page its snapshot
+     * sees, without taking any lock; it must not ask for READ_WRITE.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -65,30 +144,157 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        // XXX Yuan points out that HashMap is not synchronized, so this is buggy.
-        Page p;
-        synchronized(this) {
-            p = pages.get(pid);
-            if(p == null) {
-                if(pages.size() >= numPages) {
-                    evictPage();
-                }
-                
-                p = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
-                pages.put(pid, p);
+        if (versions.isSnapshot(tid)) {
+            if (perm == Permissions.READ_WRITE)
+                throw new DbException("read-only transaction cannot write " + pid);
+            while (true) {
+                long stamp = versions.stamp();
+                Page p = pages.get(pid);
+                if (p == null)
+                    p = loadPage(pid);
+                policy.pageAccessed(pid);
+                Page version = versions.read(tid, pid, p, stamp);
+                if (version != null)
+                    return version;
             }
         }
-        
-        // block until we get a lock on this page
-        try {
-            lm.acquireLock(tid, new HeapPageId(pid.getTableId(), pid.pageNumber()), perm);
-        } catch (DeadlockException de) {
-            lm.releaseAllLocks(tid, false);
-            throw new TransactionAbortedException();
+
+        while (true) {
+            Page p = pages.get(pid);
+            if (p == null)
+                p = loadPage(pid);
+            policy.pageAccessed(pid);
+
+            // block until we get a lock on this page
+            try {
+                lm.acquireLock(tid, new HeapPageId(pid.getTableId(), pid.pageNumber()), perm);
+            } catch (DeadlockException de) {
+                // undo our changes in memory now, but keep the locks until
+                // the abort has rolled back the log; releasing them here
+                // would let others change pages the rollback overwrites
+                revertPages(tid);
+                throw new TransactionAbortedException();
+            }
+
+            // the page may have been evicted or replaced while we waited for
+            // the lock; changes to a stale copy would be lost, so fetch again
+            if (pages.get(pid) == p) {
+                if (perm == Permissions.READ_WRITE)
+                    versions.beginWrite(tid, p);
+                return p;
+            }
+        }
+    }
+
+    /**
+     * Reads a page that was not in the buffer pool and installs it,
+     * evicting another page first if the pool is full. The caller reports
+     * the access to the replacement policy.
+     */
+    private Page loadPage(PageId pid) throws DbException {
+        int stripe = stripeOf(pid);
+        synchronized (stripes[stripe]) {
+            while (true) {
+                Page p = pages.get(pid);
+                if (p != null)
+                    return p;
+
+                int drops;
+                synchronized (this) {
+                    while (pages.size() + inFlight >= numPages)
+                        evictPage();
+                    inFlight++;
+                    drops = dropCounts[stripe];
+                }
+                try {
+                    p = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+                } finally {
+                    synchronized (this) {
+                        inFlight--;
+                        notifyAll();
+                    }
+                }
+                synchronized (this) {
+                    // insertTuple or the recovery manager may have installed a
+                    // newer copy while we were reading
+                    Page installed = pages.get(pid);
+                    if (installed != null)
+                        return installed;
+                    if (dropCounts[stripe] == drops) {
+                        pages.put(pid, p);
+                        return p;
+                    }
+                }
+            }
         }
+    }
+
+    /**
+     * Retrieve a page without locking it for anyone. The caller keeps other
+     * transactions from changing it some other way, as a BTreeFile does
+     * with the latches of its internal pages.
+     *
+     * @param pid the ID of the requested page
+     */
+    Page getUnlockedPage(PageId pid) throws DbException {
+        Page p = pages.get(pid);
+        if (p == null)
+            p = loadPage(pid);
+        policy.pageAccessed(pid);
         return p;
     }
 
+    /**
+     * Read a page into the buffer pool ahead of its use, without locking it
+     * for anyone. Does nothing if the page is already cached.
+     *
+     * @param pid the ID of the page to read
+     */
+    public void prefetchPage(PageId pid) throws DbException {
+        if (pages.containsKey(pid))
+            return;
+        loadPage(pid);
+        policy.pageAdmitted(pid);
+    }
+
+    /** @return the maximum number of pages this buffer pool holds */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the bytes the cached pages hold for before-images of changes
+     *   not yet committed or aborted. Pages keep no separate before-image
+     *   until they are changed (see {@link TuplePage#getBeforeImageSize}).
+     */
+    public long getBeforeImageBytes() {
+        long bytes = 0;
+        for (Page p : pages.values()) {
+            if (p instanceof TuplePage)
+                bytes += ((TuplePage) p).getBeforeImageSize();
+        }
+        return bytes;
+    }
+
+    private static int stripeOf(PageId pid) {
+        return (pid.hashCode() & 0x7fffffff) % NUM_STRIPES;
+    }
+
+    /** Removes a page from the pool; callers hold this. */
+    private void dropPage(PageId pid) {
+        if (pages.remove(pid) != null)
+            dropCounts[stripeOf(pid)]++;
+        policy.pageRemoved(pid);
+    }
+
+    /**
+     * Start tid as a read-only transaction that reads a snapshot of the
+     * committed state of the database instead of taking locks.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -125,14 +331,91 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-        lm.releaseAllLocks(tid, commit);
-        
+        if (versions.isSnapshot(tid)) {
+            versions.endSnapshot(tid);
+            return;
+        }
+        releaseAllLocks(tid, commit);
+    }
+
+    /**
+     * Release all locks of tid. On commit the pages it locked remember their
+     * current contents as their before-image; on abort they are reverted to it.
+     */
+    private void releaseAllLocks(TransactionId tid, boolean commit) {
+        if (commit) {
+            for (PageId pid : pagesOf(tid)) {
+                Page p = pages.get(pid);
+                if (p != null)
+                    p.setBeforeImage(); // next abort should only roll back to here
+            }
+            // publish before releasing the locks, so nobody else has changed
+            // the pages yet
+            versions.commit(tid, committedImages(tid));
+        } else {
+            revertPages(tid);
+            versions.abort(tid);
+        }
+        lm.releaseAllLocks(tid);
+    }
+
+    /** The committed images of the pages tid changed, as the version store knows them. */
+    private Map<PageId, Page> committedImages(TransactionId tid) {
+        Map<PageId, Page> images = new HashMap<PageId, Page>();
+        Set<PageId> pids = versions.pagesChangedBy(tid);
+        if (pids == null)
+            return images;
+        for (PageId pid : pids) {
+            Page p = pages.get(pid);
+            if (p != null) {
+                images.put(pid, p.getBeforeImage());
+            } else {
+                // flushed when it was evicted
+                images.put(pid, Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid));
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Replace the cached pages of tid with their before-images. An abort
+     * calls this before the log rollback, which flushes all pages and
+     * would otherwise write changes of tid that were never logged.
+     */
+    void revertPages(TransactionId tid) {
+        for (PageId pid : pagesOf(tid)) {
+            Page p = pages.get(pid);
+            // a page evicted meanwhile must not come back
+            if (p != null)
+                pages.replace(pid, p, p.getBeforeImage());
+        }
+    }
+
+    /**
+     * The pages tid holds page locks on, plus the cached pages it dirtied.
+     * Pages locked only through a table lock have no page lock, but the
+     * ones tid changed are found by their dirty flag.
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
         Set<PageId> pageIds = lm.pagesLockedByTid(tid);
-        if (pageIds == null) return;
-        for (PageId p : pageIds) {
-          if (pages.containsKey(p))
-            pages.get(p).setBeforeImage();
+        if (pageIds == null)
+            pageIds = new HashSet<PageId>();
+        for (Page p : pages.values()) {
+            TransactionId dirtier = p.isDirty();
+            if (dirtier != null && dirtier.equals(tid))
+                pageIds.add(p.getId());
         }
+        return pageIds;
+    }
+
+    /** @return the lock manager that guards the pages of this buffer pool */
+    public LockManager getLockManager() {
+        return lm;
+    }
+
+    /** @return the page versions read by the read-only transactions of this buffer pool */
+    public VersionStore getVersionStore() {
+        return versions;
     }
 
     /**
@@ -158,24 +441,87 @@ public class BufferPool {
 
         ArrayList<Page> dirtypages = file.insertTuple(tid, t);
 
-        synchronized(this) {
-            for (Page p : dirtypages){
-                p.markDirty(true, tid);
+        for (Page p : dirtypages)
+            installDirtyPage(tid, p);
+    }
 
-                // if page in pool already, done.
-                if(pages.get(p.getId()) != null) {
-                    //replace old page with new one in case addTuple returns a new copy of the page
-                    pages.put(p.getId(), p);
-                }
-                else {
-                    
-                    // put page in pool
-                    if(pages.size() >= numPages)
-                        evictPage();
-                    pages.put(p.getId(), p);
-                }
+    /**
+     * Marks p dirty and makes it the cached copy of its page. The page may
+     * have been evicted while it was being changed, or the DbFile may have
+     * returned a new copy.
+     */
+    synchronized void installDirtyPage(TransactionId tid, Page p)
+        throws DbException {
+        p.markDirty(true, tid);
+        versions.changed(tid, p.getId());
+        installPage(p);
+    }
+
+    /** Makes p the cached copy of its page; callers hold this. */
+    private void installPage(Page p) throws DbException {
+        // if page in pool already, done.
+        if(pages.get(p.getId()) != null) {
+            //replace old page with new one in case addTuple returns a new copy of the page
+            pages.put(p.getId(), p);
+        }
+        else {
+
+            // put page in pool
+            while(pages.size() + inFlight >= numPages)
+                evictPage();
+            pages.put(p.getId(), p);
+        }
+        policy.pageAccessed(p.getId());
+    }
+
+    /**
+     * Commits at once a change that the system transaction sys made to the
+     * structure of a file on behalf of tid, such as a B+ tree split, so
+     * that it stays if tid aborts. The caller registered each page with
+     * the version store for sys before changing it, and changed it while
+     * holding this, so that no page was flushed half changed.
+     * <p>
+     * The change is logged and published with the committed images of the
+     * pages. A page that also holds changes of tid stays dirty by tid, and
+     * the caller has already made its committed image its before-image,
+     * which an abort of tid restores. The other pages are committed as
+     * they are and left clean, since the log already has them.
+     *
+     * @param changed the pages changed, as cached
+     * @param before the committed image of each page before the change
+     * @param after the committed image of each page after the change if
+     *   the page holds changes of tid, or null if it is committed as it is
+     */
+    synchronized void commitSystemChange(TransactionId sys, TransactionId tid,
+            List<Page> changed, List<Page> before, List<Page> after)
+            throws DbException, IOException {
+        Map<PageId, Page> images = new HashMap<PageId, Page>();
+        for (int i = 0; i < changed.size(); i++) {
+            Page p = changed.get(i);
+            Page image = after.get(i);
+            if (image == null) {
+                p.setBeforeImage();
+                image = p.getBeforeImage();
             }
+            images.put(p.getId(), image);
         }
+        LogFile log = Database.getLogFile();
+        log.logXactionBegin(sys);
+        for (int i = 0; i < changed.size(); i++)
+            log.logWrite(sys, before.get(i), images.get(changed.get(i).getId()));
+        log.logCommit(sys);
+
+        for (int i = 0; i < changed.size(); i++) {
+            Page p = changed.get(i);
+            versions.changed(sys, p.getId());
+            if (after.get(i) != null) {
+                installDirtyPage(tid, p);
+            } else {
+                p.markDirty(false, null);
+                installPage(p);
+            }
+        }
+        versions.commit(sys, images);
     }
 
     /**
@@ -184,9 +530,9 @@ public class BufferPool {
      * the lock cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
-     * their markDirty bit.  Does not need to update cached versions of any pages that have 
-     * been dirtied, as it is not possible that a new page was created during the deletion
-     * (note difference from addTuple).
+     * their markDirty bit.  No new page can be created during the deletion (note
+     * difference from addTuple), but the page is put back in the pool in case it
+     * was evicted while it was being changed.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -195,7 +541,7 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
         DbFile file = Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
         Page p = file.deleteTuple(tid, t);
-        p.markDirty(true, tid);
+        installDirtyPage(tid, p);
     }
 
     /**
@@ -204,9 +550,9 @@ public class BufferPool {
      * the lock cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
-     * their markDirty bit.  Does not need to update cached versions of any pages that have
-     * been dirtied, as it is not possible that a new page was created during the update
-     * (note difference from addTuple).
+     * their markDirty bit.  No new page can be created during the update (note
+     * difference from addTuple), but the page is put back in the pool in case it
+     * was evicted while it was being changed.
      *
      * @param tid the transaction updating the tuple.
      * @param t the tuple to update
@@ -215,7 +561,7 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
         DbFile file = Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
         Page p = file.updateTuple(tid, t);
-        p.markDirty(true, tid);
+        installDirtyPage(tid, p);
     }
 
     /**
@@ -237,6 +583,7 @@ public class BufferPool {
     public synchronized void replacePage(PageId pid, Page p) {
         pages.remove(pid);
         pages.put(pid, p);
+        policy.pageAccessed(pid);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -245,7 +592,7 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-        pages.remove(pid);
+        dropPage(pid);
     }
 
     /**
@@ -277,17 +624,14 @@ public class BufferPool {
 
         file.writePage(p);
         p.markDirty(false, null);
-        pages.remove(pid);
+        dropPage(pid);
     }
 
     /**
      * Writes all pages of the specified transaction to the log.
      */
     public synchronized  void logPages(TransactionId tid) throws IOException {
-        Set<PageId> pageId = lm.pagesLockedByTid(tid);
-        if (pageId == null) return;
-
-        for (PageId p : pageId) {
+        for (PageId p : pagesOf(tid)) {
             logPage(p);
         }
     }
@@ -296,289 +640,42 @@ public class BufferPool {
     * Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        Set<PageId> pageId = lm.pagesLockedByTid(tid);
-        if (pageId == null) return;
-
-        for (PageId p : pageId) {
+        for (PageId p : pagesOf(tid)) {
             flushPage(p);
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards the page chosen by the replacement policy from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * If the policy has no victim because the pool is taken up by reads in
+     * flight, or by pages whose access has not been reported to the policy
+     * yet, this waits briefly and returns without evicting; callers check
+     * again whether they still need a free frame.
      */
     private synchronized  void evictPage() throws DbException {
-        Object pids[] = pages.keySet().toArray();
-        PageId pid = (PageId) pids[random.nextInt(pids.length)];
-
-        try {
-            Page p = pages.get(pid);
-            flushPage(pid);
-        } catch (IOException e) {
-            throw new DbException("could not evict page");
-        }
-
-        pages.remove(pid);
-    }
-
-    /**
-     * Manages locks.
-     * 
-     * All the field read/write operations are protected by this
-     * @Threadsafe
-     */
-    class LockManager {
-
-        final int LOCK_WAIT = 10;       // ms
-        final Random random = new Random();
-
-        // maps TransactionId to a Set of Pages
-        final HashMap<TransactionId,Set<PageId>> _tid2pages;
-
-        // set of pages that are locked
-        final HashMap<PageId,Set<TransactionId>> _page2tids;
-
-        // permission under which page got locked
-        final HashMap<PageId,Permissions> _page2perm;
-
-        final HashMap<TransactionId, Vector<TransactionId>> _waitsFor;
-
-        private LockManager() {
-            _tid2pages = new HashMap<TransactionId, Set<PageId>>();
-            _page2tids = new HashMap<PageId, Set<TransactionId>>();
-            _page2perm = new HashMap<PageId, Permissions>();
-            _waitsFor = new HashMap<TransactionId, Vector<TransactionId>>();
-
-        }
-
-        //methods to check waits for graph
-        @SuppressWarnings("unchecked")
-        public synchronized boolean checkWaitsFor(TransactionId origin, Vector<TransactionId> goal) {
-
-            Vector<TransactionId> start = _waitsFor.get(origin);
-            if (start == null) return false;
-            for (TransactionId t : start) {
-                Vector<TransactionId> newGoal = (Vector<TransactionId>)goal.clone();
-                newGoal.addElement(t);
-                if (goal.contains(t) || checkWaitsFor(t,newGoal)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        @SuppressWarnings("unchecked")
-        public synchronized boolean checkWaitsForDeadlock(TransactionId tid) {
-                
-            Vector goal = new Vector<TransactionId>();
-            goal.addElement((TransactionId)tid);
-
-            return checkWaitsFor(tid,goal);
-        }
-
-        /**
-         * Tried to acquire a lock on page pid for transaction tid, with
-         * permissions perm.
-         *
-         * @throws DeadlockException after on cycle-based deadlock
-         */
-        @SuppressWarnings("unchecked")
-        public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm)
-            throws DeadlockException {
-
-            int count = 0;
-            while(!lock(tid, pid, perm)) {
-
-                synchronized(this) {
-                    Vector<TransactionId> v = _waitsFor.get(tid);
-                    if (v == null) {
-                        v = new Vector<TransactionId>();
-                        _waitsFor.put(tid,v);
-                    } 
-                    Set<TransactionId> holder = _page2tids.get(pid);
-                    holder = (Set<TransactionId>)((HashSet)holder).clone();
-                    holder.remove(tid);
-                    v.addAll(holder);
-                    _waitsFor.put(tid,v);
-                    if (checkWaitsForDeadlock(tid)) {
-                        _waitsFor.remove(tid);
-                        throw new DeadlockException();
-                    }
-                }
-
+        // hits do not hold the monitor, so the policy may have been told about
+        // a page that was already gone; skip such victims
+        PageId pid;
+        do {
+            pid = policy.chooseVictim();
+            if (pid == null) {
+                if (pages.isEmpty() && inFlight == 0)
+                    throw new DbException("could not evict page: no pages in buffer pool");
                 try {
-                    Thread.sleep(LOCK_WAIT);
+                    wait(1);
                 } catch (InterruptedException e) {
+                    throw new DbException("interrupted while waiting for a free page");
                 }
-
-            }
-            
-            synchronized(this) {
-             _waitsFor.remove(tid); 
-            }
-
-            return true;
-        }
-
-        /**
-         * Release all locks corresponding to TransactionId tid.
-         */
-        public synchronized void releaseAllLocks(TransactionId tid, boolean commit) {
-            Set<PageId> s =  _tid2pages.get(tid);
-            if(s == null)
                 return;
-
-            Set<PageId> sx = new HashSet<PageId>(s);
-            for (Iterator<PageId> i = sx.iterator(); i.hasNext(); ) {
-
-                PageId pid = i.next();
-                if (commit) {
-                    Page p = pages.get(pid);
-                    if (p != null) {
-                        p.setBeforeImage(); // next abort should only roll back to here
-                    }
-                } else {
-                    Page p = pages.get(pid);
-                    if (p != null) {
-                        pages.put(pid, p.getBeforeImage());
-                    }
-                }
-
-                releaseLock(tid, pid);
-            }
-        }
-
-        public synchronized Set<PageId> pagesLockedByTid(TransactionId tid) {
-            return _tid2pages.get(tid);
-        }
-
-        /** Return true if the specified transaction has a lock on the specified page */
-        public synchronized boolean holdsLock(TransactionId tid, PageId p) {
-            Set<TransactionId> tset =  _page2tids.get(p);
-            if (tset == null) return false;
-            return tset.contains(tid);
-        }
-
-        /**
-         * Returns whether or not this tid/pid/perm is already locked by another object.
-         * if nobody is holding a lock, then this tid/pid/perm can acquire the lock.
-         *
-         * if perm == READ
-         *  if tid is holding any sort of lock on pid, then the tid can acquire the lock (return false).
-         *
-         *  if another tid is holding a READ lock on pid, then the tid can acquire the lock (return false).
-         *  if another tid is holding a WRITE lock on pid, then tid can not currently 
-         *  acquire the lock (return true).
-         *
-         * else
-         *   if tid is THE ONLY ONE holding a READ lock on pid, then tid can acquire the lock (return false).
-         *   if tid is holding a WRITE lock on pid, then the tid already has the lock (return false).
-         *
-         *   if another tid is holding any sort of lock on pid, then the tid can not currenty acquire the lock (return true).
-         */
-        private boolean locked(TransactionId tid, PageId pid, Permissions perm) {
-            Set<PageId> pset = null;
-            Set<TransactionId> tset = null;
-            Permissions p = null;
-
-            synchronized (this){
-            pset=_tid2pages.get(tid);
-            tset= _page2tids.get(pid);
-            p=_page2perm.get(pid);
-            }
-            
-            // if nobody is holding a lock on this page, duh, grant lock
-            if(p == null)
-                return false;
-
-            // if perm == READ
-            if(perm == Permissions.READ_ONLY) {
-                // if tid is holding any sort of lock on pid, duh, grant lock
-                if(pset != null && pset.contains(pid))
-                    return false;
-
-                // if another tid is holding a READ lock on pid, grant lock
-                if(p == Permissions.READ_ONLY)
-                    return false;
-
-                //otherwise, someone else has the lock, so we can't have it
-                if(p == Permissions.READ_WRITE)
-                    return true;
-
-                System.out.println("locked weirdness, 1");
-                System.exit(-1);
-
-                // if perm == READ_WRITE
-            } else {
-                // if tid is THE ONLY ONE holding a READ lock on pid, this is allowed but we will need to
-                // change lock to WRITE later
-                if(p == Permissions.READ_ONLY && tset.contains(tid) && tset.size() == 1)
-                    return false;
-
-                // if tid is holding a WRITE lock on pid, duh, grant lock
-                if(p == Permissions.READ_WRITE && tset.contains(tid))
-                    return false;
-
-                // if another tid is holding any sort of lock on pid, sleep, goto start
-                if(tset.size() != 0)
-                    return true;
-
-                System.out.println("locked weirdness, 2");
-                System.exit(-1);
-            }
-
-            System.out.println("locked weirdness, 3");
-            System.exit(-1);
-            return true;
-        }
-
-        public  synchronized void releaseLock(TransactionId tid, PageId pid) {
-
-            Set<PageId> pset = _tid2pages.get(tid);
-            if(pset != null) {
-                pset.remove(pid);
-                if(pset.isEmpty())
-                    _tid2pages.remove(tid);
-            }
-
-            Set<TransactionId> tset = _page2tids.get(pid);
-            if(tset != null) {
-                tset.remove(tid);
-                if(tset.isEmpty()) {
-                    _page2tids.remove(pid);
-                    _page2perm.remove(pid);
-                }
             }
-        }
-
-        private  synchronized boolean lock(TransactionId tid, PageId pid, Permissions perm) {
-
-            if(locked(tid, pid, perm))
-                return false;
-
-            Set<PageId> pset = _tid2pages.get(tid);
+        } while (!pages.containsKey(pid));
 
-            if(pset == null) {
-                pset = new HashSet<PageId>();
-                _tid2pages.put(tid, pset);
-            }
-            if (!pset.contains(pid))
-                pset.add(pid);
-
-            Set<TransactionId> tset = _page2tids.get(pid);
-            if(tset == null) {
-                tset = new HashSet<TransactionId>();
-                _page2tids.put(pid, tset);
-            }
-            if (!tset.contains(tid))
-                tset.add(tid);
-
-            Permissions old = _page2perm.get(pid);
-            if (old == null || (old == Permissions.READ_ONLY && perm == Permissions.READ_WRITE)) {
-                _page2perm.put(pid, perm);
-            }
-            return true;
+        try {
+            flushPage(pid);
+        } catch (IOException e) {
+            throw new DbException("could not evict page");
         }
     }
 }
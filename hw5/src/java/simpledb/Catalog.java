@@ -128,6 +128,16 @@ public class Catalog {
     
     /** Delete all tables from the catalog */
     public void clear() {
+        for (DbFile file : id2table.values()) {
+            try {
+                if (file instanceof HeapFile)
+                    ((HeapFile) file).close();
+                else if (file instanceof BTreeFile)
+                    ((BTreeFile) file).close();
+            } catch (IOException e) {
+                // the table is being dropped anyway
+            }
+        }
         id2table.clear();
         id2tupledesc.clear();
         name2id.clear();
@@ -137,6 +147,15 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table whose line ends with the option "mapped" after the field list is
+     * read through a memory mapping (see {@link HeapFile}). The option "varlen",
+     * "pax" or "compressed" sets the storage format of the table:
+     * variable-length records (see {@link VarHeapFile}), pages stored column
+     * by column (see {@link PaxHeapFile}) or compressed pages (see
+     * {@link CompressedHeapFile}) instead of fixed-length rows. The option
+     * "btree" stores the table in a B+ tree on its primary key, or on its
+     * first field if it has none (see {@link BTreeFile}); "mapped" does not
+     * apply to it.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -146,7 +165,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mapped] [varlen|pax|compressed|btree]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -177,7 +196,34 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean mapped = false;
+                String format = null;
+                for (String option : options.split("\\s+")) {
+                    if (option.equalsIgnoreCase("mapped"))
+                        mapped = true;
+                    else if ((option.equalsIgnoreCase("varlen") || option.equalsIgnoreCase("pax")
+                            || option.equalsIgnoreCase("compressed")
+                            || option.equalsIgnoreCase("btree")) && format == null)
+                        format = option.toLowerCase();
+                    else if (option.length() > 0) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if ("btree".equals(format))
+                    tabHf = new BTreeFile(tabFile, t,
+                            primaryKey.length() > 0 ? t.fieldNameToIndex(primaryKey) : 0);
+                else if ("varlen".equals(format))
+                    tabHf = new VarHeapFile(tabFile, t, mapped);
+                else if ("pax".equals(format))
+                    tabHf = new PaxHeapFile(tabFile, t, mapped);
+                else if ("compressed".equals(format))
+                    tabHf = new CompressedHeapFile(tabFile, t, mapped);
+                else
+                    tabHf = new HeapFile(tabFile, t, mapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) page replacement. Pages sit in a circular array of
+ * frames, each with a reference bit that is set on every access. The clock
+ * hand sweeps the frames, clearing set bits, and evicts the first page whose
+ * bit is already clear.
+ * <p>
+ * A hit only sets a bit, without taking the policy's monitor; admission,
+ * removal and victim selection take it. A hit that races with one of those
+ * may set the bit of a frame that was just given to another page, or of an
+ * array that was just replaced; either way one page gets an extra second
+ * chance or loses one, which a hint can afford. Victim selection is O(1)
+ * amortized: every frame the hand passes over has its bit cleared, so it is
+ * taken on the next revolution at the latest.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private PageId[] frames;
+    // 1 if the frame's page was referenced since the hand last passed;
+    // replaced before frameOf gives out frames beyond its end
+    private volatile AtomicIntegerArray referenced;
+    private final ConcurrentHashMap<PageId, Integer> frameOf;
+    // frames that are currently empty, used as a stack
+    private final ArrayList<Integer> freeFrames;
+    private int hand = 0;
+
+    /**
+     * @param numPages the expected number of resident pages; the frame array
+     *            grows if the buffer pool ever hands it more.
+     */
+    public ClockPolicy(int numPages) {
+        int n = Math.max(numPages, 1);
+        frames = new PageId[n];
+        referenced = new AtomicIntegerArray(n);
+        frameOf = new ConcurrentHashMap<PageId, Integer>();
+        freeFrames = new ArrayList<Integer>(n);
+        for (int i = n - 1; i >= 0; i--)
+            freeFrames.add(i);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, 1);
+            return;
+        }
+        synchronized (this) {
+            frame = frameOf.get(pid);
+            if (frame != null)
+                referenced.set(frame, 1);
+            else
+                admit(pid);
+        }
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (!frameOf.containsKey(pid))
+            admit(pid);
+    }
+
+    private void admit(PageId pid) {
+        if (freeFrames.isEmpty())
+            grow();
+        int frame = freeFrames.remove(freeFrames.size() - 1);
+        frames[frame] = pid;
+        // a newly admitted page has not yet earned its second chance
+        referenced.set(frame, 0);
+        frameOf.put(pid, frame);
+    }
+
+    private void grow() {
+        int n = frames.length;
+        PageId[] newFrames = new PageId[n * 2];
+        AtomicIntegerArray newReferenced = new AtomicIntegerArray(n * 2);
+        System.arraycopy(frames, 0, newFrames, 0, n);
+        for (int i = 0; i < n; i++)
+            newReferenced.set(i, referenced.get(i));
+        for (int i = n * 2 - 1; i >= n; i--)
+            freeFrames.add(i);
+        frames = newFrames;
+        referenced = newReferenced;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        frames[frame] = null;
+        referenced.set(frame, 0);
+        freeFrames.add(frame);
+    }
+
+    public synchronized PageId chooseVictim() {
+        if (frameOf.isEmpty())
+            return null;
+        while (true) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (frames[frame] == null)
+                continue;
+            if (referenced.getAndSet(frame, 0) == 1)
+                continue;
+            PageId victim = frames[frame];
+            frames[frame] = null;
+            frameOf.remove(victim);
+            freeFrames.add(frame);
+            return victim;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package simpledb;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ColumnCodec encodes and decodes the values of one field of the tuples on a
+ * {@link CompressedHeapPage}. A column is written as one encoding byte
+ * followed by its values in that encoding:
+ * <ul>
+ * <li>PLAIN: each value in turn; an int as 4 bytes, a string as a length
+ * byte and one byte per character.</li>
+ * <li>DICTIONARY: a 2-byte count of distinct values, those values in plain
+ * form, then for each value its index among them, in 1 byte if there are
+ * at most 256 distinct values and in 2 otherwise.</li>
+ * <li>RUN_LENGTH: a 2-byte count of runs, then for each run of equal values
+ * its 2-byte length and the value in plain form.</li>
+ * <li>FRAME_OF_REFERENCE (ints only): the smallest value as 4 bytes, the
+ * width of the offsets from it (1, 2 or 4) as a byte, then each value's
+ * offset in that many bytes.</li>
+ * <li>DEFLATE: a 2-byte length, then the column's plain form compressed with
+ * zlib, through java.util.zip; used when the page does not fit otherwise
+ * and no encoding above makes the column smaller.</li>
+ * </ul>
+ * All numbers are big-endian.
+ */
+final class ColumnCodec {
+
+    static final int PLAIN = 0;
+    static final int DICTIONARY = 1;
+    static final int RUN_LENGTH = 2;
+    static final int FRAME_OF_REFERENCE = 3;
+    static final int DEFLATE = 4;
+
+    private ColumnCodec() {
+    }
+
+    /**
+     * The size of a column in each encoding but DEFLATE, kept up to date as
+     * values are appended to it.
+     */
+    static class Stats {
+        final Type type;
+        int count = 0;
+        int plainBytes = 0;
+        // distinct values and the bytes they take in plain form
+        final HashMap<Field, Integer> distinct = new HashMap<Field, Integer>();
+        int distinctBytes = 0;
+        int runs = 0;
+        int runBytes = 0;
+        Field last = null;
+        // range of the values of an int column
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        Stats(Type type) {
+            this.type = type;
+        }
+
+        /** Appends f to the column. */
+        void add(Field f) {
+            int size = plainSize(f);
+            count++;
+            plainBytes += size;
+            if (!distinct.containsKey(f)) {
+                distinct.put(f, distinct.size());
+                distinctBytes += size;
+            }
+            if (last == null || !f.equals(last)) {
+                runs++;
+                runBytes += size;
+                last = f;
+            }
+            if (type == Type.INT_TYPE) {
+                int v = ((IntField) f).getValue();
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+
+        /** @return the size of the column with f appended, without DEFLATE */
+        int sizeWith(Field f) {
+            int size = plainSize(f);
+            boolean newValue = !distinct.containsKey(f);
+            boolean newRun = last == null || !f.equals(last);
+            long lo = min, hi = max;
+            if (type == Type.INT_TYPE) {
+                int v = ((IntField) f).getValue();
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+            return 1 + Math.min(
+                    Math.min(plainBytes + size,
+                            ColumnCodec.dictionarySize(count + 1, distinct.size() + (newValue ? 1 : 0),
+                                    distinctBytes + (newValue ? size : 0))),
+                    Math.min(runLengthSize(runs + (newRun ? 1 : 0), runBytes + (newRun ? size : 0)),
+                            frameSize(count + 1, lo, hi)));
+        }
+
+        /** @return the size of the column without DEFLATE, with its encoding byte */
+        int size() {
+            return 1 + Math.min(Math.min(plainBytes, dictionarySize()),
+                    Math.min(runLengthSize(runs, runBytes), frameSize(count, min, max)));
+        }
+
+        int dictionarySize() {
+            return ColumnCodec.dictionarySize(count, distinct.size(), distinctBytes);
+        }
+
+        /** @return the encoding, other than DEFLATE, that makes the column smallest */
+        int bestEncoding() {
+            int best = PLAIN, size = plainBytes;
+            if (dictionarySize() < size) {
+                best = DICTIONARY;
+                size = dictionarySize();
+            }
+            if (runLengthSize(runs, runBytes) < size) {
+                best = RUN_LENGTH;
+                size = runLengthSize(runs, runBytes);
+            }
+            if (frameSize(count, min, max) < size)
+                best = FRAME_OF_REFERENCE;
+            return best;
+        }
+
+        private int frameSize(int n, long lo, long hi) {
+            if (type != Type.INT_TYPE)
+                return Integer.MAX_VALUE;
+            return n == 0 ? 5 : 5 + n * width(hi - lo);
+        }
+    }
+
+    private static int dictionarySize(int n, int numDistinct, int distinctBytes) {
+        return 2 + distinctBytes + n * (numDistinct <= 256 ? 1 : 2);
+    }
+
+    private static int runLengthSize(int runs, int runBytes) {
+        return 2 + runs * 2 + runBytes;
+    }
+
+    /** @return the bytes needed for offsets up to range */
+    private static int width(long range) {
+        return range < 0x100 ? 1 : range < 0x10000 ? 2 : 4;
+    }
+
+    /** @return the bytes f takes in plain form */
+    static int plainSize(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return 4;
+        return 1 + ((StringField) f).getValue().length();
+    }
+
+    private static void writePlain(Field f, DataOutputStream out) throws IOException {
+        if (f.getType() == Type.INT_TYPE) {
+            out.writeInt(((IntField) f).getValue());
+        } else {
+            String s = ((StringField) f).getValue();
+            out.writeByte(s.length());
+            out.writeBytes(s);
+        }
+    }
+
+    private static Field readPlain(Type type, DataInputStream in) throws IOException {
+        if (type == Type.INT_TYPE)
+            return new IntField(in.readInt());
+        byte[] b = new byte[in.readUnsignedByte()];
+        in.readFully(b);
+        return new StringField(new String(b, "ISO-8859-1"), Type.STRING_LEN);
+    }
+
+    /**
+     * Writes values, whose sizes stats describes, in the encoding that makes
+     * them smallest, trying DEFLATE too if deflate is set.
+     */
+    static void encode(List<Field> values, Stats stats, boolean deflate,
+            DataOutputStream out) throws IOException {
+        int encoding = stats.bestEncoding();
+        if (deflate) {
+            byte[] z = deflate(values);
+            if (3 + z.length < stats.size()) {
+                out.writeByte(DEFLATE);
+                out.writeShort(z.length);
+                out.write(z);
+                return;
+            }
+        }
+        out.writeByte(encoding);
+        switch (encoding) {
+        case PLAIN:
+            for (Field f : values)
+                writePlain(f, out);
+            break;
+        case DICTIONARY: {
+            Field[] dict = new Field[stats.distinct.size()];
+            for (Map.Entry<Field, Integer> e : stats.distinct.entrySet())
+                dict[e.getValue()] = e.getKey();
+            out.writeShort(dict.length);
+            for (Field f : dict)
+                writePlain(f, out);
+            for (Field f : values) {
+                int code = stats.distinct.get(f);
+                if (dict.length <= 256)
+                    out.writeByte(code);
+                else
+                    out.writeShort(code);
+            }
+            break;
+        }
+        case RUN_LENGTH: {
+            out.writeShort(stats.runs);
+            int i = 0;
+            while (i < values.size()) {
+                int j = i + 1;
+                while (j < values.size() && values.get(j).equals(values.get(i)))
+                    j++;
+                out.writeShort(j - i);
+                writePlain(values.get(i), out);
+                i = j;
+            }
+            break;
+        }
+        case FRAME_OF_REFERENCE: {
+            int base = values.isEmpty() ? 0 : (int) stats.min;
+            int w = width(stats.max - stats.min);
+            out.writeInt(base);
+            out.writeByte(w);
+            for (Field f : values) {
+                int off = ((IntField) f).getValue() - base;
+                if (w == 1)
+                    out.writeByte(off);
+                else if (w == 2)
+                    out.writeShort(off);
+                else
+                    out.writeInt(off);
+            }
+            break;
+        }
+        }
+    }
+
+    private static byte[] deflate(List<Field> values) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream out = new DataOutputStream(plain);
+        for (Field f : values)
+            writePlain(f, out);
+        out.flush();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(plain.toByteArray());
+            deflater.finish();
+            ByteArrayOutputStream z = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+            byte[] buf = new byte[BufferPool.PAGE_SIZE];
+            while (!deflater.finished())
+                z.write(buf, 0, deflater.deflate(buf));
+            return z.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] z) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(z);
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(BufferPool.PAGE_SIZE * 2);
+            byte[] buf = new byte[BufferPool.PAGE_SIZE];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated deflated column");
+                plain.write(buf, 0, n);
+            }
+            return plain.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt deflated column: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A column as read by {@link #decode}: its values, and for a column
+     * that was dictionary encoded, the dictionary and each value's index in
+     * it.
+     */
+    static class Column {
+        Field[] values;
+        Field[] dictionary = null;
+        int[] codes = null;
+    }
+
+    /**
+     * Reads past a column of n values of the given type written by
+     * {@link #encode}, without decoding its values.
+     */
+    static void skip(Type type, int n, DataInputStream in) throws IOException {
+        int encoding = in.readUnsignedByte();
+        switch (encoding) {
+        case PLAIN:
+            for (int i = 0; i < n; i++)
+                skipPlain(type, in);
+            break;
+        case DICTIONARY: {
+            int size = in.readUnsignedShort();
+            for (int i = 0; i < size; i++)
+                skipPlain(type, in);
+            skipFully(in, size <= 256 ? n : 2L * n);
+            break;
+        }
+        case RUN_LENGTH: {
+            int runs = in.readUnsignedShort();
+            for (int r = 0; r < runs; r++) {
+                skipFully(in, 2);
+                skipPlain(type, in);
+            }
+            break;
+        }
+        case FRAME_OF_REFERENCE:
+            skipFully(in, 4);
+            skipFully(in, (long) in.readUnsignedByte() * n);
+            break;
+        case DEFLATE:
+            skipFully(in, in.readUnsignedShort());
+            break;
+        default:
+            throw new IOException("unknown column encoding " + encoding);
+        }
+    }
+
+    private static void skipPlain(Type type, DataInputStream in) throws IOException {
+        skipFully(in, type == Type.INT_TYPE ? 4 : in.readUnsignedByte());
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        if (in.skip(n) != n)
+            throw new EOFException("truncated column");
+    }
+
+    /** Reads a column of n values of the given type written by {@link #encode}. */
+    static Column decode(Type type, int n, DataInputStream in) throws IOException {
+        Column c = new Column();
+        c.values = new Field[n];
+        int encoding = in.readUnsignedByte();
+        switch (encoding) {
+        case PLAIN:
+            for (int i = 0; i < n; i++)
+                c.values[i] = readPlain(type, in);
+            break;
+        case DICTIONARY: {
+            Field[] dict = new Field[in.readUnsignedShort()];
+            for (int i = 0; i < dict.length; i++)
+                dict[i] = readPlain(type, in);
+            c.dictionary = dict;
+            c.codes = new int[n];
+            for (int i = 0; i < n; i++) {
+                c.codes[i] = dict.length <= 256 ? in.readUnsignedByte() : in.readUnsignedShort();
+                c.values[i] = dict[c.codes[i]];
+            }
+            break;
+        }
+        case RUN_LENGTH: {
+            int runs = in.readUnsignedShort();
+            int i = 0;
+            for (int r = 0; r < runs; r++) {
+                int len = in.readUnsignedShort();
+                Field f = readPlain(type, in);
+                for (int k = 0; k < len; k++)
+                    c.values[i++] = f;
+            }
+            break;
+        }
+        case FRAME_OF_REFERENCE: {
+            int base = in.readInt();
+            int w = in.readUnsignedByte();
+            for (int i = 0; i < n; i++) {
+                int off = w == 1 ? in.readUnsignedByte() : w == 2 ? in.readUnsignedShort() : in.readInt();
+                c.values[i] = new IntField(base + off);
+            }
+            break;
+        }
+        case DEFLATE: {
+            byte[] z = new byte[in.readUnsignedShort()];
+            in.readFully(z);
+            DataInputStream plain = new DataInputStream(new ByteArrayInputStream(inflate(z)));
+            for (int i = 0; i < n; i++)
+                c.values[i] = readPlain(type, plain);
+            break;
+        }
+        default:
+            throw new IOException("unknown column encoding " + encoding);
+        }
+        return c;
+    }
+}
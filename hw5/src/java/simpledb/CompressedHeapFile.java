@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are {@link CompressedHeapPage}s,
+ * which store each column in a dictionary, run-length, frame-of-reference or
+ * zlib encoding, so that a table with low-cardinality or clustered columns
+ * takes fewer pages and scans read less from disk. The columns of a page
+ * are decompressed once it is in the buffer pool, as scans need them, and
+ * compressed when it is written; the file is otherwise read, written and scanned exactly like a
+ * HeapFile. {@link HeapFileEncoder#convertCompressed} writes one from a
+ * text file.
+ * <p>
+ * A scan given predicates ({@link SeqScan#addPredicate}) has the pages test
+ * them, on dictionary codes where it can.
+ *
+ * @see CompressedHeapPage
+ * @see ColumnCodec
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    /**
+     * Constructs a compressed heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a compressed heap file backed by the specified file, read
+     * through a memory mapping if mapped is true.
+     */
+    public CompressedHeapFile(File f, TupleDesc td, boolean mapped) {
+        // pages with room for no more than a small tuple are treated as full
+        super(f, td, mapped, Math.min(td.getSize(), BufferPool.PAGE_SIZE / 16));
+    }
+
+    protected TuplePage createPage(HeapPageId id, ByteBuffer data) throws IOException {
+        return new CompressedHeapPage(id, data);
+    }
+
+    protected boolean hasRoom(TuplePage p, Tuple t) throws DbException {
+        return ((CompressedHeapPage) p).fits(t);
+    }
+}
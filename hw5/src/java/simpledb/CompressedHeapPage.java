@@ -0,0 +1,652 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * CompressedHeapPage is a page of a {@link CompressedHeapFile}. On disk it
+ * stores its tuples column by column, each column in whichever of the
+ * encodings of {@link ColumnCodec} makes it smallest, so a page holds as
+ * many tuples as fit once compressed: many more than a HeapPage when
+ * columns have few distinct values, long runs or a narrow range.
+ * <p>
+ * The format is a 2-byte count of slots, a bitmap of the slots in use
+ * (one bit per slot, as in a HeapPage header), then each field's column,
+ * holding the values of the used slots in slot order. A page of zeroes is
+ * empty.
+ * <p>
+ * Reading the page into the buffer pool only finds where each column
+ * starts. A column is decompressed the first time a scan needs it, and all
+ * of them before the page is changed; it is compressed again when it is
+ * written. Columns that were dictionary encoded keep their codes until the
+ * page is changed, so that a scan can test equality predicates on them
+ * without comparing values, and without decoding the other columns of a
+ * page that has no match; see {@link #iterator(boolean[], List)}.
+ * <p>
+ * Inserts are accepted only while the page still fits in
+ * BufferPool.PAGE_SIZE bytes once compressed, and an update that makes it
+ * too large throws DbException. A tuple keeps its slot for as long as it
+ * is on the page.
+ *
+ * @see CompressedHeapFile
+ * @see ColumnCodec
+ */
+public class CompressedHeapPage implements TuplePage {
+
+    /** Most slots a page has, however well its tuples compress. */
+    public static final int MAX_SLOTS = 4096;
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+
+    // the fields of the tuple in each slot, null for an empty slot; the
+    // first numSlots entries are slots. Everything below is guarded by the
+    // page's monitor.
+    private Field[][] slots;
+    private int numSlots;
+    private int numUsed;
+
+    // until every column is decoded: where each starts in image, the used
+    // slots in order, and which columns are decoded into slots
+    private int[] columnStart;
+    private int[] used;
+    private boolean[] decoded;
+
+    // dictionary and the code of each slot of the columns that were
+    // dictionary encoded on disk; null once the page is changed
+    private Field[][] dictionaries;
+    private int[][] codes;
+
+    // sizes of the columns, null when they must be recounted
+    private ColumnCodec.Stats[] stats = null;
+
+    // the page as last read or written, null if it has changed since, and
+    // the bytes of it in use
+    private byte[] image;
+    private int imageSize;
+    // before-image; null while the page is unchanged since setBeforeImage
+    private byte[] oldData = null;
+
+    /**
+     * Create a CompressedHeapPage from a set of bytes of data read from
+     * disk, in the format described above.
+     */
+    public CompressedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a CompressedHeapPage from a buffer holding a page. The buffer's
+     * position is not changed.
+     */
+    public CompressedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        byte[] bytes = new byte[BufferPool.PAGE_SIZE];
+        ByteBuffer src = data.duplicate();
+        src.get(bytes, 0, Math.min(src.remaining(), bytes.length));
+        decode(bytes);
+        this.image = bytes;
+    }
+
+    private void decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        numSlots = in.readUnsignedShort();
+        if (numSlots > MAX_SLOTS)
+            throw new IOException("corrupt compressed page " + pid.pageNumber());
+        byte[] bitmap = new byte[(numSlots + 7) / 8];
+        in.readFully(bitmap);
+        slots = new Field[Math.max(numSlots, 16)][];
+        used = new int[numSlots];
+        numUsed = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if ((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+                slots[i] = new Field[td.numFields()];
+                used[numUsed++] = i;
+            }
+        }
+
+        dictionaries = new Field[td.numFields()][];
+        codes = new int[td.numFields()][];
+        columnStart = new int[td.numFields()];
+        decoded = new boolean[td.numFields()];
+        for (int j = 0; j < td.numFields(); j++) {
+            columnStart[j] = bytes.length - in.available();
+            ColumnCodec.skip(td.getFieldType(j), numUsed, in);
+        }
+        imageSize = bytes.length - in.available();
+    }
+
+    /** Decodes column j into the slots, if it is not already. */
+    private void decodeColumn(int j) {
+        if (columnStart == null || decoded[j])
+            return;
+        ColumnCodec.Column c;
+        try {
+            c = ColumnCodec.decode(td.getFieldType(j), numUsed, new DataInputStream(
+                    new ByteArrayInputStream(image, columnStart[j], imageSize - columnStart[j])));
+        } catch (IOException e) {
+            throw new RuntimeException("corrupt compressed page " + pid.pageNumber() + ": " + e);
+        }
+        for (int k = 0; k < numUsed; k++)
+            slots[used[k]][j] = c.values[k];
+        if (c.dictionary != null) {
+            dictionaries[j] = c.dictionary;
+            codes[j] = new int[numSlots];
+            for (int k = 0; k < numUsed; k++)
+                codes[j][used[k]] = c.codes[k];
+        }
+        decoded[j] = true;
+    }
+
+    /** Decodes the columns not yet decoded, as a change to the page needs. */
+    private void decodeAll() {
+        if (columnStart == null)
+            return;
+        for (int j = 0; j < td.numFields(); j++)
+            decodeColumn(j);
+        columnStart = null;
+        used = null;
+        decoded = null;
+    }
+
+    /**
+     * @return the data of an empty page
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.PAGE_SIZE];
+    }
+
+    /**
+     * Compresses tuples of td into pages, in the order given; each page is
+     * filled as far as it goes.
+     *
+     * @return the data of the pages
+     */
+    public static List<byte[]> createPageData(Iterator<Tuple> tuples, TupleDesc td)
+            throws IOException {
+        List<byte[]> pages = new ArrayList<byte[]>();
+        List<Field[]> rows = new ArrayList<Field[]>();
+        ColumnCodec.Stats[] stats = newStats(td);
+        // once a page only fits with some columns deflated, compressing it
+        // for every row would take time quadratic in its rows. Instead, rows
+        // are added unchecked while their plain size fits in the room left
+        // at the last check, as deflating a row adds about that much; the
+        // page is checked once that room is used up, and if it then does
+        // not fit, the rows since the last check that fit go on the next
+        // page.
+        int checked = 0;
+        int room = 0;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            Field[] row = new Field[td.numFields()];
+            int rowSize = 0;
+            for (int j = 0; j < row.length; j++) {
+                row[j] = t.getField(j);
+                rowSize += ColumnCodec.plainSize(row[j]) + 1;
+            }
+            boolean fits = false;
+            if (rows.size() < MAX_SLOTS) {
+                int size = 2 + (rows.size() + 8) / 8;
+                for (int j = 0; j < row.length; j++)
+                    size += stats[j].sizeWith(row[j]);
+                if (size <= BufferPool.PAGE_SIZE) {
+                    fits = true;
+                    checked = rows.size() + 1;
+                } else if (rowSize <= room) {
+                    fits = true;
+                    room -= rowSize;
+                } else {
+                    rows.add(row);
+                    byte[] page = encode(rows, td);
+                    rows.remove(rows.size() - 1);
+                    if (page != null) {
+                        fits = true;
+                        checked = rows.size() + 1;
+                        room = BufferPool.PAGE_SIZE - page.length;
+                    }
+                }
+            }
+            if (!fits) {
+                List<Field[]> next = flush(rows, checked, td, pages);
+                rows = new ArrayList<Field[]>(next);
+                stats = newStats(td);
+                for (Field[] r : rows)
+                    add(stats, r);
+                checked = rows.size();
+                room = 0;
+            }
+            rows.add(row);
+            add(stats, row);
+        }
+        while (!rows.isEmpty() || pages.isEmpty()) {
+            List<Field[]> next = flush(rows, checked, td, pages);
+            rows = new ArrayList<Field[]>(next);
+            checked = rows.size();
+            if (rows.isEmpty())
+                break;
+        }
+        return pages;
+    }
+
+    private static void add(ColumnCodec.Stats[] stats, Field[] row) {
+        for (int j = 0; j < row.length; j++)
+            stats[j].add(row[j]);
+    }
+
+    /**
+     * Adds a page holding rows to pages, or if they do not fit, one holding
+     * the first checked of them, which are known to fit.
+     *
+     * @return the rows left over for the next page
+     */
+    private static List<Field[]> flush(List<Field[]> rows, int checked, TupleDesc td,
+            List<byte[]> pages) throws IOException {
+        byte[] page = encode(rows, td);
+        if (page != null) {
+            pages.add(pad(page));
+            return Collections.emptyList();
+        }
+        pages.add(pad(encode(rows.subList(0, checked), td)));
+        return rows.subList(checked, rows.size());
+    }
+
+    /** @return rows compressed into a page whose slots they fill, or null if they do not fit */
+    private static byte[] encode(List<Field[]> rows, TupleDesc td) throws IOException {
+        ColumnCodec.Stats[] stats = newStats(td);
+        for (Field[] r : rows)
+            add(stats, r);
+        return encode(rows.size(), fullBitmap(rows.size()), rows, stats, td);
+    }
+
+    private static ColumnCodec.Stats[] newStats(TupleDesc td) {
+        ColumnCodec.Stats[] stats = new ColumnCodec.Stats[td.numFields()];
+        for (int j = 0; j < stats.length; j++)
+            stats[j] = new ColumnCodec.Stats(td.getFieldType(j));
+        return stats;
+    }
+
+    private static byte[] fullBitmap(int n) {
+        byte[] bitmap = new byte[(n + 7) / 8];
+        for (int i = 0; i < n; i++)
+            bitmap[i / 8] |= 1 << (i % 8);
+        return bitmap;
+    }
+
+    private static byte[] pad(byte[] page) {
+        return Arrays.copyOf(page, BufferPool.PAGE_SIZE);
+    }
+
+    /** @return the size of a page with n slots whose columns stats describes */
+    private static int size(int n, ColumnCodec.Stats[] stats) {
+        int size = 2 + (n + 7) / 8;
+        for (ColumnCodec.Stats s : stats)
+            size += s.size();
+        return size;
+    }
+
+    /**
+     * Compresses a page.
+     *
+     * @param n the number of slots
+     * @param bitmap the slots in use
+     * @param rows the fields of the tuples in the used slots, in slot order
+     * @param stats the sizes of the columns of rows
+     * @return the bytes of the page in use, or null if they do not fit on a
+     *   page
+     */
+    private static byte[] encode(int n, byte[] bitmap, List<Field[]> rows,
+            ColumnCodec.Stats[] stats, TupleDesc td) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(n);
+        out.write(bitmap);
+        // deflate only when the page does not fit otherwise
+        boolean deflate = size(n, stats) > BufferPool.PAGE_SIZE;
+        List<Field> column = new ArrayList<Field>(rows.size());
+        for (int j = 0; j < td.numFields(); j++) {
+            column.clear();
+            for (Field[] r : rows)
+                column.add(r[j]);
+            ColumnCodec.encode(column, stats[j], deflate, out);
+        }
+        out.flush();
+        if (bytes.size() > BufferPool.PAGE_SIZE)
+            return null;
+        return bytes.toByteArray();
+    }
+
+    /** @return the bytes of this page in use once compressed, or null if they do not fit */
+    private byte[] encode() throws IOException {
+        byte[] bitmap = new byte[(numSlots + 7) / 8];
+        List<Field[]> rows = new ArrayList<Field[]>(numUsed);
+        for (int i = 0; i < numSlots; i++) {
+            if (slots[i] != null) {
+                bitmap[i / 8] |= 1 << (i % 8);
+                rows.add(slots[i]);
+            }
+        }
+        return encode(numSlots, bitmap, rows, getStats(), td);
+    }
+
+    /** @return the sizes of the columns, counted again if they are stale */
+    private ColumnCodec.Stats[] getStats() {
+        decodeAll();
+        if (stats == null) {
+            stats = newStats(td);
+            for (int i = 0; i < numSlots; i++) {
+                if (slots[i] == null)
+                    continue;
+                for (int j = 0; j < stats.length; j++)
+                    stats[j].add(slots[i][j]);
+            }
+        }
+        return stats;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        if (this.dirty)
+            return this.dirtier;
+        else
+            return null;
+    }
+
+    /**
+     * Compresses the page. The invariant is that passing the result to the
+     * CompressedHeapPage constructor produces a page with the same tuples
+     * in the same slots.
+     */
+    public synchronized byte[] getPageData() {
+        if (image == null) {
+            byte[] used;
+            try {
+                used = encode();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            // inserts and updates keep the page small enough
+            if (used == null)
+                throw new IllegalStateException("page " + pid.pageNumber() + " does not fit");
+            image = pad(used);
+            imageSize = used.length;
+        }
+        return image.clone();
+    }
+
+    public CompressedHeapPage getBeforeImage() {
+        byte[] before;
+        synchronized (this) {
+            before = oldData != null ? oldData : getPageData();
+        }
+        try {
+            return new CompressedHeapPage(pid, before);
+        } catch (IOException e) {
+            // the image was made by this class
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    /**
+     * @return the number of bytes this page holds for its before-image
+     *   beyond its own contents; zero while the page is unchanged
+     */
+    public synchronized int getBeforeImageSize() {
+        return oldData == null ? 0 : oldData.length;
+    }
+
+    /**
+     * Called before every change: saves the before-image if this is the
+     * first change since setBeforeImage, and drops what the change makes
+     * stale.
+     */
+    private void beforeWrite() {
+        decodeAll();
+        if (oldData == null)
+            oldData = getPageData();
+        image = null;
+        dictionaries = null;
+        codes = null;
+    }
+
+    /**
+     * @return the number of free bytes on the page once compressed, or 0 if
+     *   it has no slot left. An insert may need more than the tuple's
+     *   compressed size; {@link #fits} tells for sure.
+     */
+    public synchronized int getFreeSpace() {
+        if (numUsed == MAX_SLOTS)
+            return 0;
+        if (image != null)
+            return BufferPool.PAGE_SIZE - imageSize;
+        return Math.max(BufferPool.PAGE_SIZE - size(numSlots, getStats()), 0);
+    }
+
+    /** @return the slot t would go in, or -1 if there is none */
+    private int freeSlot() {
+        if (numSlots < MAX_SLOTS)
+            return numSlots;
+        for (int i = 0; i < numSlots; i++) {
+            if (slots[i] == null)
+                return i;
+        }
+        return -1;
+    }
+
+    /** @return true if the page still fits once compressed with t inserted */
+    public synchronized boolean fits(Tuple t) throws DbException {
+        decodeAll();
+        int slot = freeSlot();
+        if (slot == -1)
+            return false;
+        if (slot == numSlots) {
+            // appending: the column sizes say it without compressing
+            ColumnCodec.Stats[] s = getStats();
+            int size = 2 + (numSlots + 8) / 8;
+            for (int j = 0; j < s.length; j++)
+                size += s[j].sizeWith(t.getField(j));
+            if (size <= BufferPool.PAGE_SIZE)
+                return true;
+        }
+        boolean fits;
+        ColumnCodec.Stats[] saved = stats;
+        int savedSlots = numSlots;
+        // store must not add t to the saved sizes
+        stats = null;
+        store(slot, t);
+        try {
+            fits = encode() != null;
+        } catch (IOException e) {
+            throw new DbException("could not compress page: " + e);
+        } finally {
+            slots[slot] = null;
+            numUsed--;
+            numSlots = savedSlots;
+            stats = saved;
+        }
+        return fits;
+    }
+
+    /** Puts the fields of t in slot, which is empty, and updates the column sizes. */
+    private void store(int slot, Tuple t) {
+        if (slot == slots.length)
+            slots = Arrays.copyOf(slots, Math.min(slots.length * 2, MAX_SLOTS));
+        Field[] row = new Field[td.numFields()];
+        for (int j = 0; j < row.length; j++)
+            row[j] = t.getField(j);
+        slots[slot] = row;
+        numUsed++;
+        if (slot == numSlots) {
+            numSlots++;
+            if (stats != null) {
+                for (int j = 0; j < row.length; j++)
+                    stats[j].add(row[j]);
+            }
+        } else {
+            stats = null;
+        }
+    }
+
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in addTuple");
+        if (!fits(t))
+            throw new DbException("called addTuple on page with no room for the tuple.");
+        beforeWrite();
+        int slot = freeSlot();
+        store(slot, t);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    private void checkRecordId(Tuple t, String what) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tried to " + what + " tuple on invalid page or table");
+        int i = rid.tupleno();
+        if (i < 0 || i >= numSlots || slots[i] == null)
+            throw new DbException("tried to " + what + " null tuple.");
+    }
+
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        checkRecordId(t, "delete");
+        decodeAll();
+        beforeWrite();
+        slots[t.getRecordId().tupleno()] = null;
+        numUsed--;
+        // drop empty slots from the end
+        while (numSlots > 0 && slots[numSlots - 1] == null)
+            numSlots--;
+        stats = null;
+    }
+
+    public synchronized void updateTuple(Tuple t) throws DbException {
+        checkRecordId(t, "update");
+        decodeAll();
+        int i = t.getRecordId().tupleno();
+        Field[] old = slots[i];
+        slots[i] = null;
+        numUsed--;
+        stats = null;
+        boolean fits;
+        try {
+            store(i, t);
+            fits = encode() != null;
+        } catch (IOException e) {
+            throw new DbException("could not compress page: " + e);
+        } finally {
+            slots[i] = old;
+            stats = null;
+        }
+        if (!fits)
+            throw new DbException("updated tuple no longer fits on its page.");
+        beforeWrite();
+        slots[i] = null;
+        numUsed--;
+        store(i, t);
+    }
+
+    /** @return true if slot i holds a tuple */
+    public synchronized boolean isSlotUsed(int i) {
+        return i < numSlots && slots[i] != null;
+    }
+
+    /** @return the number of tuples on the page */
+    public synchronized int getNumTuples() {
+        return numUsed;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return iterator(null, null);
+    }
+
+    public Iterator<Tuple> iterator(boolean[] columns) {
+        return iterator(columns, null);
+    }
+
+    /**
+     * Returns the tuples on this page that satisfy all of predicates. An
+     * equality predicate on a column that is dictionary encoded is tested
+     * on the codes, and rules the page out at once if its value is not in
+     * the dictionary, before any other column is decoded; the others are
+     * tested on the decoded fields. Only the columns returned or tested are
+     * decoded.
+     *
+     * @param columns the fields to decode, or null for all of them; must
+     *   include the fields the predicates test
+     * @param predicates the predicates, or null for none
+     * @return an iterator over the matching tuples, whose fields not in
+     *   columns are null
+     */
+    public synchronized Iterator<Tuple> iterator(boolean[] columns, List<Predicate> predicates) {
+        List<Tuple> matches = new ArrayList<Tuple>();
+        List<Predicate> tested = new ArrayList<Predicate>();
+        List<int[]> codeTests = new ArrayList<int[]>();
+        if (predicates != null) {
+            for (Predicate p : predicates) {
+                int j = p.getField();
+                if (p.getOp() == Predicate.Op.EQUALS)
+                    decodeColumn(j);
+                if (p.getOp() == Predicate.Op.EQUALS && codes != null && codes[j] != null) {
+                    int code = indexOf(dictionaries[j], p.getOperand());
+                    if (code == -1)
+                        return Collections.<Tuple>emptyList().iterator();
+                    codeTests.add(new int[] { j, code });
+                } else {
+                    tested.add(p);
+                }
+            }
+        }
+        for (Predicate p : tested)
+            decodeColumn(p.getField());
+        for (int j = 0; j < td.numFields(); j++) {
+            if (columns == null || columns[j])
+                decodeColumn(j);
+        }
+
+        slots:
+        for (int i = 0; i < numSlots; i++) {
+            if (slots[i] == null)
+                continue;
+            for (int[] test : codeTests) {
+                if (codes[test[0]][i] != test[1])
+                    continue slots;
+            }
+            Tuple t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j = 0; j < td.numFields(); j++) {
+                if (columns == null || columns[j])
+                    t.setField(j, slots[i][j]);
+            }
+            for (Predicate p : tested) {
+                if (!p.filter(t))
+                    continue slots;
+            }
+            matches.add(t);
+        }
+        return Collections.unmodifiableList(matches).iterator();
+    }
+
+    private static int indexOf(Field[] dictionary, Field f) {
+        for (int i = 0; i < dictionary.length; i++) {
+            if (dictionary[i].equals(f))
+                return i;
+        }
+        return -1;
+    }
+}
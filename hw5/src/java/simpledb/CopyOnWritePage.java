@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CopyOnWritePage is the part shared by the pages that keep their bytes in
+ * the on-disk format and change them in place, {@link HeapPage} and
+ * {@link VarHeapPage}: the bytes and a copy-on-write before-image.
+ * <p>
+ * The before-image is null while the page is unchanged since
+ * setBeforeImage, and takes the current bytes on the first change. Arrays
+ * that the before-image or another page refer to are never written; shared
+ * says data is such an array, so it is copied before it is changed.
+ * Subclasses call {@link #beforeWrite} before every change to data.
+ */
+abstract class CopyOnWritePage implements TuplePage {
+
+    // the page in its on-disk format; tuples are decoded from it when they
+    // are asked for, and changes are written straight into it. Volatile so
+    // that a flush from another thread sees the copy beforeWrite made.
+    volatile byte data[];
+
+    // guarded by oldDataLock, as is shared
+    private byte[] oldData;
+    private boolean shared;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * @param shared true if data is referenced elsewhere and must not be
+     *   changed
+     */
+    CopyOnWritePage(byte[] data, boolean shared) {
+        this.data = data;
+        this.shared = shared;
+    }
+
+    /** @return a page's worth of bytes copied from data */
+    static byte[] copyOf(ByteBuffer data) {
+        byte[] copy = new byte[BufferPool.PAGE_SIZE];
+        ByteBuffer src = data.duplicate();
+        src.get(copy, 0, Math.min(src.remaining(), copy.length));
+        return copy;
+    }
+
+    /**
+     * @return the bytes of the page before it was modified, which are
+     *   shared with it from then on and must not be changed
+     */
+    byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            if (oldData != null)
+                return oldData;
+            shared = true;
+            return data;
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes this page holds for its before-image
+     *   beyond its own contents; zero while the page is unchanged
+     */
+    public int getBeforeImageSize() {
+        synchronized (oldDataLock) {
+            return oldData == null ? 0 : oldData.length;
+        }
+    }
+
+    /**
+     * Called before every change to data: saves the before-image if this
+     * is the first change since setBeforeImage, and gives the page its own
+     * copy of data if the current one is shared.
+     */
+    void beforeWrite() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = data;
+                shared = true;
+            }
+            if (shared) {
+                data = data.clone();
+                shared = false;
+            }
+        }
+    }
+}
@@ -34,6 +34,24 @@ public interface DbIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next tuples from the operator as a batch, column by column.
+   * Operators that work on a batch at a time pass batches between them this
+   * way, instead of a tuple per call to next; those that work on tuples
+   * implement it with {@link TupleBatch#read}. A consumer should read an
+   * iterator either through next or through nextBatch until it is rewound
+   * or closed, not both.
+   * <p>
+   * The batch may be reused by the next call, so it is only good until
+   * then; a consumer that keeps values must copy them. The consumer may
+   * narrow the batch's selection.
+   *
+   * @return the next batch, which holds at least one tuple, or null if
+   *   there are no more tuples
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -0,0 +1,37 @@
+package simpledb;
+
+/**
+ * How the LockManager keeps transactions from waiting on each other forever.
+ * Transactions are ordered by age using their TransactionId's start time
+ * (see {@link TransactionId#isYoungerThan}), which a restarted transaction
+ * keeps, so it cannot be aborted as the youngest forever.
+ *
+ * @see LockManager
+ */
+public enum DeadlockPolicy {
+    /**
+     * Keep a waits-for graph and look for a cycle whenever a wait edge is
+     * added. The youngest transaction on the cycle is aborted.
+     */
+    DETECT,
+
+    /**
+     * An older transaction may wait for a younger one; a younger transaction
+     * that would have to wait for an older one is aborted instead.
+     */
+    WAIT_DIE,
+
+    /**
+     * An older transaction that would have to wait for a younger one aborts
+     * ("wounds") it; a younger transaction may wait for an older one. A
+     * wounded transaction that is not waiting finds out on its next lock
+     * request.
+     */
+    WOUND_WAIT,
+
+    /**
+     * Do not look for deadlocks at all; a request that has waited longer than
+     * the lock timeout is aborted.
+     */
+    TIMEOUT
+}
@@ -0,0 +1,283 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Exchange runs each of its children on a worker thread of its own and
+ * gathers their tuples into one stream, in no particular order. The
+ * children are usually copies of a pipeline over SeqScans that share the
+ * {@link Morsels} of one table (see {@link SeqScan#setMorsels}), so that
+ * between them they read the table once, each scanning and filtering the
+ * morsels it claims; {@link LogicalPlan#physicalPlan} builds such plans for
+ * large tables.
+ * <p>
+ * The workers run as part of the same transaction as the rest of the plan
+ * and lock pages under its TransactionId, as a single scan would; the
+ * buffer pool and lock manager take requests of one transaction from
+ * several threads at once. They start when the first tuple or batch is
+ * asked for, and read their children the same way, so that tuples read
+ * through {@link #next} keep their RecordIds for a Delete above. What they
+ * read is passed through a bounded queue, so workers that get ahead of the
+ * consumer wait for it. Once the workers have started reading tuples, asking
+ * for a batch is an error until the Exchange is rewound, and the other way
+ * round.
+ * <p>
+ * An exception in a worker stops the others and is thrown to the consumer.
+ * Closing or rewinding the Exchange stops the workers and waits for them,
+ * so that none still uses the transaction when it completes.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of workers parallel plans use: the number of processors,
+    unless overridden with a system property, -Dsimpledb.Parallelism=n. */
+    public static final int DEFAULT_PARALLELISM = Integer.getInteger("simpledb.Parallelism",
+            Runtime.getRuntime().availableProcessors());
+
+    /** Number of tuples a worker passes on at a time when reading tuples. */
+    static final int CHUNK_SIZE = TupleBatch.DEFAULT_CAPACITY;
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-exchange");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // what a worker puts in the queue when it has finished
+    private static final Object DONE = new Object();
+
+    private DbIterator[] children;
+    // rewound along with the children, or null
+    private transient Morsels morsels;
+
+    // set once the workers have been started since the last open or rewind
+    private transient boolean started = false;
+    // whether the workers started read batches rather than tuples
+    private transient boolean batches = false;
+    private transient volatile boolean stopped = false;
+    private transient List<Future<?>> workers = null;
+    // what the workers pass on: TupleBatches or Lists of Tuples, then a
+    // Throwable if one fails, then DONE
+    private transient BlockingQueue<Object> queue = null;
+    // workers that have not put DONE yet
+    private transient int running = 0;
+    // the rest of the chunk of tuples being returned by next
+    private transient Iterator<Tuple> chunk = null;
+
+    /**
+     * Creates an Exchange that gathers the tuples of children, which must
+     * all have the same TupleDesc.
+     *
+     * @param children the iterators to run on worker threads
+     * @param morsels the morsels the children's scans claim from, which
+     *   are reset when the Exchange is rewound; or null if there are none
+     */
+    public Exchange(DbIterator[] children, Morsels morsels) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("Exchange needs at least one child");
+        this.children = children;
+        this.morsels = morsels;
+    }
+
+    /** @return the name the query plan shows for this operator */
+    public String getName() {
+        return "exchange(" + children.length + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        for (DbIterator child : children)
+            child.open();
+        started = false;
+        super.open();
+    }
+
+    public void close() {
+        stopWorkers();
+        super.close();
+        for (DbIterator child : children)
+            child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stopWorkers();
+        if (morsels != null)
+            morsels.reset();
+        for (DbIterator child : children)
+            child.rewind();
+        started = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!started)
+            startWorkers(false);
+        else if (batches)
+            throw new IllegalStateException("Exchange is reading batches; rewind it to read tuples");
+        while (chunk == null || !chunk.hasNext()) {
+            Object o = take();
+            if (o == null)
+                return null;
+            chunk = ((List<Tuple>) o).iterator();
+        }
+        return chunk.next();
+    }
+
+    /** Returns the next batch read by any of the workers. */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        if (!started)
+            startWorkers(true);
+        else if (!batches)
+            throw new IllegalStateException("Exchange is reading tuples; rewind it to read batches");
+        return (TupleBatch) take();
+    }
+
+    /** Starts a worker for each child, which reads it a batch at a time if batches is set. */
+    private void startWorkers(boolean batches) {
+        started = true;
+        this.batches = batches;
+        stopped = false;
+        queue = new ArrayBlockingQueue<Object>(4 * children.length);
+        running = children.length;
+        workers = new ArrayList<Future<?>>(children.length);
+        for (DbIterator child : children)
+            workers.add(pool.submit(new Worker(child, batches, queue)));
+    }
+
+    /**
+     * @return the next batch or chunk of tuples a worker has passed on, or
+     *   null once all workers have finished
+     */
+    private Object take() throws DbException, TransactionAbortedException {
+        while (running > 0) {
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException e) {
+                stopWorkers();
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for workers");
+            }
+            if (o == DONE) {
+                running--;
+            } else if (o instanceof Throwable) {
+                stopWorkers();
+                throw rethrow((Throwable) o);
+            } else {
+                return o;
+            }
+        }
+        return null;
+    }
+
+    /** Throws e if it can be thrown as it is, and otherwise returns a DbException for it. */
+    private static DbException rethrow(Throwable e) throws TransactionAbortedException {
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            return (DbException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        DbException dbe = new DbException("worker failed: " + e);
+        dbe.initCause(e);
+        return dbe;
+    }
+
+    /** Tells the workers to stop and waits until they have. */
+    private void stopWorkers() {
+        if (workers == null)
+            return;
+        stopped = true;
+        boolean interrupted = false;
+        for (Future<?> f : workers) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Worker catches everything, so this cannot happen
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        workers = null;
+        queue = null;
+        running = 0;
+        chunk = null;
+    }
+
+    /** Reads a child on a worker thread and passes what it reads on through the queue. */
+    private class Worker implements Runnable {
+        private final DbIterator child;
+        private final boolean batches;
+        private final BlockingQueue<Object> out;
+
+        Worker(DbIterator child, boolean batches, BlockingQueue<Object> out) {
+            this.child = child;
+            this.batches = batches;
+            this.out = out;
+        }
+
+        public void run() {
+            try {
+                if (batches) {
+                    TupleBatch b;
+                    // the child may reuse its batch, so pass on a copy
+                    while (!stopped && (b = child.nextBatch()) != null)
+                        put(b.copy());
+                } else {
+                    List<Tuple> tuples = new ArrayList<Tuple>(CHUNK_SIZE);
+                    while (!stopped && child.hasNext()) {
+                        tuples.add(child.next());
+                        if (tuples.size() == CHUNK_SIZE) {
+                            put(tuples);
+                            tuples = new ArrayList<Tuple>(CHUNK_SIZE);
+                        }
+                    }
+                    if (!tuples.isEmpty())
+                        put(tuples);
+                }
+            } catch (Throwable e) {
+                put(e);
+            } finally {
+                put(DONE);
+            }
+        }
+
+        /** Puts o in the queue, waiting for room unless the workers are stopped. */
+        private void put(Object o) {
+            try {
+                while (!stopped && !out.offer(o, 10, TimeUnit.MILLISECONDS))
+                    ;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children;
+    }
+}
@@ -67,6 +67,22 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Reads batches from the child, narrowing each to the tuples that pass
+     * the predicate, and returns the first that has any left.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        TupleBatch b;
+        while ((b = child.nextBatch()) != null) {
+            pred.filter(b);
+            if (b.size() > 0)
+                return b;
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers how much free space each page of a HeapFile has,
+ * so that an insert can go straight to a page with room instead of locking
+ * and reading every page before it. Free space is counted in whatever unit
+ * the file's pages report through {@link TuplePage#getFreeSpace}: free
+ * slots for a HeapFile, free bytes for a VarHeapFile.
+ * <p>
+ * The map is a hint, not a promise: it follows the pages in the buffer pool
+ * as tuples are inserted and deleted, but aborts and uncommitted deletes
+ * can make it wrong in either direction. Callers check the page they are
+ * sent to and report what they find, and every page written to disk
+ * corrects its entry.
+ * <p>
+ * The map is kept on disk in a file next to the table (see
+ * {@link #fileFor}): a header holding the number of pages the table had
+ * when the map was last written, then two bytes per page holding its free
+ * space plus one, written whenever the page itself is written; so the file
+ * describes the pages on disk. Zero means the page is unknown, which is
+ * also how pages beyond the end of the file and holes left by pages that
+ * were never written read. {@link #findPage} may return unknown pages;
+ * the caller should fetch them and report their free space.
+ * <p>
+ * A map whose header does not give the table's number of pages was not
+ * written along with the table's pages, as when the table is rebuilt,
+ * replaced or grown by someone else; it is deleted when loaded rather than
+ * trusted. Pages appended to the table are counted with {@link #appended}.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private final File table;
+    private final File file;
+    // opened for writing on first use
+    private RandomAccessFile out = null;
+    private boolean loaded = false;
+    // bytes before the first page's entry
+    private static final int HEADER_SIZE = 4;
+    // pages in the table, and the count in the file's header, or -1 if none
+    private int tablePages = 0;
+    private int savedPages = -1;
+
+    // free space on each page, or -1 if unknown; the first size entries are used
+    private int[] free = new int[0];
+    private int size = 0;
+    // pages with less free space than this are not worth trying
+    private final int minFree;
+    // pages that are unknown or have at least minFree free space
+    private final BitSet candidates = new BitSet();
+
+    /** @return the file that holds the free-space map of table */
+    public static File fileFor(File table) {
+        return new File(table.getPath() + ".fsm");
+    }
+
+    /** Creates the free-space map of the table stored in table. */
+    public FreeSpaceMap(File table) {
+        this(table, 1);
+    }
+
+    /**
+     * Creates the free-space map of the table stored in table, which only
+     * sends inserts to pages with at least minFree free space. A page with
+     * less room than that is treated as full, so that finding a page stays
+     * cheap when most pages have a little room left.
+     */
+    public FreeSpaceMap(File table, int minFree) {
+        this.table = table;
+        this.file = fileFor(table);
+        this.minFree = Math.max(minFree, 1);
+    }
+
+    /**
+     * Returns a page that should have the free space an insert needs.
+     *
+     * @param numPages the number of pages in the table
+     * @param needed the free space the insert needs
+     * @return the lowest page number below numPages that is unknown or has
+     *   both minFree and needed free space, or -1 if there is none and a
+     *   page should be appended
+     */
+    public synchronized int findPage(int numPages, int needed) throws IOException {
+        load(-1);
+        grow(numPages);
+        for (int pgno = candidates.nextSetBit(0); pgno >= 0 && pgno < numPages;
+                pgno = candidates.nextSetBit(pgno + 1)) {
+            if (free[pgno] == -1 || free[pgno] >= needed)
+                return pgno;
+        }
+        return -1;
+    }
+
+    /** @return true if the free space on page pgno is known */
+    public synchronized boolean isKnown(int pgno) throws IOException {
+        load(-1);
+        return pgno < size && free[pgno] != -1;
+    }
+
+    /**
+     * Notes that page pgno, as cached, has freeSpace free space.
+     */
+    public synchronized void update(int pgno, int freeSpace) throws IOException {
+        load(-1);
+        set(pgno, freeSpace);
+    }
+
+    /**
+     * Notes that page pgno, as just written to disk, has freeSpace free
+     * space, and saves that in the map's file.
+     */
+    public synchronized void record(int pgno, int freeSpace) throws IOException {
+        load(pgno);
+        set(pgno, freeSpace);
+        open();
+        // one write, where writeShort would make two
+        out.seek(HEADER_SIZE + pgno * 2L);
+        out.write(new byte[] { (byte) ((freeSpace + 1) >>> 8), (byte) (freeSpace + 1) });
+        saveHeader(pgno + 1);
+    }
+
+    /**
+     * Notes that page pgno was just appended to the table, and saves the
+     * table's new length in the map's file. The page is unknown until it is
+     * updated.
+     */
+    public synchronized void appended(int pgno) throws IOException {
+        load(pgno);
+        grow(pgno + 1);
+        open();
+        saveHeader(pgno + 1);
+    }
+
+    /** Closes the map's file. It is opened again if the map is used after this. */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Reads the map's file the first time the map is used, if its header
+     * gives the table's number of pages.
+     *
+     * @param writing the page just written to the end of the table, which
+     *   the header may not count yet, or -1
+     */
+    private void load(int writing) throws IOException {
+        if (loaded)
+            return;
+        loaded = true;
+        tablePages = (int) (table.length() / BufferPool.PAGE_SIZE);
+        if (!file.exists())
+            return;
+        int n = (int) ((file.length() - HEADER_SIZE) / 2);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (file.length() >= HEADER_SIZE)
+                savedPages = in.readInt();
+            if (savedPages == tablePages
+                    || (writing >= 0 && writing == savedPages && writing == tablePages - 1)) {
+                n = Math.min(n, savedPages);
+                grow(n);
+                for (int i = 0; i < n; i++)
+                    set(i, in.readUnsignedShort() - 1);
+                return;
+            }
+        } finally {
+            in.close();
+        }
+        savedPages = -1;
+        if (!file.delete())
+            throw new IOException("could not delete stale free-space map " + file);
+    }
+
+    private void set(int pgno, int freeSpace) {
+        grow(pgno + 1);
+        free[pgno] = freeSpace;
+        candidates.set(pgno, freeSpace == -1 || freeSpace >= minFree);
+    }
+
+    private void open() throws IOException {
+        if (out == null)
+            out = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Notes that the table has at least pages pages, and writes the header
+     * if it no longer gives the table's number of pages.
+     */
+    private void saveHeader(int pages) throws IOException {
+        tablePages = Math.max(tablePages, pages);
+        if (savedPages != tablePages) {
+            out.seek(0);
+            out.writeInt(tablePages);
+            savedPages = tablePages;
+        }
+    }
+
+    /** Adds unknown entries up to page n - 1. */
+    private void grow(int n) {
+        if (n <= size)
+            return;
+        if (n > free.length)
+            free = Arrays.copyOf(free, Math.max(n, free.length * 2));
+        Arrays.fill(free, size, n, -1);
+        candidates.set(size, n);
+        size = n;
+    }
+}
@@ -0,0 +1,297 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Computes several aggregates at once, grouped by any number of fields.
+ * <p>
+ * Each group is numbered in the order it is first seen, and the running
+ * values of the aggregates are kept in arrays indexed by that number, so
+ * merging a tuple into a group that exists allocates nothing. Groups on a
+ * single int field are found in a hash table of ints with open addressing;
+ * groups on other fields, or on several, are found in a HashMap keyed by
+ * the list of their values.
+ * <p>
+ * The aggregates over string fields can only be COUNT, as for
+ * {@link StringAggregator}.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_GROUPS = 16;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Op[] what;
+    // the group field, if there is only one and it is an int field, or -1
+    private final int intGroupField;
+
+    private int numGroups = 0;
+    // the number of tuples in each group
+    private int[] counts = new int[INITIAL_GROUPS];
+    // for each aggregate, the minimum, maximum or sum of each group, or null
+    // for COUNT, which needs only counts
+    private long[][] values;
+
+    // int keyed groups: slots of an open addressed table of keys and their
+    // group numbers, -1 when empty, and the key of each group
+    private int[] slotKeys = null;
+    private int[] slotGroups = null;
+    private int[] groupKeys = null;
+
+    // other groups: the group number of each list of group values, and the
+    // values of each group
+    private HashMap<List<Field>, Integer> groupIds = null;
+    private ArrayList<Field[]> groupVals = null;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, none
+     *            if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group by fields
+     * @param afields
+     *            the 0-based indexes of the fields to aggregate in the tuple
+     * @param aftypes
+     *            the types of the fields to aggregate
+     * @param what
+     *            the aggregation operator for each of afields
+     * @throws IllegalArgumentException
+     *            if an aggregate over a string field is not COUNT
+     */
+    public HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] aftypes, Op[] what) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != aftypes.length
+                || afields.length != what.length)
+            throw new IllegalArgumentException("need a type for each field and an operator for each aggregate");
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.what = what.clone();
+        values = new long[afields.length][];
+        for (int j = 0; j < afields.length; j++) {
+            if (aftypes[j] != Type.INT_TYPE && what[j] != Op.COUNT)
+                throw new IllegalArgumentException("Invalid operator type " + what[j]);
+            if (what[j] != Op.COUNT)
+                values[j] = new long[INITIAL_GROUPS];
+        }
+        if (gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE) {
+            intGroupField = gbfields[0];
+            slotKeys = new int[2 * INITIAL_GROUPS];
+            slotGroups = new int[2 * INITIAL_GROUPS];
+            Arrays.fill(slotGroups, -1);
+            groupKeys = new int[INITIAL_GROUPS];
+        } else {
+            intGroupField = -1;
+            groupIds = new HashMap<List<Field>, Integer>();
+            groupVals = new ArrayList<Field[]>();
+        }
+    }
+
+    /** @return the number of a new group, making room for it */
+    private int newGroup() {
+        int g = numGroups++;
+        if (g == counts.length) {
+            counts = Arrays.copyOf(counts, 2 * g);
+            for (int j = 0; j < values.length; j++) {
+                if (values[j] != null)
+                    values[j] = Arrays.copyOf(values[j], 2 * g);
+            }
+            if (groupKeys != null)
+                groupKeys = Arrays.copyOf(groupKeys, 2 * g);
+        }
+        for (int j = 0; j < values.length; j++) {
+            if (what[j] == Op.MIN)
+                values[j][g] = Integer.MAX_VALUE;
+            else if (what[j] == Op.MAX)
+                values[j][g] = Integer.MIN_VALUE;
+        }
+        return g;
+    }
+
+    /** @return the slot of key in the table of int keys, or the empty slot it would go in */
+    private int slot(int key) {
+        int mask = slotKeys.length - 1;
+        int h = key * 0x9E3779B9;
+        int s = (h ^ (h >>> 16)) & mask;
+        while (slotGroups[s] != -1 && slotKeys[s] != key)
+            s = (s + 1) & mask;
+        return s;
+    }
+
+    /** @return the number of the group with int key key, adding it if it is new */
+    private int intGroup(int key) {
+        int s = slot(key);
+        if (slotGroups[s] != -1)
+            return slotGroups[s];
+        int g = newGroup();
+        groupKeys[g] = key;
+        slotKeys[s] = key;
+        slotGroups[s] = g;
+        // keep the table at most half full
+        if (2 * numGroups > slotKeys.length) {
+            slotKeys = new int[2 * slotKeys.length];
+            slotGroups = new int[slotKeys.length];
+            Arrays.fill(slotGroups, -1);
+            for (int h = 0; h < numGroups; h++) {
+                int t = slot(groupKeys[h]);
+                slotKeys[t] = groupKeys[h];
+                slotGroups[t] = h;
+            }
+        }
+        return g;
+    }
+
+    /** @return the number of the group with values key, adding it if it is new */
+    private int group(Field[] key) {
+        List<Field> k = Arrays.asList(key);
+        Integer g = groupIds.get(k);
+        if (g != null)
+            return g;
+        int h = newGroup();
+        groupIds.put(k, h);
+        groupVals.add(key);
+        return h;
+    }
+
+    /** Adds value x of aggregate j to group g, whose count is already updated. */
+    private void add(int j, int g, int x) {
+        switch (what[j]) {
+        case MIN:
+            values[j][g] = Math.min(values[j][g], x);
+            break;
+        case MAX:
+            values[j][g] = Math.max(values[j][g], x);
+            break;
+        case SUM:
+        case AVG:
+            values[j][g] += x;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g;
+        if (intGroupField != -1) {
+            g = intGroup(((IntField) tup.getField(intGroupField)).getValue());
+        } else if (gbfields.length == 0) {
+            g = numGroups == 0 ? newGroup() : 0;
+        } else {
+            Field[] key = new Field[gbfields.length];
+            for (int i = 0; i < key.length; i++)
+                key[i] = tup.getField(gbfields[i]);
+            g = group(key);
+        }
+        counts[g]++;
+        for (int j = 0; j < afields.length; j++) {
+            if (values[j] != null)
+                add(j, g, ((IntField) tup.getField(afields[j])).getValue());
+        }
+    }
+
+    /**
+     * Merge a batch of tuples into the aggregate. Int group keys and
+     * aggregate values are read from the columns of the batch without
+     * making Fields.
+     *
+     * @param b
+     *            the batch of tuples containing the aggregate fields and the
+     *            group-by fields
+     */
+    public void mergeBatchIntoGroup(TupleBatch b) {
+        int n = b.size();
+        if (n == 0)
+            return;
+        // the group of each row of the batch, in order
+        int[] groups = new int[n];
+        if (intGroupField != -1) {
+            int[] keys = b.getInts(intGroupField);
+            for (int k = 0; k < n; k++)
+                groups[k] = intGroup(keys[b.row(k)]);
+        } else if (gbfields.length == 0) {
+            int g = numGroups == 0 ? newGroup() : 0;
+            Arrays.fill(groups, g);
+        } else {
+            for (int k = 0; k < n; k++) {
+                int r = b.row(k);
+                Field[] key = new Field[gbfields.length];
+                for (int i = 0; i < key.length; i++)
+                    key[i] = b.getField(r, gbfields[i]);
+                groups[k] = group(key);
+            }
+        }
+        for (int k = 0; k < n; k++)
+            counts[groups[k]]++;
+        for (int j = 0; j < afields.length; j++) {
+            if (values[j] == null)
+                continue;
+            int[] xs = b.getInts(afields[j]);
+            for (int k = 0; k < n; k++)
+                add(j, groups[k], xs[b.row(k)]);
+        }
+    }
+
+    /** @return the TupleDesc of the results: the group-by fields, then an int per aggregate */
+    private TupleDesc resultDesc() {
+        Type[] types = new Type[gbfields.length + afields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            types[i] = gbfieldtypes[i];
+        for (int j = 0; j < afields.length; j++)
+            types[gbfields.length + j] = Type.INT_TYPE;
+        return new TupleDesc(types);
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the values of the group-by
+     *         fields followed by the value of each aggregate, one for each
+     *         group in the order the groups were first seen
+     */
+    public DbIterator iterator() {
+        TupleDesc td = resultDesc();
+        ArrayList<Tuple> result = new ArrayList<Tuple>(numGroups);
+        int ng = gbfields.length;
+        for (int g = 0; g < numGroups; g++) {
+            Tuple tup = new Tuple(td);
+            if (intGroupField != -1) {
+                tup.setField(0, new IntField(groupKeys[g]));
+            } else if (ng > 0) {
+                Field[] key = groupVals.get(g);
+                for (int i = 0; i < ng; i++)
+                    tup.setField(i, key[i]);
+            }
+            for (int j = 0; j < afields.length; j++) {
+                int v;
+                switch (what[j]) {
+                case COUNT:
+                    v = counts[g];
+                    break;
+                case AVG:
+                    v = (int) (values[j][g] / counts[g]);
+                    break;
+                default:
+                    v = (int) values[j][g];
+                    break;
+                }
+                tup.setField(ng + j, new IntField(v));
+            }
+            result.add(tup);
+        }
+        return new TupleIterator(td, Collections.unmodifiableList(result));
+    }
+
+}
@@ -4,6 +4,21 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table of child1's tuples and probes it with
+ * child2's. It keeps at most a budget of tuples of child1 in memory,
+ * {@link #MAP_SIZE} unless the constructor is given another. When child1
+ * has more tuples than that, the join runs as a hybrid
+ * hash join: the tuples of both children are split into PARTITIONS
+ * partitions by the hash of the join field, and as many partitions of
+ * child1 are kept in memory as fit. The others are written to SpillFiles,
+ * along with the tuples of child2 that fall in them, and joined in later
+ * passes that read back one partition each. A partition whose tuples of
+ * child1 still do not fit is split again the same way, by other bits of
+ * the hash, so each child is read once and what is written out read about
+ * once more. A partition that splitting does not make smaller, because
+ * its tuples share a join field, is joined a budget of tuples of child1 at
+ * a time, reading its tuples of child2 once for each.
  */
 public class HashEquiJoin extends Operator {
 
@@ -11,13 +26,13 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    // the most tuples of child1 kept in memory at a time
+    private final int mapSize;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,9 +41,20 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Creates a join that keeps at most mapSize tuples of child1 in memory
+     * at a time, spilling the rest.
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int mapSize) {
+        if (mapSize < 1)
+            throw new IllegalArgumentException("a hash join needs room for a tuple");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.mapSize = mapSize;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,7 +65,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,52 +75,271 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
-            }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
-        }
-        return cnt > 0;
+    /** Most tuples of child1 kept in memory at a time by default: 20000
+    unless overridden with a system property, -Dsimpledb.HashJoinTuples=n. */
+    public final static int MAP_SIZE = Integer.getInteger("simpledb.HashJoinTuples", 20000);
+
+    /** Number of partitions tuples are split into by each pass. */
+    static final int PARTITIONS = 64;
+    private static final int PARTITION_BITS = 6;
+
+    /** Passes this many splits deep join a block at a time rather than
+    split their tuples again; each split uses the next bits of the hash. */
+    static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
 
+    /**
+     * A pass of the join, which joins tuples of child1 and child2, or those
+     * of a partition written out by an earlier pass, split by the hash bits
+     * that level picks.
+     */
+    private static class Pass {
+        final int level;
+        // the tuples to join, or null for the children
+        final SpillFile build, probe;
+        // set if the pass is joined a block of build tuples at a time
+        final boolean blocks;
+
+        Pass(int level, SpillFile build, SpillFile probe, boolean blocks) {
+            this.level = level;
+            this.build = build;
+            this.probe = probe;
+            this.blocks = blocks;
+        }
     }
 
+    // the passes left to run, and the one running
+    transient private ArrayDeque<Pass> passes = null;
+    transient private Pass pass = null;
+    // the build tuples of the pass in memory, by partition and join field;
+    // null for partitions written out
+    transient private ArrayList<HashMap<Field, ArrayList<Tuple>>> parts = null;
+    transient private int[] partSizes = null;
+    // the tuples of the partitions written out
+    transient private SpillFile[] buildOut = null;
+    transient private SpillFile[] probeOut = null;
+    // what the pass reads its tuples from when they are spilled, and the
+    // batch it reads probe tuples into
+    transient private SpillFile.Reader buildIt = null;
+    transient private SpillFile.Reader probeIt = null;
+    transient private TupleBatch probeBuf = null;
+    // the number of build tuples the pass has read
+    transient private int buildRead = 0;
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
         super.open();
     }
 
     public void close() {
         super.close();
+        reset();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        reset();
         child1.rewind();
         child2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /** Ends the join's passes and removes what they wrote out. */
+    private void reset() {
+        endPass();
+        if (passes != null) {
+            for (Pass p : passes) {
+                p.build.delete();
+                p.probe.delete();
+            }
+        }
+        passes = null;
+        outBatch = null;
+        probe = null;
+        matches = null;
+        batchesDone = false;
+        tuples = null;
+        tuplePos = 0;
+    }
+
+    /** @return the partition of key in the current pass */
+    private int partition(Field key) {
+        return (ParallelHashJoin.mix(key.hashCode()) >>> (pass.level * PARTITION_BITS))
+                & (PARTITIONS - 1);
+    }
+
+    /**
+     * Starts the next pass, reading its build tuples into memory.
+     *
+     * @return false if there are no more passes
+     */
+    private boolean startPass() throws DbException, TransactionAbortedException {
+        if (passes == null) {
+            passes = new ArrayDeque<Pass>();
+            pass = new Pass(0, null, null, false);
+        } else {
+            if (passes.isEmpty())
+                return false;
+            pass = passes.pop();
+            buildIt = pass.build.iterator();
+            buildIt.open();
+            probeIt = pass.probe.iterator();
+            probeIt.open();
+        }
+        parts = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(PARTITIONS);
+        for (int p = 0; p < PARTITIONS; p++)
+            parts.add(new HashMap<Field, ArrayList<Tuple>>());
+        partSizes = new int[PARTITIONS];
+        buildOut = new SpillFile[PARTITIONS];
+        probeOut = new SpillFile[PARTITIONS];
+        buildRead = 0;
+        loadBuild();
+        return true;
+    }
+
+    /**
+     * Reads the build tuples of the pass into memory, writing out
+     * partitions when they do not fit; or, if the pass is joined a block at
+     * a time, reads the next block.
+     *
+     * @return true if any tuples were read
+     */
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        int inMemory = 0;
+        int f1 = pred.getField1();
+        while (pass.build == null ? child1.hasNext() : buildIt.hasNext()) {
+            if (pass.blocks && inMemory == mapSize)
+                break;
+            Tuple t = pass.build == null ? child1.next() : buildIt.next();
+            buildRead++;
+            Field key = t.getField(f1);
+            int p = pass.blocks ? 0 : partition(key);
+            if (parts.get(p) == null) {
+                buildOut[p].add(t);
+                continue;
+            }
+            ArrayList<Tuple> list = parts.get(p).get(key);
+            if (list == null) {
+                list = new ArrayList<Tuple>();
+                parts.get(p).put(key, list);
+            }
+            list.add(t);
+            partSizes[p]++;
+            if (++inMemory > mapSize)
+                inMemory -= spillLargest();
+        }
+        return inMemory > 0;
+    }
+
+    /**
+     * Writes out the largest partition of build tuples in memory.
+     *
+     * @return the number of tuples written
+     */
+    private int spillLargest() throws DbException {
+        int largest = -1;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (parts.get(p) != null && (largest < 0 || partSizes[p] > partSizes[largest]))
+                largest = p;
+        }
+        buildOut[largest] = new SpillFile(child1.getTupleDesc());
+        probeOut[largest] = new SpillFile(child2.getTupleDesc());
+        for (ArrayList<Tuple> list : parts.get(largest).values()) {
+            for (Tuple t : list)
+                buildOut[largest].add(t);
+        }
+        parts.set(largest, null);
+        return partSizes[largest];
+    }
+
+    /**
+     * @return the next batch of probe tuples of the pass, or null if there
+     *   are no more
+     */
+    private TupleBatch nextProbe() throws DbException, TransactionAbortedException {
+        // nothing joins with no build tuples
+        if (buildRead == 0)
+            return null;
+        if (pass.probe == null)
+            return child2.nextBatch();
+        if (probeBuf == null)
+            probeBuf = new TupleBatch(child2.getTupleDesc());
+        return probeIt.nextBatch(probeBuf);
+    }
+
+    /**
+     * @return the build tuples that join with row r of b, or null if there
+     *   are none in memory; the row is written out if its partition was
+     */
+    private ArrayList<Tuple> lookup(TupleBatch b, int r) throws DbException {
+        Field key = b.getField(r, pred.getField2());
+        int p = pass.blocks ? 0 : partition(key);
+        if (parts.get(p) == null) {
+            probeOut[p].add(b, r);
+            return null;
+        }
+        return parts.get(p).get(key);
+    }
+
+    /**
+     * Finishes the pass once its probe tuples have been read: joins the
+     * next block if it is joined a block at a time, and otherwise queues
+     * passes for the partitions it wrote out and starts the next pass.
+     *
+     * @return false if the join is done
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        if (pass.blocks) {
+            parts.set(0, new HashMap<Field, ArrayList<Tuple>>());
+            if (loadBuild()) {
+                probeIt.rewind();
+                return true;
+            }
+        }
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (buildOut[p] == null)
+                continue;
+            if (probeOut[p].size() == 0) {
+                buildOut[p].delete();
+                probeOut[p].delete();
+                continue;
+            }
+            // splitting the partition again is no use if this split left it whole
+            boolean blocks = pass.level + 1 >= MAX_LEVEL || buildOut[p].size() == buildRead;
+            passes.push(new Pass(pass.level + 1, buildOut[p], probeOut[p], blocks));
+            buildOut[p] = probeOut[p] = null;
+        }
+        endPass();
+        return startPass();
+    }
+
+    /** Closes and removes what the current pass reads and writes. */
+    private void endPass() {
+        if (pass != null && pass.build != null) {
+            buildIt.close();
+            probeIt.close();
+            pass.build.delete();
+            pass.probe.delete();
+        }
+        if (buildOut != null) {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (buildOut[p] != null) {
+                    buildOut[p].delete();
+                    probeOut[p].delete();
+                }
+            }
+        }
+        pass = null;
+        parts = null;
+        buildOut = probeOut = null;
+        buildIt = probeIt = null;
+    }
+
+    // fetchNext's state: the batch it returns tuples from, and the position in it
+    transient private TupleBatch tuples = null;
+    transient private int tuplePos = 0;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -110,53 +355,77 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        while (tuples == null || tuplePos == tuples.size()) {
+            tuples = nextBatch();
+            tuplePos = 0;
+            if (tuples == null)
+                return null;
         }
+        return tuples.getTuple(tuples.row(tuplePos++));
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
+    // nextBatch's state: the batch it fills, the probe batch it is probing
+    // with and the position in it, and the build tuples left to join with
+    // the row at that position
+    transient private TupleBatch outBatch = null;
+    transient private TupleBatch probe = null;
+    transient private int probePos = 0;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int matchPos = 0;
+    transient private boolean batchesDone = false;
 
+    /**
+     * Returns the next joined tuples as a batch. Probe tuples are read a
+     * batch at a time and each looked up in the hash table of build
+     * tuples; the fields of the probe tuples are copied column by column.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        if (outBatch == null)
+            outBatch = new TupleBatch(comboTD);
+        TupleBatch out = outBatch;
+        out.clear();
+        if (batchesDone)
+            return null;
+        if (pass == null && !startPass()) {
+            batchesDone = true;
+            return null;
         }
+        int td1n = child1.getTupleDesc().numFields();
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        while (!out.isFull()) {
+            if (matches != null && matchPos < matches.size()) {
+                // join the probe row with the next build tuple
+                Tuple t = matches.get(matchPos++);
+                int r = out.addRow();
+                // fields the scan below did not decode stay unset
+                for (int i = 0; i < td1n; i++)
+                    out.setField(r, i, t.getField(i));
+                out.copyRow(probe, probe.row(probePos - 1), r, td1n);
+                continue;
+            }
+            matches = null;
+            if (probe != null && probePos < probe.size()) {
+                matches = lookup(probe, probe.row(probePos++));
+                matchPos = 0;
+                continue;
+            }
+            probe = nextProbe();
+            probePos = 0;
+            if (probe != null)
+                continue;
+            if (!nextPass()) {
+                batchesDone = true;
+                break;
+            }
         }
-
-        return null;
+        return out.size() == 0 ? null : out;
     }
 
     @Override
@@ -169,5 +438,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
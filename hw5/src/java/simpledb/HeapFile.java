@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -9,6 +13,27 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written with positional I/O on a single FileChannel
+ * that stays open for the life of the HeapFile, so a page miss costs one
+ * read system call and concurrent misses on the same file do not contend
+ * for a file pointer.
+ * <p>
+ * A HeapFile can instead be <em>mapped</em>, which suits large tables that
+ * are mostly scanned: the file is mapped read-only into memory in chunks of
+ * {@link #PAGES_PER_CHUNK} pages, pages are copied straight from the
+ * mapping without a read system call, and the OS page cache acts as a second
+ * level below the buffer pool. Writes still go through the channel; the
+ * mapping is shared with the page cache, so it sees them. A chunk that was
+ * mapped while the file ended inside it is mapped again when a page
+ * appended after that is read.
+ * <p>
+ * Inserts find a page with a free slot through a {@link FreeSpaceMap},
+ * kept in a file next to the table.
+ * <p>
+ * Subclasses store tuples on other kinds of {@link TuplePage} by overriding
+ * {@link #createPage}, {@link #spaceNeeded} and {@link #hasRoom}; see
+ * {@link VarHeapFile}, {@link PaxHeapFile} and {@link CompressedHeapFile}.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,8 +43,25 @@ public class HeapFile implements DbFile {
     private final File f;
     private final TupleDesc td;
     private final int tableid ;
-    // a hack to remember the last page that had a free slot
-    private volatile int lastEmptyPage = -1;
+    private final FreeSpaceMap fsm;
+    // opened on first use, guarded by this
+    private volatile FileChannel channel;
+
+    /** Number of pages covered by each mapping of a mapped HeapFile. */
+    public static final int PAGES_PER_CHUNK = 1024;
+
+    private final boolean mapped;
+    // mappings of a mapped file, by chunk number; replaced as a whole, under
+    // this, when a chunk is (re)mapped
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    // one direct buffer per thread for transferring pages, so the channel
+    // does not have to copy through a temporary direct buffer of its own
+    private static final ThreadLocal<ByteBuffer> pageBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BufferPool.PAGE_SIZE);
+        }
+    };
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,9 +71,58 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            if true, pages are read from a memory mapping of the file
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
+        this(f, td, mapped, 1);
+    }
+
+    /**
+     * Constructs a heap file whose free-space map only sends inserts to
+     * pages with at least minFree free space.
+     */
+    protected HeapFile(File f, TupleDesc td, boolean mapped, int minFree) {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.td = td;
+        this.mapped = mapped;
+        this.fsm = new FreeSpaceMap(f, minFree);
+    }
+
+    /** @return a page of this file decoded from data, which is not kept */
+    protected TuplePage createPage(HeapPageId id, ByteBuffer data) throws IOException {
+        return new HeapPage(id, data);
+    }
+
+    /**
+     * @return the free space, in the unit of {@link TuplePage#getFreeSpace},
+     *   that a page needs to take t
+     */
+    protected int spaceNeeded(Tuple t) {
+        return 1;
+    }
+
+    /**
+     * @return true if t can be inserted into p, which the free-space map
+     *   says has at least {@link #spaceNeeded} free space
+     */
+    protected boolean hasRoom(TuplePage p, Tuple t) throws DbException {
+        return p.getFreeSpace() >= spaceNeeded(t);
+    }
+
+    /** @return true if pages of this file are read from a memory mapping */
+    public boolean isMapped() {
+        return mapped;
     }
 
     /**
@@ -65,52 +156,175 @@ public class HeapFile implements DbFile {
         return td;
     }
 
+    /** @return the open channel of this file, opening it if needed */
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    ch = new RandomAccessFile(f, "rw").getChannel();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Closes the channel this file keeps open. It is opened again if the
+     * file is used after this.
+     */
+    public synchronized void close() throws IOException {
+        fsm.close();
+        // mappings stay valid until they are garbage collected
+        chunks = new MappedByteBuffer[0];
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         HeapPageId id = (HeapPageId) pid;
-        BufferedInputStream bis = null;
+        if (!f.exists())
+            throw new IllegalArgumentException("Read past end of table");
 
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
-            byte pageBuf[] = new byte[BufferPool.PAGE_SIZE];
-            if (bis.skip(id.pageNumber() * BufferPool.PAGE_SIZE) != id
-                    .pageNumber() * BufferPool.PAGE_SIZE) {
-                throw new IllegalArgumentException(
-                        "Unable to seek to correct place in heapfile");
+            if (mapped) {
+                ByteBuffer data = mappedPage(id.pageNumber());
+                if (data == null)
+                    throw new IllegalArgumentException("Read past end of table");
+                Debug.log(1, "HeapFile.readPage: mapped page %d", id.pageNumber());
+                return createPage(id, data);
             }
-            int retval = bis.read(pageBuf, 0, BufferPool.PAGE_SIZE);
-            if (retval == -1) {
+
+            ByteBuffer buf = pageBuffer.get();
+            buf.clear();
+            transfer(buf, (long) id.pageNumber() * BufferPool.PAGE_SIZE, false);
+            if (buf.position() == 0) {
                 throw new IllegalArgumentException("Read past end of table");
             }
-            if (retval < BufferPool.PAGE_SIZE) {
+            if (buf.hasRemaining()) {
                 throw new IllegalArgumentException("Unable to read "
                         + BufferPool.PAGE_SIZE + " bytes from heapfile");
             }
+            buf.flip();
             Debug.log(1, "HeapFile.readPage: read page %d", id.pageNumber());
-            HeapPage p = new HeapPage(id, pageBuf);
-            return p;
+            return createPage(id, buf);
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
+    /**
+     * @return a buffer over page pgno of the mapping, or null if the file
+     *   has no such page
+     */
+    private ByteBuffer mappedPage(int pgno) throws IOException {
+        int chunk = pgno / PAGES_PER_CHUNK;
+        int offset = (pgno % PAGES_PER_CHUNK) * BufferPool.PAGE_SIZE;
+        MappedByteBuffer[] cs = chunks;
+        MappedByteBuffer m = chunk < cs.length ? cs[chunk] : null;
+        if (m == null || m.capacity() < offset + BufferPool.PAGE_SIZE) {
+            m = mapChunk(chunk, offset + BufferPool.PAGE_SIZE);
+            if (m == null)
+                return null;
+        }
+        ByteBuffer page = m.duplicate();
+        page.position(offset);
+        page.limit(offset + BufferPool.PAGE_SIZE);
+        return page.slice();
+    }
+
+    /**
+     * Maps as much of chunk as the file holds, unless the current mapping
+     * already covers needed bytes.
+     *
+     * @return the mapping, or null if the file ends before needed bytes
+     */
+    private synchronized MappedByteBuffer mapChunk(int chunk, int needed)
+            throws IOException {
+        if (chunk < chunks.length && chunks[chunk] != null
+                && chunks[chunk].capacity() >= needed)
+            return chunks[chunk];
+
+        long start = (long) chunk * PAGES_PER_CHUNK * BufferPool.PAGE_SIZE;
+        long length = Math.min((long) PAGES_PER_CHUNK * BufferPool.PAGE_SIZE,
+                numPages() * (long) BufferPool.PAGE_SIZE - start);
+        if (length < needed)
+            return null;
+        MappedByteBuffer m;
+        try {
+            m = channel().map(FileChannel.MapMode.READ_ONLY, start, length);
+        } catch (ClosedChannelException e) {
+            // closed by an interrupt, see transfer()
+            channel = null;
+            m = channel().map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        MappedByteBuffer[] cs = chunks;
+        if (chunk >= cs.length)
+            cs = Arrays.copyOf(cs, chunk + 1);
+        else
+            cs = cs.clone();
+        cs[chunk] = m;
+        chunks = cs;
+        return m;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        HeapPage p = (HeapPage) page;
+        TuplePage p = (TuplePage) page;
         // System.out.println("Writing back page " + p.getId().pageno());
-        byte[] data = p.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(p.getId().pageNumber() * BufferPool.PAGE_SIZE);
-        rf.write(data);
-        rf.close();
+        write(p.getPageData(), (long) p.getId().pageNumber() * BufferPool.PAGE_SIZE);
+        fsm.record(p.getId().pageNumber(), p.getFreeSpace());
+    }
+
+    /** Writes a page's worth of data at offset. */
+    private void write(byte[] data, long offset) throws IOException {
+        ByteBuffer buf = pageBuffer.get();
+        buf.clear();
+        buf.put(data);
+        buf.flip();
+        transfer(buf, offset, true);
+    }
+
+    /**
+     * Reads into or writes from buf at offset until buf is full or empty,
+     * or a read reaches the end of the file.
+     * <p>
+     * Interrupting a thread that is using a FileChannel closes the channel
+     * for everyone, so the interrupt status is cleared for the duration of
+     * the transfer and restored afterwards, and a channel closed underneath
+     * us is replaced by a fresh one.
+     */
+    private void transfer(ByteBuffer buf, long offset, boolean write)
+            throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                FileChannel ch = channel();
+                try {
+                    while (buf.hasRemaining()) {
+                        int n = write ? ch.write(buf, offset + buf.position())
+                                : ch.read(buf, offset + buf.position());
+                        if (n == -1)
+                            break;
+                    }
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    synchronized (this) {
+                        if (channel == ch)
+                            channel = null;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -127,13 +341,10 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> dirtypages = new ArrayList<Page>();
 
-        // find the first page with a free slot in it
-        int i = 0;
-        if (lastEmptyPage != -1)
-            i = lastEmptyPage;
-        // XXX: Would it not be better to scan from numPages() to 0 since the
-        // last pages are more likely to have empty slots?
-        for (; i < numPages(); i++) {
+        // try the pages the free-space map sends us to until one has room
+        int needed = spaceNeeded(t);
+        int i;
+        while ((i = fsm.findPage(numPages(), needed)) != -1) {
             Debug.log(
                     4,
                     "HeapFile.addTuple: checking free slots on page %d of table %d",
@@ -141,37 +352,32 @@ public class HeapFile implements DbFile {
             HeapPageId pid = new HeapPageId(tableid, i);
             boolean pageWasLockedByTid = Database.getBufferPool().holdsLock(
                     tid, pid);
-            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid,
+            TuplePage p = (TuplePage) Database.getBufferPool().getPage(tid, pid,
                     Permissions.READ_WRITE);
 
             // no empty slots
             //
             // think about why we have to invoke releasePage here.
             // can you think of ways where
-            if (p.getNumEmptySlots() == 0) {
+            if (!hasRoom(p, t)) {
                 Debug.log(
                         4,
                         "HeapFile.addTuple: no free slots on page %d of table %d",
                         i, tableid);
+                // so that tuples this large are not sent here again
+                fsm.update(i, Math.min(p.getFreeSpace(), needed - 1));
 
                 // be careful! don't want to release the lock on this page if we
                 // had previously used it!
 
                 if (!pageWasLockedByTid)
                     Database.getBufferPool().releasePage(tid, p.getId());
-                // we mistakenly got here through lastEmptyPage, just add a page
-                // XXX we know this isn't very pretty.
-                if (lastEmptyPage != -1) {
-                    lastEmptyPage = -1;
-                    break;
-                }
                 continue;
             }
-            Debug.log(4, "HeapFile.addTuple: %d free slots in table %d",
-                    p.getNumEmptySlots(), tableid);
+            Debug.log(4, "HeapFile.addTuple: %d free space in table %d",
+                    p.getFreeSpace(), tableid);
             p.insertTuple(t);
-            lastEmptyPage = p.getId().pageNumber();
-            // System.out.println("nfetches = " + nfetches);
+            fsm.update(i, p.getFreeSpace());
             dirtypages.add(p);
             return dirtypages;
         }
@@ -184,12 +390,14 @@ public class HeapFile implements DbFile {
         // new tuples to the page. The second transaction then overwrites the
         // data with an empty
         // page, losing the new data.
+        int pgno;
         synchronized (this) {
-            BufferedOutputStream bw = new BufferedOutputStream(
-                    new FileOutputStream(f, true));
+            // a page of zeroes is empty in every page format
             byte[] emptyData = HeapPage.createEmptyPageData();
-            bw.write(emptyData);
-            bw.close();
+            long end = channel().size();
+            write(emptyData, end);
+            pgno = (int) (end / BufferPool.PAGE_SIZE);
+            fsm.appended(pgno);
         }
 
         // by virtue of writing these bits to the HeapFile, it is now visible.
@@ -197,12 +405,11 @@ public class HeapFile implements DbFile {
         // we just created---which is ok, we haven't yet added the tuple.
         // we just need to lock the page before we can add the tuple to it.
 
-        HeapPage p = (HeapPage) Database.getBufferPool()
-                .getPage(tid, new HeapPageId(tableid, numPages() - 1),
+        TuplePage p = (TuplePage) Database.getBufferPool()
+                .getPage(tid, new HeapPageId(tableid, pgno),
                         Permissions.READ_WRITE);
         p.insertTuple(t);
-        lastEmptyPage = p.getId().pageNumber();
-        // System.out.println("nfetches = " + nfetches);
+        fsm.update(pgno, p.getFreeSpace());
         dirtypages.add(p);
         return dirtypages;
     }
@@ -210,79 +417,78 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(
                 tid,
                 new HeapPageId(tableid, t.getRecordId().getPageId()
                         .pageNumber()), Permissions.READ_WRITE);
         p.deleteTuple(t);
+        updateFreeSpace(p);
         return p;
     }
 
     // see DbFile.java for javadocs
     public Page updateTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(
+        TuplePage p = (TuplePage) Database.getBufferPool().getPage(
                 tid,
                 new HeapPageId(tableid, t.getRecordId().getPageId()
                         .pageNumber()), Permissions.READ_WRITE);
         p.updateTuple(t);
+        updateFreeSpace(p);
         return p;
     }
 
+    private void updateFreeSpace(TuplePage p) throws DbException {
+        try {
+            fsm.update(p.getId().pageNumber(), p.getFreeSpace());
+        } catch (IOException e) {
+            throw new DbException("could not read free-space map: " + e);
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, false, null, null, null);
     }
 
-}
-
-/**
- * Helper class that implements the Java Iterator for tuples on a HeapFile
- */
-class HeapFileIterator extends AbstractDbFileIterator {
-
-    Iterator<Tuple> it = null;
-    int curpgno = 0;
-
-    TransactionId tid;
-    HeapFile hf;
-
-    public HeapFileIterator(HeapFile hf, TransactionId tid) {
-        this.hf = hf;
-        this.tid = tid;
+    /**
+     * Returns an iterator over all the tuples in this file that, if
+     * readAhead is set, reads the pages ahead of the one it is on into the
+     * buffer pool in the background; see {@link ReadAhead}.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean readAhead) {
+        return new HeapFileIterator(this, tid, readAhead, null, null, null);
     }
 
-    public void open() throws DbException, TransactionAbortedException {
-        curpgno = -1;
+    /**
+     * Returns an iterator as {@link #iterator(TransactionId, boolean)} does,
+     * whose tuples have only the fields in columns decoded; the others are
+     * null. All fields are decoded if columns is null.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean readAhead,
+            boolean[] columns) {
+        return new HeapFileIterator(this, tid, readAhead, columns, null, null);
     }
 
-    @Override
-    protected Tuple readNext() throws TransactionAbortedException, DbException {
-        if (it != null && !it.hasNext())
-            it = null;
-
-        while (it == null && curpgno < hf.numPages() - 1) {
-            curpgno++;
-            HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
-            HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
-                    curpid, Permissions.READ_ONLY);
-            it = curp.iterator();
-            if (!it.hasNext())
-                it = null;
-        }
-
-        if (it == null)
-            return null;
-        return it.next();
+    /**
+     * Returns an iterator as {@link #iterator(TransactionId, boolean,
+     * boolean[])} does over the tuples that satisfy all of predicates. A
+     * {@link CompressedHeapPage} tests them on its own, on dictionary codes
+     * where it can. columns must include the fields the predicates test.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean readAhead,
+            boolean[] columns, List<Predicate> predicates) {
+        return new HeapFileIterator(this, tid, readAhead, columns, predicates, null);
     }
 
-    public void rewind() throws DbException, TransactionAbortedException {
-        close();
-        open();
+    /**
+     * Returns an iterator as {@link #iterator(TransactionId, boolean,
+     * boolean[], List)} does over only the pages of the morsels it claims
+     * from morsels, which must be of this file; or over all pages if
+     * morsels is null.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean readAhead,
+            boolean[] columns, List<Predicate> predicates, Morsels morsels) {
+        return new HeapFileIterator(this, tid, readAhead, columns, predicates, morsels);
     }
 
-    public void close() {
-        super.close();
-        it = null;
-        curpgno = Integer.MAX_VALUE;
-    }
 }
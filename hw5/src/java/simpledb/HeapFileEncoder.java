@@ -2,6 +2,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -223,4 +229,286 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Convert the specified input text file into a binary page file in the
+   * variable-length record format of VarHeapPage, read by VarHeapFile. <br>
+   * The input file has the format described for
+   * {@link #convert(File, File, int, int, Type[], char)}; strings are
+   * trimmed and truncated to Type.STRING_LEN characters as there, but each
+   * takes only the space of its characters. Every page is
+   * BufferPool.PAGE_SIZE bytes.
+   *
+   * @see VarHeapPage
+   * @see VarHeapFile
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param typeAr the types of the fields in each input line/output tuple
+   * @param fieldSeparator the character between fields of a line
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void convertVarLen(File inFile, File outFile, Type[] typeAr,
+                 char fieldSeparator) throws IOException {
+    TupleDesc td = new TupleDesc(typeAr);
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+
+    List<byte[]> records = new ArrayList<byte[]>();
+    int used = VarHeapPage.HEADER_SIZE;
+    int npages = 0;
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.trim().length() == 0)
+            continue;
+        String[] fields = line.split(Pattern.quote(String.valueOf(fieldSeparator)), -1);
+        Tuple t = new Tuple(td);
+        boolean bad = fields.length < typeAr.length;
+        for (int i = 0; i < typeAr.length && !bad; i++) {
+            String s = fields[i].trim();
+            if (typeAr[i] == Type.INT_TYPE) {
+                try {
+                    t.setField(i, new IntField(Integer.parseInt(s)));
+                } catch (NumberFormatException e) {
+                    System.out.println ("BAD LINE : " + s);
+                    bad = true;
+                }
+            } else {
+                if (s.length() > Type.STRING_LEN)
+                    s = s.substring(0, Type.STRING_LEN);
+                t.setField(i, new StringField(s, Type.STRING_LEN));
+            }
+        }
+        if (bad)
+            continue;
+
+        byte[] r = VarHeapPage.encodeRecord(t);
+        if (used + r.length + VarHeapPage.SLOT_SIZE > BufferPool.PAGE_SIZE) {
+            os.write(VarHeapPage.createPageData(records));
+            npages++;
+            records.clear();
+            used = VarHeapPage.HEADER_SIZE;
+        }
+        records.add(r);
+        used += r.length + VarHeapPage.SLOT_SIZE;
+    }
+    // as for fixed-length pages, an empty file still gets an empty page
+    if (records.size() > 0 || npages == 0)
+        os.write(VarHeapPage.createPageData(records));
+    br.close();
+    os.close();
+  }
+
+  /** Convert the specified input text file into a binary page file in the
+   * column-by-column format of PaxHeapPage, read by PaxHeapFile. <br>
+   * The input file has the format described for
+   * {@link #convert(File, File, int, int, Type[], char)}; each page holds
+   * the tuples a HeapPage would. Every page is BufferPool.PAGE_SIZE bytes.
+   *
+   * @see PaxHeapPage
+   * @see PaxHeapFile
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param typeAr the types of the fields in each input line/output tuple
+   * @param fieldSeparator the character between fields of a line
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void convertPax(File inFile, File outFile, Type[] typeAr,
+                 char fieldSeparator) throws IOException {
+    File rows = File.createTempFile("paxRows", ".dat");
+    try {
+        convert(inFile, rows, BufferPool.PAGE_SIZE, typeAr.length, typeAr, fieldSeparator);
+        TupleDesc td = new TupleDesc(typeAr);
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(rows)));
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+        try {
+            byte[] page = new byte[BufferPool.PAGE_SIZE];
+            for (long n = rows.length() / page.length; n > 0; n--) {
+                is.readFully(page);
+                os.write(PaxHeapPage.fromHeapPageData(page, td));
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+    } finally {
+        rows.delete();
+    }
+  }
+
+  /** Convert the specified input text file into a binary page file in the
+   * compressed format of CompressedHeapPage, read by CompressedHeapFile. <br>
+   * The input file has the format described for
+   * {@link #convert(File, File, int, int, Type[], char)}; each page holds
+   * as many tuples as fit once compressed. Every page is
+   * BufferPool.PAGE_SIZE bytes.
+   *
+   * @see CompressedHeapPage
+   * @see CompressedHeapFile
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param typeAr the types of the fields in each input line/output tuple
+   * @param fieldSeparator the character between fields of a line
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void convertCompressed(File inFile, File outFile, Type[] typeAr,
+                 char fieldSeparator) throws IOException {
+    File rows = File.createTempFile("compressedRows", ".dat");
+    try {
+        convert(inFile, rows, BufferPool.PAGE_SIZE, typeAr.length, typeAr, fieldSeparator);
+        TupleDesc td = new TupleDesc(typeAr);
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(rows)));
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+        try {
+            Iterator<Tuple> tuples = heapTuples(is, td, rows.length() / BufferPool.PAGE_SIZE);
+            for (byte[] page : CompressedHeapPage.createPageData(tuples, td))
+                os.write(page);
+        } finally {
+            is.close();
+            os.close();
+        }
+    } finally {
+        rows.delete();
+    }
+  }
+
+  /** @return the tuples on the next numPages pages of fixed-length rows of
+   * td in is, in order */
+  private static Iterator<Tuple> heapTuples(final DataInputStream is, final TupleDesc td,
+                 final long numPages) {
+    final int tupleSize = td.getSize();
+    final int numSlots = (BufferPool.PAGE_SIZE * 8) / (tupleSize * 8 + 1);
+    final int headerSize = (numSlots + 7) / 8;
+    return new Iterator<Tuple>() {
+        byte[] page = new byte[BufferPool.PAGE_SIZE];
+        long pagesRead = 0;
+        int slot = numSlots;
+
+        public boolean hasNext() {
+            try {
+                while (true) {
+                    for (; slot < numSlots; slot++) {
+                        if ((page[slot / 8] & (1 << (slot % 8))) != 0)
+                            return true;
+                    }
+                    if (pagesRead == numPages)
+                        return false;
+                    is.readFully(page);
+                    pagesRead++;
+                    slot = 0;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public Tuple next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            int off = headerSize + slot * tupleSize;
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(page, off));
+                off += td.getFieldType(j).getLen();
+            }
+            slot++;
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    };
+  }
+
+  /** Convert the specified input text file into a binary page file holding
+   * a B+ tree of BTreePages on field keyField, read by BTreeFile. <br>
+   * The input file has the format described for
+   * {@link #convert(File, File, int, int, Type[], char)}. Its lines are
+   * sorted by key, in memory, and loaded into full leaves, over which the
+   * internal nodes are built level by level, the root at page 0. Every
+   * page is BufferPool.PAGE_SIZE bytes.
+   *
+   * @see BTreePage
+   * @see BTreeFile
+   * @param inFile The input file to read data from
+   * @param outFile The output file to write data to
+   * @param typeAr the types of the fields in each input line/output tuple
+   * @param keyField the index of the field the tree is ordered on
+   * @param fieldSeparator the character between fields of a line
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void convertBTree(File inFile, File outFile, Type[] typeAr,
+                 final int keyField, char fieldSeparator) throws IOException {
+    File rows = File.createTempFile("btreeRows", ".dat");
+    try {
+        convert(inFile, rows, BufferPool.PAGE_SIZE, typeAr.length, typeAr, fieldSeparator);
+        TupleDesc td = new TupleDesc(typeAr);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(rows)));
+        try {
+            Iterator<Tuple> it = heapTuples(is, td, rows.length() / BufferPool.PAGE_SIZE);
+            while (it.hasNext())
+                tuples.add(it.next());
+        } finally {
+            is.close();
+        }
+        Collections.sort(tuples, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                return BTreePage.compareKeys(a.getField(keyField), b.getField(keyField));
+            }
+        });
+
+        outFile.delete();
+        RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+        try {
+            int perLeaf = BTreePage.leafCapacity(td, keyField);
+            if (tuples.size() <= perLeaf) {
+                raf.write(BTreePage.createLeafData(td, keyField, 0, tuples, 0, null));
+                return;
+            }
+            // the leaves go at pages 1 on, and each level above after the
+            // one below, except the root
+            ArrayList<Integer> level = new ArrayList<Integer>();
+            ArrayList<Field> mins = new ArrayList<Field>();
+            int pgno = 1;
+            for (int i = 0; i < tuples.size(); i += perLeaf) {
+                int end = Math.min(i + perLeaf, tuples.size());
+                int next = end < tuples.size() ? pgno + 1 : 0;
+                // the least key of the next leaf separates the two above
+                Field high = end < tuples.size() ? tuples.get(end).getField(keyField) : null;
+                raf.seek((long) pgno * BufferPool.PAGE_SIZE);
+                raf.write(BTreePage.createLeafData(td, keyField, pgno, tuples.subList(i, end),
+                        next, high));
+                level.add(pgno++);
+                mins.add(tuples.get(i).getField(keyField));
+            }
+            int perNode = BTreePage.internalCapacity(typeAr[keyField]) + 1;
+            boolean leafChildren = true;
+            while (true) {
+                // spread the children evenly, so that no node has just one
+                int nodes = (level.size() + perNode - 1) / perNode;
+                ArrayList<Integer> up = new ArrayList<Integer>();
+                ArrayList<Field> upMins = new ArrayList<Field>();
+                for (int i = 0; i < nodes; i++) {
+                    int from = (int) ((long) i * level.size() / nodes);
+                    int to = (int) ((long) (i + 1) * level.size() / nodes);
+                    int at = nodes == 1 ? 0 : pgno++;
+                    raf.seek((long) at * BufferPool.PAGE_SIZE);
+                    raf.write(BTreePage.createInternalData(mins.subList(from + 1, to),
+                            level.subList(from, to), leafChildren));
+                    up.add(at);
+                    upMins.add(mins.get(from));
+                }
+                if (nodes == 1)
+                    break;
+                level = up;
+                mins = upMins;
+                leafChildren = false;
+            }
+        } finally {
+            raf.close();
+        }
+    } finally {
+        rows.delete();
+    }
+  }
 }
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HeapFile
+ */
+class HeapFileIterator extends AbstractDbFileIterator {
+
+    Iterator<Tuple> it = null;
+    int curpgno = 0;
+
+    TransactionId tid;
+    HeapFile hf;
+    boolean readAhead;
+    ReadAhead ahead = null;
+    boolean[] columns;
+    List<Predicate> predicates;
+    // whether the current page's iterator tests the predicates itself
+    boolean filtered = false;
+    // the page readBatch copies tuples from, and the slot it copies next
+    HeapPage batchPage = null;
+    int batchSlot = 0;
+    // where to claim pages from, or null to read them all; the first page
+    // of the morsel being read, or -1 before the first
+    Morsels morsels;
+    int morselStart = -1;
+
+    public HeapFileIterator(HeapFile hf, TransactionId tid, boolean readAhead,
+            boolean[] columns, List<Predicate> predicates, Morsels morsels) {
+        this.hf = hf;
+        this.tid = tid;
+        this.readAhead = readAhead;
+        this.columns = columns;
+        this.predicates = predicates;
+        this.morsels = morsels;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        curpgno = -1;
+        morselStart = -1;
+        if (readAhead)
+            ahead = new ReadAhead(hf);
+    }
+
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        Tuple t;
+        while ((t = readNextFromPage()) != null) {
+            if (filtered || matches(t))
+                return t;
+        }
+        return null;
+    }
+
+    private boolean matches(Tuple t) {
+        if (predicates != null) {
+            for (Predicate p : predicates) {
+                if (!p.filter(t))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private Tuple readNextFromPage() throws TransactionAbortedException, DbException {
+        if (it != null && !it.hasNext())
+            it = null;
+
+        while (it == null) {
+            TuplePage curp = nextPage();
+            if (curp == null)
+                return null;
+            startPage(curp);
+            if (!it.hasNext())
+                it = null;
+        }
+        return it.next();
+    }
+
+    /** @return the next page of the file, or null if there are no more */
+    private TuplePage nextPage() throws TransactionAbortedException, DbException {
+        if (morsels == null) {
+            if (curpgno >= hf.numPages() - 1)
+                return null;
+            curpgno++;
+        } else if (curpgno == Integer.MAX_VALUE) {
+            // closed
+            return null;
+        } else if (morselStart >= 0 && curpgno + 1 < morsels.end(morselStart)) {
+            curpgno++;
+        } else {
+            morselStart = morsels.claim();
+            if (morselStart < 0)
+                return null;
+            curpgno = morselStart;
+        }
+        if (ahead != null)
+            ahead.consumed(curpgno);
+        HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
+        return (TuplePage) Database.getBufferPool().getPage(tid,
+                curpid, Permissions.READ_ONLY);
+    }
+
+    /** Sets it to an iterator over the tuples of curp. */
+    private void startPage(TuplePage curp) {
+        filtered = curp instanceof CompressedHeapPage;
+        if (filtered)
+            it = ((CompressedHeapPage) curp).iterator(columns, predicates);
+        else
+            it = curp.iterator(columns);
+    }
+
+    /**
+     * Adds the tuples that follow to b until it is full or there are no
+     * more. The fields of tuples on a HeapPage are copied from the page
+     * into b, without making a Tuple for each; tuples on other pages are
+     * read as by next. Tuples should be read either through next or through
+     * this, not both.
+     */
+    void readBatch(TupleBatch b) throws TransactionAbortedException, DbException {
+        while (!b.isFull()) {
+            if (batchPage != null) {
+                batchSlot = batchPage.readBatch(batchSlot, b, columns);
+                if (batchSlot < batchPage.numSlots)
+                    return;
+                batchPage = null;
+            } else if (it != null) {
+                if (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (filtered || matches(t))
+                        b.addTuple(t);
+                } else {
+                    it = null;
+                }
+            } else {
+                TuplePage curp = nextPage();
+                if (curp == null)
+                    return;
+                if (curp instanceof HeapPage && predicates == null) {
+                    batchPage = (HeapPage) curp;
+                    batchSlot = 0;
+                } else {
+                    startPage(curp);
+                }
+            }
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        batchPage = null;
+        curpgno = Integer.MAX_VALUE;
+        if (ahead != null) {
+            ahead.close();
+            ahead = null;
+        }
+    }
+}
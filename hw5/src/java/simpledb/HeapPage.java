@@ -2,27 +2,31 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Where each field of each slot sits on the page is decided by
+ * {@link #fieldOffset}, which subclasses with another layout override; see
+ * {@link PaxHeapPage}.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage extends CopyOnWritePage {
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    final int headerSize;
+    final int tupleSize;
+    // offset of each field within a tuple
+    final int fieldOffsets[];
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,32 +40,64 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a copy of the bytes and decodes tuples from it only
+     * when they are asked for, so reading a page costs one array copy no
+     * matter how many tuples it holds. Its before-image shares that copy
+     * until the page is first changed.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding a page in the format described
+     * above, such as a slice of a memory-mapped file. The bytes are copied,
+     * and the buffer's position is not changed.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyOf(data), false);
+    }
+
+    /**
+     * Create a HeapPage over data without copying it.
+     *
+     * @param shared true if data is referenced elsewhere and must not be
+     *   changed
+     */
+    HeapPage(HeapPageId id, byte[] data, boolean shared) {
+        super(data, shared);
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+    }
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+    /** Writes into a byte array from a given offset on. */
+    private static class ByteArrayWriter extends OutputStream {
+        private final byte[] buf;
+        int pos;
+
+        ByteArrayWriter(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        public void write(int b) {
+            buf[pos++] = (byte) b;
         }
-        dis.close();
 
-        setBeforeImage();
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -91,28 +127,26 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
-        }
-        return null;
+        return newPage(getBeforeImageData());
     }
-    
-    public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-        oldData = getPageData().clone();
-        }
+
+    /**
+     * @return a page of this page's class over image, which is referenced
+     *   elsewhere and must not be changed
+     */
+    HeapPage newPage(byte[] image) {
+        return new HeapPage(pid, image, true);
     }
 
+    /**
+     * @return the offset within the page of field j of slot i: the fields
+     *   of a slot are stored one after the other, after the header
+     */
+    int fieldOffset(int i, int j) {
+        return headerSize + i * tupleSize + fieldOffsets[j];
+    }
+    
+
     /**
      * @return the PageId associated with this page.
      */
@@ -121,37 +155,15 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns field j of the tuple in slot i, decoded straight from the
+     * page, without materializing the rest of the tuple.
+     *
+     * @throws NoSuchElementException if slot i is not in use
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
+    public Field getField(int i, int j) throws NoSuchElementException {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new NoSuchElementException();
+        return td.getFieldType(j).parse(data, fieldOffset(i, j));
     }
 
     /**
@@ -166,64 +178,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -253,7 +208,13 @@ public class HeapPage implements Page {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(rid.tupleno()))
             throw new DbException("tried to delete null tuple.");
-        markSlotUsed(rid.tupleno(), false);        
+        beforeWrite();
+        markSlotUsed(rid.tupleno(), false);
+        // empty slots are all zeroes on disk
+        for (int j = 0; j < td.numFields(); j++) {
+            int off = fieldOffset(rid.tupleno(), j);
+            Arrays.fill(data, off, off + td.getFieldType(j).getLen(), (byte) 0);
+        }
     }
 
     /**
@@ -278,11 +239,13 @@ public class HeapPage implements Page {
         if (goodSlot == -1)
             throw new DbException("called addTuple on page with no empty slots.");
 
-        markSlotUsed(goodSlot, true);
         Debug.log(1, "HeapPage.addTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
+        beforeWrite();
+        writeTuple(goodSlot, t);
         RecordId rid = new RecordId(pid, goodSlot);
         t.setRecordId(rid);
-        tuples[goodSlot] = t;
+        // mark the slot last, so a concurrent flush never sees a used empty slot
+        markSlotUsed(goodSlot, true);
     }
 
     /**
@@ -297,7 +260,22 @@ public class HeapPage implements Page {
             throw new DbException("tried to update tuple on invalid page or table");
         if (!isSlotUsed(rid.tupleno()))
             throw new DbException("tried to update null tuple.");
-        tuples[rid.tupleno()] = t;
+        beforeWrite();
+        writeTuple(rid.tupleno(), t);
+    }
+
+    /** Serializes the fields of t into slot i. */
+    private void writeTuple(int i, Tuple t) throws DbException {
+        ByteArrayWriter out = new ByteArrayWriter(data, 0);
+        DataOutputStream dos = new DataOutputStream(out);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                out.pos = fieldOffset(i, j);
+                t.getField(j).serialize(dos);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e);
+        }
     }
 
     /**
@@ -324,11 +302,18 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int cnt = 0;
-        for(int i=0; i<numSlots; i++)
-            if(!isSlotUsed(i))
-                cnt++;
-        return cnt;
+        int used = 0;
+        for (int b = 0; b < numSlots / 8; b++)
+            used += Integer.bitCount(data[b] & 0xff);
+        for (int i = numSlots / 8 * 8; i < numSlots; i++)
+            if (isSlotUsed(i))
+                used++;
+        return numSlots - used;
+    }
+
+    /** @return the number of empty slots on this page */
+    public int getFreeSpace() {
+        return getNumEmptySlots();
     }
 
     /**
@@ -337,7 +322,7 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         int headerbit = i % 8;
         int headerbyte = (i - headerbit) / 8;
-        return (header[headerbyte] & (1 << headerbit)) != 0;
+        return (data[headerbyte] & (1 << headerbit)) != 0;
     }
 
     /**
@@ -349,9 +334,9 @@ public class HeapPage implements Page {
 
         Debug.log(1, "HeapPage.setSlot: setting slot %d to %b", i, value);
         if(value)
-            header[headerbyte] |= 1 << headerbit;
+            data[headerbyte] |= 1 << headerbit;
         else
-            header[headerbyte] &= (0xFF ^ (1 << headerbit));
+            data[headerbyte] &= (0xFF ^ (1 << headerbit));
     }
 
     /**
@@ -359,28 +344,70 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return new HeapPageIterator(this);
+        return new HeapPageIterator(this, null);
+    }
+
+    public Iterator<Tuple> iterator(boolean[] columns) {
+        return new HeapPageIterator(this, columns);
     }
 
     // protected method used by the iterator to get the ith tuple
-    // out of this page
+    // out of this page, decoded afresh on every call
     Tuple getTuple(int i) throws NoSuchElementException {
+        return getTuple(i, null);
+    }
+
+    // the ith tuple with only the fields in columns decoded, or all of
+    // them if columns is null
+    Tuple getTuple(int i, boolean[] columns) throws NoSuchElementException {
 
-        if (i >= tuples.length)
+        if (i < 0 || i >= numSlots)
             throw new NoSuchElementException();
 
-        try {
-            if(!isSlotUsed(i)) {
-                Debug.log(1, "HeapPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
-                return null;
-            }
+        if(!isSlotUsed(i)) {
+            Debug.log(1, "HeapPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
+            return null;
+        }
 
-            Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
-            return tuples[i];
+        Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        byte[] b = data;
+        for (int j=0; j<fieldOffsets.length; j++) {
+            if (columns == null || columns[j])
+                t.setField(j, td.getFieldType(j).parse(b, fieldOffset(i, j)));
+        }
+        return t;
+    }
 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new NoSuchElementException();
+    /**
+     * Copies the tuples in the used slots from slot from on into b, until b
+     * is full; only the fields in columns, or all of them if columns is
+     * null. Ints are read straight into b's columns, without a Field for
+     * each.
+     *
+     * @return the slot after the last one read
+     */
+    int readBatch(int from, TupleBatch b, boolean[] columns) {
+        byte[] d = data;
+        int i = from;
+        for (; i < numSlots && !b.isFull(); i++) {
+            if ((d[i >> 3] & (1 << (i & 7))) == 0)
+                continue;
+            int r = b.addRow();
+            for (int j = 0; j < fieldOffsets.length; j++) {
+                if (columns != null && !columns[j]) {
+                    b.unset(r, j);
+                    continue;
+                }
+                int off = fieldOffset(i, j);
+                if (b.ints[j] != null)
+                    b.ints[j][r] = Type.readInt(d, off);
+                else
+                    b.fields[j][r] = td.getFieldType(j).parse(d, off);
+            }
         }
+        return i;
     }
 }
 
@@ -391,9 +418,11 @@ class HeapPageIterator implements Iterator<Tuple> {
     int curTuple = 0;
     Tuple nextToReturn = null;
     HeapPage p;
+    boolean[] columns;
 
-    public HeapPageIterator(HeapPage p) {
+    public HeapPageIterator(HeapPage p, boolean[] columns) {
         this.p = p;
+        this.columns = columns;
     }
 
     public boolean hasNext() {
@@ -402,7 +431,7 @@ class HeapPageIterator implements Iterator<Tuple> {
 
         try {
             while (true) {
-                nextToReturn = p.getTuple(curTuple++);
+                nextToReturn = p.getTuple(curTuple++, columns);
                 if(nextToReturn != null)
                     return true;
             }
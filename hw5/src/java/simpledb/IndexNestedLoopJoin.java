@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins child1 with a table stored in a
+ * {@link BTreeFile} whose key is the join field of child2: for each tuple
+ * of child1 it searches the tree for the tuples the predicate matches,
+ * instead of reading the whole table as {@link Join} does or building a
+ * hash table of it as {@link HashEquiJoin} does. It pays when child1 is
+ * small, so that few searches are made.
+ * <p>
+ * child2 is the scan of the table that would otherwise be joined; it is
+ * not opened, but gives the join its TupleDesc and the table to search.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private SeqScan child2;
+    private final TupleDesc comboTD;
+
+    // the tuple of child1 being joined, and its matches
+    transient private Tuple left = null;
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Creates a join of child1 and the table child2 scans on p, whose
+     * operator must be one that {@link IndexScan#handles}.
+     *
+     * @param child2
+     *            a scan of a table for which {@link #canSearch} holds
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, SeqScan child2) {
+        if (!IndexScan.handles(p.getOperator()))
+            throw new IllegalArgumentException("index joins cannot join on " + p.getOperator());
+        if (!canSearch(child2, p.getField2()))
+            throw new IllegalArgumentException("no index on the join field of " + child2.getTableName());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if plan is a scan of a whole table stored in a BTreeFile
+     *   whose key is field, so that an index join can search it instead
+     */
+    public static boolean canSearch(DbIterator plan, int field) {
+        if (!(plan instanceof SeqScan) || plan instanceof IndexScan)
+            return false;
+        DbFile f = Database.getCatalog().getDbFile(
+                Database.getCatalog().getTableId(((SeqScan) plan).getTableName()));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        left = null;
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        left = null;
+        child1.rewind();
+    }
+
+    private void closeMatches() {
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    /**
+     * @return the operator that finds the keys a field of child1 matches
+     *   with pred's operator: a &lt; key is key &gt; a, and so on
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext())
+                return merge(left, matches.next());
+            closeMatches();
+            if (!child1.hasNext())
+                return null;
+            left = child1.next();
+            Field key = left.getField(pred.getField1());
+            // fields the scans below did not decode match nothing
+            if (key == null)
+                continue;
+            BTreeFile bf = (BTreeFile) Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(child2.getTableName()));
+            matches = bf.indexIterator(child2.getTransactionId(),
+                    reverse(pred.getOperator()), key);
+            matches.open();
+        }
+    }
+
+    /** @return the concatenation of t1 and t2 */
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int td1n = t1.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++) {
+            if (t1.getField(i) != null)
+                t.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = (SeqScan) children[1];
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * IndexScan reads the tuples of a table stored in a {@link BTreeFile} whose
+ * key satisfies <tt>key op value</tt>, going down the tree to the first
+ * leaf that may hold one and reading leaves from there only as far as the
+ * range goes. Tuples are returned in key order.
+ * <p>
+ * An IndexScan is a SeqScan in all other respects, so plans treat it as a
+ * scan of its table.
+ */
+public class IndexScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final int tableid;
+    private Predicate.Op op;
+    private Field value;
+
+    /**
+     * Creates a scan of the tuples of a table whose key satisfies
+     * <tt>key op value</tt>.
+     *
+     * @param tableid
+     *            the table to scan, which must be stored in a BTreeFile
+     * @param tableAlias
+     *            the alias of the table, as for {@link SeqScan}
+     * @param op
+     *            one of the operators {@link #handles}
+     */
+    public IndexScan(TransactionId tid, int tableid, String tableAlias,
+            Predicate.Op op, Field value) {
+        super(tid, tableid, tableAlias);
+        if (!(Database.getCatalog().getDbFile(tableid) instanceof BTreeFile))
+            throw new IllegalArgumentException("table " + tableid + " has no index");
+        if (!handles(op))
+            throw new IllegalArgumentException("an index scan cannot search for " + op);
+        this.tid = tid;
+        this.tableid = tableid;
+        this.op = op;
+        this.value = value;
+        reset(tableid, tableAlias);
+    }
+
+    /** @return true if index scans can search for keys with op */
+    public static boolean handles(Predicate.Op op) {
+        return SortMergeJoin.handles(op);
+    }
+
+    public Predicate.Op getOperator() {
+        return op;
+    }
+
+    public Field getValue() {
+        return value;
+    }
+
+    /** @return the name of the key field, prefixed with the table alias */
+    public String getKeyFieldName() {
+        BTreeFile bf = (BTreeFile) Database.getCatalog().getDbFile(tableid);
+        return getTupleDesc().getFieldName(bf.keyField());
+    }
+
+    @Override
+    DbFileIterator fileIterator() {
+        // the SeqScan constructor asks for an iterator before op is set
+        if (op == null)
+            return super.fileIterator();
+        BTreeFile bf = (BTreeFile) Database.getCatalog().getDbFile(tableid);
+        return bf.indexIterator(tid, op, value);
+    }
+}
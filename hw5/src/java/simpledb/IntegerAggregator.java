@@ -56,15 +56,55 @@ public class IntegerAggregator implements Aggregator {
             agg = new AggregateFields(groupVal);
 
         int x = ((IntField) tup.getField(afield)).getValue();
-
-        agg.count++;
-        agg.sum += x;
-        agg.min = (x < agg.min ? x : agg.min);
-        agg.max = (x > agg.max ? x : agg.max);
+        agg.add(x);
 
         groups.put(groupVal, agg);
     }
 
+    /**
+     * Merge a batch of tuples into the aggregate. Without grouping, the
+     * aggregate column is folded in a loop over its ints.
+     *
+     * @param b
+     *            the batch of tuples containing an aggregate field and a
+     *            group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch b) {
+        int[] values = b.getInts(afield);
+        int n = b.size();
+        if (gbfield != NO_GROUPING) {
+            for (int k = 0; k < n; k++) {
+                int r = b.row(k);
+                String groupVal = b.getField(r, gbfield).toString();
+                AggregateFields agg = groups.get(groupVal);
+                if (agg == null) {
+                    agg = new AggregateFields(groupVal);
+                    groups.put(groupVal, agg);
+                }
+                agg.add(values[r]);
+            }
+            return;
+        }
+        if (n == 0)
+            return;
+        AggregateFields agg = groups.get("");
+        if (agg == null) {
+            agg = new AggregateFields("");
+            groups.put("", agg);
+        }
+        int count = agg.count, sum = agg.sum, min = agg.min, max = agg.max;
+        for (int k = 0; k < n; k++) {
+            int x = values[b.row(k)];
+            sum += x;
+            min = (x < min ? x : min);
+            max = (x > max ? x : max);
+        }
+        agg.count = count + n;
+        agg.sum = sum;
+        agg.min = min;
+        agg.max = max;
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      * 
@@ -135,6 +175,13 @@ public class IntegerAggregator implements Aggregator {
             max = Integer.MIN_VALUE;
             sum = count = 0;
         }
+
+        public void add(int x) {
+            count++;
+            sum += x;
+            min = (x < min ? x : min);
+            max = (x > max ? x : max);
+        }
     }
 
 }
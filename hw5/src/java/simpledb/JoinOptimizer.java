@@ -11,6 +11,19 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+
+    /** Number of pages the inputs of an equi-join must have between them for
+    it to run on several threads (see {@link ParallelHashJoin}): 1024
+    unless overridden with a system property, -Dsimpledb.ParallelJoinPages=n. */
+    public static final int PARALLEL_JOIN_PAGES = Integer.getInteger("simpledb.ParallelJoinPages", 1024);
+
+    /** Number of tuples the inputs of an equi-join may have between them
+    for it to run on several threads: a ParallelHashJoin holds both inputs
+    in memory, so larger joins run as HashEquiJoins, which spill to disk.
+    4000000 unless overridden with a system property,
+    -Dsimpledb.ParallelJoinTuples=n. */
+    public static final int PARALLEL_JOIN_TUPLES = Integer.getInteger("simpledb.ParallelJoinTuples", 4000000);
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
@@ -68,13 +81,40 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (SortMergeJoin.handles(lj.p)) {
+            // TableStats does not estimate the cost of plans yet, so go by
+            // the sizes of the tables they scan
+            int card1 = inputTuples(plan1), card2 = inputTuples(plan2);
+            double cost1 = (double) inputPages(plan1) * TableStats.IOCOSTPERPAGE;
+            double cost2 = (double) inputPages(plan2) * TableStats.IOCOSTPERPAGE;
+            boolean sorted1 = isSortedOn(plan1, t1id), sorted2 = isSortedOn(plan2, t2id);
+            double otherCost = lj.p == Predicate.Op.EQUALS
+                    ? hashJoinCost(card1, card2, cost1, cost2)
+                    : nestedLoopJoinCost(card1, card2, cost1, cost2);
+            double mergeCost = sortMergeJoinCost(lj.p, card1, card2, cost1, cost2,
+                    sorted1, sorted2);
+            if (IndexNestedLoopJoin.canSearch(plan2, t2id)) {
+                double indexCost = indexNestedLoopJoinCost(lj.p, card1, card2, cost1, cost2);
+                if (indexCost < otherCost && indexCost <= mergeCost)
+                    return new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+            }
+            if (mergeCost < otherCost)
+                return new SortMergeJoin(p,
+                        sorted1 ? plan1 : new OrderBy(t1id, true, plan1),
+                        sorted2 ? plan2 : new OrderBy(t2id, true, plan2));
+        }
+
+        if (lj.p == Predicate.Op.EQUALS && Exchange.DEFAULT_PARALLELISM > 1
+                && runsInParallel(plan1, plan2, PARALLEL_JOIN_PAGES, PARALLEL_JOIN_TUPLES)) {
+            j = new ParallelHashJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
                 // fall back on regular join
                 Class<?> c = Class.forName("simpledb.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+                java.lang.reflect.Constructor<?> ct = c.getConstructor(
+                        JoinPredicate.class, DbIterator.class, DbIterator.class);
                 j = (DbIterator) ct
                         .newInstance(new Object[] { p, plan1, plan2 });
             } catch (Exception e) {
@@ -88,6 +128,196 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Returns true if an equi-join of plan1 and plan2 should run as a
+     * ParallelHashJoin: the tables they scan have at least minPages pages
+     * between them, so the join is worth the threads, and at most maxTuples
+     * tuples, so that both inputs fit in memory.
+     */
+    static boolean runsInParallel(DbIterator plan1, DbIterator plan2,
+            int minPages, int maxTuples) {
+        return (long) inputPages(plan1) + inputPages(plan2) >= minPages
+                && (long) inputTuples(plan1) + inputTuples(plan2) <= maxTuples;
+    }
+
+    /**
+     * Returns the number of pages of the tables plan scans. TableStats does
+     * not estimate the cost of plans yet, so this is what instantiateJoin
+     * goes by to tell large joins.
+     */
+    static int inputPages(DbIterator plan) {
+        // a search for one key reads about one leaf
+        if (plan instanceof IndexScan && ((IndexScan) plan).getOperator() == Predicate.Op.EQUALS)
+            return 1;
+        if (plan instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(((SeqScan) plan).getTableName()));
+            if (f instanceof BTreeFile)
+                return ((BTreeFile) f).numPages();
+            return f instanceof HeapFile ? ((HeapFile) f).numPages() : 0;
+        }
+        if (!(plan instanceof Operator))
+            return 0;
+        DbIterator[] children = ((Operator) plan).getChildren();
+        // the children of an Exchange share the pages of one table
+        if (plan instanceof Exchange)
+            return inputPages(children[0]);
+        int pages = 0;
+        for (DbIterator child : children) {
+            if (child != null)
+                pages += inputPages(child);
+        }
+        return pages;
+    }
+
+    /**
+     * Returns roughly how many tuples the tables plan scans hold, from
+     * their number of pages and how many tuples fit on one.
+     */
+    static int inputTuples(DbIterator plan) {
+        if (plan instanceof SeqScan) {
+            TupleDesc td = plan.getTupleDesc();
+            long perPage = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+            return (int) Math.min(Integer.MAX_VALUE, inputPages(plan) * perPage);
+        }
+        if (!(plan instanceof Operator))
+            return 0;
+        DbIterator[] children = ((Operator) plan).getChildren();
+        if (plan instanceof Exchange)
+            return inputTuples(children[0]);
+        long tuples = 0;
+        for (DbIterator child : children) {
+            if (child != null)
+                tuples += inputTuples(child);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, tuples);
+    }
+
+    /**
+     * Returns true if plan is known to return its tuples in ascending order
+     * of field i, so that a merge join need not sort them again.
+     */
+    static boolean isSortedOn(DbIterator plan, int i) {
+        if (plan instanceof OrderBy)
+            return ((OrderBy) plan).isASC() && ((OrderBy) plan).getOrderByField() == i;
+        if (plan instanceof SortMergeJoin)
+            return ((SortMergeJoin) plan).isSortedOn(i);
+        if (plan instanceof SeqScan) {
+            // tables in a B+ tree are read in order of their keys
+            DbFile f = Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(((SeqScan) plan).getTableName()));
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == i;
+        }
+        if (plan instanceof Filter)
+            return isSortedOn(((Filter) plan).getChildren()[0], i);
+        return false;
+    }
+
+    /**
+     * Estimates the cost of a nested-loop join, which scans the right-hand
+     * side once for each tuple on the left-hand side and compares every
+     * pair of tuples. The arguments are as for {@link #estimateJoinCost}.
+     */
+    static double nestedLoopJoinCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + (double) card1 * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * Estimates the cost of a hash join, which scans each side once,
+     * building a table of the left-hand side and probing it with the
+     * right-hand side. When the left-hand side does not fit in memory
+     * ({@link HashEquiJoin#MAP_SIZE} tuples), the part of both sides that
+     * does not is written out and read back once more.
+     */
+    static double hashJoinCost(int card1, int card2, double cost1, double cost2) {
+        double cost = cost1 + cost2 + 2.0 * card1 + card2;
+        if (card1 > HashEquiJoin.MAP_SIZE)
+            cost += 2 * (1 - (double) HashEquiJoin.MAP_SIZE / card1) * (cost1 + cost2);
+        return cost;
+    }
+
+    /**
+     * Estimates the cost of a {@link SortMergeJoin}, which scans each side
+     * once, sorting those not already sorted on their join field, then
+     * compares each tuple with about one on the other side. A side with
+     * more than {@link OrderBy#SORT_TUPLES} tuples is sorted in runs that
+     * are written out and read back once for each merge pass. A join on a
+     * comparison other than equality holds the right-hand side in memory,
+     * so it cannot be run if that has more than
+     * {@link SortMergeJoin#BAND_TUPLES} tuples.
+     *
+     * @param op
+     *            the comparison the join is on
+     * @param sorted1
+     *            true if the left-hand side is already sorted
+     * @param sorted2
+     *            true if the right-hand side is already sorted
+     * @return the cost, or infinity if the join would not fit in memory
+     */
+    static double sortMergeJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        if (op != Predicate.Op.EQUALS && card2 > SortMergeJoin.BAND_TUPLES)
+            return Double.POSITIVE_INFINITY;
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1)
+            cost += sortCost(card1, cost1);
+        if (!sorted2)
+            cost += sortCost(card2, cost2);
+        return cost;
+    }
+
+    /**
+     * @return the cost of sorting card tuples that cost cost to read: the
+     *   comparisons, plus writing and reading them for each merge pass
+     */
+    private static double sortCost(int card, double cost) {
+        double comparisons = card <= 1 ? 0 : card * log2(card);
+        if (card <= OrderBy.SORT_TUPLES)
+            return comparisons;
+        double runs = Math.ceil((double) card / OrderBy.SORT_TUPLES);
+        double passes = Math.ceil(Math.log(runs) / Math.log(OrderBy.FAN_IN));
+        return comparisons + 2 * Math.max(passes, 1) * cost;
+    }
+
+    private static double log2(int n) {
+        return n <= 1 ? 0 : Math.log(n) / Math.log(2);
+    }
+
+    /**
+     * Estimates the cost of an {@link IndexNestedLoopJoin}, which scans the
+     * left-hand side once and searches the B+ tree of the right-hand side
+     * for each of its tuples. A search for one key reads about one leaf and
+     * a search for a range is taken to read a third of the right-hand side;
+     * the leaves stay in the buffer pool once read, so the searches never
+     * read more than a scan of the right-hand side would.
+     */
+    static double indexNestedLoopJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2) {
+        if (op == Predicate.Op.EQUALS)
+            return cost1 + Math.min((double) card1 * TableStats.IOCOSTPERPAGE, cost2)
+                    + (double) card1 * (log2(card2) + 1);
+        return cost1 + Math.min((double) card1 * cost2 / 3, cost2)
+                + (double) card1 * card2 / 3;
+    }
+
+    /**
+     * @return true if the right-hand table of j is stored in a B+ tree on
+     *   its join field, so an {@link IndexNestedLoopJoin} can search it
+     */
+    private boolean hasIndexFor(LogicalJoinNode j) {
+        Integer tableId = p.getTableAliasToIdMapping().get(j.t2Alias);
+        if (tableId == null)
+            return false;
+        DbFile f = Database.getCatalog().getDbFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return false;
+        try {
+            return f.getTupleDesc().fieldNameToIndex(j.f2PureName) == ((BTreeFile) f).keyField();
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -121,8 +351,17 @@ public class JoinOptimizer {
             // Don't worry about implementing a more sophisticated estimate than the one below.
             return card1 + cost1 + cost2;
         } else {
-            // Apply the formula for nested-loop join cost
-            return cost1 + card1 * cost2 + card1 * card2;
+            // the cheapest of the join algorithms that handle j's operator,
+            // assuming neither side is sorted on its join field
+            double cost = nestedLoopJoinCost(card1, card2, cost1, cost2);
+            if (j.p == Predicate.Op.EQUALS)
+                cost = Math.min(cost, hashJoinCost(card1, card2, cost1, cost2));
+            if (SortMergeJoin.handles(j.p))
+                cost = Math.min(cost, sortMergeJoinCost(j.p, card1, card2, cost1, cost2,
+                        false, false));
+            if (IndexScan.handles(j.p) && hasIndexFor(j))
+                cost = Math.min(cost, indexNestedLoopJoinCost(j.p, card1, card2, cost1, cost2));
+            return cost;
         }
     }
 
@@ -0,0 +1,682 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the locks of a BufferPool.
+ * <p>
+ * Locks are taken at two granularities, tables and pages, with the usual
+ * multi-granularity modes: before a transaction locks a page shared or
+ * exclusive, it takes an intention lock (IS or IX) on the page's table. A
+ * transaction that holds more page locks on one table than the escalation
+ * threshold has them replaced by a single S or X table lock, as long as
+ * that table lock can be granted without waiting. Later page requests
+ * covered by a table lock do not add lock table entries at all.
+ * <p>
+ * Every locked resource has a lock table entry with the transactions
+ * holding it and a FIFO queue of waiting requests. A request is granted at once if it
+ * is compatible with all holders and nobody is queued; otherwise it waits
+ * in the queue until a release hands the lock over to it. Requests to
+ * upgrade a shared lock to an exclusive one are queued ahead of all other
+ * waiters. On every release the queue is granted from the front for as
+ * long as the head is compatible with the holders, and each granted waiter
+ * is signalled directly.
+ * <p>
+ * Deadlocks are handled according to a {@link DeadlockPolicy}. For every
+ * waiting request the lock manager keeps the set of transactions it waits
+ * for (incompatible holders and all requests queued ahead of it),
+ * and maintains the waits-for graph incrementally as these sets change.
+ * The policy is applied to each newly added edge, so no periodic scan is
+ * needed.
+ * <p>
+ * The time spent waiting for each page is recorded, see
+ * {@link #getWaitNanos} and {@link #getWaitCount}.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock timeout used by {@link DeadlockPolicy#TIMEOUT} unless changed, in milliseconds. */
+    public static final long DEFAULT_LOCK_TIMEOUT = 500;
+
+    /** Default for {@link #setEscalationThreshold}. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+    /** Lock modes. */
+    enum Mode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        /** @return true if a transaction may hold this mode while another holds m */
+        boolean compatibleWith(Mode m) {
+            return COMPATIBLE[ordinal()][m.ordinal()];
+        }
+
+        /** @return the weakest mode that is at least as strong as both this and m */
+        Mode combine(Mode m) {
+            if (this == m || m.covers(this))
+                return m;
+            if (covers(m))
+                return this;
+            // the only incomparable pair is IX and S
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+
+        /** @return true if holding this mode makes a request for m redundant */
+        boolean covers(Mode m) {
+            switch (this) {
+            case EXCLUSIVE:
+                return true;
+            case SHARED_INTENTION_EXCLUSIVE:
+                return m != EXCLUSIVE;
+            case SHARED:
+                return m == SHARED || m == INTENTION_SHARED;
+            case INTENTION_EXCLUSIVE:
+                return m == INTENTION_EXCLUSIVE || m == INTENTION_SHARED;
+            default:
+                return m == INTENTION_SHARED;
+            }
+        }
+    }
+
+    /** The lock table key of a whole table. */
+    private static class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    /** A request waiting in the queue of a table or page. */
+    private static class Request {
+        final TransactionId tid;
+        final Mode mode;
+        final boolean upgrade;
+        final Object key;
+        final LockState state;
+        final Condition cond;
+        // the transactions this request currently waits for
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        boolean granted = false;
+        boolean aborted = false;
+
+        Request(TransactionId tid, Mode mode, boolean upgrade, Object key,
+                LockState state, Condition cond) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.key = key;
+            this.state = state;
+            this.cond = cond;
+        }
+    }
+
+    /** The lock table entry of one table or page. */
+    private static class LockState {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+        final LinkedList<Request> queue = new LinkedList<Request>();
+    }
+
+    private final DeadlockPolicy policy;
+    private volatile long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    // guards all of the fields below
+    private final ReentrantLock latch = new ReentrantLock();
+    // keyed by TableKey or PageId
+    private final HashMap<Object, LockState> table = new HashMap<Object, LockState>();
+    private final HashMap<TransactionId, Set<Object>> locksOf = new HashMap<TransactionId, Set<Object>>();
+    // number of page locks each transaction holds, per table id
+    private final HashMap<TransactionId, HashMap<Integer, Integer>> pageCounts =
+        new HashMap<TransactionId, HashMap<Integer, Integer>>();
+    private final HashMap<TransactionId, ArrayList<Request>> waiting = new HashMap<TransactionId, ArrayList<Request>>();
+    // waits-for graph: waiter -> (transaction waited for -> number of requests waiting for it)
+    private final HashMap<TransactionId, HashMap<TransactionId, Integer>> waitsFor =
+        new HashMap<TransactionId, HashMap<TransactionId, Integer>>();
+    // transactions wounded under WOUND_WAIT that have not released their locks yet
+    private final HashSet<TransactionId> wounded = new HashSet<TransactionId>();
+    // {number of waits, total nanoseconds waited} per table or page
+    private final HashMap<Object, long[]> waitStats = new HashMap<Object, long[]>();
+
+    /** Create a lock manager that detects deadlocks with a waits-for graph. */
+    public LockManager() {
+        this(DeadlockPolicy.DETECT);
+    }
+
+    /** Create a lock manager that handles deadlocks according to policy. */
+    public LockManager(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    /** @return the deadlock policy of this lock manager */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /** Set how long a request may wait under {@link DeadlockPolicy#TIMEOUT}, in milliseconds. */
+    public void setLockTimeout(long millis) {
+        lockTimeout = millis;
+    }
+
+    /**
+     * Set how many page locks a transaction may hold on one table before
+     * they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int pages) {
+        escalationThreshold = pages;
+    }
+
+    /**
+     * Acquire a lock on page pid for transaction tid, blocking until it is
+     * granted. Acquiring a lock the transaction already holds is a no-op,
+     * and asking for READ_WRITE while holding READ_ONLY upgrades the lock.
+     * The matching intention lock on the page's table is acquired first.
+     *
+     * @throws DeadlockException if the deadlock policy chose to abort tid
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws DeadlockException {
+        boolean write = perm == Permissions.READ_WRITE;
+        Mode mode = write ? Mode.EXCLUSIVE : Mode.SHARED;
+        TableKey tableKey = new TableKey(pid.getTableId());
+        latch.lock();
+        try {
+            if (coveredByTable(tid, tableKey, mode))
+                return;
+            acquire(tid, tableKey, write ? Mode.INTENTION_EXCLUSIVE : Mode.INTENTION_SHARED);
+            if (coveredByTable(tid, tableKey, mode))
+                return;
+            if (acquire(tid, pid, mode))
+                countPage(tid, pid.getTableId(), 1);
+            maybeEscalate(tid, tableKey);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquire a lock on a table or page, waiting if necessary.
+     *
+     * @return true if tid did not hold any lock on key before
+     */
+    private boolean acquire(TransactionId tid, Object key, Mode requested)
+        throws DeadlockException {
+        if (wounded.contains(tid))
+            throw new DeadlockException();
+        LockState state = table.get(key);
+        if (state == null) {
+            state = new LockState();
+            table.put(key, state);
+        }
+        Mode held = state.holders.get(tid);
+        if (held != null && held.covers(requested))
+            return false;
+        boolean upgrade = held != null;
+        Mode mode = upgrade ? held.combine(requested) : requested;
+        if (grantable(state, tid, mode) && (upgrade || state.queue.isEmpty())) {
+            grant(key, state, tid, mode);
+            // a stronger mode may block requests that are already queued
+            if (upgrade)
+                refreshBlockers(state);
+            return !upgrade;
+        }
+
+        Request req = new Request(tid, mode, upgrade, key, state, latch.newCondition());
+        enqueue(req);
+        long start = System.nanoTime();
+        try {
+            refreshBlockers(state);
+            long remaining = TimeUnit.MILLISECONDS.toNanos(lockTimeout);
+            while (!req.granted && !req.aborted) {
+                if (policy == DeadlockPolicy.TIMEOUT) {
+                    if (remaining <= 0)
+                        break;
+                    remaining = req.cond.awaitNanos(remaining);
+                } else {
+                    req.cond.await();
+                }
+            }
+            if (!req.granted)
+                throw new DeadlockException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlockException();
+        } finally {
+            if (!req.granted)
+                cancel(req);
+            long[] stats = waitStats.get(key);
+            if (stats == null) {
+                stats = new long[2];
+                waitStats.put(key, stats);
+            }
+            stats[0]++;
+            stats[1] += System.nanoTime() - start;
+        }
+        return !upgrade;
+    }
+
+    /** @return true if tid holds a table lock that makes a page lock in mode redundant */
+    private boolean coveredByTable(TransactionId tid, TableKey tableKey, Mode mode) {
+        LockState state = table.get(tableKey);
+        if (state == null)
+            return false;
+        Mode held = state.holders.get(tid);
+        return held != null && held.covers(mode);
+    }
+
+    private void countPage(TransactionId tid, int tableId, int delta) {
+        HashMap<Integer, Integer> counts = pageCounts.get(tid);
+        if (counts == null) {
+            counts = new HashMap<Integer, Integer>();
+            pageCounts.put(tid, counts);
+        }
+        Integer n = counts.get(tableId);
+        int count = (n == null ? 0 : n) + delta;
+        if (count > 0) {
+            counts.put(tableId, count);
+        } else {
+            counts.remove(tableId);
+            if (counts.isEmpty())
+                pageCounts.remove(tid);
+        }
+    }
+
+    /**
+     * Replace the page locks tid holds on a table with one table lock if
+     * there are more of them than the escalation threshold and the table
+     * lock is free to take. Escalation never waits, so it cannot deadlock.
+     */
+    private void maybeEscalate(TransactionId tid, TableKey tableKey) {
+        HashMap<Integer, Integer> counts = pageCounts.get(tid);
+        Integer n = counts == null ? null : counts.get(tableKey.tableId);
+        if (n == null || n <= escalationThreshold)
+            return;
+        LockState state = table.get(tableKey);
+        Mode held = state.holders.get(tid);
+        Mode mode = held.combine(held == Mode.INTENTION_SHARED ? Mode.SHARED : Mode.EXCLUSIVE);
+        if (!grantable(state, tid, mode) || !state.queue.isEmpty())
+            return;
+        grant(tableKey, state, tid, mode);
+        for (Object key : new ArrayList<Object>(locksOf.get(tid))) {
+            if (key instanceof PageId && ((PageId) key).getTableId() == tableKey.tableId)
+                releaseLock(tid, key);
+        }
+    }
+
+    /** Release the lock that tid holds on pid, if any. */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            releaseLock(tid, (Object) pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void releaseLock(TransactionId tid, Object key) {
+        Set<Object> held = locksOf.get(tid);
+        if (held != null) {
+            held.remove(key);
+            if (held.isEmpty())
+                locksOf.remove(tid);
+        }
+        LockState state = table.get(key);
+        if (state == null || state.holders.remove(tid) == null)
+            return;
+        if (key instanceof PageId)
+            countPage(tid, ((PageId) key).getTableId(), -1);
+        grantWaiters(key, state);
+    }
+
+    /** Release all locks held by tid. */
+    public void releaseAllLocks(TransactionId tid) {
+        latch.lock();
+        try {
+            wounded.remove(tid);
+            Set<Object> held = locksOf.get(tid);
+            if (held == null)
+                return;
+            for (Object key : new ArrayList<Object>(held))
+                releaseLock(tid, key);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the set of pages tid holds page locks on, or null if
+     *         there are none. Pages covered by a table lock are not included.
+     */
+    public Set<PageId> pagesLockedByTid(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<Object> held = locksOf.get(tid);
+            if (held == null)
+                return null;
+            Set<PageId> result = new HashSet<PageId>();
+            for (Object key : held) {
+                if (key instanceof PageId)
+                    result.add((PageId) key);
+            }
+            return result.isEmpty() ? null : result;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * page, either directly or through an S, SIX or X lock on its table.
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            if (coveredByTable(tid, new TableKey(pid.getTableId()), Mode.SHARED))
+                return true;
+            LockState state = table.get(pid);
+            return state != null && state.holders.containsKey(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of tables and pages that currently have a lock table entry */
+    public int getLockTableSize() {
+        latch.lock();
+        try {
+            return table.size();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the total time, in nanoseconds, that requests have waited for a lock on pid */
+    public long getWaitNanos(PageId pid) {
+        latch.lock();
+        try {
+            long[] stats = waitStats.get(pid);
+            return stats == null ? 0 : stats[1];
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of requests that had to wait for a lock on pid */
+    public long getWaitCount(PageId pid) {
+        latch.lock();
+        try {
+            long[] stats = waitStats.get(pid);
+            return stats == null ? 0 : stats[0];
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private boolean grantable(LockState state, TransactionId tid, Mode mode) {
+        for (Map.Entry<TransactionId, Mode> e : state.holders.entrySet()) {
+            if (!e.getKey().equals(tid) && !mode.compatibleWith(e.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    private void grant(Object key, LockState state, TransactionId tid, Mode mode) {
+        Mode held = state.holders.get(tid);
+        state.holders.put(tid, held == null ? mode : held.combine(mode));
+        Set<Object> keys = locksOf.get(tid);
+        if (keys == null) {
+            keys = new HashSet<Object>();
+            locksOf.put(tid, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Grant queued requests from the front for as long as they are
+     * compatible, then bring the wait edges of the rest up to date.
+     */
+    private void grantWaiters(Object key, LockState state) {
+        Iterator<Request> it = state.queue.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (!grantable(state, r.tid, r.mode))
+                break;
+            it.remove();
+            removeWaiting(r);
+            grant(key, state, r.tid, r.mode);
+            r.granted = true;
+            r.cond.signal();
+        }
+        refreshBlockers(state);
+        if (state.holders.isEmpty() && state.queue.isEmpty())
+            table.remove(key);
+    }
+
+    private void enqueue(Request req) {
+        if (req.upgrade) {
+            // upgrades go ahead of everything but earlier upgrades
+            ListIterator<Request> it = req.state.queue.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().upgrade) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(req);
+        } else {
+            req.state.queue.addLast(req);
+        }
+        ArrayList<Request> reqs = waiting.get(req.tid);
+        if (reqs == null) {
+            reqs = new ArrayList<Request>(1);
+            waiting.put(req.tid, reqs);
+        }
+        reqs.add(req);
+    }
+
+    /** Take a request that will not be granted out of its queue and wake its thread. */
+    private void cancel(Request req) {
+        if (!req.state.queue.remove(req))
+            return;
+        req.aborted = true;
+        removeWaiting(req);
+        req.cond.signal();
+        // the requests behind it may have been waiting only for this one
+        grantWaiters(req.key, req.state);
+    }
+
+    private void removeWaiting(Request req) {
+        setBlockers(req, new HashSet<TransactionId>());
+        ArrayList<Request> reqs = waiting.get(req.tid);
+        if (reqs != null) {
+            reqs.remove(req);
+            if (reqs.isEmpty())
+                waiting.remove(req.tid);
+        }
+    }
+
+    /**
+     * Recompute what every request queued on a table or page waits for, update the
+     * waits-for graph to match and apply the deadlock policy to new edges.
+     */
+    private void refreshBlockers(LockState state) {
+        ArrayList<Request> changed = new ArrayList<Request>();
+        ArrayList<Set<TransactionId>> added = new ArrayList<Set<TransactionId>>();
+        ArrayList<Request> queued = new ArrayList<Request>(state.queue);
+        for (int i = 0; i < queued.size(); i++) {
+            Request req = queued.get(i);
+            Set<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Mode> e : state.holders.entrySet()) {
+                if (!e.getKey().equals(req.tid) && !req.mode.compatibleWith(e.getValue()))
+                    blockers.add(e.getKey());
+            }
+            // the queue is granted in order, so req also waits for every
+            // request ahead of it, compatible or not
+            for (int j = 0; j < i; j++) {
+                Request r = queued.get(j);
+                if (!r.tid.equals(req.tid))
+                    blockers.add(r.tid);
+            }
+            Set<TransactionId> newEdges = setBlockers(req, blockers);
+            if (!newEdges.isEmpty()) {
+                changed.add(req);
+                added.add(newEdges);
+            }
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            Request req = changed.get(i);
+            // an earlier decision may already have removed this request
+            if (!req.granted && !req.aborted)
+                applyPolicy(req, added.get(i));
+        }
+    }
+
+    /**
+     * Replace the blockers of req, keeping the waits-for graph in step.
+     *
+     * @return the transactions req did not wait for before
+     */
+    private Set<TransactionId> setBlockers(Request req, Set<TransactionId> blockers) {
+        Set<TransactionId> newEdges = new HashSet<TransactionId>();
+        for (TransactionId t : req.blockers) {
+            if (!blockers.contains(t))
+                removeEdge(req.tid, t);
+        }
+        for (TransactionId t : blockers) {
+            if (!req.blockers.contains(t)) {
+                addEdge(req.tid, t);
+                newEdges.add(t);
+            }
+        }
+        req.blockers = blockers;
+        return newEdges;
+    }
+
+    private void addEdge(TransactionId from, TransactionId to) {
+        HashMap<TransactionId, Integer> out = waitsFor.get(from);
+        if (out == null) {
+            out = new HashMap<TransactionId, Integer>();
+            waitsFor.put(from, out);
+        }
+        Integer n = out.get(to);
+        out.put(to, n == null ? 1 : n + 1);
+    }
+
+    private void removeEdge(TransactionId from, TransactionId to) {
+        HashMap<TransactionId, Integer> out = waitsFor.get(from);
+        if (out == null)
+            return;
+        Integer n = out.get(to);
+        if (n == null)
+            return;
+        if (n > 1) {
+            out.put(to, n - 1);
+        } else {
+            out.remove(to);
+            if (out.isEmpty())
+                waitsFor.remove(from);
+        }
+    }
+
+    /** Decide what to do now that req has started waiting for the transactions in newEdges. */
+    private void applyPolicy(Request req, Set<TransactionId> newEdges) {
+        switch (policy) {
+        case DETECT:
+            // req.tid may be on several cycles; break them one at a time
+            ArrayList<TransactionId> cycle;
+            while (!req.aborted && (cycle = findCycle(req.tid)) != null) {
+                TransactionId victim = cycle.get(0);
+                for (TransactionId t : cycle) {
+                    if (t.isYoungerThan(victim))
+                        victim = t;
+                }
+                abortWaiting(victim);
+            }
+            break;
+        case WAIT_DIE:
+            for (TransactionId t : newEdges) {
+                if (req.tid.isYoungerThan(t)) {
+                    cancel(req);
+                    return;
+                }
+            }
+            break;
+        case WOUND_WAIT:
+            for (TransactionId t : newEdges) {
+                if (t.isYoungerThan(req.tid)) {
+                    wounded.add(t);
+                    abortWaiting(t);
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** Abort every request tid is waiting on. */
+    private void abortWaiting(TransactionId tid) {
+        ArrayList<Request> reqs = waiting.get(tid);
+        if (reqs == null)
+            return;
+        for (Request r : new ArrayList<Request>(reqs))
+            cancel(r);
+    }
+
+    /**
+     * Look for a cycle in the waits-for graph through start.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private ArrayList<TransactionId> findCycle(TransactionId start) {
+        HashMap<TransactionId, TransactionId> parent = new HashMap<TransactionId, TransactionId>();
+        LinkedList<TransactionId> stack = new LinkedList<TransactionId>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            HashMap<TransactionId, Integer> out = waitsFor.get(t);
+            if (out == null)
+                continue;
+            for (TransactionId next : out.keySet()) {
+                if (next.equals(start)) {
+                    ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+                    for (TransactionId c = t; c != null; c = parent.get(c))
+                        cycle.add(c);
+                    return cycle;
+                }
+                if (!parent.containsKey(next) && !next.equals(start)) {
+                    parent.put(next, t);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+}
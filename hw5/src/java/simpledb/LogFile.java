@@ -242,7 +242,8 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // pages may have other constructors; use the (id, byte[]) one
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -252,7 +253,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
         } catch (ClassNotFoundException e){
             e.printStackTrace();
@@ -266,6 +267,9 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
@@ -439,56 +443,93 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-                long curOffset = raf.getFilePointer();
-
                 long record = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(record);
-                Stack<Page> rollbackStack = new Stack<Page>();
+                for (Page before : undoImages(record, Collections.singleton(tid.getId())))
+                    Database.getBufferPool().replacePage(before.getId(), before);
+                Database.getBufferPool().flushAllPages();
 
-                while (true) {
-                    try {
-                        int cpType = raf.readInt();
-                        long cpTid = raf.readLong();
+                // flushing logs the pages other transactions dirtied, after
+                // the records that were there when the rollback began
+                raf.seek(raf.length());
+            }
+        }
+    }
 
-                        switch (cpType) {
-                        case BEGIN_RECORD:
-                            raf.readLong();
-                            break;
-                        case ABORT_RECORD:
-                            raf.readLong();
-                            break;
-                        case COMMIT_RECORD:
-                            raf.readLong();
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int numTransactions = raf.readInt();
-                            while (numTransactions-- > 0) {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                            raf.readLong();
-                            break;
-                        case UPDATE_RECORD:
-                            Page before = readPageData(raf);
-                            readPageData(raf);
-                            if (cpTid == tid.getId()) {
-                                rollbackStack.push(before);
-                            }
-                            raf.readLong();
-                            break;
+    /**
+     * Reads the log from offset start to its end and returns the images
+     * that roll back the updates of the transactions in tids: for each
+     * page, the before-image of the first of their updates to it. An
+     * update of the page that another transaction commits later, as the
+     * system transactions that split B+ tree pages do, makes a new
+     * committed image of it, so their updates before that no longer count.
+     */
+    private Collection<Page> undoImages(long start, Collection<Long> tids)
+        throws IOException {
+        Map<PageId, Page> images = new HashMap<PageId, Page>();
+        // the pages each other transaction has updated
+        Map<Long, Set<PageId>> others = new HashMap<Long, Set<PageId>>();
+        raf.seek(start);
+        while (true) {
+            try {
+                int cpType = raf.readInt();
+                long cpTid = raf.readLong();
+
+                switch (cpType) {
+                case COMMIT_RECORD:
+                    Set<PageId> committed = others.remove(cpTid);
+                    if (committed != null)
+                        images.keySet().removeAll(committed);
+                    raf.readLong();
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numTransactions = raf.readInt();
+                    while (numTransactions-- > 0) {
+                        raf.readLong();
+                        raf.readLong();
+                    }
+                    raf.readLong();
+                    break;
+                case UPDATE_RECORD:
+                    Page before = readPageData(raf);
+                    readPageData(raf);
+                    if (tids.contains(cpTid)) {
+                        if (!images.containsKey(before.getId()))
+                            images.put(before.getId(), before);
+                    } else {
+                        Set<PageId> pids = others.get(cpTid);
+                        if (pids == null) {
+                            pids = new HashSet<PageId>();
+                            others.put(cpTid, pids);
                         }
-                    } catch (EOFException e) {
-                        break;
+                        pids.add(before.getId());
                     }
+                    raf.readLong();
+                    break;
+                default:
+                    raf.readLong();
+                    break;
                 }
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return images.values();
+    }
 
-                while (!rollbackStack.empty()) {
-                    Page current = rollbackStack.pop();
-                    Database.getBufferPool().replacePage(current.getId(), current);
-                }
-                Database.getBufferPool().flushAllPages();
-                
-                raf.seek(curOffset);
+    /**
+     * Drops from the undo images of each transaction those of the pages a
+     * transaction that has just committed updated; committed holds the
+     * before-images of its updates.
+     */
+    private static void dropUndos(Map<Long, ArrayList<Page>> undos, List<Page> committed) {
+        Set<PageId> pids = new HashSet<PageId>();
+        for (Page p : committed)
+            pids.add(p.getId());
+        for (ArrayList<Page> list : undos.values()) {
+            Iterator<Page> it = list.iterator();
+            while (it.hasNext()) {
+                if (pids.contains(it.next().getId()))
+                    it.remove();
             }
         }
     }
@@ -593,7 +634,9 @@ public class LogFile {
                             break;
                         case COMMIT_RECORD:
                             uncommittedTid.remove(cpTid);
-                            uncommittedUpdate.remove(cpTid);
+                            ArrayList<Page> committed = uncommittedUpdate.remove(cpTid);
+                            if (committed != null)
+                                dropUndos(uncommittedUpdate, committed);
                             raf.readLong();
                             break;
                         case CHECKPOINT_RECORD:
@@ -629,51 +672,8 @@ public class LogFile {
                 }
 
                 if (uncommittedTid.size()>0) {
-                    raf.seek(0);
-                    raf.readLong();
-                    Stack<Page> rollbackStack = new Stack<Page>();
-
-                    while (true) {
-                        try {
-                            int cpType = raf.readInt();
-                            long cpTid = raf.readLong();
-
-                            switch (cpType) {
-                            case BEGIN_RECORD:
-                                raf.readLong();
-                                break;
-                            case ABORT_RECORD:
-                                raf.readLong();
-                                break;
-                            case COMMIT_RECORD:
-                                raf.readLong();
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numTransactions = raf.readInt();
-                                while (numTransactions-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                raf.readLong();
-                                break;
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                readPageData(raf);
-                                if (uncommittedTid.contains(cpTid)) {
-                                    rollbackStack.push(before);
-                                }
-                                raf.readLong();
-                                break;
-                            }
-                        } catch (EOFException e) {
-                            break;
-                        }
-                    }
-
-                    while (!rollbackStack.empty()) {
-                        Page current = rollbackStack.pop();
-                        Database.getBufferPool().replacePage(current.getId(), current);
-                    }
+                    for (Page before : undoImages(LONG_SIZE, uncommittedTid))
+                        Database.getBufferPool().replacePage(before.getId(), before);
                 }
                 Database.getBufferPool().flushAllPages();
 
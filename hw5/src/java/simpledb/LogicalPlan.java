@@ -2,9 +2,12 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -19,9 +22,27 @@ import java.util.NoSuchElementException;
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
- * best implementations for joins.
+ * best implementations for joins. Tables of at least
+ * {@link #PARALLEL_SCAN_PAGES} pages are scanned and filtered on several
+ * threads (see {@link Exchange}). A table stored in a {@link BTreeFile}
+ * is read with an {@link IndexScan} when a filter on its key selects at
+ * most {@link #INDEX_SCAN_SELECTIVITY} of it, as {@link TableStats}
+ * estimates from the least and greatest keys in the tree.
  */
 public class LogicalPlan {
+
+    /** Number of pages from which physical plans scan a table in parallel:
+    1024 unless overridden with a system property,
+    -Dsimpledb.ParallelScanPages=n. */
+    public static final int PARALLEL_SCAN_PAGES = Integer.getInteger("simpledb.ParallelScanPages", 1024);
+
+    /** Selectivity of a filter on the key of a table stored in a BTreeFile
+    at or below which physical plans read the table with an IndexScan rather
+    than all of it: 0.1 unless overridden with a system property,
+    -Dsimpledb.IndexScanSelectivity=s. */
+    public static final double INDEX_SCAN_SELECTIVITY = Double.parseDouble(
+            System.getProperty("simpledb.IndexScanSelectivity", "0.1"));
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -29,12 +50,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    // the operator and field of each aggregate
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    // the most tuples to return, or -1 for all of them
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -186,23 +210,31 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Each aggregate added is computed over the same groups.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
         hasAgg = true;
     }
 
+    /** Add a GROUP BY field to the query, after those already added.
+        @param field the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String field) throws ParsingException {
+        field=disambiguateName(field);
+        if (!groupByFields.contains(field))
+            groupByFields.addElement(field);
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -216,6 +248,17 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT: return at most the first n tuples of the result, in the
+        order of the ORDER BY if there is one.
+        @param n the most tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("Negative LIMIT " + n);
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +314,36 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Returns a plan that scans table and applies preds to it on
+     * {@link Exchange#DEFAULT_PARALLELISM} threads. Each thread runs its
+     * own SeqScan and Filters over the morsels of the table it claims, and
+     * an Exchange gathers their tuples.
+     *
+     * @param preds the predicates on the table in the WHERE clause, or null
+     */
+    private DbIterator parallelScan(TransactionId t, LogicalScanNode table,
+            List<Predicate> preds) {
+        HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(table.t);
+        Morsels morsels = new Morsels(hf);
+        DbIterator[] workers = new DbIterator[Exchange.DEFAULT_PARALLELISM];
+        for (int i = 0; i < workers.length; i++) {
+            SeqScan ss = new SeqScan(t, hf.getId(), table.alias);
+            ss.setColumns(requiredColumns(table.alias, ss.getTupleDesc()));
+            ss.setMorsels(morsels);
+            DbIterator plan = ss;
+            if (preds != null) {
+                for (Predicate p : preds) {
+                    if (hf instanceof CompressedHeapFile)
+                        ss.addPredicate(p);
+                    plan = new Filter(p, plan);
+                }
+            }
+            workers[i] = plan;
+        }
+        return new Exchange(workers, morsels);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -289,6 +362,11 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scans = new HashMap<String,SeqScan>();
+        HashMap<String,List<Predicate>> filterPreds = new HashMap<String,List<Predicate>>();
+        // the most selective filter on the key of each table in a BTreeFile
+        HashMap<String,Predicate> indexPreds = new HashMap<String,Predicate>();
+        HashMap<String,Double> indexSelectivities = new HashMap<String,Double>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -299,7 +377,9 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
+            ss.setColumns(requiredColumns(table.alias, ss.getTupleDesc()));
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias, ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -334,16 +414,58 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
+            // compressed pages can test the predicate on their own, on
+            // dictionary codes; the Filter still estimates and reports it
+            SeqScan ss = scans.get(lf.tableAlias);
+            if (Database.getCatalog().getDbFile(this.getTableId(lf.tableAlias)) instanceof CompressedHeapFile)
+                ss.addPredicate(p);
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!filterPreds.containsKey(lf.tableAlias))
+                filterPreds.put(lf.tableAlias, new ArrayList<Predicate>());
+            filterPreds.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            DbFile df = Database.getCatalog().getDbFile(this.getTableId(lf.tableAlias));
+            if (df instanceof BTreeFile && p.getField() == ((BTreeFile) df).keyField()
+                    && IndexScan.handles(lf.p)) {
+                // the index reads only the leaves in range, about sel of them
+                Double best = indexSelectivities.get(lf.tableAlias);
+                if (sel <= INDEX_SCAN_SELECTIVITY && (best == null || sel < best)) {
+                    indexPreds.put(lf.tableAlias, p);
+                    indexSelectivities.put(lf.tableAlias, sel);
+                }
+            }
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // read tables with selective filters on their keys through the
+        // index; the Filters stay on top of the IndexScan
+        for (Map.Entry<String,Predicate> e : indexPreds.entrySet()) {
+            String alias = e.getKey();
+            Predicate p = e.getValue();
+            IndexScan is = new IndexScan(t, getTableId(alias), alias, p.getOp(), p.getOperand());
+            Operator plan = (Operator) subplanMap.get(alias);
+            while (plan.getChildren()[0] != scans.get(alias))
+                plan = (Operator) plan.getChildren()[0];
+            plan.setChildren(new DbIterator[] { is });
+            scans.put(alias, is);
+        }
+
+        // scan and filter large tables on several threads
+        if (Exchange.DEFAULT_PARALLELISM > 1) {
+            for (LogicalScanNode table : tables) {
+                TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+                if (s != null && s.numPages() >= PARALLEL_SCAN_PAGES
+                        && Database.getCatalog().getDbFile(table.t) instanceof HeapFile)
+                    subplanMap.put(table.alias, parallelScan(t, table, filterPreds.get(table.alias)));
+            }
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -414,7 +536,14 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // aggregates come after the group by fields
+                int j = 0;
+                while (j < aggOps.size()
+                        && !(aggOps.get(j).equals(si.aggOp) && aggFields.get(j).equals(si.fname)))
+                    j++;
+                if (j == aggOps.size())
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + j);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +555,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +592,16 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggFields.size()];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(aggFields.get(j));
+                    aops[j] = getAggOp(aggOps.get(j));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int g = 0; g < gfields.length; g++)
+                    gfields[g] = td.fieldNameToIndex(groupByFields.get(g));
+                aggNode = new Aggregate(node, afields, gfields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,12 +611,58 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIdx = node.getTupleDesc().fieldNameToIndex(oByField);
+            // a limit small enough to keep in memory is found with a heap
+            // rather than by sorting everything
+            if (limit >= 0 && limit <= OrderBy.SORT_TUPLES)
+                node = new TopK(oByIdx, oByAsc, limit, node);
+            else
+                node = new OrderBy(oByIdx, oByAsc, node);
         }
+        if (limit >= 0 && !(node instanceof TopK))
+            node = new Limit(limit, node);
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Returns the indexes, in td, of the fields of the table with the
+     *  given alias that the plan refers to, so that its scan need not decode
+     *  the others; or null if it needs all of them.
+     *  @param td the TupleDesc of the scan of the table, with fields named
+     *    alias.field
+     */
+    private Set<Integer> requiredColumns(String alias, TupleDesc td) {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (lj.t1Alias.equals(alias))
+                names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode) && lj.t2Alias.equals(alias))
+                names.add(lj.f2QuantifiedName);
+        }
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return null;
+            names.add(si.fname);
+        }
+        if (hasAgg) {
+            names.addAll(aggFields);
+            names.addAll(groupByFields);
+        }
+        if (hasOrderBy)
+            names.add(oByField);
+
+        Set<Integer> columns = new HashSet<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(td.getFieldName(i)))
+                columns.add(i);
+        }
+        return columns;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
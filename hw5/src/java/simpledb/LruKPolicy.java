@@ -0,0 +1,198 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K page replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * times of its last K references, and the victim is the page whose K-th most
+ * recent reference is oldest. Pages with fewer than K references count as
+ * infinitely old and are evicted first, least recently used among them
+ * first, so a single sequential scan cannot flush the pages that are really
+ * being reused.
+ * <p>
+ * The reference history of evicted pages is retained (for up to as many
+ * pages as the pool holds) so that a page that comes back quickly is not
+ * treated as brand new.
+ * <p>
+ * A hit on a resident page only adds a time to its history, under the
+ * history's own lock, so it is O(1) and hits on different pages do not wait
+ * for each other. Resident pages sit in a heap ordered by their priority
+ * when they were last put there, which a hit leaves alone; since a hit only
+ * ever makes a page's priority later, victim selection pops the heap and
+ * puts back, with its current priority, each page hit since it was pushed,
+ * until the top one is up to date. Admission, removal and victim selection
+ * take the policy's monitor.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    /** The K used by {@link ReplacementPolicy.Kind#LRU_K}. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final AtomicLong clock = new AtomicLong();
+
+    /** Reference history of a page: the times of its last k references, newest last. */
+    private static class History {
+        final PageId pid;
+        final long[] times;
+        int count = 0;
+        // when a page read ahead was admitted, for ordering it before it is
+        // referenced
+        long admitted = -1;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        synchronized void reference(AtomicLong clock) {
+            // clock values are unique, so no two pages ever have the same priority
+            long now = clock.getAndIncrement();
+            if (count < times.length) {
+                times[count++] = now;
+            } else {
+                System.arraycopy(times, 1, times, 0, times.length - 1);
+                times[times.length - 1] = now;
+            }
+        }
+
+        /** The time of the K-th most recent reference, or -1 if there is none. */
+        long kthTime() {
+            return count < times.length ? -1 : times[0];
+        }
+
+        long lastTime() {
+            return count == 0 ? admitted : times[count - 1];
+        }
+
+        synchronized Entry entry() {
+            return new Entry(this, kthTime(), lastTime());
+        }
+    }
+
+    /** A history in the heap, with its priority when it was pushed. */
+    private static class Entry implements Comparable<Entry> {
+        final History h;
+        final long kthTime;
+        final long lastTime;
+
+        Entry(History h, long kthTime, long lastTime) {
+            this.h = h;
+            this.kthTime = kthTime;
+            this.lastTime = lastTime;
+        }
+
+        /** @return true if the history was not referenced since this was made */
+        boolean isCurrent() {
+            synchronized (h) {
+                return h.kthTime() == kthTime && h.lastTime() == lastTime;
+            }
+        }
+
+        public int compareTo(Entry o) {
+            if (kthTime != o.kthTime)
+                return kthTime < o.kthTime ? -1 : 1;
+            if (lastTime != o.lastTime)
+                return lastTime < o.lastTime ? -1 : 1;
+            return 0;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, History> resident;
+    // at least one entry for each resident page; entries of pages since
+    // evicted or removed are dropped as they come up
+    private final PriorityQueue<Entry> heap;
+    private final LinkedHashMap<PageId, History> retained;
+
+    /**
+     * @param k the number of references to remember per page
+     * @param numPages the capacity of the buffer pool; bounds the retained
+     *            history of evicted pages
+     */
+    public LruKPolicy(int k, int numPages) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        final int maxRetained = Math.max(numPages, 1);
+        resident = new ConcurrentHashMap<PageId, History>();
+        heap = new PriorityQueue<Entry>(maxRetained);
+        retained = new LinkedHashMap<PageId, History>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > maxRetained;
+            }
+        };
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            h.reference(clock);
+            return;
+        }
+        synchronized (this) {
+            h = resident.get(pid);
+            if (h != null) {
+                h.reference(clock);
+                return;
+            }
+            h = admit(pid);
+            h.reference(clock);
+            heap.add(h.entry());
+        }
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (resident.containsKey(pid))
+            return;
+        History h = admit(pid);
+        synchronized (h) {
+            h.admitted = clock.getAndIncrement();
+        }
+        heap.add(h.entry());
+    }
+
+    private History admit(PageId pid) {
+        History h = retained.remove(pid);
+        if (h == null)
+            h = new History(pid, k);
+        resident.put(pid, h);
+        // entries of removed pages are only dropped as they come up
+        if (heap.size() > 2 * resident.size() + 16)
+            rebuild();
+        return h;
+    }
+
+    private void rebuild() {
+        heap.clear();
+        for (History h : resident.values())
+            heap.add(h.entry());
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        resident.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim() {
+        Entry e;
+        while ((e = heap.poll()) != null) {
+            if (resident.get(e.h.pid) != e.h)
+                continue;
+            if (!e.isCurrent()) {
+                heap.add(e.h.entry());
+                continue;
+            }
+            resident.remove(e.h.pid);
+            retained.put(e.h.pid, e.h);
+            return e.h.pid;
+        }
+        return null;
+    }
+}
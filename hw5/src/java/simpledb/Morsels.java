@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Morsels splits the pages of a HeapFile into morsels, ranges of
+ * consecutive pages, and hands them out to the SeqScans of a parallel plan
+ * (see {@link SeqScan#setMorsels}) as each asks for more work. Every page
+ * goes to exactly one scan, and a scan that gets through its morsels
+ * quickly takes on more, so the work stays balanced when some pages are
+ * cached and others are not, or a scan's filter passes more of its tuples.
+ * <p>
+ * Like a single scan, the scans read the file up to where it ends as they
+ * go, so pages appended while they run may or may not be read.
+ *
+ * @Threadsafe
+ */
+public class Morsels {
+
+    /** Number of pages in a morsel unless told otherwise. */
+    public static final int DEFAULT_MORSEL_PAGES = 64;
+
+    private final HeapFile hf;
+    private final int morselPages;
+    // first page of the next morsel
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /** Creates the morsels of hf, of DEFAULT_MORSEL_PAGES pages each. */
+    public Morsels(HeapFile hf) {
+        this(hf, DEFAULT_MORSEL_PAGES);
+    }
+
+    /** Creates the morsels of hf, of morselPages pages each. */
+    public Morsels(HeapFile hf, int morselPages) {
+        if (morselPages < 1)
+            throw new IllegalArgumentException("morsels must have at least one page");
+        this.hf = hf;
+        this.morselPages = morselPages;
+    }
+
+    /** @return the file whose pages are handed out */
+    public HeapFile getFile() {
+        return hf;
+    }
+
+    /**
+     * Claims the next morsel.
+     *
+     * @return the first page of the morsel, or -1 if every page has been
+     *   handed out
+     */
+    public int claim() {
+        int numPages = hf.numPages();
+        while (true) {
+            int start = next.get();
+            if (start >= numPages)
+                return -1;
+            if (next.compareAndSet(start, start + morselPages))
+                return start;
+        }
+    }
+
+    /** @return the page after the last one of the morsel that starts at start */
+    public int end(int start) {
+        return Math.min(start + morselPages, hf.numPages());
+    }
+
+    /** Starts handing out the pages from the first again. */
+    public void reset() {
+        next.set(0);
+    }
+}
@@ -5,7 +5,8 @@ import java.util.NoSuchElementException;
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>open</code> and <code>readNext</code>, and may override
+ * <code>nextBatch</code> to pass tuples along a batch at a time.
  */
 public abstract class Operator implements DbIterator {
 
@@ -33,6 +34,20 @@ public abstract class Operator implements DbIterator {
         return result;
     }
 
+    /**
+     * Returns the next tuples as a batch. This implementation collects them
+     * from {@link #fetchNext}; operators that can work on a batch at a time
+     * override it.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        TupleBatch b = TupleBatch.read(this, batch);
+        if (b != null)
+            batch = b;
+        return b;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -54,7 +69,14 @@ public abstract class Operator implements DbIterator {
         this.open = false;
     }
 
+    /** @return true if this operator is open */
+    protected boolean isOpen() {
+        return this.open;
+    }
+
     private Tuple next = null;
+    // the batch the default nextBatch fills
+    private transient TupleBatch batch = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
 
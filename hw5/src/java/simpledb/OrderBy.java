@@ -4,21 +4,43 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Up to {@link #SORT_TUPLES} tuples of the child, or the number given to the
+ * constructor, are sorted in memory. If the child has more, each such block
+ * is sorted and written to a {@link SpillFile} as a run, and the runs are
+ * merged: at most {@link #FAN_IN}, or the number given, at a time, so that a child with very many runs is merged
+ * in several passes, each writing fewer, longer runs, until the last
+ * merge, which returns its tuples rather than writing them.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Most tuples of the child kept in memory at a time: 20000 unless
+    overridden with a system property, -Dsimpledb.SortTuples=n. */
+    public final static int SORT_TUPLES = Integer.getInteger("simpledb.SortTuples", 20000);
+
+    /** Most runs merged at once: 64 unless overridden with a system
+    property, -Dsimpledb.SortFanIn=n. */
+    public final static int FAN_IN = Math.max(2, Integer.getInteger("simpledb.SortFanIn", 64));
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private final int sortTuples;
+    private final int fanIn;
     private Iterator<Tuple> it;
-    private boolean asc;
+
+    // the runs the last merge reads when the child did not fit in memory,
+    // and the merge
+    transient private List<SpillFile> runs = null;
+    transient private Merge merge = null;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,28 +49,87 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts the tuples from the iterator on
+     * several fields: by the first, then tuples equal on it by the second,
+     * and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, SORT_TUPLES, FAN_IN);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts the tuples from the iterator on
+     * several fields, holding at most sortTuples of them in memory and
+     * merging at most fanIn runs at once.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param sortTuples
+     *            the most tuples of the child kept in memory; at least 1.
+     * @param fanIn
+     *            the most runs merged at once; at least 2.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child,
+            int sortTuples, int fanIn) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one order per sort field");
+        if (sortTuples < 1 || fanIn < 2)
+            throw new IllegalArgumentException("need to hold a tuple and merge two runs");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.sortTuples = sortTuples;
+        this.fanIn = fanIn;
     }
-    
+
+    /** @return true if the sort order of the first sort field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
+    /** @return the first sort field */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
+    /** @return the name of the first sort field */
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
+    }
+
+    /** @return the sort fields, most significant first */
+    public int[] getOrderByFields()
+    {
+        return orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if its order is ascending */
+    public boolean[] getAscending()
+    {
+        return asc.clone();
     }
-    
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,32 +137,96 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        Comparator<Tuple> cmp = new TupleComparator(orderByFields, asc);
+        // sort the tuples a block at a time, writing out each block that
+        // is not the whole child as a run
+        childTups.clear();
+        while (child.hasNext()) {
+            if (childTups.size() == sortTuples) {
+                if (runs == null)
+                    runs = new ArrayList<SpillFile>();
+                runs.add(writeRun(childTups, cmp));
+                childTups.clear();
+            }
             childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        }
+        Collections.sort(childTups, cmp);
+        if (runs == null) {
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty())
+                runs.add(writeRun(childTups, cmp));
+            childTups.clear();
+            while (runs.size() > fanIn)
+                mergePass(cmp);
+            merge = new Merge(runs, cmp);
+        }
         super.open();
     }
 
+    /** @return a run of tups, sorted */
+    private SpillFile writeRun(List<Tuple> tups, Comparator<Tuple> cmp) throws DbException {
+        Collections.sort(tups, cmp);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : tups)
+            run.add(t);
+        return run;
+    }
+
+    /**
+     * Merges the runs fanIn at a time, replacing them with the merged runs;
+     * the last group may be smaller.
+     */
+    private void mergePass(Comparator<Tuple> cmp) throws DbException {
+        List<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            SpillFile out = new SpillFile(td);
+            Merge m = new Merge(group, cmp);
+            Tuple t;
+            while ((t = m.next()) != null)
+                out.add(t);
+            m.close();
+            for (SpillFile run : group)
+                run.delete();
+            merged.add(out);
+        }
+        runs = merged;
+    }
+
     public void close() {
         super.close();
         it = null;
+        childTups.clear();
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+        }
+        runs = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merge != null)
+            merge.rewind();
+        else
+            it = childTups.iterator();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +243,91 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * A merge of sorted runs through a tree of losers: each internal node
+     * keeps the run whose next tuple lost the comparison there, and the
+     * root the run whose next tuple is the least of all. Taking a tuple
+     * replays only the games on the path from its run to the root, so each
+     * tuple costs about log2(runs) comparisons. Equal tuples come from the
+     * earlier run first, so the merge is stable as the runs are.
+     */
+    private static class Merge {
+        private final SpillFile.Reader[] readers;
+        private final Comparator<Tuple> cmp;
+        // the next tuple of each run, or null once the run is used up
+        private final Tuple[] heads;
+        // tree[0] is the winner; tree[n] the loser at internal node n, whose
+        // children are nodes 2n and 2n + 1, node k + i being run i
+        private final int[] tree;
+        private final int k;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        Merge(List<SpillFile> runs, Comparator<Tuple> cmp) throws DbException {
+            this.cmp = cmp;
+            k = runs.size();
+            readers = new SpillFile.Reader[k];
+            heads = new Tuple[k];
+            tree = new int[Math.max(k, 1)];
+            for (int i = 0; i < k; i++)
+                readers[i] = runs.get(i).iterator();
+            rewind();
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        /** Starts the merge again from the first tuple of each run. */
+        void rewind() throws DbException {
+            for (int i = 0; i < k; i++) {
+                readers[i].rewind();
+                heads[i] = readers[i].hasNext() ? readers[i].next() : null;
+            }
+            tree[0] = k == 0 ? -1 : build(1);
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        /** Plays the games below node, recording the losers; @return the winner */
+        private int build(int node) {
+            if (node >= k)
+                return node - k;
+            int a = build(2 * node), b = build(2 * node + 1);
+            if (beats(a, b)) {
+                tree[node] = b;
+                return a;
+            }
+            tree[node] = a;
+            return b;
+        }
+
+        /** @return true if the next tuple of run a comes before that of run b */
+        private boolean beats(int a, int b) {
+            if (heads[b] == null)
+                return heads[a] != null || a < b;
+            if (heads[a] == null)
+                return false;
+            int c = cmp.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** @return the least tuple left in the runs, or null if there are none */
+        Tuple next() throws DbException {
+            if (k == 0)
+                return null;
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            heads[w] = readers[w].hasNext() ? readers[w].next() : null;
+            for (int node = (w + k) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], w)) {
+                    int loser = w;
+                    w = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = w;
+            return t;
+        }
+
+        void close() {
+            for (SpillFile.Reader r : readers)
+                r.close();
+        }
     }
-    
+
 }
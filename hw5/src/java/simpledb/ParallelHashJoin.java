@@ -0,0 +1,384 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ParallelHashJoin joins two inputs on equal fields, as HashEquiJoin does,
+ * on the threads of a fork-join pool. It reads both children to the end and
+ * splits their tuples into partitions by the hash of the join field, into as
+ * many partitions as it takes for a partition of child1's tuples and its
+ * hash table to fit in a processor's cache (radix partitioning). The threads
+ * partition ranges of each input, then join the partitions independently,
+ * each by building a hash table of its tuples of child1 and probing it with
+ * its tuples of child2, taking partitions as they finish others.
+ * <p>
+ * The joined tuples are handed out a partition at a time while the threads
+ * join the next few partitions ahead, so only those are kept; the
+ * partitioned inputs are kept until the join is closed, so that rewinding
+ * it only joins them again. As with HashEquiJoin, the joined tuples are the
+ * concatenation of the joining tuples of child1 and child2, in no
+ * particular order.
+ * <p>
+ * Only the children are read under the transaction, on the thread that
+ * reads the join; the pool's threads work on copies of what they read.
+ * <p>
+ * Both inputs are held in memory, partitioned, until the join is closed,
+ * and nothing is spilled to disk, so {@link JoinOptimizer} only picks this
+ * join for inputs of at most {@link JoinOptimizer#PARALLEL_JOIN_TUPLES}
+ * tuples.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples of child1 a partition should hold at most, so that
+    they fit in a processor's cache along with their hash table. */
+    static final int PARTITION_ROWS = 8192;
+
+    /** Most partitions an input is split into is 2 to this power; with more,
+    writing to them misses the TLB. */
+    static final int MAX_PARTITION_BITS = 12;
+
+    /** Number of partitions each thread joins ahead of the one being read. */
+    static final int PARTITIONS_AHEAD = 2;
+
+    // pools by parallelism
+    private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int parallelism;
+
+    // the children's tuples split into partitions, read on first use
+    private transient List<List<TupleBatch>> build = null;
+    private transient List<List<TupleBatch>> probe = null;
+    // the partitions being joined ahead, in order, and the next one to join
+    private transient ArrayDeque<ForkJoinTask<List<TupleBatch>>> pending = null;
+    private transient int nextPartition = 0;
+    // the rest of the batches joined in the partition being read, and the
+    // batch fetchNext is reading tuples from
+    private transient Iterator<TupleBatch> output = null;
+    private transient TupleBatch outBatch = null;
+    private transient int outPos = 0;
+
+    /**
+     * Creates a join of child1 and child2 on p, which must compare for
+     * equality, run on {@link Exchange#DEFAULT_PARALLELISM} threads.
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, Exchange.DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Creates a join of child1 and child2 on p, which must compare for
+     * equality, run on parallelism threads.
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int parallelism) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash joins need an equality predicate");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.parallelism = parallelism;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        super.open();
+    }
+
+    public void close() {
+        stop();
+        build = null;
+        probe = null;
+        super.close();
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the partitions hold all the join needs to be run again
+        stop();
+    }
+
+    /** Cancels the partitions being joined ahead and starts from the first partition again. */
+    private void stop() {
+        if (pending != null) {
+            for (ForkJoinTask<List<TupleBatch>> task : pending)
+                task.cancel(false);
+        }
+        pending = null;
+        nextPartition = 0;
+        output = null;
+        outBatch = null;
+        outPos = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (outBatch == null || outPos == outBatch.size()) {
+            outBatch = nextOutput();
+            outPos = 0;
+            if (outBatch == null)
+                return null;
+        }
+        return outBatch.getTuple(outPos++);
+    }
+
+    /**
+     * Returns the next joined tuples as a batch. Unlike most operators'
+     * batches, it is not reused by later calls.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        return nextOutput();
+    }
+
+    /** @return the next batch joined by the threads, or null if there are no more */
+    private TupleBatch nextOutput() throws DbException, TransactionAbortedException {
+        if (build == null)
+            partition();
+        if (pending == null)
+            pending = new ArrayDeque<ForkJoinTask<List<TupleBatch>>>();
+        ForkJoinPool pool = pool(parallelism);
+        while (output == null || !output.hasNext()) {
+            while (pending.size() < PARTITIONS_AHEAD * parallelism
+                    && nextPartition < build.size()) {
+                pending.add(pool.submit(new JoinTask(build.get(nextPartition),
+                        probe.get(nextPartition))));
+                nextPartition++;
+            }
+            if (pending.isEmpty())
+                return null;
+            output = pending.poll().join().iterator();
+        }
+        return output.next();
+    }
+
+    /** Reads both children to the end and splits their tuples into partitions. */
+    private void partition() throws DbException, TransactionAbortedException {
+        ForkJoinPool pool = pool(parallelism);
+        List<TupleBatch> in1 = readAll(child1);
+        int rows = 0;
+        for (TupleBatch b : in1)
+            rows += b.size();
+        // enough partitions to keep the threads busy, and more if it takes
+        // more for them to fit in the cache
+        int bits = 32 - Integer.numberOfLeadingZeros(4 * parallelism - 1);
+        while (bits < MAX_PARTITION_BITS && (rows >> bits) > PARTITION_ROWS)
+            bits++;
+        // child1 is partitioned while child2 is read
+        ForkJoinTask<List<List<TupleBatch>>> task1 = pool.submit(
+                new PartitionTask(in1, 0, in1.size(), pred.getField1(), bits));
+        List<TupleBatch> in2 = readAll(child2);
+        probe = pool.invoke(new PartitionTask(in2, 0, in2.size(), pred.getField2(), bits));
+        build = task1.join();
+    }
+
+    /** @return copies of the batches child reads, in order */
+    private static List<TupleBatch> readAll(DbIterator child)
+            throws DbException, TransactionAbortedException {
+        List<TupleBatch> batches = new ArrayList<TupleBatch>();
+        TupleBatch b;
+        while ((b = child.nextBatch()) != null) {
+            if (b.size() > 0)
+                batches.add(b.copy());
+        }
+        return batches;
+    }
+
+    /** @return the pool of parallelism threads the joins share */
+    private static ForkJoinPool pool(int parallelism) {
+        synchronized (pools) {
+            ForkJoinPool pool = pools.get(parallelism);
+            if (pool == null) {
+                pool = new ForkJoinPool(parallelism);
+                pools.put(parallelism, pool);
+            }
+            return pool;
+        }
+    }
+
+    /** @return the hash of the join field of row r of b, which is field j */
+    private static int hash(TupleBatch b, int r, int j) {
+        return mix(b.ints[j] != null ? b.ints[j][r] : b.fields[j][r].hashCode());
+    }
+
+    /** Mixes the bits of h, so that both its high and low bits depend on all of h's. */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Splits the tuples of a range of batches into 2^bits partitions by the
+     * top bits of the hash of field j. Large ranges are split in half and
+     * the halves partitioned in parallel.
+     */
+    private static class PartitionTask extends RecursiveTask<List<List<TupleBatch>>> {
+        private static final long serialVersionUID = 1L;
+
+        // ranges of at most this many batches are partitioned on one thread
+        private static final int LEAF_BATCHES = 64;
+
+        private final List<TupleBatch> in;
+        private final int from, to;
+        private final int j;
+        private final int bits;
+
+        PartitionTask(List<TupleBatch> in, int from, int to, int j, int bits) {
+            this.in = in;
+            this.from = from;
+            this.to = to;
+            this.j = j;
+            this.bits = bits;
+        }
+
+        protected List<List<TupleBatch>> compute() {
+            if (to - from > LEAF_BATCHES) {
+                int mid = (from + to) >>> 1;
+                PartitionTask left = new PartitionTask(in, from, mid, j, bits);
+                left.fork();
+                List<List<TupleBatch>> parts = new PartitionTask(in, mid, to, j, bits).compute();
+                List<List<TupleBatch>> leftParts = left.join();
+                for (int p = 0; p < parts.size(); p++)
+                    leftParts.get(p).addAll(parts.get(p));
+                return leftParts;
+            }
+            int numParts = 1 << bits;
+            int rows = 0;
+            for (int i = from; i < to; i++)
+                rows += in.get(i).size();
+            // room for the rows a partition gets on average, within limits
+            int capacity = Math.max(16, Math.min(TupleBatch.DEFAULT_CAPACITY, rows >> bits));
+            List<List<TupleBatch>> parts = new ArrayList<List<TupleBatch>>(numParts);
+            TupleBatch[] last = new TupleBatch[numParts];
+            for (int p = 0; p < numParts; p++)
+                parts.add(new ArrayList<TupleBatch>());
+            for (int i = from; i < to; i++) {
+                TupleBatch b = in.get(i);
+                for (int k = 0; k < b.size(); k++) {
+                    int r = b.row(k);
+                    int p = hash(b, r, j) >>> (32 - bits);
+                    TupleBatch dst = last[p];
+                    if (dst == null || dst.isFull()) {
+                        dst = last[p] = new TupleBatch(b.getTupleDesc(), capacity);
+                        parts.get(p).add(dst);
+                    }
+                    dst.copyRow(b, r, dst.addRow(), 0);
+                }
+            }
+            return parts;
+        }
+    }
+
+    /**
+     * Joins a partition: builds a hash table of its tuples of child1 and
+     * probes it with each of its tuples of child2.
+     */
+    private class JoinTask extends RecursiveTask<List<TupleBatch>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<TupleBatch> build, probe;
+
+        JoinTask(List<TupleBatch> build, List<TupleBatch> probe) {
+            this.build = build;
+            this.probe = probe;
+        }
+
+        protected List<TupleBatch> compute() {
+            List<TupleBatch> out = new ArrayList<TupleBatch>();
+            int n = 0;
+            for (TupleBatch b : build)
+                n += b.size();
+            if (n == 0 || probe.isEmpty())
+                return out;
+            int f1 = pred.getField1(), f2 = pred.getField2();
+            int td1n = child1.getTupleDesc().numFields();
+            boolean intKeys = child1.getTupleDesc().getFieldType(f1) == Type.INT_TYPE
+                    && child2.getTupleDesc().getFieldType(f2) == Type.INT_TYPE;
+
+            // chained hash table of the build tuples: entry e is row
+            // entryRow[e] of build batch entryBatch[e]
+            int mask = (Integer.highestOneBit(n) << 1) - 1;
+            int[] head = new int[mask + 1];
+            Arrays.fill(head, -1);
+            int[] next = new int[n];
+            int[] entryBatch = new int[n];
+            int[] entryRow = new int[n];
+            int[] entryKey = intKeys ? new int[n] : null;
+            int e = 0;
+            for (int bi = 0; bi < build.size(); bi++) {
+                TupleBatch b = build.get(bi);
+                for (int r = 0; r < b.size(); r++) {
+                    int h = hash(b, r, f1) & mask;
+                    entryBatch[e] = bi;
+                    entryRow[e] = r;
+                    if (intKeys)
+                        entryKey[e] = b.ints[f1][r];
+                    next[e] = head[h];
+                    head[h] = e++;
+                }
+            }
+
+            TupleBatch cur = null;
+            for (TupleBatch pb : probe) {
+                for (int r = 0; r < pb.size(); r++) {
+                    int h = hash(pb, r, f2) & mask;
+                    for (e = head[h]; e >= 0; e = next[e]) {
+                        TupleBatch bb = build.get(entryBatch[e]);
+                        if (intKeys ? entryKey[e] != pb.ints[f2][r]
+                                : !bb.getField(entryRow[e], f1).equals(pb.getField(r, f2)))
+                            continue;
+                        if (cur == null || cur.isFull()) {
+                            cur = new TupleBatch(comboTD);
+                            out.add(cur);
+                        }
+                        int d = cur.addRow();
+                        cur.copyRow(bb, entryRow[e], d, 0);
+                        cur.copyRow(pb, r, d, td1n);
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -132,12 +134,46 @@ public class Parser {
 
     }
 
+    // Zql does not parse LIMIT, so a LIMIT at the end of a statement is
+    // taken off before Zql sees it
+    private static final Pattern LIMIT = Pattern.compile(
+            "(?is)^(.*?)\\s+limit\\s+(\\d+)\\s*(;?)\\s*$");
+
+    // the LIMIT taken off the statement being parsed, or -1; the first
+    // query parsed from the statement, which is the outermost, takes it
+    private int limit = -1;
+
+    /**
+     * Takes a LIMIT n off the end of s, remembering n for the query parsed
+     * from what is left.
+     *
+     * @return s without its LIMIT
+     */
+    private String takeLimit(String s) {
+        Matcher m = LIMIT.matcher(s);
+        if (!m.matches()) {
+            limit = -1;
+            return s;
+        }
+        try {
+            limit = Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            // too large to be a limit at all
+            limit = -1;
+        }
+        return m.group(1) + m.group(3);
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
         lp.setQuery(q.toString());
+        if (limit >= 0) {
+            lp.addLimit(limit);
+            limit = -1;
+        }
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.elementAt(i);
@@ -182,23 +218,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        ArrayList<String> groupByFields = new ArrayList<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -207,8 +239,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        ArrayList<String> aggFields = new ArrayList<String>();
+        ArrayList<String> aggFuns = new ArrayList<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +250,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,13 +271,14 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
+        for (String groupByField : groupByFields)
+            lp.addGroupBy(groupByField);
+        for (int i = 0; i < aggFuns.size(); i++)
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), null);
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -273,6 +304,14 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * Number of times a statement run in its own transaction is attempted
+     * before the parser gives up, when the deadlock policy aborts it. Each
+     * retry keeps the age of the first attempt (see
+     * {@link Transaction#Transaction(Transaction)}).
+     */
+    public final static int STATEMENT_ATTEMPTS = Integer.getInteger("simpledb.StatementAttempts", 3);
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -488,11 +527,12 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
+            curtrans = new Transaction(s.isReadOnly());
             curtrans.start();
             inUserTrans = true;
-            System.out.println("Started a new transaction tid = "
-                    + curtrans.getId().getId());
+            System.out.println("Started a new "
+                    + (curtrans.isReadOnly() ? "read-only " : "")
+                    + "transaction tid = " + curtrans.getId().getId());
         } else {
             throw new simpledb.ParsingException("Unsupported operation");
         }
@@ -500,7 +540,7 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(takeLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
@@ -538,40 +578,47 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = is.read(b)) != -1)
+                bos.write(b, 0, n);
+            String stmt = takeLimit(bos.toString("UTF-8"));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stmt.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (limit >= 0 && !(s instanceof ZQuery || s instanceof ZInsert))
+                throw new simpledb.ParsingException("LIMIT is only supported on queries");
 
-            Query query = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a lone query reads a snapshot rather than taking locks
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
-                        query = handleInsertStatement((ZInsert) s,
-                                curtrans.getId());
-                    else if (s instanceof ZDelete)
-                        query = handleDeleteStatement((ZDelete) s,
-                                curtrans.getId());
-                    else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
-                    else if (s instanceof ZUpdate)
-                        query = handleUpdateStatement((ZUpdate) s,
-                                curtrans.getId());
-                    else {
-                        System.out
-                                .println("Can't parse "
-                                        + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+                    for (int attempt = 1; ; attempt++) {
+                        try {
+                            executeStatement(s);
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            // a statement in its own transaction can simply
+                            // be run again; one in a user transaction cannot
+                            if (inUserTrans || attempt >= STATEMENT_ATTEMPTS)
+                                throw e;
+                            curtrans.abort();
+                            Transaction retry = new Transaction(curtrans);
+                            System.out.println("Transaction "
+                                    + curtrans.getId().getId()
+                                    + " aborted; retrying as transaction "
+                                    + retry.getId().getId());
+                            curtrans = retry;
+                            curtrans.start();
+                        }
                     }
-                    if (query != null)
-                        query.execute();
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
@@ -616,10 +663,36 @@ public class Parser {
         }
     }
 
+    /** Plans and runs s, which is not a transaction statement, in curtrans. */
+    private void executeStatement(ZStatement s) throws TransactionAbortedException,
+            DbException, IOException, simpledb.ParsingException, Zql.ParseException {
+        Query query = null;
+        if (s instanceof ZInsert)
+            query = handleInsertStatement((ZInsert) s,
+                    curtrans.getId());
+        else if (s instanceof ZDelete)
+            query = handleDeleteStatement((ZDelete) s,
+                    curtrans.getId());
+        else if (s instanceof ZQuery)
+            query = handleQueryStatement((ZQuery) s,
+                    curtrans.getId());
+        else if (s instanceof ZUpdate)
+            query = handleUpdateStatement((ZUpdate) s,
+                    curtrans.getId());
+        else {
+            System.out
+                    .println("Can't parse "
+                            + s
+                            + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+        }
+        if (query != null)
+            query.execute();
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String argv[]) 
             throws DbException, TransactionAbortedException, IOException {
@@ -738,10 +811,6 @@ public class Parser {
                         quit = true;
                         break;
                     }
-                    if (cmd.toLowerCase().contains("read only;") && cmd.toLowerCase().contains("transaction")) {
-                        System.out.println("Read Only not supported in current implementation - converting to `read write`");
-                        cmd = "set transaction read write;"; // this is lip service
-                    }
                     if (cmd.equalsIgnoreCase("### crash;")) {
                         Utility.crashAndRestart();
                         curtrans = null;
@@ -810,6 +879,10 @@ class TupleArrayIterator implements DbIterator {
         return it.next();
     }
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return TupleBatch.read(this, null);
+    }
+
     /**
      * Resets the iterator to the start.
      * 
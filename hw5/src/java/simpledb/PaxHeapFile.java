@@ -0,0 +1,42 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PaxHeapFile is a HeapFile whose pages are {@link PaxHeapPage}s, which store
+ * the fields of their tuples column by column. A scan that is told which
+ * columns it needs ({@link SeqScan#setColumns}) decodes only those, from
+ * their own parts of each page; this suits analytical tables whose queries
+ * touch a few columns of wide rows. The file is otherwise read,
+ * written and scanned exactly like a HeapFile, and holds as many tuples per
+ * page. {@link HeapFileEncoder#convertPax} writes one from a text file.
+ *
+ * @see PaxHeapPage
+ */
+public class PaxHeapFile extends HeapFile {
+
+    /**
+     * Constructs a PAX heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public PaxHeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a PAX heap file backed by the specified file, read through
+     * a memory mapping if mapped is true.
+     */
+    public PaxHeapFile(File f, TupleDesc td, boolean mapped) {
+        super(f, td, mapped);
+    }
+
+    protected TuplePage createPage(HeapPageId id, ByteBuffer data) throws IOException {
+        return new PaxHeapPage(id, data);
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PaxHeapPage is a page of a {@link PaxHeapFile}. It holds the same slots as
+ * a {@link HeapPage} of the same table, behind the same header, but stores
+ * them column by column (PAX, "partition attributes across"): after the
+ * header comes one minipage per field, holding that field of every slot in
+ * slot order. Field j of slot i is at
+ * <p>
+ *      header size + number of slots * (size of fields 0 to j - 1) + i * size of field j
+ * <p>
+ * so a scan that only needs some fields reads only their minipages, and
+ * the values of one field lie next to each other. An empty page is all
+ * zeroes, as for a HeapPage.
+ *
+ * @see PaxHeapFile
+ */
+public class PaxHeapPage extends HeapPage {
+
+    // offset of each field's minipage
+    private final int minipageOffsets[];
+
+    /**
+     * Create a PaxHeapPage from a set of bytes of data read from disk, in
+     * the format described above.
+     */
+    public PaxHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+        this.minipageOffsets = minipageOffsets(td, numSlots, headerSize);
+    }
+
+    /**
+     * Create a PaxHeapPage from a buffer holding a page. The bytes are
+     * copied, and the buffer's position is not changed.
+     */
+    public PaxHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        super(id, data);
+        this.minipageOffsets = minipageOffsets(td, numSlots, headerSize);
+    }
+
+    private PaxHeapPage(HeapPageId id, byte[] data, boolean shared) {
+        super(id, data, shared);
+        this.minipageOffsets = minipageOffsets(td, numSlots, headerSize);
+    }
+
+    private static int[] minipageOffsets(TupleDesc td, int numSlots, int headerSize) {
+        int[] offsets = new int[td.numFields()];
+        int off = headerSize;
+        for (int j = 0; j < offsets.length; j++) {
+            offsets[j] = off;
+            off += numSlots * td.getFieldType(j).getLen();
+        }
+        return offsets;
+    }
+
+    HeapPage newPage(byte[] image) {
+        return new PaxHeapPage(pid, image, true);
+    }
+
+    int fieldOffset(int i, int j) {
+        return minipageOffsets[j] + i * td.getFieldType(j).getLen();
+    }
+
+    /**
+     * Rearranges a page in the format of a HeapPage of a table with
+     * TupleDesc td into the format of a PaxHeapPage holding the same slots.
+     */
+    public static byte[] fromHeapPageData(byte[] rows, TupleDesc td) {
+        int tupleSize = td.getSize();
+        int numSlots = (BufferPool.PAGE_SIZE * 8) / (tupleSize * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+        int[] minipages = minipageOffsets(td, numSlots, headerSize);
+
+        byte[] page = createEmptyPageData();
+        System.arraycopy(rows, 0, page, 0, headerSize);
+        int fieldOff = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            for (int i = 0; i < numSlots; i++)
+                System.arraycopy(rows, headerSize + i * tupleSize + fieldOff,
+                        page, minipages[j] + i * len, len);
+            fieldOff += len;
+        }
+        return page;
+    }
+}
@@ -103,6 +103,73 @@ public class Predicate implements Serializable {
         return f.compare(op, operand);
     }
 
+    /**
+     * Narrows the selection of b to the rows that satisfy this predicate.
+     * An int field is compared in a loop over its column, without making a
+     * Field per row.
+     */
+    public void filter(TupleBatch b) {
+        int n = b.size();
+        int[] out = b.selectionBuffer();
+        int m = 0;
+        if (b.ints[field] != null && operand instanceof IntField) {
+            int[] col = b.ints[field];
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int k = 0; k < n; k++) {
+                    int r = b.row(k);
+                    if (col[r] == v)
+                        out[m++] = r;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int k = 0; k < n; k++) {
+                    int r = b.row(k);
+                    if (col[r] != v)
+                        out[m++] = r;
+                }
+                break;
+            case GREATER_THAN:
+                for (int k = 0; k < n; k++) {
+                    int r = b.row(k);
+                    if (col[r] > v)
+                        out[m++] = r;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int k = 0; k < n; k++) {
+                    int r = b.row(k);
+                    if (col[r] >= v)
+                        out[m++] = r;
+                }
+                break;
+            case LESS_THAN:
+                for (int k = 0; k < n; k++) {
+                    int r = b.row(k);
+                    if (col[r] < v)
+                        out[m++] = r;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int k = 0; k < n; k++) {
+                    int r = b.row(k);
+                    if (col[r] <= v)
+                        out[m++] = r;
+                }
+                break;
+            }
+        } else {
+            for (int k = 0; k < n; k++) {
+                int r = b.row(k);
+                if (b.getField(r, field).compare(op, operand))
+                    out[m++] = r;
+            }
+        }
+        b.select(out, m);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -11,6 +11,7 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -39,6 +40,9 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = fieldList.get(i);
     }
 
     public TupleDesc getTupleDesc() {
@@ -80,6 +84,19 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the child's next batch with the fields projected out. The
+     * result shares the child's columns, so no values are copied.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        TupleBatch b = child.nextBatch();
+        if (b == null)
+            return null;
+        return b.project(td, outFields);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
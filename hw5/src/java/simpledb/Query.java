@@ -107,10 +107,13 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        // the plan is run a batch at a time
+        TupleBatch b;
+        while ((b = op.nextBatch()) != null) {
+            for (int k = 0; k < b.size(); k++) {
+                System.out.println(b.getTuple(b.row(k)));
+                cnt++;
+            }
         }
         System.out.println("\n " + cnt + " rows.");
         this.close();
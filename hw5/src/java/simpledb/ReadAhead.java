@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead reads the pages a sequential scan of a HeapFile is about to
+ * reach into the buffer pool, on a small shared pool of I/O threads, so
+ * that the scan finds them cached instead of waiting for each read in turn.
+ * Pages read ahead are not locked; the scan still locks each page when it
+ * gets it from the buffer pool.
+ * <p>
+ * The window of pages kept in flight ahead of the scan adapts to the scan:
+ * it is the number of pages the scan consumes in the time one read takes,
+ * plus one, both measured as moving averages. A scan that does much work
+ * per page therefore reads only a page or two ahead, while one that races
+ * through its pages reads far enough ahead to keep the disk busy. The window
+ * is capped at {@link #MAX_WINDOW} and at a quarter of the buffer pool, so
+ * read-ahead does not push out the pages the scan has yet to use.
+ *
+ * @Threadsafe
+ */
+class ReadAhead {
+
+    /** Largest number of pages read ahead of a scan. */
+    static final int MAX_WINDOW = 32;
+
+    /** Number of threads reading ahead for all scans. */
+    static final int IO_THREADS = 4;
+
+    private static final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-readahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final HeapFile hf;
+    private volatile boolean closed = false;
+
+    // highest page number handed to the I/O threads; only the scan thread
+    // touches this and the consumption statistics
+    private int requested = -1;
+    private long lastConsumed = 0;
+    private long consumeNanos = 0;
+    // moving average of the time one read takes, updated by the I/O threads
+    private volatile long readNanos = 0;
+
+    ReadAhead(HeapFile hf) {
+        this.hf = hf;
+    }
+
+    /**
+     * Note that the scan is about to get page pgno, and start reading the
+     * pages after it that the window now calls for.
+     */
+    void consumed(int pgno) {
+        long now = System.nanoTime();
+        if (lastConsumed != 0)
+            consumeNanos = average(consumeNanos, now - lastConsumed);
+        lastConsumed = now;
+
+        int window = MAX_WINDOW;
+        if (consumeNanos > 0 && readNanos > 0)
+            window = (int) Math.min(MAX_WINDOW, readNanos / consumeNanos + 1);
+        window = Math.min(window, Math.max(Database.getBufferPool().getNumPages() / 4, 1));
+        // until both are measured, start small
+        if (consumeNanos == 0 || readNanos == 0)
+            window = Math.min(window, 2);
+
+        int last = Math.min(pgno + window, hf.numPages() - 1);
+        for (int next = Math.max(requested + 1, pgno + 1); next <= last; next++)
+            request(next);
+        requested = Math.max(requested, last);
+    }
+
+    private void request(final int pgno) {
+        io.execute(new Runnable() {
+            public void run() {
+                if (closed)
+                    return;
+                long start = System.nanoTime();
+                try {
+                    Database.getBufferPool().prefetchPage(new HeapPageId(hf.getId(), pgno));
+                } catch (DbException e) {
+                    // the scan will read the page itself
+                    return;
+                } catch (RuntimeException e) {
+                    return;
+                }
+                readNanos = average(readNanos, System.nanoTime() - start);
+            }
+        });
+    }
+
+    private static long average(long avg, long sample) {
+        return avg == 0 ? sample : (avg * 7 + sample) / 8;
+    }
+
+    /** Stop reading ahead; reads already started still complete. */
+    void close() {
+        closed = true;
+    }
+}
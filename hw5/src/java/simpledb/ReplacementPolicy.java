@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool should give up when it
+ * needs room for a new one.
+ * <p>
+ * The BufferPool reports every page it hands out through
+ * {@link #pageAccessed} (a page the policy has not seen before is being
+ * brought in), every page it reads without handing it out through
+ * {@link #pageAdmitted}, every page it drops on its own (flushes, discards) through
+ * {@link #pageRemoved}, and asks for a victim with {@link #chooseVictim}.
+ * Implementations must be safe to call from several threads at once, and
+ * since {@link #pageAccessed} is called on every hit, it should not make
+ * concurrent hits wait for each other.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record a reference to a page. If the policy is not yet tracking pid,
+     * the page is being admitted into the buffer pool.
+     *
+     * @param pid the page that was referenced
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Start tracking a page that was brought into the buffer pool without
+     * being referenced, such as a page read ahead of a scan. Until it is
+     * referenced it should be among the first pages to go. A page that is
+     * already tracked is left alone.
+     *
+     * @param pid the page that was admitted
+     */
+    public void pageAdmitted(PageId pid);
+
+    /**
+     * Stop tracking a page that the BufferPool removed without asking for a
+     * victim. Removing a page that is not tracked is a no-op.
+     *
+     * @param pid the page that left the buffer pool
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page to evict next and stop tracking it.
+     *
+     * @return the victim, or null if no page is being tracked
+     */
+    public PageId chooseVictim();
+
+    /** The available policies, used to pick one by name (e.g. from a system property). */
+    public enum Kind {
+        CLOCK, LRU_K, TWO_Q;
+
+        /**
+         * @param numPages the capacity of the buffer pool the policy will serve
+         * @return a new, empty policy of this kind
+         */
+        public ReplacementPolicy create(int numPages) {
+            switch (this) {
+            case LRU_K:
+                return new LruKPolicy(LruKPolicy.DEFAULT_K, numPages);
+            case TWO_Q:
+                return new TwoQueuePolicy(numPages);
+            default:
+                return new ClockPolicy(numPages);
+            }
+        }
+    }
+}
@@ -11,11 +11,24 @@ public class SeqScan implements DbIterator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Whether scans read ahead when not told otherwise. Off unless
+    overridden with a system property, -Dsimpledb.ReadAhead=true
+    (see {@link #setReadAhead}). */
+    public static final boolean DEFAULT_READ_AHEAD = Boolean.getBoolean("simpledb.ReadAhead");
+
+    private boolean readAhead = DEFAULT_READ_AHEAD;
+    // fields to decode, or null for all
+    private Set<Integer> fields = null;
+    private List<Predicate> predicates = null;
+    // where to claim pages from, or null to read them all
+    private Morsels morsels = null;
     private boolean isOpen = false;
     private TransactionId tid;
     private TupleDesc myTd;
     private transient DbFileIterator it;
-//    private transient int tableid;
+    // the batch nextBatch fills
+    private transient TupleBatch batch = null;
+    private transient int tableid;
     private String tablename;
     private String alias;
 
@@ -49,6 +62,11 @@ public class SeqScan implements DbIterator {
         return this.tablename;
     }
     
+    /** @return the transaction this scan runs as a part of */
+    TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans. 
      * */
@@ -70,11 +88,14 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public void reset(int tableid, String tableAlias) {
-//        this.tableid = tableid;
+        this.tableid = tableid;
         this.isOpen=false;
         this.alias = tableAlias;
         this.tablename = Database.getCatalog().getTableName(tableid);
-        this.it = Database.getCatalog().getDbFile(tableid).iterator(tid);
+        this.fields = null;
+        this.predicates = null;
+        this.morsels = null;
+        this.it = fileIterator();
         myTd = Database.getCatalog().getTupleDesc(tableid);
         String[] newNames = new String[myTd.numFields()];
         Type[] newTypes = new Type[myTd.numFields()];
@@ -88,6 +109,87 @@ public class SeqScan implements DbIterator {
         myTd = new TupleDesc(newTypes, newNames);
     }
 
+    /**
+     * @return a new iterator over the tuples of the table this scan reads;
+     *   subclasses that read the table another way override this
+     */
+    DbFileIterator fileIterator() {
+        DbFile f = Database.getCatalog().getDbFile(tableid);
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).iterator(tid, readAhead, columns(), predicates, morsels);
+        return f.iterator(tid);
+    }
+
+    /**
+     * Set whether this scan reads the pages ahead of the one it is on into
+     * the buffer pool in the background, so that a scan of a table that is
+     * not cached waits less for disk reads. Must be called before the scan
+     * is opened.
+     */
+    public void setReadAhead(boolean readAhead) {
+        this.readAhead = readAhead;
+        if (!isOpen)
+            this.it = fileIterator();
+    }
+
+    /**
+     * Set the fields of the table that the rest of the plan uses. Only these
+     * are decoded; the other fields of the tuples this scan returns are
+     * null. The TupleDesc is not changed. Null, the default, means all
+     * fields. Must be called before the scan is opened.
+     *
+     * @see PaxHeapFile
+     */
+    public void setColumns(Set<Integer> fields) {
+        this.fields = fields;
+        if (!isOpen)
+            this.it = fileIterator();
+    }
+
+    /**
+     * Only return the tuples that satisfy p as well as any predicates added
+     * before. The scan tests them as it reads each page; the pages of a
+     * {@link CompressedHeapFile} test equality on dictionary codes, without
+     * decoding. Must be called before the scan is opened.
+     */
+    public void addPredicate(Predicate p) {
+        if (predicates == null)
+            predicates = new ArrayList<Predicate>();
+        predicates.add(p);
+        if (!isOpen)
+            this.it = fileIterator();
+    }
+
+    /**
+     * Only read the pages of the morsels claimed from morsels, so that this
+     * scan can run alongside others that claim from it and between them
+     * read the table once (see {@link Exchange}). Rewinding the scan does
+     * not rewind morsels. Must be called before the scan is opened.
+     *
+     * @param morsels morsels of this scan's table, or null to read all of it
+     */
+    public void setMorsels(Morsels morsels) {
+        if (morsels != null && morsels.getFile().getId() != tableid)
+            throw new IllegalArgumentException("morsels of another table");
+        this.morsels = morsels;
+        if (!isOpen)
+            this.it = fileIterator();
+    }
+
+    /** @return the fields to decode, or null for all of them */
+    private boolean[] columns() {
+        if (fields == null)
+            return null;
+        boolean[] columns = new boolean[Database.getCatalog().getTupleDesc(tableid).numFields()];
+        for (int j : fields)
+            columns[j] = true;
+        if (predicates != null) {
+            for (Predicate p : predicates)
+                columns[p.getField()] = true;
+        }
+        return columns;
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
@@ -128,6 +230,27 @@ public class SeqScan implements DbIterator {
 
     }
 
+    /**
+     * Returns the next tuples as a batch. The fields of tuples on the pages
+     * of a {@link HeapFile} or {@link PaxHeapFile} are copied from the page
+     * into the batch without making a Tuple for each.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (!(it instanceof HeapFileIterator)) {
+            TupleBatch b = TupleBatch.read(this, batch);
+            if (b != null)
+                batch = b;
+            return b;
+        }
+        if (batch == null)
+            batch = new TupleBatch(myTd);
+        batch.clear();
+        ((HeapFileIterator) it).readBatch(batch);
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         it.close();
         isOpen = false;
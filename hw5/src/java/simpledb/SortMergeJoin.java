@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs that are sorted in ascending order of
+ * their join fields, such as the output of an {@link OrderBy}, by reading
+ * them side by side. It joins on equality, or on one of &lt;, &lt;=, &gt;
+ * and &gt;= comparing the join field of child1 with that of child2.
+ * <p>
+ * For equality, child2 is read once: the tuples of child2 with the join
+ * field of the current tuple of child1 are kept, and joined with each of
+ * the tuples of child1 that share it. For the other comparisons, child2 is
+ * read into memory, and each tuple of child1 joined with the tuples before
+ * or after a point in it, which only moves forward as child1's join field
+ * grows.
+ * <p>
+ * Nothing is spilled to disk: an equality join holds the tuples of child2
+ * that share a join field, and a join on another comparison holds all of
+ * child2, so {@link JoinOptimizer} only picks the latter when child2 has
+ * at most {@link #BAND_TUPLES} tuples.
+ * <p>
+ * The joined tuples come in ascending order of child1's join field, and
+ * for equality also of child2's.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Most tuples of child2 a join on a comparison other than equality
+    should hold in memory: 20000 unless overridden with a system property,
+    -Dsimpledb.MergeBandTuples=n. */
+    public final static int BAND_TUPLES = Integer.getInteger("simpledb.MergeBandTuples", 20000);
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    // the tuple of child1 being joined
+    transient private Tuple left = null;
+    // for equality: the tuples of child2 whose join field equals groupKey,
+    // the next of them to join with left, and the first tuple of child2
+    // after them
+    transient private ArrayList<Tuple> group = null;
+    transient private Field groupKey = null;
+    transient private Tuple right = null;
+    // for the other comparisons: child2's tuples, and the point in them
+    // left's matches start or end at
+    transient private ArrayList<Tuple> rights = null;
+    transient private int bound = 0;
+    // the next match of left to return, in group or rights, and where they end
+    transient private int pos = 0, end = 0;
+
+    /**
+     * Creates a join of child1 and child2 on p, whose operator must be one
+     * that {@link #handles}. Both children must return their tuples in
+     * ascending order of the fields p compares.
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!handles(p.getOperator()))
+            throw new IllegalArgumentException("merge joins cannot join on " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if merge joins can join on op */
+    public static boolean handles(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** @return true if the joined tuples are in ascending order of field i */
+    public boolean isSortedOn(int i) {
+        return i == pred.getField1() || (pred.getOperator() == Predicate.Op.EQUALS
+                && i == child1.getTupleDesc().numFields() + pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        reset();
+        child1.rewind();
+        child2.rewind();
+    }
+
+    private void reset() {
+        left = null;
+        group = null;
+        groupKey = null;
+        right = null;
+        rights = null;
+        bound = pos = end = 0;
+    }
+
+    /** @return -1, 0 or 1 as a is less than, equal to or greater than b */
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEqual();
+        return fetchNextBand();
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1(), f2 = pred.getField2();
+        if (left == null && right == null && child2.hasNext())
+            right = child2.next();
+        while (true) {
+            if (left != null && group != null && pos < group.size())
+                return merge(left, group.get(pos++));
+            if (!child1.hasNext())
+                return null;
+            left = child1.next();
+            pos = 0;
+            Field key = left.getField(f1);
+            if (group != null && compare(groupKey, key) == 0)
+                continue;
+            // find the tuples of child2 with key, skipping smaller ones
+            group = null;
+            while (right != null && compare(right.getField(f2), key) < 0)
+                right = child2.hasNext() ? child2.next() : null;
+            if (right == null || compare(right.getField(f2), key) > 0)
+                continue;
+            group = new ArrayList<Tuple>();
+            groupKey = key;
+            while (right != null && compare(right.getField(f2), key) == 0) {
+                group.add(right);
+                right = child2.hasNext() ? child2.next() : null;
+            }
+        }
+    }
+
+    private Tuple fetchNextBand() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1(), f2 = pred.getField2();
+        Predicate.Op op = pred.getOperator();
+        if (rights == null) {
+            rights = new ArrayList<Tuple>();
+            while (child2.hasNext())
+                rights.add(child2.next());
+        }
+        while (true) {
+            if (left != null && pos < end)
+                return merge(left, rights.get(pos++));
+            if (!child1.hasNext())
+                return null;
+            left = child1.next();
+            Field key = left.getField(f1);
+            // move bound to the first tuple of child2 whose field is past
+            // key, or at least key for <= and >
+            boolean strict = op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN;
+            while (bound < rights.size()) {
+                int c = compare(rights.get(bound).getField(f2), key);
+                if (c > 0 || (c == 0 && strict))
+                    break;
+                bound++;
+            }
+            if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ) {
+                pos = bound;
+                end = rights.size();
+            } else {
+                pos = 0;
+                end = bound;
+            }
+        }
+    }
+
+    /** @return the concatenation of t1 and t2 */
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int td1n = t1.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++) {
+            // fields the scans below did not decode stay unset
+            if (t1.getField(i) != null)
+                t.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            if (t2.getField(i) != null)
+                t.setField(td1n + i, t2.getField(i));
+        }
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,309 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+
+/**
+ * A SpillFile is a temporary file of tuples, which operators write what
+ * they cannot keep in memory to and read it back from later. Tuples are
+ * added to the end of the file, then read back in the order they were
+ * added, as many times as needed; once the file has been read, no more can
+ * be added. The file is created when the first tuple is added and removed
+ * by {@link #delete}.
+ * <p>
+ * Each field is written after a byte telling whether it is set, since
+ * scans leave the fields a plan does not use null; strings are written
+ * without padding. Tuples read back have no RecordIds.
+ */
+public class SpillFile {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private File file = null;
+    private OutputStream out = null;
+    // tuples are encoded into buf and written when it fills
+    private byte[] buf = null;
+    private int pos = 0;
+    private boolean reading = false;
+    private int size = 0;
+
+    /** Creates an empty SpillFile for tuples of td. */
+    public SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds t to the end of the file.
+     *
+     * @throws IllegalStateException if the file has been read
+     * @throws DbException if the file cannot be written
+     */
+    public void add(Tuple t) throws DbException {
+        try {
+            startTuple();
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (f == null)
+                    writeUnset();
+                else if (td.getFieldType(j) == Type.INT_TYPE)
+                    writeInt(((IntField) f).getValue());
+                else
+                    writeString(((StringField) f).getValue());
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
+        size++;
+    }
+
+    /**
+     * Adds row r of b, whose fields have the types of td, to the end of the
+     * file.
+     *
+     * @throws IllegalStateException if the file has been read
+     * @throws DbException if the file cannot be written
+     */
+    public void add(TupleBatch b, int r) throws DbException {
+        try {
+            startTuple();
+            for (int j = 0; j < td.numFields(); j++) {
+                if (!b.isSet(r, j))
+                    writeUnset();
+                else if (b.ints[j] != null)
+                    writeInt(b.ints[j][r]);
+                else
+                    writeString(((StringField) b.fields[j][r]).getValue());
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e);
+        }
+        size++;
+    }
+
+    private void startTuple() throws IOException {
+        if (reading)
+            throw new IllegalStateException("tuples cannot be added once a spill file is read");
+        if (out == null) {
+            file = File.createTempFile("spill", ".dat");
+            file.deleteOnExit();
+            out = new FileOutputStream(file);
+            buf = new byte[BUFFER_SIZE];
+            pos = 0;
+        }
+    }
+
+    /** Makes room for n more bytes in buf. */
+    private void reserve(int n) throws IOException {
+        if (pos + n > buf.length) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private void writeUnset() throws IOException {
+        reserve(1);
+        buf[pos++] = 0;
+    }
+
+    private void writeInt(int v) throws IOException {
+        reserve(5);
+        buf[pos++] = 1;
+        buf[pos++] = (byte) (v >>> 24);
+        buf[pos++] = (byte) (v >>> 16);
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) v;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        reserve(3 + bytes.length);
+        buf[pos++] = 1;
+        buf[pos++] = (byte) (bytes.length >>> 8);
+        buf[pos++] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * Returns an iterator over the tuples in the file, in the order they
+     * were added. Once it is called, no more tuples can be added.
+     */
+    public Reader iterator() throws DbException {
+        if (out != null) {
+            try {
+                out.write(buf, 0, pos);
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("could not write spill file: " + e);
+            }
+            out = null;
+            buf = null;
+        }
+        reading = true;
+        return new Reader();
+    }
+
+    /** Removes the file. The SpillFile cannot be used afterwards. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is being removed anyway
+            }
+            out = null;
+            buf = null;
+        }
+        if (file != null)
+            file.delete();
+        file = null;
+        reading = true;
+        size = 0;
+    }
+
+    /** Reads the tuples of a SpillFile back, as tuples or a batch at a time. */
+    public class Reader implements DbFileIterator {
+        private InputStream in = null;
+        private byte[] rbuf = null;
+        private int rpos = 0, limit = 0;
+        // tuples left to read
+        private int left = 0;
+
+        public void open() throws DbException {
+            left = size;
+            if (left == 0)
+                return;
+            try {
+                in = new FileInputStream(file);
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e);
+            }
+            rbuf = new byte[BUFFER_SIZE];
+            rpos = limit = 0;
+        }
+
+        public boolean hasNext() {
+            return left > 0;
+        }
+
+        public Tuple next() throws DbException {
+            if (left == 0)
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int j = 0; j < td.numFields(); j++) {
+                    if (!readSet())
+                        continue;
+                    if (td.getFieldType(j) == Type.INT_TYPE)
+                        t.setField(j, new IntField(readInt()));
+                    else
+                        t.setField(j, new StringField(readString(), Type.STRING_LEN));
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e);
+            }
+            left--;
+            return t;
+        }
+
+        /**
+         * Reads tuples into b, which is cleared first, until it is full or
+         * there are no more.
+         *
+         * @return b, or null if there were no more tuples
+         */
+        public TupleBatch nextBatch(TupleBatch b) throws DbException {
+            if (left == 0)
+                return null;
+            b.clear();
+            try {
+                while (!b.isFull() && left > 0) {
+                    int r = b.addRow();
+                    for (int j = 0; j < td.numFields(); j++) {
+                        if (!readSet()) {
+                            b.unset(r, j);
+                            continue;
+                        }
+                        if (b.ints[j] != null)
+                            b.ints[j][r] = readInt();
+                        else
+                            b.fields[j][r] = new StringField(readString(), Type.STRING_LEN);
+                    }
+                    left--;
+                }
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e);
+            }
+            return b;
+        }
+
+        /** Makes sure the next n bytes of the file are in rbuf. */
+        private void fill(int n) throws IOException {
+            if (limit - rpos >= n)
+                return;
+            System.arraycopy(rbuf, rpos, rbuf, 0, limit - rpos);
+            limit -= rpos;
+            rpos = 0;
+            while (limit < n) {
+                int got = in.read(rbuf, limit, rbuf.length - limit);
+                if (got < 0)
+                    throw new EOFException();
+                limit += got;
+            }
+        }
+
+        /** @return true if the next field is set */
+        private boolean readSet() throws IOException {
+            fill(1);
+            return rbuf[rpos++] != 0;
+        }
+
+        private int readInt() throws IOException {
+            fill(4);
+            int v = (rbuf[rpos] & 0xff) << 24 | (rbuf[rpos + 1] & 0xff) << 16
+                    | (rbuf[rpos + 2] & 0xff) << 8 | (rbuf[rpos + 3] & 0xff);
+            rpos += 4;
+            return v;
+        }
+
+        private String readString() throws IOException {
+            fill(2);
+            int len = (rbuf[rpos] & 0xff) << 8 | (rbuf[rpos + 1] & 0xff);
+            rpos += 2;
+            fill(len);
+            String s = new String(rbuf, rpos, len, UTF8);
+            rpos += len;
+            return s;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written
+                }
+            }
+            in = null;
+            rbuf = null;
+            left = 0;
+        }
+    }
+}
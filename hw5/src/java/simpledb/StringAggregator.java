@@ -52,6 +52,26 @@ public class StringAggregator implements Aggregator {
         groups.put(groupVal, agg);
     }
 
+    /**
+     * Merge a batch of tuples into the aggregate
+     * @param b the batch of tuples containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch b) {
+        for (int k = 0; k < b.size(); k++) {
+            int r = b.row(k);
+            String groupVal = "";
+            if (gbfield != NO_GROUPING) {
+                groupVal = b.getField(r, gbfield).toString();
+            }
+            AggregateFields agg = groups.get(groupVal);
+            if (agg == null) {
+                agg = new AggregateFields(groupVal);
+                groups.put(groupVal, agg);
+            }
+            agg.count++;
+        }
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -66,6 +66,10 @@ public class TableStats {
     private final Object[] histograms;
     private final int[] maxs, mins;
     private final TupleDesc td;
+    // for a table stored in a BTreeFile, its key field and the least and
+    // greatest keys in it, or null if it was empty
+    private int keyField = -1;
+    private Field[] keyRange = null;
 
     /**
      * Number of bins for the histogram. Feel free to increase this value over
@@ -89,11 +93,15 @@ public class TableStats {
         td = f.getTupleDesc();
 
         if (!(f instanceof HeapFile)) {
-            basePages = 0;
+            basePages = f instanceof BTreeFile ? ((BTreeFile) f).numPages() : 0;
             baseTups = 0;
             this.costPerPageIO=ioCostPerPage;
             histograms=null;
             mins=maxs=null;
+            if (f instanceof BTreeFile) {
+                keyField = ((BTreeFile) f).keyField();
+                keyRange = ((BTreeFile) f).keyRange();
+            }
             return;
         }
 
@@ -166,7 +174,46 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        return 1.0;
+        if (field != keyField || keyRange == null || op == Predicate.Op.LIKE)
+            return 1.0;
+        // the key of a BTreeFile: assume its values are spread evenly
+        // between the least and greatest key
+        if (op == Predicate.Op.NOT_EQUALS)
+            return 1.0 - estimateSelectivity(field, Predicate.Op.EQUALS, constant);
+        if (op == Predicate.Op.GREATER_THAN)
+            return 1.0 - estimateSelectivity(field, Predicate.Op.LESS_THAN_OR_EQ, constant);
+        if (op == Predicate.Op.GREATER_THAN_OR_EQ)
+            return 1.0 - estimateSelectivity(field, Predicate.Op.LESS_THAN, constant);
+        if (constant.getType() == Type.INT_TYPE) {
+            long min = ((IntField) keyRange[0]).getValue();
+            long max = ((IntField) keyRange[1]).getValue();
+            long v = ((IntField) constant).getValue();
+            double width = max - min + 1;
+            if (op == Predicate.Op.EQUALS)
+                return v < min || v > max ? 0.0 : 1.0 / width;
+            // the keys below v, or up to v
+            long below = v - min + (op == Predicate.Op.LESS_THAN_OR_EQ ? 1 : 0);
+            return Math.min(Math.max(below / width, 0.0), 1.0);
+        }
+        // strings are not spread evenly by any measure at hand: a key in
+        // range is taken to fill a page, and a range to hold half the keys
+        boolean belowMin = constant.compare(Predicate.Op.LESS_THAN, keyRange[0]);
+        boolean aboveMax = constant.compare(Predicate.Op.GREATER_THAN, keyRange[1]);
+        if (op == Predicate.Op.EQUALS)
+            return belowMin || aboveMax ? 0.0 : 1.0 / Math.max(basePages, 1);
+        if (belowMin || (op == Predicate.Op.LESS_THAN && constant.equals(keyRange[0])))
+            return 0.0;
+        if (aboveMax || (op == Predicate.Op.LESS_THAN_OR_EQ && constant.equals(keyRange[1])))
+            return 1.0;
+        return 0.5;
+    }
+
+    /**
+     * @return the number of pages the table had when these statistics were
+     *   computed
+     */
+    public int numPages() {
+        return this.basePages;
     }
 
     /**
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopK is an operator that returns the first k tuples of its child in the
+ * order an {@link OrderBy} on the same fields would, as an OrderBy under a
+ * {@link Limit} does. Rather than sorting the whole child, it keeps the k
+ * least tuples seen so far in a heap whose root is the greatest of them,
+ * so it needs memory for only k tuples and about log2(k) comparisons for
+ * each tuple of the child. Tuples that are equal on the sort fields come
+ * in the order of the child, as they do from an OrderBy.
+ */
+public class TopK extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int k;
+    private ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopK node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param k
+     *            the most tuples to return.
+     * @param child
+     *            the tuples to return the first of.
+     */
+    public TopK(int[] orderbyFields, boolean[] asc, int k, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one order per sort field");
+        if (k < 0)
+            throw new IllegalArgumentException("negative limit " + k);
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.k = k;
+        this.child = child;
+    }
+
+    /** Creates a new TopK node that sorts on a single field. */
+    public TopK(int orderbyField, boolean asc, int k, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, k, child);
+    }
+
+    /** @return true if the sort order of the first sort field is ascending */
+    public boolean isASC() {
+        return asc[0];
+    }
+
+    /** @return the first sort field */
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    public int getLimit() {
+        return k;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** A tuple of the child and its position there, which breaks ties. */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> cmp = new TupleComparator(orderByFields, asc);
+        // the root of the heap is the entry that comes last
+        Comparator<Entry> last = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(b.t, a.t);
+                return c != 0 ? c : (a.seq < b.seq ? 1 : (a.seq == b.seq ? 0 : -1));
+            }
+        };
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(k, 1), last);
+        long seq = 0;
+        while (k > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < k) {
+                heap.add(new Entry(t, seq));
+            } else if (cmp.compare(t, heap.peek().t) < 0) {
+                // a later tuple equal to the root does not displace it
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+        Entry[] entries = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(entries, Collections.reverseOrder(last));
+        top.clear();
+        for (Entry e : entries)
+            top.add(e.t);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top.clear();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first k tuples of the
+     * child in order.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
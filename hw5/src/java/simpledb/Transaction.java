@@ -9,15 +9,38 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *   committed database taken when it starts, without taking locks, and
+     *   may not change anything
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Creates a transaction that retries aborted, which must have
+     * completed. It keeps the age of aborted, so that deadlock policies
+     * that abort the younger transaction do not keep aborting it.
+     */
+    public Transaction(Transaction aborted) {
+        tid = new TransactionId(aborted.tid);
+        this.readOnly = aborted.readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +52,11 @@ public class Transaction {
         return tid;
     }
 
+    /** @return true if this transaction reads a snapshot and takes no locks */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -45,6 +73,7 @@ public class Transaction {
         if (started) {
             //write commit / abort records
             if (abort) {
+                Database.getBufferPool().revertPages(tid);
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
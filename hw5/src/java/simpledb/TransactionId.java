@@ -5,22 +5,69 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TransactionId is a class that contains the identifier of a transaction.
+ * <p>
+ * Each id also has a start time, by which deadlock policies tell older
+ * transactions from younger ones. It is the id itself, except for the id of
+ * a transaction restarted after an abort, which keeps the start time of the
+ * first attempt so that it ages rather than restarting as the youngest.
+ * <p>
+ * System transactions, which the database runs itself to commit changes
+ * such as B+ tree splits apart from the transaction that caused them, are
+ * numbered down from -2, so they use up no ids of other transactions; -1
+ * is the tid of checkpoint records in the log.
  */
 public class TransactionId implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     static AtomicLong counter = new AtomicLong(0);
+    private static final AtomicLong systemCounter = new AtomicLong(-2);
     final long myid;
+    private final long startTime;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        startTime = myid;
+    }
+
+    /**
+     * Creates the id of a restart of the transaction aborted, which is new
+     * but has the start time of aborted.
+     */
+    public TransactionId(TransactionId aborted) {
+        myid = counter.getAndIncrement();
+        startTime = aborted.startTime;
+    }
+
+    private TransactionId(long id) {
+        myid = id;
+        startTime = id;
+    }
+
+    /** @return the id of a new system transaction */
+    static TransactionId newSystemId() {
+        return new TransactionId(systemCounter.getAndDecrement());
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return when the transaction first started; lower is older */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return true if this transaction is younger than other: it started
+     *   later, or, for two attempts of one transaction, is the later attempt
+     */
+    public boolean isYoungerThan(TransactionId other) {
+        if (startTime != other.startTime)
+            return startTime > other.startTime;
+        return myid > other.myid;
+    }
+
     public boolean equals(Object tid) {
         return ((TransactionId) tid).myid == myid;
     }
@@ -0,0 +1,325 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a batch of tuples column by column, as
+ * {@link DbIterator#nextBatch} passes them between operators. The values of
+ * an int field are kept in an int[], so operators can work through them in
+ * a loop without a Field per value; the values of other fields are kept in
+ * a Field[].
+ * <p>
+ * A batch has room for {@link #capacity} rows, of which the first
+ * {@link #numRows} are filled. A selection vector lists the filled rows
+ * that are in the batch, so that a Filter drops rows by narrowing it
+ * instead of copying the rows it keeps; {@link #size} and {@link #row}
+ * go through it. A consumer should read rows as
+ * <pre>
+ *   for (int k = 0; k &lt; b.size(); k++) {
+ *       int r = b.row(k);
+ *       ... b.getInts(j)[r] ...
+ *   }
+ * </pre>
+ * A field of a row may be unset, as scans leave the fields a plan does not
+ * use; {@link #getField} returns null for it, whatever its type. An int
+ * column holds some value for an unset field, so only the columns known to
+ * be set should be read through {@link #getInts}.
+ * <p>
+ * Batches carry no RecordIds; operators that need them, such as Delete,
+ * read tuples.
+ */
+public class TupleBatch {
+
+    /** The number of rows batches have room for unless told otherwise. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // for each field, its values if it is an int field and null otherwise
+    final int[][] ints;
+    // for each field, its values if it is not an int field and null otherwise
+    final Field[][] fields;
+    // for each int field, the rows that leave it unset, or null if no row
+    // has since the batch was created; other fields are null where unset
+    private final boolean[][] unsetInts;
+    private int numRows = 0;
+    // the rows in the batch are sel[0 .. numSelected - 1], or all filled
+    // rows if sel is null
+    private int[] sel = null;
+    private int numSelected = 0;
+    // an array selections can be built in, allocated on first use
+    private int[] selBuffer = null;
+
+    /** Creates an empty batch of tuples of td with room for DEFAULT_CAPACITY rows. */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /** Creates an empty batch of tuples of td with room for capacity rows. */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        this.unsetInts = new boolean[td.numFields()][];
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                ints[j] = new int[capacity];
+            else
+                fields[j] = new Field[capacity];
+        }
+    }
+
+    // a batch of tuples of td sharing the columns of another
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, Field[][] fields,
+            boolean[][] unsetInts) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.fields = fields;
+        this.unsetInts = unsetInts;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows this batch has room for */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows filled, whether selected or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** @return the number of rows in the batch */
+    public int size() {
+        return sel == null ? numRows : numSelected;
+    }
+
+    /** @return the index of the kth row in the batch, for 0 &lt;= k &lt; size() */
+    public int row(int k) {
+        return sel == null ? k : sel[k];
+    }
+
+    /**
+     * @return the values of int field j, indexed by row
+     * @throws IllegalArgumentException if field j is not an int field
+     */
+    public int[] getInts(int j) {
+        if (ints[j] == null)
+            throw new IllegalArgumentException("field " + j + " is not an int field");
+        return ints[j];
+    }
+
+    /**
+     * @return the values of field j, which is not an int field, indexed by row
+     * @throws IllegalArgumentException if field j is an int field
+     */
+    public Field[] getFields(int j) {
+        if (fields[j] == null)
+            throw new IllegalArgumentException("field " + j + " is an int field");
+        return fields[j];
+    }
+
+    /** @return field j of row r, or null if it is not set */
+    public Field getField(int r, int j) {
+        if (ints[j] != null)
+            return isSet(r, j) ? new IntField(ints[j][r]) : null;
+        return fields[j][r];
+    }
+
+    /** @return true if field j of row r is set */
+    public boolean isSet(int r, int j) {
+        if (ints[j] == null)
+            return fields[j][r] != null;
+        return unsetInts[j] == null || !unsetInts[j][r];
+    }
+
+    /** Sets field j of row r to f, or leaves it unset if f is null. */
+    void setField(int r, int j, Field f) {
+        if (f == null) {
+            unset(r, j);
+        } else if (ints[j] != null) {
+            ints[j][r] = ((IntField) f).getValue();
+            if (unsetInts[j] != null)
+                unsetInts[j][r] = false;
+        } else {
+            fields[j][r] = f;
+        }
+    }
+
+    /** Leaves field j of row r unset. */
+    void unset(int r, int j) {
+        if (ints[j] == null) {
+            fields[j][r] = null;
+            return;
+        }
+        if (unsetInts[j] == null)
+            unsetInts[j] = new boolean[capacity];
+        unsetInts[j][r] = true;
+    }
+
+    /** @return row r as a Tuple, with the fields that are not set left null */
+    public Tuple getTuple(int r) {
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = getField(r, j);
+            if (f != null)
+                t.setField(j, f);
+        }
+        return t;
+    }
+
+    /**
+     * Adds a row, whose fields the caller sets in the columns, and selects
+     * it.
+     *
+     * @return the index of the row
+     * @throws IllegalStateException if the batch is full
+     */
+    int addRow() {
+        if (numRows == capacity)
+            throw new IllegalStateException("batch is full");
+        if (sel != null)
+            sel[numSelected++] = numRows;
+        return numRows++;
+    }
+
+    /**
+     * Adds the fields of t as a row. Fields of t that are null are left
+     * unset.
+     *
+     * @return the index of the row
+     * @throws IllegalStateException if the batch is full
+     */
+    public int addTuple(Tuple t) {
+        int r = addRow();
+        for (int j = 0; j < td.numFields(); j++)
+            setField(r, j, t.getField(j));
+        return r;
+    }
+
+    /**
+     * Returns an array of capacity() ints that a new selection can be built
+     * in and passed to {@link #select}. It may be the array the current
+     * selection is kept in: a selection that keeps some of the rows in
+     * order can be built in it as the rows are read, since the kth row
+     * selected is written no later than the kth row is read.
+     */
+    public int[] selectionBuffer() {
+        if (selBuffer == null)
+            selBuffer = new int[capacity];
+        return selBuffer;
+    }
+
+    /**
+     * Replaces the rows in the batch with rows[0 .. n - 1], which must be
+     * filled rows, in the array returned by {@link #selectionBuffer}.
+     */
+    public void select(int[] rows, int n) {
+        if (rows != selBuffer)
+            throw new IllegalArgumentException("selection not in the batch's buffer");
+        sel = rows;
+        numSelected = n;
+    }
+
+    /** Empties the batch, so that it can be filled again. */
+    public void clear() {
+        for (Field[] column : fields) {
+            if (column != null)
+                Arrays.fill(column, 0, numRows, null);
+        }
+        for (boolean[] unset : unsetInts) {
+            if (unset != null)
+                Arrays.fill(unset, 0, numRows, false);
+        }
+        numRows = 0;
+        sel = null;
+        numSelected = 0;
+    }
+
+    /**
+     * @return a new batch holding a copy of the rows in this one, in order,
+     *   with room for no more
+     */
+    public TupleBatch copy() {
+        int n = size();
+        TupleBatch b = new TupleBatch(td, Math.max(n, 1));
+        for (int k = 0; k < n; k++)
+            b.copyRow(this, row(k), k, 0);
+        b.numRows = n;
+        return b;
+    }
+
+    /**
+     * Returns a batch of tuples of td whose field i is field fieldIds[i] of
+     * this batch, with the same rows. The two share their columns, so the
+     * result is only good until this batch changes.
+     */
+    public TupleBatch project(TupleDesc td, int[] fieldIds) {
+        int[][] pints = new int[fieldIds.length][];
+        Field[][] pfields = new Field[fieldIds.length][];
+        boolean[][] punset = new boolean[fieldIds.length][];
+        for (int i = 0; i < fieldIds.length; i++) {
+            pints[i] = ints[fieldIds[i]];
+            pfields[i] = fields[fieldIds[i]];
+            punset[i] = unsetInts[fieldIds[i]];
+        }
+        TupleBatch b = new TupleBatch(td, capacity, pints, pfields, punset);
+        b.numRows = numRows;
+        if (sel != null) {
+            b.selBuffer = sel;
+            b.sel = sel;
+            b.numSelected = numSelected;
+        }
+        return b;
+    }
+
+    /**
+     * Reads up to capacity tuples from it through hasNext and next into a
+     * batch. This is how operators that only produce tuples implement
+     * {@link DbIterator#nextBatch}.
+     *
+     * @param it an open iterator
+     * @param b the batch to fill, or null for a new one of DEFAULT_CAPACITY
+     *   rows; it is cleared first
+     * @return the batch, or null if it had no more tuples
+     */
+    public static TupleBatch read(DbIterator it, TupleBatch b)
+            throws DbException, TransactionAbortedException {
+        if (!it.hasNext())
+            return null;
+        if (b == null)
+            b = new TupleBatch(it.getTupleDesc());
+        b.clear();
+        while (!b.isFull() && it.hasNext())
+            b.addTuple(it.next());
+        return b;
+    }
+
+    /**
+     * Copies row r of src, whose fields must have the types of this
+     * batch's fields from offset on, into row dst of this batch.
+     */
+    void copyRow(TupleBatch src, int r, int dst, int offset) {
+        for (int j = 0; j < src.td.numFields(); j++) {
+            if (src.ints[j] == null) {
+                fields[offset + j][dst] = src.fields[j][r];
+            } else {
+                ints[offset + j][dst] = src.ints[j][r];
+                if (!src.isSet(r, j))
+                    unset(dst, offset + j);
+                else if (unsetInts[offset + j] != null)
+                    unsetInts[offset + j][dst] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on one or more fields, each in ascending or descending
+ * order; fields that are not set come before all others.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compare(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    private static int compare(Field t1, Field t2) {
+        if (t1 == null || t2 == null)
+            return t1 == null ? (t2 == null ? 0 : -1) : 1;
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+
+}
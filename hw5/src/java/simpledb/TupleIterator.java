@@ -45,6 +45,10 @@ public class TupleIterator implements DbIterator {
         return i.next();
     }
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        return TupleBatch.read(this, null);
+    }
+
     public void rewind() {
         close();
         open();
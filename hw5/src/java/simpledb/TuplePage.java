@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * TuplePage is the interface of the pages a {@link HeapFile} stores tuples
+ * on. {@link HeapPage} stores tuples of fixed size in an array of slots;
+ * {@link VarHeapPage} stores variable-length records behind a slot
+ * directory; {@link PaxHeapPage} stores the fixed-size fields column by
+ * column.
+ */
+public interface TuplePage extends Page {
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the tuple does not fit or its TupleDesc does not
+     *   match the page's
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Deletes the specified tuple from the page.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * Replaces the tuple stored under t's RecordId with t.
+     *
+     * @throws DbException if the tuple is not on this page or no longer fits
+     */
+    public void updateTuple(Tuple t) throws DbException;
+
+    /** @return an iterator over the tuples on this page */
+    public Iterator<Tuple> iterator();
+
+    /**
+     * @param columns the fields to decode, or null for all of them
+     * @return an iterator over the tuples on this page, whose fields not in
+     *   columns are null
+     */
+    public Iterator<Tuple> iterator(boolean[] columns);
+
+    /**
+     * @return the free space on this page, in the unit of its file's
+     *   {@link FreeSpaceMap}: free slots for a HeapPage, free bytes for a
+     *   VarHeapPage
+     */
+    public int getFreeSpace();
+
+    /**
+     * @return the number of bytes this page holds for its before-image
+     *   beyond its own contents
+     */
+    public int getBeforeImageSize();
+}
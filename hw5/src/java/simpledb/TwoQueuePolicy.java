@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 2Q page replacement (Johnson and Shasha). A page seen for the first time
+ * goes into a small FIFO queue, A1in. When it is evicted from there its id
+ * is remembered in a ghost queue, A1out; only a page that is referenced
+ * again while it is in A1out is promoted to the main LRU queue, Am. Pages
+ * touched by a one-off scan therefore pass through A1in without pushing the
+ * hot set out of Am.
+ * <p>
+ * A1in is kept to about a quarter of the pool and A1out remembers about half
+ * a pool's worth of ids, the sizes suggested in the paper. Every operation
+ * is O(1).
+ * <p>
+ * A reference only joins a queue of pending references, without taking the
+ * policy's monitor; the queue is applied to A1in, A1out and Am under the
+ * monitor before any other operation, and by the reference that fills a
+ * batch of {@link #BATCH}, so hits take the monitor once per batch rather
+ * than each time.
+ *
+ * @Threadsafe
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    /** The number of pending references that are applied together. */
+    public static final int BATCH = 64;
+
+    private final int maxIn;
+    private final int maxOut;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    // least recently used first
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    // references not yet applied to the queues, oldest first
+    private final ConcurrentLinkedQueue<PageId> pending = new ConcurrentLinkedQueue<PageId>();
+    private final AtomicInteger numPending = new AtomicInteger();
+
+    /**
+     * @param numPages the capacity of the buffer pool the queues are sized for
+     */
+    public TwoQueuePolicy(int numPages) {
+        maxIn = Math.max(numPages / 4, 1);
+        maxOut = Math.max(numPages / 2, 1);
+    }
+
+    public void pageAccessed(PageId pid) {
+        pending.add(pid);
+        if (numPending.incrementAndGet() >= BATCH) {
+            synchronized (this) {
+                drain();
+            }
+        }
+    }
+
+    /** Applies the pending references, in the order they were made. */
+    private void drain() {
+        PageId pid;
+        while ((pid = pending.poll()) != null) {
+            numPending.decrementAndGet();
+            reference(pid);
+        }
+    }
+
+    private void reference(PageId pid) {
+        if (am.remove(pid)) {
+            am.add(pid);
+        } else if (a1in.contains(pid)) {
+            // correlated references while in A1in do not count
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        drain();
+        // admitted as its first reference would admit it; the real
+        // reference that soon follows is then a correlated one
+        if (!am.contains(pid) && !a1in.contains(pid))
+            reference(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        drain();
+        if (!a1in.remove(pid))
+            am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim() {
+        drain();
+        if (a1in.size() > maxIn || (am.isEmpty() && !a1in.isEmpty())) {
+            PageId victim = removeFirst(a1in);
+            a1out.add(victim);
+            if (a1out.size() > maxOut)
+                removeFirst(a1out);
+            return victim;
+        }
+        if (am.isEmpty())
+            return null;
+        return removeFirst(am);
+    }
+
+    private static PageId removeFirst(LinkedHashSet<PageId> queue) {
+        Iterator<PageId> it = queue.iterator();
+        PageId first = it.next();
+        it.remove();
+        return first;
+    }
+}
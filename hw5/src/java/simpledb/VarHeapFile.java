@@ -0,0 +1,49 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * VarHeapFile is a HeapFile whose pages are {@link VarHeapPage}s, which store
+ * each tuple as a variable-length record, so that short strings take only
+ * the space they need. The file is otherwise read, written and scanned
+ * exactly like a HeapFile; {@link HeapFileEncoder#convertVarLen} writes one
+ * from a text file.
+ * <p>
+ * Inserts are sent to pages with enough free bytes for the tuple. Updates
+ * must still fit on the tuple's page.
+ *
+ * @see VarHeapPage
+ */
+public class VarHeapFile extends HeapFile {
+
+    /**
+     * Constructs a variable-length heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public VarHeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a variable-length heap file backed by the specified file,
+     * read through a memory mapping if mapped is true.
+     */
+    public VarHeapFile(File f, TupleDesc td, boolean mapped) {
+        // pages with room for no more than a small record are treated as full
+        super(f, td, mapped, Math.min(VarHeapPage.maxSpaceNeeded(td),
+                BufferPool.PAGE_SIZE / 16));
+    }
+
+    protected TuplePage createPage(HeapPageId id, ByteBuffer data) throws IOException {
+        return new VarHeapPage(id, data);
+    }
+
+    protected int spaceNeeded(Tuple t) {
+        return VarHeapPage.spaceNeeded(t);
+    }
+}
@@ -0,0 +1,392 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * VarHeapPage is a page of a {@link VarHeapFile}. It stores each tuple as a
+ * variable-length record, so strings take only as many bytes as they have
+ * characters instead of being padded to {@link Type#STRING_LEN}.
+ * <p>
+ * The page is a slotted page. It begins with a two-byte count of slots and
+ * the two-byte offset where the record area starts, followed by the slot
+ * directory: one entry per slot holding the offset and length of its record,
+ * or zeroes if the slot is empty. Records are packed from the end of the
+ * page towards the directory. In a record, an int takes four bytes and a
+ * string a two-byte length followed by its characters in ISO-8859-1, one
+ * byte each, as the fixed-length formats store them. All numbers are
+ * big-endian. A page of zeroes is an empty page.
+ * <p>
+ * A tuple keeps its slot, and so its RecordId, for as long as it is on the
+ * page; deleting it leaves a hole in the record area that is reclaimed by
+ * compacting the records when an insert or a growing update needs the room.
+ * <p>
+ * Like {@link HeapPage}, the page keeps its bytes, decodes tuples when they
+ * are asked for, and keeps a copy-on-write before-image.
+ *
+ * @see VarHeapFile
+ * @see BufferPool
+ */
+public class VarHeapPage extends CopyOnWritePage {
+
+    /** Bytes at the start of the page: slot count and record area offset. */
+    static final int HEADER_SIZE = 4;
+    /** Bytes in each slot directory entry: record offset and length. */
+    static final int SLOT_SIZE = 4;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+
+    /**
+     * Create a VarHeapPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public VarHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a VarHeapPage from a buffer holding a page. The bytes are
+     * copied, and the buffer's position is not changed.
+     */
+    public VarHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyOf(data), false);
+    }
+
+    private VarHeapPage(HeapPageId id, byte[] data, boolean shared) {
+        super(data, shared);
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+    }
+
+    /** @return the data of an empty page */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.PAGE_SIZE];
+    }
+
+    /**
+     * Lays records out on a new page, in slots 0 to records.size() - 1.
+     *
+     * @param records records as produced by {@link #encodeRecord}
+     * @throws IllegalArgumentException if the records do not fit on a page
+     */
+    public static byte[] createPageData(List<byte[]> records) {
+        byte[] page = createEmptyPageData();
+        int start = BufferPool.PAGE_SIZE;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] r = records.get(i);
+            start -= r.length;
+            if (start < HEADER_SIZE + SLOT_SIZE * (i + 1))
+                throw new IllegalArgumentException("records do not fit on a page");
+            System.arraycopy(r, 0, page, start, r.length);
+            putShort(page, HEADER_SIZE + SLOT_SIZE * i, start);
+            putShort(page, HEADER_SIZE + SLOT_SIZE * i + 2, r.length);
+        }
+        putShort(page, 0, records.size());
+        putShort(page, 2, start);
+        return page;
+    }
+
+    /** @return the fields of t in the record format of a VarHeapPage */
+    public static byte[] encodeRecord(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            len += fieldLength(t.getField(j));
+        byte[] r = new byte[len];
+        int off = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (f.getType() == Type.INT_TYPE) {
+                int v = ((IntField) f).getValue();
+                r[off] = (byte) (v >>> 24);
+                r[off + 1] = (byte) (v >>> 16);
+                r[off + 2] = (byte) (v >>> 8);
+                r[off + 3] = (byte) v;
+                off += 4;
+            } else {
+                String s = ((StringField) f).getValue();
+                int n = Math.min(s.length(), Type.STRING_LEN);
+                byte[] chars = s.substring(0, n).getBytes(LATIN1);
+                putShort(r, off, n);
+                System.arraycopy(chars, 0, r, off + 2, n);
+                off += 2 + n;
+            }
+        }
+        return r;
+    }
+
+    private static int fieldLength(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            return 4;
+        return 2 + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN);
+    }
+
+    /** @return the free space a page needs to take t, in bytes */
+    public static int spaceNeeded(Tuple t) {
+        int len = SLOT_SIZE;
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+            len += fieldLength(t.getField(j));
+        return len;
+    }
+
+    /** @return the most free space a page can need to take a tuple of td */
+    public static int maxSpaceNeeded(TupleDesc td) {
+        int len = SLOT_SIZE;
+        for (int j = 0; j < td.numFields(); j++)
+            len += td.getFieldType(j) == Type.INT_TYPE ? 4 : 2 + Type.STRING_LEN;
+        return len;
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    /** @return the number of slots in the directory, used or not */
+    public int getNumSlots() {
+        return getShort(data, 0);
+    }
+
+    private int recordStart() {
+        int start = getShort(data, 2);
+        return start == 0 ? BufferPool.PAGE_SIZE : start;
+    }
+
+    private int slotOffset(int i) {
+        return getShort(data, HEADER_SIZE + SLOT_SIZE * i);
+    }
+
+    private int slotLength(int i) {
+        return getShort(data, HEADER_SIZE + SLOT_SIZE * i + 2);
+    }
+
+    private void setSlot(int i, int offset, int length) {
+        putShort(data, HEADER_SIZE + SLOT_SIZE * i + 2, length);
+        putShort(data, HEADER_SIZE + SLOT_SIZE * i, offset);
+    }
+
+    /** @return true if slot i holds a tuple */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < getNumSlots() && slotOffset(i) != 0;
+    }
+
+    /**
+     * @return the free bytes on this page, counting the holes left by
+     *   deleted records, which compaction reclaims
+     */
+    public int getFreeSpace() {
+        int n = getNumSlots();
+        int used = HEADER_SIZE + SLOT_SIZE * n;
+        for (int i = 0; i < n; i++)
+            used += slotLength(i);
+        return BufferPool.PAGE_SIZE - used;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) this.dirtier = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    public VarHeapPage getBeforeImage() {
+        return new VarHeapPage(pid, getBeforeImageData(), true);
+    }
+
+    /**
+     * Returns field j of the tuple in slot i, decoded straight from the
+     * page.
+     *
+     * @throws NoSuchElementException if slot i is not in use
+     */
+    public Field getField(int i, int j) throws NoSuchElementException {
+        if (!isSlotUsed(i))
+            throw new NoSuchElementException();
+        byte[] b = data;
+        int off = slotOffset(i);
+        for (int k = 0; k < j; k++)
+            off += td.getFieldType(k) == Type.INT_TYPE ? 4 : 2 + getShort(b, off);
+        return decodeField(b, off, td.getFieldType(j));
+    }
+
+    private static Field decodeField(byte[] b, int off, Type type) {
+        if (type == Type.INT_TYPE)
+            return new IntField(Type.readInt(b, off));
+        return new StringField(new String(b, off + 2, getShort(b, off), LATIN1), Type.STRING_LEN);
+    }
+
+    // the tuple in slot i with only the fields in columns decoded, or all of
+    // them if columns is null; null if the slot is empty
+    Tuple getTuple(int i, boolean[] columns) throws NoSuchElementException {
+        if (i < 0 || i >= getNumSlots())
+            throw new NoSuchElementException();
+        if (!isSlotUsed(i))
+            return null;
+        byte[] b = data;
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        int off = slotOffset(i);
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (columns == null || columns[j])
+                t.setField(j, decodeField(b, off, type));
+            off += type == Type.INT_TYPE ? 4 : 2 + getShort(b, off);
+        }
+        return t;
+    }
+
+    private void checkRecordId(Tuple t, String what) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tried to " + what + " tuple on invalid page or table");
+        if (!isSlotUsed(rid.tupleno()))
+            throw new DbException("tried to " + what + " null tuple.");
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in addTuple");
+        byte[] r = encodeRecord(t);
+
+        int n = getNumSlots();
+        int slot = n;
+        for (int i = 0; i < n; i++) {
+            if (slotOffset(i) == 0) {
+                slot = i;
+                break;
+            }
+        }
+        int dirEnd = HEADER_SIZE + SLOT_SIZE * Math.max(n, slot + 1);
+        if (r.length + (slot == n ? SLOT_SIZE : 0) > getFreeSpace())
+            throw new DbException("called addTuple on page with no room for the tuple.");
+
+        beforeWrite();
+        if (recordStart() - dirEnd < r.length)
+            compact();
+        int start = place(r);
+        // fill in the slot last, so a concurrent flush never sees a used
+        // slot without its record
+        setSlot(slot, start, r.length);
+        if (slot == n)
+            putShort(data, 0, n + 1);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        checkRecordId(t, "delete");
+        int i = t.getRecordId().tupleno();
+        int off = slotOffset(i), len = slotLength(i);
+        beforeWrite();
+        setSlot(i, 0, 0);
+        Arrays.fill(data, off, off + len, (byte) 0);
+        // drop empty slots from the end of the directory
+        int n = getNumSlots();
+        while (n > 0 && slotOffset(n - 1) == 0)
+            n--;
+        putShort(data, 0, n);
+        if (n == 0)
+            putShort(data, 2, 0);
+    }
+
+    public void updateTuple(Tuple t) throws DbException {
+        checkRecordId(t, "update");
+        int i = t.getRecordId().tupleno();
+        byte[] r = encodeRecord(t);
+        int off = slotOffset(i), len = slotLength(i);
+        if (r.length > len && r.length - len > getFreeSpace())
+            throw new DbException("updated tuple no longer fits on its page.");
+
+        beforeWrite();
+        if (r.length <= len) {
+            System.arraycopy(r, 0, data, off, r.length);
+            Arrays.fill(data, off + r.length, off + len, (byte) 0);
+            setSlot(i, off, r.length);
+            return;
+        }
+        // move the record: free its old space, then place it like an insert
+        setSlot(i, 0, 0);
+        Arrays.fill(data, off, off + len, (byte) 0);
+        if (recordStart() - (HEADER_SIZE + SLOT_SIZE * getNumSlots()) < r.length)
+            compact();
+        setSlot(i, place(r), r.length);
+    }
+
+    /** Copies r below the record area and returns its offset. */
+    private int place(byte[] r) {
+        int start = recordStart() - r.length;
+        System.arraycopy(r, 0, data, start, r.length);
+        putShort(data, 2, start);
+        return start;
+    }
+
+    /** Packs the records at the end of the page, leaving no holes. */
+    private void compact() {
+        byte[] b = data;
+        byte[] packed = createEmptyPageData();
+        int n = getNumSlots();
+        System.arraycopy(b, 0, packed, 0, HEADER_SIZE + SLOT_SIZE * n);
+        int start = BufferPool.PAGE_SIZE;
+        for (int i = 0; i < n; i++) {
+            int off = getShort(b, HEADER_SIZE + SLOT_SIZE * i);
+            if (off == 0)
+                continue;
+            int len = getShort(b, HEADER_SIZE + SLOT_SIZE * i + 2);
+            start -= len;
+            System.arraycopy(b, off, packed, start, len);
+            putShort(packed, HEADER_SIZE + SLOT_SIZE * i, start);
+        }
+        putShort(packed, 2, start);
+        data = packed;
+    }
+
+    public Iterator<Tuple> iterator() {
+        return iterator(null);
+    }
+
+    public Iterator<Tuple> iterator(final boolean[] columns) {
+        return new Iterator<Tuple>() {
+            int next = 0;
+            Tuple nextToReturn = null;
+
+            public boolean hasNext() {
+                while (nextToReturn == null && next < getNumSlots())
+                    nextToReturn = getTuple(next++, columns);
+                return nextToReturn != null;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = nextToReturn;
+                nextToReturn = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,293 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed versions of pages that read-only
+ * transactions need to read a consistent snapshot without taking locks.
+ * <p>
+ * Every commit that changed pages gets a commit timestamp, and a snapshot
+ * is simply the timestamp of the last commit when the read-only
+ * transaction began: it sees every version committed at or before that
+ * timestamp and nothing committed later. Writers keep using two-phase
+ * locking. Before a writer gets a page for writing, the page's committed
+ * image is saved here (unless a version chain for the page already
+ * exists), so the image survives even if the buffer pool steals the dirty
+ * page; when the writer commits, the new committed images of the pages it
+ * changed are added with the commit timestamp. The buffer pool reports each
+ * change through {@link #changed}, so pages a writer only locked add no
+ * version and need not be compared.
+ * <p>
+ * A page without a version chain has not been written since every running
+ * snapshot began, so its current committed image, the before-image of the
+ * cached page, is what any snapshot should see. Versions that no running
+ * snapshot can see any more are dropped when writers and snapshots finish,
+ * and a chain is dropped altogether once its newest version is visible to
+ * every snapshot and nobody is writing the page.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** A committed image of a page. */
+    private static class Version {
+        final long commitTs;
+        final Page page;
+
+        Version(long commitTs, Page page) {
+            this.commitTs = commitTs;
+            this.page = page;
+        }
+    }
+
+    /** The versions of one page, newest first. */
+    private static class Chain {
+        final LinkedList<Version> versions = new LinkedList<Version>();
+        int writers = 0;
+    }
+
+    // timestamp of the last commit
+    private long lastCommit = 0;
+    private final Map<PageId, Chain> chains = new HashMap<PageId, Chain>();
+    // number of chains created or dropped so far
+    private long chainChanges = 0;
+    // snapshot timestamp of each running read-only transaction; concurrent
+    // so that every page request can check for a snapshot without locking
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    // pages each running writer has registered, and those of them it has
+    // changed
+    private final Map<TransactionId, Set<PageId>> writes = new HashMap<TransactionId, Set<PageId>>();
+    private final Map<TransactionId, Set<PageId>> changes = new HashMap<TransactionId, Set<PageId>>();
+
+    /**
+     * Start a snapshot for the read-only transaction tid.
+     *
+     * @return the snapshot timestamp
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, lastCommit);
+        return lastCommit;
+    }
+
+    /** @return true if tid is a read-only transaction with a running snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** End the snapshot of tid, dropping the versions only it could see. */
+    public synchronized void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return;
+        Iterator<Map.Entry<PageId, Chain>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            if (prune(it.next().getValue())) {
+                it.remove();
+                chainChanges++;
+            }
+        }
+    }
+
+    /**
+     * @return a stamp to pass to {@link #read}, taken before the caller
+     *   fetches the page it wants to read
+     */
+    public synchronized long stamp() {
+        return chainChanges;
+    }
+
+    /**
+     * Return the image of a page that the snapshot of tid should see, or
+     * null if the caller should fetch the page again and retry.
+     * <p>
+     * A page without a chain is decoded from current, which is only safe
+     * if no chain was created or dropped since the stamp was taken: a
+     * writer may have registered the page, or current may have been read
+     * from disk while it held data of a writer that has aborted since.
+     *
+     * @param tid a transaction with a running snapshot
+     * @param pid the page to read
+     * @param current the page as cached by the buffer pool
+     * @param stamp the result of {@link #stamp} before current was fetched
+     */
+    public Page read(TransactionId tid, PageId pid, Page current, long stamp) {
+        long snapshot = snapshots.get(tid);
+        synchronized (this) {
+            Chain chain = chains.get(pid);
+            if (chain != null) {
+                for (Version v : chain.versions) {
+                    if (v.commitTs <= snapshot)
+                        return v.page;
+                }
+            }
+            if (chainChanges != stamp)
+                return null;
+        }
+        // decode the page without holding the monitor
+        Page image = current.getBeforeImage();
+        synchronized (this) {
+            return chainChanges == stamp ? image : null;
+        }
+    }
+
+    /**
+     * Note that tid is about to change page p, which it has locked
+     * exclusively. The first time a page is registered while it has no
+     * chain, its committed image is saved so that snapshots can still read
+     * it.
+     */
+    public synchronized void beginWrite(TransactionId tid, Page p) {
+        Set<PageId> pids = writes.get(tid);
+        if (pids == null) {
+            pids = new HashSet<PageId>();
+            writes.put(tid, pids);
+        }
+        if (!pids.add(p.getId()))
+            return;
+        Chain chain = chains.get(p.getId());
+        if (chain == null) {
+            chain = new Chain();
+            // nothing committed to this page since the oldest snapshot
+            // began, so it is visible to all of them
+            chain.versions.add(new Version(0, p.getBeforeImage()));
+            chains.put(p.getId(), chain);
+            chainChanges++;
+        }
+        chain.writers++;
+    }
+
+    /**
+     * Note that tid has changed page pid, which it registered with
+     * {@link #beginWrite}.
+     */
+    public synchronized void changed(TransactionId tid, PageId pid) {
+        Set<PageId> pids = writes.get(tid);
+        if (pids == null || !pids.contains(pid))
+            return;
+        Set<PageId> changed = changes.get(tid);
+        if (changed == null) {
+            changed = new HashSet<PageId>();
+            changes.put(tid, changed);
+        }
+        changed.add(pid);
+    }
+
+    /**
+     * Forget that tid registered page pid, which it hands over without
+     * having changed it for anyone else to see, as when the root of a
+     * B+ tree it was filling stops being a leaf.
+     */
+    public synchronized void endWrite(TransactionId tid, PageId pid) {
+        Set<PageId> pids = writes.get(tid);
+        if (pids == null || !pids.remove(pid))
+            return;
+        Set<PageId> changed = changes.get(tid);
+        if (changed != null)
+            changed.remove(pid);
+        Chain chain = chains.get(pid);
+        chain.writers--;
+        if (prune(chain)) {
+            chains.remove(pid);
+            chainChanges++;
+        }
+    }
+
+    /**
+     * @return the newest committed image of page pid that is kept, which
+     *   is its current committed image while a writer has it registered,
+     *   or null if it has no chain
+     */
+    public synchronized Page newestVersion(PageId pid) {
+        Chain chain = chains.get(pid);
+        return chain == null ? null : chain.versions.getFirst().page;
+    }
+
+    /** @return the pages tid has changed since it registered them, or null */
+    public synchronized Set<PageId> pagesChangedBy(TransactionId tid) {
+        Set<PageId> pids = changes.get(tid);
+        return pids == null ? null : new HashSet<PageId>(pids);
+    }
+
+    /**
+     * Publish the pages tid changed under a new commit timestamp. Pages tid
+     * locked for writing but did not change add no version.
+     *
+     * @param committed the new committed image of each page tid changed
+     */
+    public synchronized void commit(TransactionId tid, Map<PageId, Page> committed) {
+        Set<PageId> pids = writes.remove(tid);
+        Set<PageId> changed = changes.remove(tid);
+        if (pids == null)
+            return;
+        long ts = lastCommit + 1;
+        if (changed != null) {
+            for (PageId pid : changed) {
+                Page image = committed.get(pid);
+                if (image != null)
+                    chains.get(pid).versions.addFirst(new Version(ts, image));
+            }
+            lastCommit = ts;
+        }
+        for (PageId pid : pids)
+            chains.get(pid).writers--;
+        for (PageId pid : pids) {
+            if (prune(chains.get(pid))) {
+                chains.remove(pid);
+                chainChanges++;
+            }
+        }
+    }
+
+    /** Forget the pages registered by tid, which aborted. */
+    public synchronized void abort(TransactionId tid) {
+        changes.remove(tid);
+        Set<PageId> pids = writes.remove(tid);
+        if (pids == null)
+            return;
+        for (PageId pid : pids) {
+            Chain chain = chains.get(pid);
+            chain.writers--;
+            if (prune(chain)) {
+                chains.remove(pid);
+                chainChanges++;
+            }
+        }
+    }
+
+    /**
+     * Drop the versions of chain that no snapshot can see.
+     *
+     * @return true if the whole chain can be dropped
+     */
+    private boolean prune(Chain chain) {
+        long oldest = Long.MAX_VALUE;
+        for (long snapshot : snapshots.values())
+            oldest = Math.min(oldest, snapshot);
+        // keep everything newer than the oldest snapshot and the newest
+        // version it can see
+        Iterator<Version> it = chain.versions.iterator();
+        boolean seen = false;
+        while (it.hasNext()) {
+            Version v = it.next();
+            if (seen)
+                it.remove();
+            else if (v.commitTs <= oldest)
+                seen = true;
+        }
+        return chain.writers == 0 && chain.versions.size() == 1
+            && chain.versions.getFirst().commitTs <= oldest;
+    }
+
+    /** @return the number of page versions currently kept */
+    public synchronized int getVersionCount() {
+        int n = 0;
+        for (Chain chain : chains.values())
+            n += chain.versions.size();
+        return n;
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.*;
+
+import simpledb.Aggregator.Op;
+
+/**
+ * Compares IntegerAggregator, which keys its groups by the string of the
+ * group field, with HashAggregator, which keys int groups in a table of
+ * ints: SUM of one field grouped by an int field with few and with many
+ * distinct values, merged from batches of tuples held in memory. Also
+ * times HashAggregator grouping by two fields, which IntegerAggregator
+ * cannot. Checks that both give the same result.
+ * <p>
+ * Run with: java simpledb.AggregateBenchmark [rows] [runs]
+ */
+public class AggregateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        System.out.println(rows + " rows of (int, int, int), best of " + runs + " runs");
+        System.out.printf("%-16s %14s %14s%n", "group by", "string keys ms", "hash ms");
+        for (int groups : new int[] { 10, 1000, rows / 10 }) {
+            List<TupleBatch> batches = createBatches(rows, groups);
+            long strings = Long.MAX_VALUE, hash = Long.MAX_VALUE;
+            long[] result = new long[2];
+            for (int i = 0; i < runs; i++) {
+                strings = Math.min(strings, run(new IntegerAggregator(0,
+                        Type.INT_TYPE, 2, Op.SUM), batches, result, 0));
+                hash = Math.min(hash, run(new HashAggregator(new int[] { 0 },
+                        new Type[] { Type.INT_TYPE }, new int[] { 2 },
+                        new Type[] { Type.INT_TYPE }, new Op[] { Op.SUM }), batches, result, 1));
+            }
+            if (result[0] != result[1])
+                throw new RuntimeException(groups + " groups: string keys gave "
+                        + result[0] + ", hash " + result[1]);
+            System.out.printf("%-16s %14.1f %14.1f%n", groups + " groups",
+                    strings / 1e6, hash / 1e6);
+        }
+
+        List<TupleBatch> batches = createBatches(rows, 1000);
+        long hash = Long.MAX_VALUE;
+        long[] result = new long[1];
+        for (int i = 0; i < runs; i++) {
+            hash = Math.min(hash, run(new HashAggregator(new int[] { 0, 1 },
+                    new Type[] { Type.INT_TYPE, Type.INT_TYPE }, new int[] { 2 },
+                    new Type[] { Type.INT_TYPE }, new Op[] { Op.SUM }), batches, result, 0));
+        }
+        System.out.printf("%-16s %14s %14.1f%n", "two fields", "-", hash / 1e6);
+    }
+
+    /**
+     * @return batches of rows tuples (random key below groups, random key
+     *   below 10, random value below 1000)
+     */
+    private static List<TupleBatch> createBatches(int rows, int groups) {
+        Random random = new Random(rows);
+        TupleDesc td = Utility.getTupleDesc(3);
+        ArrayList<TupleBatch> batches = new ArrayList<TupleBatch>();
+        TupleBatch b = new TupleBatch(td);
+        for (int i = 0; i < rows; i++) {
+            if (b.isFull()) {
+                batches.add(b);
+                b = new TupleBatch(td);
+            }
+            b.addTuple(Utility.getHeapTuple(new int[] { random.nextInt(groups),
+                    random.nextInt(10), random.nextInt(1000) }));
+        }
+        batches.add(b);
+        return batches;
+    }
+
+    /**
+     * Merges batches into agg and sums the last field of its results into
+     * result[slot].
+     *
+     * @return the nanoseconds merging and reading the results took
+     */
+    private static long run(Aggregator agg, List<TupleBatch> batches, long[] result, int slot)
+            throws Exception {
+        long start = System.nanoTime();
+        for (TupleBatch b : batches)
+            agg.mergeBatchIntoGroup(b);
+        DbIterator it = agg.iterator();
+        it.open();
+        long sum = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            sum += ((IntField) t.getField(t.getTupleDesc().numFields() - 1)).getValue();
+        }
+        it.close();
+        long nanos = System.nanoTime() - start;
+        result[slot] = sum;
+        return nanos;
+    }
+}
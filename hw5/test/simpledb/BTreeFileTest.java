@@ -0,0 +1,452 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for B+ tree files and index scans over them.
+ */
+public class BTreeFileTest extends SimpleDbTestBase {
+
+    private BTreeFile bf;
+    // the keys inserted, in order
+    private ArrayList<Integer> keys;
+
+    // string keys, so that few fit on a page and the tree grows high soon
+    private static final Type[] STRING_KEY = { Type.STRING_TYPE, Type.INT_TYPE };
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(1000);
+        File f = File.createTempFile("btree", ".dat");
+        f.deleteOnExit();
+        bf = new BTreeFile(f, Utility.getTupleDesc(2), 0);
+        Database.getCatalog().addTable(bf, "btree" + bf.getId());
+    }
+
+    /** Inserts n tuples with keys 0 to n / 3, each about three times, in random order. */
+    private void insert(int n) throws Exception {
+        keys = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            keys.add(i / 3);
+        Collections.shuffle(keys, new Random(1));
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                    Utility.getHeapTuple(new int[] { keys.get(i), i }));
+        t.commit();
+        Collections.sort(keys);
+    }
+
+    /** @return the keys of the tuples it returns, checking they come in order */
+    private static List<Integer> read(DbIterator it) throws Exception {
+        ArrayList<Integer> got = new ArrayList<Integer>();
+        it.open();
+        while (it.hasNext())
+            got.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        ArrayList<Integer> sorted = new ArrayList<Integer>(got);
+        Collections.sort(sorted);
+        assertEquals(sorted, got);
+        return got;
+    }
+
+    private List<Integer> expected(Predicate.Op op, int v) {
+        ArrayList<Integer> exp = new ArrayList<Integer>();
+        IntField f = new IntField(v);
+        for (int k : keys) {
+            if (new IntField(k).compare(op, f))
+                exp.add(k);
+        }
+        return exp;
+    }
+
+    @Test public void insertSplitsPages() throws Exception {
+        insert(20000);
+        assertTrue(bf.numPages() > 30);
+        TransactionId tid = new TransactionId();
+        assertEquals(keys, read(new SeqScan(tid, bf.getId(), "t")));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // from disk, too
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        assertEquals(keys, read(new SeqScan(tid, bf.getId(), "t")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void indexScan() throws Exception {
+        insert(20000);
+        TransactionId tid = new TransactionId();
+        Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ };
+        int[] values = { -1, 0, 1, 2500, 6666, 7000 };
+        for (Predicate.Op op : ops) {
+            for (int v : values) {
+                assertEquals(op + " " + v, expected(op, v),
+                        read(new IndexScan(tid, bf.getId(), "t", op, new IntField(v))));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void keyRangeSelectivity() throws Exception {
+        // keys 0 to 999
+        insert(3000);
+        // statistics are read from disk
+        Database.getBufferPool().flushAllPages();
+        TableStats s = new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE);
+        assertEquals(0.001, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(5)), 1e-9);
+        assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1000)), 1e-9);
+        assertEquals(0.1, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(100)), 1e-9);
+        assertEquals(0.101, s.estimateSelectivity(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(100)), 1e-9);
+        assertEquals(0.899, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(100)), 1e-9);
+        assertEquals(1.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(-5)), 1e-9);
+        assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(999)), 1e-9);
+        // fields other than the key are not estimated
+        assertEquals(1.0, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(5)), 1e-9);
+    }
+
+    @Test public void delete() throws Exception {
+        insert(5000);
+        Transaction t = new Transaction();
+        t.start();
+        IndexScan is = new IndexScan(t.getId(), bf.getId(), "t",
+                Predicate.Op.EQUALS, new IntField(700));
+        is.open();
+        int n = 0;
+        while (is.hasNext()) {
+            Database.getBufferPool().deleteTuple(t.getId(), is.next());
+            n++;
+        }
+        is.close();
+        t.commit();
+        assertEquals(3, n);
+        keys.removeAll(Collections.singleton(700));
+
+        TransactionId tid = new TransactionId();
+        assertEquals(keys, read(new SeqScan(tid, bf.getId(), "t")));
+        assertEquals(0, read(new IndexScan(tid, bf.getId(), "t",
+                Predicate.Op.EQUALS, new IntField(700))).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void updateAfterSplits() throws Exception {
+        insert(300);
+        // tuples read before later inserts shift and split their leaves
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> kept = new ArrayList<Tuple>();
+        DbIterator it = new SeqScan(tid, bf.getId(), "t");
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() % 10 == 0)
+                kept.add(t);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3000; i++)
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                    Utility.getHeapTuple(new int[] { (i * 7) % 100, 1000 + i }));
+        t.commit();
+        assertTrue(bf.numPages() > 10);
+
+        t = new Transaction();
+        t.start();
+        ArrayList<Integer> exp = new ArrayList<Integer>();
+        for (Tuple u : kept) {
+            int v = ((IntField) u.getField(1)).getValue();
+            u.setField(1, new IntField(-1 - v));
+            Database.getBufferPool().updateTuple(t.getId(), u);
+            exp.add(-1 - v);
+        }
+        t.commit();
+        tid = new TransactionId();
+        ArrayList<Integer> got = new ArrayList<Integer>();
+        int n = 0;
+        it = new SeqScan(tid, bf.getId(), "t");
+        it.open();
+        while (it.hasNext()) {
+            int v = ((IntField) it.next().getField(1)).getValue();
+            if (v < 0)
+                got.add(v);
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(exp);
+        Collections.sort(got);
+        assertEquals(exp, got);
+        assertEquals(3300, n);
+    }
+
+    @Test public void concurrentInserts() throws Exception {
+        final int perThread = 2000;
+        Thread[] threads = new Thread[4];
+        final Throwable[] error = new Throwable[1];
+        for (int i = 0; i < threads.length; i++) {
+            final int base = i * perThread;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < perThread; k += 100) {
+                            // retry the transaction until it is not aborted
+                            while (true) {
+                                Transaction t = new Transaction();
+                                t.start();
+                                try {
+                                    for (int j = k; j < k + 100; j++)
+                                        Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                                                Utility.getHeapTuple(new int[] { base + j, j }));
+                                    t.commit();
+                                    break;
+                                } catch (TransactionAbortedException e) {
+                                    t.transactionComplete(true);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread th : threads)
+            th.join();
+        assertNull(error[0]);
+
+        TransactionId tid = new TransactionId();
+        List<Integer> got = read(new SeqScan(tid, bf.getId(), "t"));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(threads.length * perThread, got.size());
+        for (int i = 0; i < got.size(); i++)
+            assertEquals(i, (int) got.get(i));
+    }
+
+    @Test public void concurrentInsertsIntoRootLeaf() throws Exception {
+        // each thread inserts into the root, still a leaf, in one
+        // transaction; they must queue for it rather than deadlock
+        Thread[] threads = new Thread[4];
+        final Throwable[] error = new Throwable[1];
+        for (int i = 0; i < threads.length; i++) {
+            final int base = i * 10;
+            threads[i] = new Thread() {
+                public void run() {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        for (int j = 0; j < 10; j++)
+                            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                                    Utility.getHeapTuple(new int[] { base + j, j }));
+                        t.commit();
+                    } catch (Throwable e) {
+                        error[0] = e;
+                        try {
+                            t.transactionComplete(true);
+                        } catch (IOException e2) {
+                            throw new RuntimeException(e2);
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread th : threads)
+            th.start();
+        for (Thread th : threads)
+            th.join();
+        assertNull(error[0]);
+        assertEquals(1, bf.numPages());
+
+        TransactionId tid = new TransactionId();
+        assertEquals(threads.length * 10, read(new SeqScan(tid, bf.getId(), "t")).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return an empty tree keyed on a string, stored in f */
+    private static BTreeFile stringTree(File f) {
+        BTreeFile t = new BTreeFile(f, new TupleDesc(STRING_KEY), 0);
+        Database.getCatalog().addTable(t, "sbtree" + t.getId());
+        return t;
+    }
+
+    private static String key(String prefix, int i) {
+        return String.format("%s%04d", prefix, i);
+    }
+
+    /** Inserts the keys prefix0000 to prefix(n - 1) into t, out of order. */
+    private static void insertKeys(TransactionId tid, BTreeFile t, String prefix, int n)
+            throws Exception {
+        for (int i = 0; i < n; i++) {
+            Tuple row = new Tuple(t.getTupleDesc());
+            row.setField(0, new StringField(key(prefix, (i * 7) % n), Type.STRING_LEN));
+            row.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, t.getId(), row);
+        }
+    }
+
+    /** @return the keys prefix0000 to prefix(n - 1) */
+    private static List<String> keys(String prefix, int n) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int i = 0; i < n; i++)
+            keys.add(key(prefix, i));
+        return keys;
+    }
+
+    /** @return the keys of the tuples of t in the order a scan returns them */
+    private static List<String> scan(BTreeFile t) throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<String> got = new ArrayList<String>();
+        DbIterator it = new SeqScan(tid, t.getId(), "t");
+        it.open();
+        while (it.hasNext())
+            got.add(((StringField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return got;
+    }
+
+    private static BTreePage root(BTreeFile t) throws Exception {
+        return (BTreePage) Database.getBufferPool().getUnlockedPage(
+                new HeapPageId(t.getId(), BTreeFile.ROOT));
+    }
+
+    @Test public void splitsDoNotBlockOthers() throws Exception {
+        File f = File.createTempFile("btree", ".dat");
+        f.deleteOnExit();
+        final BTreeFile t = stringTree(f);
+        Transaction setup = new Transaction();
+        setup.start();
+        insertKeys(setup.getId(), t, "b", 300);
+        setup.commit();
+        assertTrue(root(t).hasLeafChildren());
+
+        // leaves split until the root does; a flush in between logs
+        // leaves that split again after it, moving committed tuples
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertKeys(t1.getId(), t, "b0150-", 300);
+        Database.getBufferPool().flushAllPages();
+        insertKeys(t1.getId(), t, "b0149-", 300);
+        assertFalse(root(t).hasLeafChildren());
+
+        // another transaction uses leaves t1 has not locked meanwhile
+        final Throwable[] error = new Throwable[1];
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    Transaction t2 = new Transaction();
+                    t2.start();
+                    IndexScan is = new IndexScan(t2.getId(), t.getId(), "t",
+                            Predicate.Op.EQUALS, new StringField("b0250", Type.STRING_LEN));
+                    is.open();
+                    assertTrue(is.hasNext());
+                    is.next();
+                    assertFalse(is.hasNext());
+                    is.close();
+                    insertKeys(t2.getId(), t, "c", 1);
+                    t2.commit();
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        };
+        other.start();
+        other.join(10000);
+        assertFalse("waited for the splitting transaction", other.isAlive());
+        assertNull(error[0]);
+
+        // an abort takes back the tuples of t1 but not the splits, and
+        // leaves the leaves linked as their parents have them
+        t1.abort();
+        assertFalse(root(t).hasLeafChildren());
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertKeys(t3.getId(), t, "b0149-", 100);
+        t3.commit();
+        List<String> exp = keys("b", 150);
+        exp.addAll(keys("b0149-", 100));
+        exp.addAll(keys("b", 300).subList(150, 300));
+        exp.add("c0000");
+        assertEquals(exp, scan(t));
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(1000);
+        assertEquals(exp, scan(t));
+    }
+
+    @Test public void abortAfterRootLeafSplit() throws Exception {
+        File f = File.createTempFile("btree", ".dat");
+        f.deleteOnExit();
+        BTreeFile t = stringTree(f);
+        Transaction setup = new Transaction();
+        setup.start();
+        insertKeys(setup.getId(), t, "b", 10);
+        setup.commit();
+        assertTrue(root(t).isLeaf());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertKeys(t1.getId(), t, "a", 100);
+        assertFalse(root(t).isLeaf());
+        t1.abort();
+        assertFalse(root(t).isLeaf());
+        assertEquals(keys("b", 10), scan(t));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertKeys(t2.getId(), t, "c", 100);
+        t2.commit();
+        List<String> exp = keys("b", 10);
+        exp.addAll(keys("c", 100));
+        assertEquals(exp, scan(t));
+    }
+
+    @Test public void recoverSplitsOfUncommittedInserts() throws Exception {
+        File f = File.createTempFile("btree", ".dat");
+        f.deleteOnExit();
+        BTreeFile t = stringTree(f);
+        Transaction setup = new Transaction();
+        setup.start();
+        insertKeys(setup.getId(), t, "b", 300);
+        setup.commit();
+        // recovery starts here, after the pages setup left dirty
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertKeys(t1.getId(), t, "b0150-", 300);
+        Database.getBufferPool().flushAllPages();
+        insertKeys(t1.getId(), t, "b0149-", 300);
+        Database.getBufferPool().flushAllPages();
+
+        // crash before t1 ends
+        Database.reset();
+        t = stringTree(f);
+        Database.getLogFile().recover();
+        assertFalse(root(t).hasLeafChildren());
+        assertEquals(keys("b", 300), scan(t));
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertKeys(t2.getId(), t, "b0149-", 100);
+        t2.commit();
+        List<String> exp = keys("b", 150);
+        exp.addAll(keys("b0149-", 100));
+        exp.addAll(keys("b", 300).subList(150, 300));
+        assertEquals(exp, scan(t));
+    }
+}
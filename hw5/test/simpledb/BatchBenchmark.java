@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares running plans a tuple at a time (hasNext and next) with running
+ * them a batch at a time (nextBatch), with all pages cached: a filter over
+ * a scan, and a hash join of two tables. Checks that both ways give the
+ * same result.
+ * <p>
+ * Run with: java simpledb.BatchBenchmark [rows] [runs]
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+        TupleDesc td = new TupleDesc(types, new String[] { "id", "k", "v" });
+        final HeapFile big = createTable(td, rows, rows / 10);
+        final HeapFile small = createTable(td, rows / 10, rows / 10);
+        Database.getCatalog().addTable(big, "big");
+        Database.getCatalog().addTable(small, "small");
+        Database.resetBufferPool(big.numPages() + small.numPages() + 16);
+
+        System.out.println(rows + " rows of (int, int, int), best of " + runs + " runs");
+        System.out.printf("%-10s %12s %12s%n", "plan", "tuples ms", "batches ms");
+        report("filter", new Plan() {
+            public DbIterator create(TransactionId tid) {
+                SeqScan ss = new SeqScan(tid, big.getId(), "big");
+                return new Filter(new Predicate(2, Predicate.Op.LESS_THAN,
+                        new IntField(500)), ss);
+            }
+        }, runs);
+        report("hash join", new Plan() {
+            public DbIterator create(TransactionId tid) {
+                SeqScan s1 = new SeqScan(tid, small.getId(), "small");
+                SeqScan s2 = new SeqScan(tid, big.getId(), "big");
+                JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+                ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(0, 5));
+                return new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                        new HashEquiJoin(p, s1, s2));
+            }
+        }, runs);
+    }
+
+    private interface Plan {
+        DbIterator create(TransactionId tid);
+    }
+
+    /** @return a HeapFile of rows tuples (i, random key below keys, random value below 1000) */
+    private static HeapFile createTable(TupleDesc td, int rows, int keys) throws IOException {
+        File text = File.createTempFile("batch", ".txt");
+        File data = File.createTempFile("batch", ".dat");
+        text.deleteOnExit();
+        data.deleteOnExit();
+        FreeSpaceMap.fileFor(data).deleteOnExit();
+        Random random = new Random(rows);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(text)));
+        try {
+            for (int i = 0; i < rows; i++)
+                out.println(i + "," + random.nextInt(keys) + "," + random.nextInt(1000));
+        } finally {
+            out.close();
+        }
+        HeapFileEncoder.convert(text, data, BufferPool.PAGE_SIZE, td.numFields());
+        return new HeapFile(data, td);
+    }
+
+    private static void report(String name, Plan plan, int runs) throws Exception {
+        long tuples = Long.MAX_VALUE, batches = Long.MAX_VALUE;
+        long[] result = new long[2];
+        for (int i = 0; i < runs; i++) {
+            tuples = Math.min(tuples, run(plan, false, result));
+            batches = Math.min(batches, run(plan, true, result));
+        }
+        if (result[0] != result[1])
+            throw new RuntimeException(name + ": tuples gave " + result[0]
+                    + ", batches " + result[1]);
+        System.out.printf("%-10s %12.1f %12.1f%n", name, tuples / 1e6, batches / 1e6);
+    }
+
+    /**
+     * Runs plan and sums the first field of its tuples into result[1] if
+     * batches is set and result[0] if not.
+     *
+     * @return the nanoseconds it took
+     */
+    private static long run(Plan plan, boolean batches, long[] result) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator it = plan.create(tid);
+        long sum = 0;
+        long start = System.nanoTime();
+        it.open();
+        if (batches) {
+            TupleBatch b;
+            while ((b = it.nextBatch()) != null) {
+                int[] values = b.getInts(0);
+                for (int k = 0; k < b.size(); k++)
+                    sum += values[b.row(k)];
+            }
+        } else {
+            while (it.hasNext())
+                sum += ((IntField) it.next().getField(0)).getValue();
+        }
+        it.close();
+        long nanos = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        result[batches ? 1 : 0] = sum;
+        return nanos;
+    }
+}
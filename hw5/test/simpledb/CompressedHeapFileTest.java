@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import static simpledb.PaxHeapFileTest.*;
+
+/**
+ * Tests that scans of a CompressedHeapFile, with some columns and with
+ * predicates pushed down to its pages, return what scans of the same rows
+ * in a HeapFile do.
+ */
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    private HeapFile plain;
+    private HeapFile compressed;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        load(5000);
+    }
+
+    /** Makes plain and compressed tables of n rows, and starts a transaction. */
+    private void load(int n) throws Exception {
+        File txt = rows(n);
+        File f1 = tableFile(), f2 = tableFile();
+        HeapFileEncoder.convert(txt, f1, BufferPool.PAGE_SIZE, TYPES.length, TYPES, ',');
+        HeapFileEncoder.convertCompressed(txt, f2, TYPES, ',');
+        plain = add(new HeapFile(f1, new TupleDesc(TYPES)));
+        compressed = add(new CompressedHeapFile(f2, new TupleDesc(TYPES)));
+        tid = new TransactionId();
+    }
+
+    /**
+     * @return a scan of hf that decodes only fields, or all if fields is
+     *   null, and tests preds as it reads each page
+     */
+    private SeqScan scan(HeapFile hf, int[] fields, Predicate... preds) {
+        SeqScan s = new SeqScan(tid, hf.getId(), "t");
+        if (fields != null) {
+            HashSet<Integer> set = new HashSet<Integer>();
+            for (int f : fields)
+                set.add(f);
+            s.setColumns(set);
+        }
+        for (Predicate p : preds)
+            s.addPredicate(p);
+        return s;
+    }
+
+    /** @return the rows of the plain table that satisfy preds, filtered above the scan */
+    private List<String> expected(int[] fields, Predicate... preds) throws Exception {
+        DbIterator it = scan(plain, null);
+        for (Predicate p : preds)
+            it = new Filter(p, it);
+        return project(tuples(it), fields, false);
+    }
+
+    /** Checks that the compressed table returns what the plain one does. */
+    private void check(int[] fields, Predicate... preds) throws Exception {
+        List<String> exp = expected(fields, preds);
+        assertEquals(exp, project(tuples(scan(compressed, fields, preds)), fields, preds.length == 0));
+        assertEquals(exp, project(batches(scan(compressed, fields, preds)), fields, preds.length == 0));
+    }
+
+    private static Predicate pred(int field, Predicate.Op op, Field operand) {
+        return new Predicate(field, op, operand);
+    }
+
+    private static StringField string(String s) {
+        return new StringField(s, Type.STRING_LEN);
+    }
+
+    @Test public void columns() throws Exception {
+        assertTrue(compressed.numPages() < plain.numPages());
+        check(new int[] { 0, 1, 2, 3 });
+        check(new int[] { 1, 3 });
+        check(new int[] { 2 });
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void equality() throws Exception {
+        // full pages of these rows only fit with their columns deflated
+        checkEquality();
+        Database.getBufferPool().transactionComplete(tid);
+        // a page this small fits with the string column dictionary
+        // encoded, so equality on it is tested on the codes
+        load(500);
+        assertEquals(1, compressed.numPages());
+        checkEquality();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void checkEquality() throws Exception {
+        int[] fields = { 0, 2 };
+        check(fields, pred(2, Predicate.Op.EQUALS, string("s3")));
+        check(new int[] { 0, 1, 2, 3 }, pred(2, Predicate.Op.EQUALS, string("s0")));
+        // in no dictionary, so a dictionary encoded page is ruled out at once
+        check(fields, pred(2, Predicate.Op.EQUALS, string("absent")));
+        assertEquals(0, expected(fields, pred(2, Predicate.Op.EQUALS, string("absent"))).size());
+        check(fields, pred(1, Predicate.Op.EQUALS, new IntField(4)));
+    }
+
+    @Test public void otherPredicates() throws Exception {
+        int[] fields = { 0 };
+        check(fields, pred(3, Predicate.Op.LESS_THAN, new IntField(200)));
+        check(fields, pred(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(4990)));
+        check(fields, pred(2, Predicate.Op.NOT_EQUALS, string("s1")));
+        check(fields,
+                pred(2, Predicate.Op.EQUALS, string("s2")),
+                pred(1, Predicate.Op.EQUALS, new IntField(5)),
+                pred(3, Predicate.Op.GREATER_THAN, new IntField(500)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void predicatesAfterChanges() throws Exception {
+        // changing a page decodes its columns, so predicates are tested on
+        // the fields rather than the dictionary codes
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(new TupleDesc(TYPES));
+            t.setField(0, new IntField(-i));
+            t.setField(1, new IntField(i % 7));
+            t.setField(2, string(i % 2 == 0 ? "s3" : "new"));
+            t.setField(3, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, plain.getId(), t);
+            Database.getBufferPool().insertTuple(tid, compressed.getId(), t);
+        }
+        for (HeapFile hf : new HeapFile[] { plain, compressed }) {
+            for (Tuple t : tuples(scan(hf, null, pred(1, Predicate.Op.EQUALS, new IntField(6)))))
+                Database.getBufferPool().deleteTuple(tid, t);
+        }
+        int[] fields = { 0, 3 };
+        check(fields, pred(2, Predicate.Op.EQUALS, string("s3")));
+        check(fields, pred(2, Predicate.Op.EQUALS, string("new")));
+        check(fields, pred(1, Predicate.Op.EQUALS, new IntField(6)));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        check(fields, pred(2, Predicate.Op.EQUALS, string("new")));
+        check(fields, pred(1, Predicate.Op.LESS_THAN, new IntField(2)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
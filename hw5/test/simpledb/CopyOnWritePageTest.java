@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the before-image of each page that changes its bytes in place
+ * keeps the bytes it had, however the page is changed afterwards.
+ */
+public class CopyOnWritePageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+
+    /** @return the id of page 0 of a new, empty table of file */
+    private static HeapPageId addTable(HeapFile file) {
+        Database.getCatalog().addTable(file, "cow" + file.getId());
+        return new HeapPageId(file.getId(), 0);
+    }
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("cow", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        return f;
+    }
+
+    private static Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    /** Inserts, updates and deletes tuples on p in place. */
+    private static void change(CopyOnWritePage p) throws Exception {
+        p.insertTuple(tuple(2, "two"));
+        Iterator<Tuple> it = p.iterator();
+        Tuple first = it.next();
+        Tuple updated = tuple(1, "a longer string than before");
+        updated.setRecordId(first.getRecordId());
+        p.updateTuple(updated);
+        p.deleteTuple(it.next());
+    }
+
+    private static void checkBeforeImage(CopyOnWritePage p) throws Exception {
+        p.insertTuple(tuple(1, "one"));
+        p.insertTuple(tuple(3, "three"));
+        p.setBeforeImage();
+        assertEquals(0, p.getBeforeImageSize());
+        byte[] before = p.getPageData();
+        Page image = p.getBeforeImage();
+
+        change(p);
+        assertFalse(Arrays.equals(before, p.getPageData()));
+        assertTrue(p.getBeforeImageSize() > 0);
+        // the image taken before the changes shared the page's bytes
+        assertArrayEquals(before, image.getPageData());
+        assertArrayEquals(before, p.getBeforeImage().getPageData());
+
+        // a second round of changes does not move the before-image
+        change(p);
+        assertArrayEquals(before, p.getBeforeImage().getPageData());
+
+        p.setBeforeImage();
+        assertArrayEquals(p.getPageData(), p.getBeforeImage().getPageData());
+    }
+
+    @Test public void heapPage() throws Exception {
+        HeapPageId pid = addTable(new HeapFile(tempFile(), TD));
+        checkBeforeImage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+    }
+
+    @Test public void paxHeapPage() throws Exception {
+        HeapPageId pid = addTable(new PaxHeapFile(tempFile(), TD));
+        checkBeforeImage(new PaxHeapPage(pid, HeapPage.createEmptyPageData()));
+    }
+
+    @Test public void varHeapPage() throws Exception {
+        HeapPageId pid = addTable(new VarHeapFile(tempFile(), TD));
+        checkBeforeImage(new VarHeapPage(pid, VarHeapPage.createEmptyPageData()));
+    }
+}
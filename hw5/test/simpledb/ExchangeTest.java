@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Exchange over SeqScans that share the morsels of a table.
+ */
+public class ExchangeTest extends SimpleDbTestBase {
+
+    private static final int WORKERS = 3;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples);
+        tid = new TransactionId();
+    }
+
+    /** @return an Exchange over WORKERS scans of hf claiming one-page morsels */
+    private Exchange parallelScan(boolean failing) {
+        Morsels morsels = new Morsels(hf, 1);
+        DbIterator[] children = new DbIterator[WORKERS];
+        for (int i = 0; i < WORKERS; i++) {
+            SeqScan ss = new SeqScan(tid, hf.getId(), "");
+            ss.setMorsels(morsels);
+            children[i] = ss;
+        }
+        if (failing) {
+            children[0] = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+                    new IntField(Integer.MIN_VALUE)), children[0]) {
+                private static final long serialVersionUID = 1L;
+
+                protected Tuple fetchNext() throws TransactionAbortedException {
+                    throw new TransactionAbortedException();
+                }
+            };
+        }
+        return new Exchange(children, morsels);
+    }
+
+    @Test public void gathersEveryTupleOnce() throws Exception {
+        SystemTestUtil.matchTuples(parallelScan(false), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void gathersEveryBatchOnce() throws Exception {
+        Exchange ex = parallelScan(false);
+        ex.open();
+        ArrayList<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(tuples);
+        TupleBatch b;
+        while ((b = ex.nextBatch()) != null) {
+            for (int k = 0; k < b.size(); k++)
+                assertTrue(copy.remove(SystemTestUtil.tupleToList(b.getTuple(b.row(k)))));
+        }
+        ex.close();
+        assertTrue(copy.isEmpty());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void tuplesKeepRecordIds() throws Exception {
+        Exchange ex = parallelScan(false);
+        ex.open();
+        while (ex.hasNext())
+            assertNotNull(ex.next().getRecordId());
+        ex.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewindReadsTheTableAgain() throws Exception {
+        Exchange ex = parallelScan(false);
+        ex.open();
+        int n = 0;
+        for (int i = 0; i < 100; i++) {
+            ex.next();
+            n++;
+        }
+        ex.rewind();
+        n = 0;
+        while (ex.hasNext()) {
+            ex.next();
+            n++;
+        }
+        ex.close();
+        assertEquals(tuples.size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void readsTuplesOrBatchesUntilRewound() throws Exception {
+        Exchange ex = parallelScan(false);
+        ex.open();
+        ex.next();
+        try {
+            ex.nextBatch();
+            fail("read a batch while reading tuples");
+        } catch (IllegalStateException e) {
+        }
+        ex.rewind();
+        int n = 0;
+        TupleBatch b;
+        while ((b = ex.nextBatch()) != null)
+            n += b.size();
+        assertEquals(tuples.size(), n);
+        try {
+            ex.next();
+            fail("read a tuple while reading batches");
+        } catch (IllegalStateException e) {
+        }
+        ex.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test(expected = TransactionAbortedException.class)
+    public void workerAbortIsThrown() throws Exception {
+        Exchange ex = parallelScan(true);
+        ex.open();
+        try {
+            while (ex.hasNext())
+                ex.next();
+        } finally {
+            ex.close();
+            Database.getBufferPool().transactionComplete(tid, false);
+        }
+    }
+}
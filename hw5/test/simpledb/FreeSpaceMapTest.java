@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a FreeSpaceMap trusts its file only while it describes the
+ * table's pages.
+ */
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File table;
+
+    /** Creates a table of two pages whose map knows both. */
+    @Before public void setUp() throws Exception {
+        table = File.createTempFile("fsm", ".dat");
+        table.deleteOnExit();
+        FreeSpaceMap.fileFor(table).deleteOnExit();
+        setPages(2);
+        FreeSpaceMap fsm = new FreeSpaceMap(table);
+        fsm.record(0, 3);
+        fsm.record(1, 0);
+        fsm.close();
+    }
+
+    private void setPages(int n) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(table, "rw");
+        raf.setLength((long) n * BufferPool.PAGE_SIZE);
+        raf.close();
+    }
+
+    @Test public void loadsMapOfTable() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(table);
+        assertTrue(fsm.isKnown(1));
+        assertEquals(0, fsm.findPage(2, 1));
+        assertEquals(-1, fsm.findPage(2, 4));
+        fsm.close();
+    }
+
+    @Test public void dropsMapOfShorterTable() throws Exception {
+        setPages(1);
+        FreeSpaceMap fsm = new FreeSpaceMap(table);
+        assertFalse(fsm.isKnown(0));
+        assertFalse(FreeSpaceMap.fileFor(table).exists());
+    }
+
+    @Test public void dropsMapOfTableGrownWithoutIt() throws Exception {
+        setPages(3);
+        FreeSpaceMap fsm = new FreeSpaceMap(table);
+        assertFalse(fsm.isKnown(1));
+        assertEquals(0, fsm.findPage(3, 10));
+        assertFalse(FreeSpaceMap.fileFor(table).exists());
+    }
+
+    @Test public void keepsMapOfTableGrownThroughIt() throws Exception {
+        // a page appended, then a page written past the end
+        setPages(3);
+        FreeSpaceMap fsm = new FreeSpaceMap(table);
+        fsm.appended(2);
+        fsm.close();
+        setPages(4);
+        fsm = new FreeSpaceMap(table);
+        fsm.record(3, 5);
+        fsm.close();
+
+        fsm = new FreeSpaceMap(table);
+        assertTrue(fsm.isKnown(1));
+        assertFalse(fsm.isKnown(2));
+        assertEquals(2, fsm.findPage(4, 4));
+        fsm.update(2, 0);
+        assertEquals(3, fsm.findPage(4, 4));
+        fsm.close();
+    }
+}
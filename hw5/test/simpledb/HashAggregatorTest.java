@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.Aggregator.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for HashAggregator, against IntegerAggregator and against sums
+ * worked out here for groups of several fields.
+ */
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+
+    /** @return ROWS tuples of (key below 300, key below 4, value) */
+    private static List<Tuple> tuples() {
+        Random r = new Random(1);
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        for (int i = 0; i < ROWS; i++)
+            tups.add(Utility.getHeapTuple(new int[] { r.nextInt(300) - 150,
+                    r.nextInt(4), r.nextInt(1000) - 500 }));
+        return tups;
+    }
+
+    /** Merges tups into agg a tuple at a time, or in batches of 100. */
+    private static void merge(Aggregator agg, List<Tuple> tups, boolean batches) {
+        if (!batches) {
+            for (Tuple t : tups)
+                agg.mergeTupleIntoGroup(t);
+            return;
+        }
+        TupleBatch b = new TupleBatch(Utility.getTupleDesc(3), 100);
+        for (Tuple t : tups) {
+            b.addTuple(t);
+            if (b.isFull()) {
+                agg.mergeBatchIntoGroup(b);
+                b.clear();
+            }
+        }
+        agg.mergeBatchIntoGroup(b);
+    }
+
+    /** @return the tuples of agg's results, as strings, sorted */
+    private static List<String> results(Aggregator agg) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        DbIterator it = agg.iterator();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test public void matchesIntegerAggregator() throws Exception {
+        List<Tuple> tups = tuples();
+        for (Op op : Op.values()) {
+            for (int gbfield : new int[] { Aggregator.NO_GROUPING, 0 }) {
+                IntegerAggregator expected = new IntegerAggregator(gbfield,
+                        gbfield == Aggregator.NO_GROUPING ? null : Type.INT_TYPE, 2, op);
+                merge(expected, tups, false);
+                for (boolean batches : new boolean[] { false, true }) {
+                    int[] gbfields = gbfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gbfield };
+                    Type[] gbtypes = gbfield == Aggregator.NO_GROUPING ? new Type[0] : new Type[] { Type.INT_TYPE };
+                    HashAggregator agg = new HashAggregator(gbfields, gbtypes,
+                            new int[] { 2 }, new Type[] { Type.INT_TYPE }, new Op[] { op });
+                    merge(agg, tups, batches);
+                    assertEquals(op + " by " + gbfield, results(expected), results(agg));
+                }
+            }
+        }
+    }
+
+    @Test public void severalFieldsAndAggregates() throws Exception {
+        List<Tuple> tups = tuples();
+        HashMap<List<Integer>, int[]> expected = new HashMap<List<Integer>, int[]>();
+        for (Tuple t : tups) {
+            int a = ((IntField) t.getField(0)).getValue();
+            int b = ((IntField) t.getField(1)).getValue();
+            int v = ((IntField) t.getField(2)).getValue();
+            List<Integer> key = Arrays.asList(b, a);
+            int[] acc = expected.get(key);
+            if (acc == null) {
+                acc = new int[] { 0, 0, Integer.MIN_VALUE };
+                expected.put(key, acc);
+            }
+            acc[0]++;
+            acc[1] += v;
+            acc[2] = Math.max(acc[2], v);
+        }
+        ArrayList<String> rows = new ArrayList<String>();
+        for (Map.Entry<List<Integer>, int[]> e : expected.entrySet()) {
+            int[] acc = e.getValue();
+            rows.add(e.getKey().get(0) + "\t" + e.getKey().get(1) + "\t"
+                    + acc[0] + "\t" + acc[1] + "\t" + acc[2]);
+        }
+        Collections.sort(rows);
+
+        for (boolean batches : new boolean[] { false, true }) {
+            HashAggregator agg = new HashAggregator(new int[] { 1, 0 },
+                    new Type[] { Type.INT_TYPE, Type.INT_TYPE }, new int[] { 2, 2, 2 },
+                    new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+                    new Op[] { Op.COUNT, Op.SUM, Op.MAX });
+            merge(agg, tups, batches);
+            assertEquals(rows, results(agg));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stringsOnlyCounted() {
+        new HashAggregator(new int[0], new Type[0], new int[] { 0 },
+                new Type[] { Type.STRING_TYPE }, new Op[] { Op.SUM });
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for HashEquiJoin with budgets small enough that it spills, against
+ * the nested loops Join.
+ */
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private static final JoinPredicate EQ = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    /** @return n tuples of (key below keys, row number), and skewed of key 7 */
+    private static List<Tuple> tuples(int n, int keys, int skewed, long seed) {
+        Random r = new Random(seed);
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            tups.add(Utility.getHeapTuple(new int[] { r.nextInt(keys), i }));
+        for (int i = 0; i < skewed; i++)
+            tups.add(Utility.getHeapTuple(new int[] { 7, n + i }));
+        Collections.shuffle(tups, r);
+        return tups;
+    }
+
+    private static DbIterator scan(List<Tuple> tups) {
+        return new TupleIterator(Utility.getTupleDesc(2), tups);
+    }
+
+    /** @return the tuples it returns, as strings, sorted */
+    private static List<String> read(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** @return what the nested loops join of tups1 and tups2 returns */
+    private static List<String> expected(List<Tuple> tups1, List<Tuple> tups2) throws Exception {
+        Join j = new Join(EQ, scan(tups1), scan(tups2));
+        j.open();
+        List<String> rows = read(j);
+        j.close();
+        return rows;
+    }
+
+    /** @return the number of spill files in the temporary directory */
+    private static int spillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("spill") && name.endsWith(".dat");
+            }
+        });
+        return names == null ? 0 : names.length;
+    }
+
+    @Test public void inMemory() throws Exception {
+        List<Tuple> tups1 = tuples(500, 300, 0, 1), tups2 = tuples(700, 300, 0, 2);
+        HashEquiJoin j = new HashEquiJoin(EQ, scan(tups1), scan(tups2), 1000);
+        j.open();
+        assertEquals(expected(tups1, tups2), read(j));
+        j.close();
+    }
+
+    @Test public void spills() throws Exception {
+        List<Tuple> tups1 = tuples(3000, 1000, 0, 1), tups2 = tuples(2000, 1000, 0, 2);
+        List<String> exp = expected(tups1, tups2);
+        // from keeping most partitions in memory to splitting them again
+        for (int budget : new int[] { 2500, 500, 20 }) {
+            HashEquiJoin j = new HashEquiJoin(EQ, scan(tups1), scan(tups2), budget);
+            j.open();
+            assertEquals("budget " + budget, exp, read(j));
+            j.close();
+        }
+    }
+
+    @Test public void skewedKeys() throws Exception {
+        // the tuples of key 7 cannot be split apart, so their partition is
+        // joined a budget of them at a time
+        List<Tuple> tups1 = tuples(400, 100, 300, 1), tups2 = tuples(300, 100, 20, 2);
+        HashEquiJoin j = new HashEquiJoin(EQ, scan(tups1), scan(tups2), 50);
+        j.open();
+        assertEquals(expected(tups1, tups2), read(j));
+        j.close();
+    }
+
+    @Test public void rewind() throws Exception {
+        List<Tuple> tups1 = tuples(2000, 500, 100, 1), tups2 = tuples(1000, 500, 10, 2);
+        List<String> exp = expected(tups1, tups2);
+        HashEquiJoin j = new HashEquiJoin(EQ, scan(tups1), scan(tups2), 100);
+        j.open();
+        // part way, while passes are still to run
+        for (int i = 0; i < exp.size() / 2; i++)
+            j.next();
+        j.rewind();
+        assertEquals(exp, read(j));
+        j.rewind();
+        assertEquals(exp, read(j));
+        j.close();
+    }
+
+    @Test public void removesSpillFiles() throws Exception {
+        List<Tuple> tups1 = tuples(2000, 500, 100, 1), tups2 = tuples(1000, 500, 10, 2);
+        int before = spillFiles();
+
+        HashEquiJoin j = new HashEquiJoin(EQ, scan(tups1), scan(tups2), 100);
+        j.open();
+        j.next();
+        assertTrue(spillFiles() > before);
+        // closed part way through
+        j.close();
+        assertEquals(before, spillFiles());
+
+        j = new HashEquiJoin(EQ, scan(tups1), scan(tups2), 100);
+        j.open();
+        read(j);
+        j.close();
+        assertEquals(before, spillFiles());
+    }
+}
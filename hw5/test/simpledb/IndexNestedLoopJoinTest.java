@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for IndexNestedLoopJoin against the nested loops Join, and for
+ * JoinOptimizer picking it.
+ */
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    private BTreeFile bf;
+    private TransactionId tid;
+
+    /** Creates a B+ tree on c0 of 20000 tuples (c0 below 1000, c1). */
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        File txt = File.createTempFile("inl", ".txt");
+        txt.deleteOnExit();
+        PrintWriter w = new PrintWriter(txt);
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++)
+            w.println(r.nextInt(1000) + "," + i);
+        w.close();
+        File dat = File.createTempFile("inl", ".dat");
+        dat.deleteOnExit();
+        Type[] types = { Type.INT_TYPE, Type.INT_TYPE };
+        HeapFileEncoder.convertBTree(txt, dat, types, 0, ',');
+        bf = new BTreeFile(dat, new TupleDesc(types, new String[] { "c0", "c1" }), 0);
+        Database.getCatalog().addTable(bf, "btree" + bf.getId());
+        tid = new TransactionId();
+    }
+
+    /** @return tuples of keys around and past the ends of the tree's, some repeated */
+    private static List<Tuple> outer() {
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        int[] keys = { -1, 0, 0, 1, 7, 500, 500, 998, 999, 1000 };
+        for (int i = 0; i < keys.length; i++)
+            tups.add(Utility.getHeapTuple(new int[] { i, keys[i] }));
+        return tups;
+    }
+
+    /** @return the tuples it returns, as strings, sorted */
+    private static List<String> read(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test public void matchesJoin() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        for (Predicate.Op op : OPS) {
+            // the field of the outer tuple on the left: the tree is searched
+            // with the reverse of op
+            JoinPredicate p = new JoinPredicate(1, op, 0);
+            List<String> exp = read(new Join(p, new TupleIterator(td, outer()),
+                    new SeqScan(tid, bf.getId(), "b")));
+            assertFalse(exp.isEmpty());
+            IndexNestedLoopJoin j = new IndexNestedLoopJoin(p,
+                    new TupleIterator(td, outer()), new SeqScan(tid, bf.getId(), "b"));
+            assertEquals(op.toString(), exp, read(j));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void rewind() throws Exception {
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.LESS_THAN_OR_EQ, 0);
+        IndexNestedLoopJoin j = new IndexNestedLoopJoin(p,
+                new TupleIterator(Utility.getTupleDesc(2), outer()),
+                new SeqScan(tid, bf.getId(), "b"));
+        j.open();
+        for (int i = 0; i < 100; i++)
+            j.next();
+        j.rewind();
+        ArrayList<String> rows = new ArrayList<String>();
+        while (j.hasNext())
+            rows.add(j.next().toString());
+        j.close();
+        Collections.sort(rows);
+        assertEquals(read(j), rows);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void optimizerPicksIndexJoinForSmallOuter() throws Exception {
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c1", "c0", Predicate.Op.EQUALS);
+        // a one page table is joined by searching the tree for each tuple
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, 1000, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        DbIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, small.getId(), "a"),
+                new SeqScan(tid, bf.getId(), "b"));
+        assertTrue(j.getClass().getName(), j instanceof IndexNestedLoopJoin);
+
+        // a table as large as the tree is not
+        HeapFile large = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, large.getId(), "a"),
+                new SeqScan(tid, bf.getId(), "b"));
+        assertFalse(j instanceof IndexNestedLoopJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -0,0 +1,43 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the join implementations JoinOptimizer picks.
+ */
+public class JoinOptimizerTest extends SimpleDbTestBase {
+
+    private HeapFile hf1, hf2;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf1 = SystemTestUtil.createRandomHeapFile(2, 3000, null, new ArrayList<ArrayList<Integer>>());
+        hf2 = SystemTestUtil.createRandomHeapFile(2, 2000, null, new ArrayList<ArrayList<Integer>>());
+        tid = new TransactionId();
+    }
+
+    @Test public void parallelJoinWithinMemoryBudget() throws Exception {
+        SeqScan s1 = new SeqScan(tid, hf1.getId(), "a");
+        SeqScan s2 = new SeqScan(tid, hf2.getId(), "b");
+        int pages = hf1.numPages() + hf2.numPages();
+        int tuples = JoinOptimizer.inputTuples(s1) + JoinOptimizer.inputTuples(s2);
+        assertTrue(tuples >= 5000);
+
+        assertTrue(JoinOptimizer.runsInParallel(s1, s2, pages, tuples));
+        // too small to be worth the threads
+        assertFalse(JoinOptimizer.runsInParallel(s1, s2, pages + 1, tuples));
+        // too large to hold in memory
+        assertFalse(JoinOptimizer.runsInParallel(s1, s2, pages, tuples - 1));
+        assertFalse(JoinOptimizer.runsInParallel(s1, s2, 1, 1000));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
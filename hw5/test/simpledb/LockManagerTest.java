@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the page lock manager.
+ */
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private TransactionId t1, t2;
+    private PageId p0, p1;
+
+    @Before public void setUp() throws Exception {
+        lm = new LockManager();
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        p0 = new HeapPageId(0, 0);
+        p1 = new HeapPageId(0, 1);
+    }
+
+    /** Acquire a lock on a new thread, counting down done once it is granted. */
+    private Thread acquireAsync(final TransactionId tid, final PageId pid,
+            final Permissions perm, final CountDownLatch done) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.acquireLock(tid, pid, perm);
+                    done.countDown();
+                } catch (DeadlockException e) {
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertTrue(lm.holdsLock(t2, p0));
+        assertEquals(0, lm.getWaitCount(p0));
+    }
+
+    @Test public void releaseHandsOffToWaiter() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(t2, p0, Permissions.READ_ONLY, done);
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        lm.releaseLock(t1, p0);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(lm.holdsLock(t2, p0));
+        assertEquals(1, lm.getWaitCount(p0));
+        assertTrue(lm.getWaitNanos(p0) > 0);
+    }
+
+    @Test public void upgradeWhenSoleHolder() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(t2, p0, Permissions.READ_ONLY, done);
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(t1);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void upgradeGoesAheadOfQueuedWriters() throws Exception {
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+        CountDownLatch writer = new CountDownLatch(1);
+        acquireAsync(t3, p0, Permissions.READ_WRITE, writer);
+        Thread.sleep(50);
+        CountDownLatch upgrade = new CountDownLatch(1);
+        acquireAsync(t1, p0, Permissions.READ_WRITE, upgrade);
+        Thread.sleep(50);
+        lm.releaseLock(t2, p0);
+        assertTrue(upgrade.await(1, TimeUnit.SECONDS));
+        assertEquals(1, writer.getCount());
+        lm.releaseAllLocks(t1);
+        assertTrue(writer.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void detectsDeadlock() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(t2, p1, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(t1, p1, Permissions.READ_WRITE, done);
+        Thread.sleep(50);
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t2);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void waitDieAbortsYoungerRequester() throws Exception {
+        lm = new LockManager(DeadlockPolicy.WAIT_DIE);
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+            fail("younger transaction should die");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t1);
+        lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(t1, p0, Permissions.READ_ONLY, done);
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(t2);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void waitDieRestartKeepsItsAge() throws Exception {
+        lm = new LockManager(DeadlockPolicy.WAIT_DIE);
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+            fail("younger transaction should die");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t2);
+        // started after t2 died, but before it restarted
+        TransactionId t3 = new TransactionId();
+        TransactionId restart = new TransactionId(t2);
+        assertTrue(restart.isYoungerThan(t1));
+        assertTrue(t3.isYoungerThan(restart));
+
+        lm.acquireLock(t3, p1, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(restart, p1, Permissions.READ_ONLY, done);
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(t3);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void woundWaitAbortsYoungerHolder() throws Exception {
+        lm = new LockManager(DeadlockPolicy.WOUND_WAIT);
+        lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(t1, p0, Permissions.READ_WRITE, done);
+        Thread.sleep(50);
+        try {
+            lm.acquireLock(t2, p1, Permissions.READ_ONLY);
+            fail("wounded transaction should abort on its next request");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t2);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void timeoutAbortsLongWait() throws Exception {
+        lm = new LockManager(DeadlockPolicy.TIMEOUT);
+        lm.setLockTimeout(50);
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+            fail("expected a timeout");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        assertFalse(lm.holdsLock(t2, p0));
+    }
+
+    @Test public void intentionLocksAllowOtherPages() throws Exception {
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(t2, p1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertTrue(lm.holdsLock(t2, p1));
+        assertFalse(lm.holdsLock(t1, p1));
+    }
+
+    @Test public void escalatesToTableLock() throws Exception {
+        lm.setEscalationThreshold(2);
+        for (int i = 0; i < 3; i++)
+            lm.acquireLock(t1, new HeapPageId(0, i), Permissions.READ_ONLY);
+        // one table lock instead of three page locks
+        assertEquals(1, lm.getLockTableSize());
+        assertNull(lm.pagesLockedByTid(t1));
+        assertTrue(lm.holdsLock(t1, new HeapPageId(0, 7)));
+
+        // readers of other pages are still let in, writers are not
+        lm.acquireLock(t2, new HeapPageId(0, 5), Permissions.READ_ONLY);
+        CountDownLatch done = new CountDownLatch(1);
+        acquireAsync(t2, new HeapPageId(0, 6), Permissions.READ_WRITE, done);
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        lm.releaseAllLocks(t1);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test public void escalationDoesNotWait() throws Exception {
+        lm.setEscalationThreshold(1);
+        lm.acquireLock(t2, new HeapPageId(0, 9), Permissions.READ_WRITE);
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t1, p1, Permissions.READ_ONLY);
+        // t2's IX lock on the table keeps t1 at page granularity
+        assertEquals(2, lm.pagesLockedByTid(t1).size());
+    }
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a mapped HeapFile reads the pages written after its chunks
+ * were mapped, including pages appended past the end of a chunk.
+ */
+public class MappedHeapFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("mapped", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        hf = new HeapFile(f, TD, true);
+        Database.getCatalog().addTable(hf, "mapped" + hf.getId());
+        assertTrue(hf.isMapped());
+    }
+
+    private static Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /** Writes page pgno holding n tuples (version, pgno, i). */
+    private void writePage(int pgno, int version, int n) throws Exception {
+        HeapPage p = new HeapPage(new HeapPageId(hf.getId(), pgno),
+                HeapPage.createEmptyPageData());
+        for (int i = 0; i < n; i++)
+            p.insertTuple(tuple(version, pgno * 1000 + i));
+        hf.writePage(p);
+    }
+
+    /** Reads page pgno and checks that it is what writePage wrote. */
+    private void checkPage(int pgno, int version, int n) throws Exception {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgno));
+        Iterator<Tuple> it = p.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(version), t.getField(0));
+            assertEquals(new IntField(pgno * 1000 + i), t.getField(1));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    private void checkPastEnd(int pgno) {
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), pgno));
+            fail("read page " + pgno + " of " + hf.numPages());
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test public void readsPagesAppendedAfterMapping() throws Exception {
+        for (int i = 0; i < 3; i++)
+            writePage(i, 0, 3);
+        // maps the first chunk as far as the file goes, three pages
+        checkPage(2, 0, 3);
+        checkPastEnd(3);
+
+        // grow the file past the end of the first chunk
+        int pages = HeapFile.PAGES_PER_CHUNK + 5;
+        for (int i = 3; i < pages; i++)
+            writePage(i, 0, i % 4);
+        assertEquals(pages, hf.numPages());
+        checkPage(3, 0, 3);
+        checkPage(HeapFile.PAGES_PER_CHUNK - 1, 0, (HeapFile.PAGES_PER_CHUNK - 1) % 4);
+        checkPage(HeapFile.PAGES_PER_CHUNK, 0, HeapFile.PAGES_PER_CHUNK % 4);
+        checkPage(pages - 1, 0, (pages - 1) % 4);
+        checkPastEnd(pages);
+        checkPage(0, 0, 3);
+
+        // pages written over are read through the mapping too
+        writePage(1, 1, 5);
+        writePage(HeapFile.PAGES_PER_CHUNK + 1, 1, 2);
+        checkPage(1, 1, 5);
+        checkPage(HeapFile.PAGES_PER_CHUNK + 1, 1, 2);
+    }
+
+    @Test public void scansPagesAllocatedByInserts() throws Exception {
+        writePage(0, 0, 0);
+        checkPage(0, 0, 0);
+        TransactionId tid = new TransactionId();
+        int n = 0;
+        while (hf.numPages() < 4) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(7, n));
+            n++;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        boolean[] seen = new boolean[n];
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(7), t.getField(0));
+            int i = ((IntField) t.getField(1)).getValue();
+            assertFalse(seen[i]);
+            seen[i] = true;
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(n, count);
+    }
+}
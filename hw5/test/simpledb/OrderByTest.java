@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for OrderBy on children that do and do not fit in memory, and for
+ * TopK and Limit.
+ */
+public class OrderByTest extends SimpleDbTestBase {
+
+    /** @return n tuples of two fields, the first with many repeats */
+    private static List<Tuple> tuples(int n) {
+        Random r = new Random(1);
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            tups.add(Utility.getHeapTuple(new int[] { r.nextInt(100), r.nextInt() }));
+        return tups;
+    }
+
+    /** @return the fields of the tuples it returns */
+    private static List<List<Integer>> read(DbIterator it) throws Exception {
+        ArrayList<List<Integer>> got = new ArrayList<List<Integer>>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+                row.add(((IntField) t.getField(j)).getValue());
+            got.add(row);
+        }
+        return got;
+    }
+
+    private void checkSort(int n) throws Exception {
+        checkSort(n, OrderBy.SORT_TUPLES, OrderBy.FAN_IN);
+    }
+
+    private void checkSort(int n, int sortTuples, int fanIn) throws Exception {
+        List<Tuple> tups = tuples(n);
+        OrderBy ob = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                new TupleIterator(Utility.getTupleDesc(2), tups), sortTuples, fanIn);
+        ob.open();
+        List<List<Integer>> got = read(ob);
+        assertEquals(n, got.size());
+        for (int i = 1; i < got.size(); i++) {
+            List<Integer> a = got.get(i - 1), b = got.get(i);
+            assertTrue(a.get(0) < b.get(0)
+                    || (a.get(0).equals(b.get(0)) && a.get(1) >= b.get(1)));
+        }
+        ob.rewind();
+        assertEquals(got, read(ob));
+        ob.close();
+    }
+
+    @Test public void sortInMemory() throws Exception {
+        checkSort(OrderBy.SORT_TUPLES / 2);
+    }
+
+    @Test public void sortInRuns() throws Exception {
+        checkSort(3 * OrderBy.SORT_TUPLES + 7);
+    }
+
+    @Test public void sortInSeveralMergePasses() throws Exception {
+        // 201 runs: merged into 51, 13 and 4, then returned
+        checkSort(20007, 100, 4);
+        // 10 runs, the last of one tuple, merged two at a time
+        checkSort(901, 100, 2);
+    }
+
+    @Test public void singleFieldDescending() throws Exception {
+        int n = 2 * OrderBy.SORT_TUPLES + 1;
+        OrderBy ob = new OrderBy(1, false,
+                new TupleIterator(Utility.getTupleDesc(2), tuples(n)));
+        ob.open();
+        List<List<Integer>> got = read(ob);
+        ob.close();
+        assertEquals(n, got.size());
+        for (int i = 1; i < got.size(); i++)
+            assertTrue(got.get(i - 1).get(1) >= got.get(i).get(1));
+    }
+
+    @Test public void topKMatchesOrderByLimit() throws Exception {
+        List<Tuple> tups = tuples(5000);
+        TupleDesc td = Utility.getTupleDesc(2);
+        for (int k : new int[] { 0, 1, 10, 99, 4999, 5000, 6000 }) {
+            // ties on field 0 must come in the order of the child
+            Limit ob = new Limit(k, new OrderBy(0, false, new TupleIterator(td, tups)));
+            TopK topk = new TopK(0, false, k, new TupleIterator(td, tups));
+            ob.open();
+            topk.open();
+            List<List<Integer>> got = read(topk);
+            assertEquals("k = " + k, read(ob), got);
+            topk.rewind();
+            assertEquals(got, read(topk));
+            ob.close();
+            topk.close();
+        }
+    }
+
+    @Test public void limitStopsEarly() throws Exception {
+        final int[] pulled = new int[1];
+        TupleIterator child = new TupleIterator(Utility.getTupleDesc(2), tuples(100)) {
+            public Tuple next() {
+                pulled[0]++;
+                return super.next();
+            }
+        };
+        Limit l = new Limit(7, child);
+        l.open();
+        assertEquals(7, read(l).size());
+        assertEquals(7, pulled[0]);
+        l.rewind();
+        assertEquals(7, read(l).size());
+        l.close();
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the cost of a buffer pool miss at the file level: reading and
+ * writing single pages of a HeapFile at random offsets. The same work is
+ * also done the way HeapFile used to do it, opening a stream or a
+ * RandomAccessFile for every page, for comparison, and reads are also
+ * timed on a mapped HeapFile over the same file.
+ * <p>
+ * Run with: java simpledb.PageIoBenchmark [pages] [iterations]
+ */
+public class PageIoBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        int rowsPerPage = BufferPool.PAGE_SIZE * 8 / (Type.INT_TYPE.getLen() * 2 * 8 + 1);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, numPages * rowsPerPage, null, null);
+        System.out.println("table of " + hf.numPages() + " pages, " + iterations + " operations each");
+
+        HeapFile mapped = new HeapFile(hf.getFile(), hf.getTupleDesc(), true);
+
+        // warm up all paths and the OS page cache
+        run(hf, numPages, iterations, false, false);
+        run(hf, numPages, iterations, true, false);
+        run(mapped, numPages, iterations, true, false);
+
+        report("read, stream per page", run(hf, numPages, iterations, false, false), iterations);
+        report("read, FileChannel", run(hf, numPages, iterations, true, false), iterations);
+        report("read, mapped", run(mapped, numPages, iterations, true, false), iterations);
+        report("write, file per page", run(hf, numPages, iterations, false, true), iterations);
+        report("write, FileChannel", run(hf, numPages, iterations, true, true), iterations);
+    }
+
+    private static void report(String what, long nanos, int iterations) {
+        System.out.printf("%-24s %8.2f us/page%n", what, nanos / 1000.0 / iterations);
+    }
+
+    /** @return the nanoseconds taken by iterations random page reads or writes */
+    private static long run(HeapFile hf, int numPages, int iterations,
+            boolean channel, boolean write) throws IOException {
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), random.nextInt(numPages));
+            if (channel) {
+                Page p = hf.readPage(pid);
+                if (write)
+                    hf.writePage(p);
+            } else {
+                Page p = readPerPage(hf.getFile(), pid);
+                if (write)
+                    writePerPage(hf.getFile(), p);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** HeapFile.readPage as it used to be. */
+    private static Page readPerPage(File f, HeapPageId pid) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f));
+        try {
+            byte pageBuf[] = new byte[BufferPool.PAGE_SIZE];
+            bis.skip((long) pid.pageNumber() * BufferPool.PAGE_SIZE);
+            bis.read(pageBuf, 0, BufferPool.PAGE_SIZE);
+            return new HeapPage(pid, pageBuf);
+        } finally {
+            bis.close();
+        }
+    }
+
+    /** HeapFile.writePage as it used to be. */
+    private static void writePerPage(File f, Page p) throws IOException {
+        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+        rf.seek((long) p.getId().pageNumber() * BufferPool.PAGE_SIZE);
+        rf.write(p.getPageData());
+        rf.close();
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Times ParallelHashJoin joining two tables of (id, key) tuples on key, with
+ * all pages cached, on 1, 2, 4, ... threads up to maxThreads (by default
+ * the number of processors), and checks that every run gives the same
+ * result. Also times HashEquiJoin, which joins on one thread and writes
+ * out what does not fit in memory, and checks it gives that result too.
+ * <p>
+ * Run with: java -Xmx8g simpledb.ParallelJoinBenchmark [rows] [runs] [maxThreads]
+ * (10000000 rows for the 10M x 10M join).
+ */
+public class ParallelJoinBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "id", "k" });
+        final HeapFile left = createTable(td, rows, 1);
+        final HeapFile right = createTable(td, rows, 2);
+        Database.getCatalog().addTable(left, "l");
+        Database.getCatalog().addTable(right, "r");
+        Database.resetBufferPool(left.numPages() + right.numPages() + 16);
+
+        System.out.println(rows + " x " + rows + " rows, best of " + runs + " runs");
+        System.out.printf("%-20s %12s %10s%n", "join", "ms", "speedup");
+        long[] expected = new long[2];
+        double serial = time(new Plan() {
+            public DbIterator create(TransactionId tid) {
+                return new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 1),
+                        new SeqScan(tid, left.getId(), "l"),
+                        new SeqScan(tid, right.getId(), "r"));
+            }
+        }, runs, expected);
+        System.out.printf("%-20s %12.1f%n", "HashEquiJoin", serial / 1e6);
+        double oneThread = 0;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final int n = threads;
+            long[] result = new long[2];
+            double nanos = time(new Plan() {
+                public DbIterator create(TransactionId tid) {
+                    return new ParallelHashJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 1),
+                            new SeqScan(tid, left.getId(), "l"),
+                            new SeqScan(tid, right.getId(), "r"), n);
+                }
+            }, runs, result);
+            if (!Arrays.equals(expected, result))
+                throw new RuntimeException(n + " threads gave " + Arrays.toString(result)
+                        + ", expected " + Arrays.toString(expected));
+            if (threads == 1)
+                oneThread = nanos;
+            System.out.printf("%-20s %12.1f %10.2f%n", "parallel, " + n + " threads",
+                    nanos / 1e6, oneThread / nanos);
+        }
+    }
+
+    private interface Plan {
+        DbIterator create(TransactionId tid);
+    }
+
+    /** @return a HeapFile of rows tuples (i, random key below rows) */
+    private static HeapFile createTable(TupleDesc td, int rows, long seed) throws IOException {
+        File text = File.createTempFile("join", ".txt");
+        File data = File.createTempFile("join", ".dat");
+        text.deleteOnExit();
+        data.deleteOnExit();
+        FreeSpaceMap.fileFor(data).deleteOnExit();
+        Random random = new Random(seed);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(text)));
+        try {
+            for (int i = 0; i < rows; i++)
+                out.println(i + "," + random.nextInt(rows));
+        } finally {
+            out.close();
+        }
+        HeapFileEncoder.convert(text, data, BufferPool.PAGE_SIZE, td.numFields());
+        return new HeapFile(data, td);
+    }
+
+    /**
+     * Runs plan runs times a batch at a time, leaving the number of tuples
+     * it returns in result[0] and a checksum of their ids in result[1].
+     *
+     * @return the nanoseconds the fastest run took
+     */
+    private static double time(Plan plan, int runs, long[] result) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            TransactionId tid = new TransactionId();
+            DbIterator it = plan.create(tid);
+            long count = 0, sum = 0;
+            long start = System.nanoTime();
+            it.open();
+            TupleBatch b;
+            while ((b = it.nextBatch()) != null) {
+                int[] ids1 = b.getInts(0), ids2 = b.getInts(2);
+                for (int k = 0; k < b.size(); k++) {
+                    int r = b.row(k);
+                    sum += ids1[r] + 31L * ids2[r];
+                }
+                count += b.size();
+            }
+            it.close();
+            best = Math.min(best, System.nanoTime() - start);
+            Database.getBufferPool().transactionComplete(tid);
+            result[0] = count;
+            result[1] = sum;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the parser runs a statement in its own transaction again when
+ * the deadlock policy aborts it.
+ */
+public class ParserTest extends SimpleDbTestBase {
+
+    /** @return what the parser prints while it runs sql */
+    private static String run(Parser p, String sql) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+        try {
+            p.processNextStatement(sql);
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1))
+            n++;
+        return n;
+    }
+
+    @Test public void statementRetriedWhenAborted() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES, BufferPool.DEFAULT_POLICY,
+                DeadlockPolicy.WAIT_DIE);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+        String name = "retry" + (hf.getId() & 0x7fffffff);
+        Database.getCatalog().addTable(hf, name);
+        TableStats.computeStatistics();
+        Parser p = new Parser();
+        String delete = "delete from " + name + ";";
+
+        // an older transaction holds the table's page, so each attempt dies
+        TransactionId holder = new TransactionId();
+        Database.getBufferPool().getPage(holder, new HeapPageId(hf.getId(), 0),
+                Permissions.READ_WRITE);
+        String out = run(p, delete);
+        assertEquals(out, Parser.STATEMENT_ATTEMPTS - 1, count(out, "retrying"));
+        assertEquals(out, 1, count(out, "aborted because of unhandled error"));
+        Database.getBufferPool().transactionComplete(holder);
+
+        out = run(p, delete);
+        assertEquals(out, 0, count(out, "retrying"));
+        assertEquals(out, 1, count(out, "committed"));
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that scans of a PaxHeapFile return what scans of the same rows in
+ * a HeapFile do, with all columns and with some.
+ */
+public class PaxHeapFileTest extends SimpleDbTestBase {
+
+    static final Type[] TYPES = { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+
+    private HeapFile plain;
+    private HeapFile pax;
+    private TransactionId tid;
+
+    /** @return a text file of n rows of (row number, key below 7, one of 5 strings, value) */
+    static File rows(int n) throws Exception {
+        File txt = File.createTempFile("rows", ".txt");
+        txt.deleteOnExit();
+        PrintWriter w = new PrintWriter(txt);
+        for (int i = 0; i < n; i++)
+            w.println(i + "," + (i % 7) + ",s" + (i % 5) + "," + (i * 31 % 1000));
+        w.close();
+        return txt;
+    }
+
+    /** @return a new temporary file for a table */
+    static File tableFile() throws Exception {
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        return f;
+    }
+
+    /** Adds hf to the catalog and returns it. */
+    static HeapFile add(HeapFile hf) {
+        Database.getCatalog().addTable(hf, "table" + hf.getId());
+        return hf;
+    }
+
+    /** @return the tuples it returns */
+    static List<Tuple> tuples(DbIterator it) throws Exception {
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            tups.add(it.next());
+        it.close();
+        return tups;
+    }
+
+    /** @return the tuples scan returns, read a batch at a time */
+    static List<Tuple> batches(SeqScan scan) throws Exception {
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        scan.open();
+        TupleBatch b;
+        while ((b = scan.nextBatch()) != null) {
+            for (int k = 0; k < b.size(); k++)
+                tups.add(b.getTuple(b.row(k)));
+        }
+        scan.close();
+        return tups;
+    }
+
+    /**
+     * @param unset true if the fields not in fields must be null
+     * @return fields of tups, as strings, sorted
+     */
+    static List<String> project(List<Tuple> tups, int[] fields, boolean unset) {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (Tuple t : tups) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+                boolean wanted = false;
+                for (int f : fields)
+                    wanted |= f == j;
+                if (wanted)
+                    sb.append(t.getField(j)).append('\t');
+                else if (unset)
+                    assertNull(t.getField(j));
+            }
+            rows.add(sb.toString());
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** @return a scan of hf that decodes only fields, or all if fields is null */
+    SeqScan scan(HeapFile hf, int[] fields) {
+        SeqScan s = new SeqScan(tid, hf.getId(), "t");
+        if (fields != null) {
+            HashSet<Integer> set = new HashSet<Integer>();
+            for (int f : fields)
+                set.add(f);
+            s.setColumns(set);
+        }
+        return s;
+    }
+
+    @Before public void setUp() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        File txt = rows(3000);
+        File f1 = tableFile(), f2 = tableFile();
+        HeapFileEncoder.convert(txt, f1, BufferPool.PAGE_SIZE, TYPES.length, TYPES, ',');
+        HeapFileEncoder.convertPax(txt, f2, TYPES, ',');
+        plain = add(new HeapFile(f1, new TupleDesc(TYPES)));
+        pax = add(new PaxHeapFile(f2, new TupleDesc(TYPES)));
+        tid = new TransactionId();
+    }
+
+    @Test public void allColumns() throws Exception {
+        int[] all = { 0, 1, 2, 3 };
+        List<String> exp = project(tuples(scan(plain, null)), all, false);
+        assertEquals(3000, exp.size());
+        assertEquals(plain.numPages(), pax.numPages());
+        assertEquals(exp, project(tuples(scan(pax, null)), all, false));
+        assertEquals(exp, project(batches(scan(pax, null)), all, false));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void someColumns() throws Exception {
+        int[][] sets = { { 1, 3 }, { 2 }, { 0, 2, 3 } };
+        for (int[] fields : sets) {
+            List<String> exp = project(tuples(scan(plain, null)), fields, false);
+            assertEquals(exp, project(tuples(scan(pax, fields)), fields, true));
+            assertEquals(exp, project(batches(scan(pax, fields)), fields, true));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void insertedTuplesReadBack() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(new TupleDesc(TYPES));
+            t.setField(0, new IntField(-i));
+            t.setField(1, new IntField(i % 3));
+            t.setField(2, new StringField("new" + i, Type.STRING_LEN));
+            t.setField(3, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, plain.getId(), t);
+            Database.getBufferPool().insertTuple(tid, pax.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        int[] fields = { 0, 2 };
+        assertEquals(project(tuples(scan(plain, null)), fields, false),
+                project(tuples(scan(pax, fields)), fields, true));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
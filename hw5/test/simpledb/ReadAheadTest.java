@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that scans that read ahead return the latest committed tuples, and
+ * that reading ahead stops at the end of the table.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = { Type.INT_TYPE, Type.INT_TYPE };
+
+    /** A HeapFile that counts the reads of each page, and of pages past its end. */
+    static class CountingHeapFile extends HeapFile {
+        final AtomicIntegerArray reads;
+        final AtomicInteger pastEnd = new AtomicInteger();
+
+        CountingHeapFile(File f, TupleDesc td, int maxPages) {
+            super(f, td);
+            reads = new AtomicIntegerArray(maxPages);
+        }
+
+        public Page readPage(PageId pid) {
+            if (pid.pageNumber() >= numPages())
+                pastEnd.incrementAndGet();
+            else
+                reads.incrementAndGet(pid.pageNumber());
+            return super.readPage(pid);
+        }
+
+        /** @return the number of reads so far, once no more are being made */
+        int quiescentReads() throws InterruptedException {
+            int last = -1;
+            for (int i = 0; i < 50; i++) {
+                int n = pastEnd.get();
+                for (int j = 0; j < reads.length(); j++)
+                    n += reads.get(j);
+                if (n == last)
+                    return n;
+                last = n;
+                Thread.sleep(100);
+            }
+            fail("reads did not stop");
+            return -1;
+        }
+    }
+
+    /** @return a table of rows (i, 0) filling about pages pages */
+    private static CountingHeapFile table(int pages) throws Exception {
+        File txt = File.createTempFile("ahead", ".txt");
+        txt.deleteOnExit();
+        PrintWriter w = new PrintWriter(txt);
+        int perPage = (BufferPool.PAGE_SIZE * 8) / (new TupleDesc(TYPES).getSize() * 8 + 1);
+        for (int i = 0; i < pages * perPage - perPage / 2; i++)
+            w.println(i + ",0");
+        w.close();
+        File f = File.createTempFile("ahead", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        HeapFileEncoder.convert(txt, f, BufferPool.PAGE_SIZE, TYPES.length, TYPES, ',');
+        CountingHeapFile hf = new CountingHeapFile(f, new TupleDesc(TYPES), pages + 1);
+        Database.getCatalog().addTable(hf, "ahead" + hf.getId());
+        assertEquals(pages, hf.numPages());
+        return hf;
+    }
+
+    private static SeqScan scan(TransactionId tid, HeapFile hf) {
+        SeqScan s = new SeqScan(tid, hf.getId(), "t");
+        s.setReadAhead(true);
+        return s;
+    }
+
+    @Test public void stopsAtEndOfTable() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        CountingHeapFile hf = table(40);
+        TransactionId tid = new TransactionId();
+        SeqScan s = scan(tid, hf);
+        s.open();
+        int n = 0;
+        while (s.hasNext()) {
+            s.next();
+            n++;
+        }
+        // a scan at the last page asks for nothing after it
+        ReadAhead ahead = new ReadAhead(hf);
+        for (int i = 0; i < 5; i++)
+            ahead.consumed(hf.numPages() - 1);
+        s.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(hf.numPages(), hf.quiescentReads());
+        assertEquals(0, hf.pastEnd.get());
+        for (int j = 0; j < hf.numPages(); j++)
+            assertEquals(1, hf.reads.get(j));
+        assertTrue(n > 0);
+    }
+
+    @Test public void seesCommittedChanges() throws Exception {
+        // a pool much smaller than the table, so pages read ahead evict
+        // pages changed by committed transactions, and are evicted in turn
+        Database.resetBufferPool(8);
+        CountingHeapFile hf = table(20);
+        for (int round = 1; round <= 3; round++) {
+            // each page is changed while the scan is a page or two before
+            // it, when the scan has often asked for it to be read ahead
+            setPage(hf, 0, round);
+            int next = 1;
+            TransactionId tid = new TransactionId();
+            SeqScan s = scan(tid, hf);
+            s.open();
+            int n = 0;
+            while (s.hasNext()) {
+                Tuple t = s.next();
+                assertEquals("tuple " + t.getField(0), new IntField(round), t.getField(1));
+                int pgno = t.getRecordId().getPageId().pageNumber();
+                while (next < hf.numPages() && next <= pgno + 2)
+                    setPage(hf, next++, round);
+                n++;
+            }
+            s.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(hf.numPages(), next);
+            assertTrue(n > 0);
+        }
+        hf.quiescentReads();
+        assertEquals(0, hf.pastEnd.get());
+    }
+
+    /** Sets the second field of the tuples on page pgno to v, and commits. */
+    private static void setPage(HeapFile hf, int pgno, int v) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), pgno), Permissions.READ_WRITE);
+        List<Tuple> tups = new ArrayList<Tuple>();
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            tups.add(it.next());
+        for (Tuple t : tups) {
+            Tuple u = new Tuple(t.getTupleDesc());
+            u.setField(0, t.getField(0));
+            u.setField(1, new IntField(v));
+            u.setRecordId(t.getRecordId());
+            Database.getBufferPool().updateTuple(tid, u);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
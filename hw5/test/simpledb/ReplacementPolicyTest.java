@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the buffer pool replacement policies.
+ */
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(0, pgno);
+    }
+
+    /** Every policy hands back each tracked page exactly once, then null. */
+    @Test public void drainsAllPages() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(4);
+            for (int i = 0; i < 8; i++)
+                policy.pageAccessed(pid(i));
+            policy.pageRemoved(pid(3));
+            HashSet<PageId> victims = new HashSet<PageId>();
+            PageId victim;
+            while ((victim = policy.chooseVictim()) != null)
+                assertTrue(kind + " returned " + victim + " twice", victims.add(victim));
+            assertEquals(kind.toString(), 7, victims.size());
+            assertFalse(victims.contains(pid(3)));
+        }
+    }
+
+    /** Hits from several threads at once leave each policy tracking every page. */
+    @Test public void concurrentHits() throws Exception {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            final ReplacementPolicy policy = kind.create(16);
+            for (int i = 0; i < 64; i++)
+                policy.pageAccessed(pid(i));
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int seed = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 20000; i++)
+                            policy.pageAccessed(pid((i * 7 + seed) % 64));
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread t : threads)
+                t.join();
+            HashSet<PageId> victims = new HashSet<PageId>();
+            PageId victim;
+            while ((victim = policy.chooseVictim()) != null)
+                assertTrue(kind + " returned " + victim + " twice", victims.add(victim));
+            assertEquals(kind.toString(), 64, victims.size());
+        }
+    }
+
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy(3);
+        policy.pageAccessed(pid(0));
+        policy.pageAccessed(pid(1));
+        policy.pageAccessed(pid(2));
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim());
+        policy.pageAccessed(pid(3));
+        assertEquals(pid(2), policy.chooseVictim());
+    }
+
+    @Test public void lruKPrefersPagesReferencedOnce() {
+        ReplacementPolicy policy = new LruKPolicy(2, 4);
+        policy.pageAccessed(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageAccessed(pid(1));
+        policy.pageAccessed(pid(1));
+        // a scan touches pages 2 and 3 once each
+        policy.pageAccessed(pid(2));
+        policy.pageAccessed(pid(3));
+        assertEquals(pid(2), policy.chooseVictim());
+        assertEquals(pid(3), policy.chooseVictim());
+        assertEquals(pid(0), policy.chooseVictim());
+    }
+
+    @Test public void twoQueuePromotesFromGhostQueue() {
+        ReplacementPolicy policy = new TwoQueuePolicy(8);
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(0), policy.chooseVictim());
+        // page 0 comes back while remembered in A1out, so it goes to Am
+        policy.pageAccessed(pid(0));
+        for (int i = 1; i <= 3; i++)
+            policy.pageAccessed(pid(i));
+        // A1in is over its quota of two pages, so it gives up its oldest page
+        assertEquals(pid(1), policy.chooseVictim());
+        assertEquals(pid(0), policy.chooseVictim());
+        assertEquals(pid(2), policy.chooseVictim());
+        assertEquals(pid(3), policy.chooseVictim());
+        assertNull(policy.chooseVictim());
+    }
+
+    @Test public void bufferPoolEvictsThroughPolicy() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2, ReplacementPolicy.Kind.LRU_K);
+        // 1100 rows of two ints fill three pages
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        PageId p1 = new HeapPageId(hf.getId(), 1);
+        PageId p2 = new HeapPageId(hf.getId(), 2);
+        Page page0 = bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        // page 1 was referenced only once, so it made room for page 2
+        assertSame(page0, bp.getPage(tid, p0, Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for read-only transactions that read snapshots instead of locking.
+ */
+public class SnapshotReadTest extends SimpleDbTestBase {
+
+    private BufferPool bp;
+    private HeapFile hf;
+    private PageId p0;
+
+    @Before public void setUp() throws Exception {
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    private static int count(Page p) {
+        int n = 0;
+        java.util.Iterator<Tuple> it = ((HeapPage) p).iterator();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    private void insert(Transaction t) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        tuples.add(Utility.getHeapTuple(new int[] { 1, 2 }));
+        Insert ins = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), tuples), hf.getId());
+        ins.open();
+        ins.next();
+        ins.close();
+    }
+
+    @Test public void readerDoesNotWaitForWriter() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer);
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        // the writer holds an exclusive lock, but the reader needs none
+        assertEquals(10, count(bp.getPage(reader.getId(), p0, Permissions.READ_ONLY)));
+        assertFalse(bp.holdsLock(reader.getId(), p0));
+
+        writer.commit();
+        // still the snapshot taken before the commit
+        assertEquals(10, count(bp.getPage(reader.getId(), p0, Permissions.READ_ONLY)));
+        reader.commit();
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(11, count(bp.getPage(later.getId(), p0, Permissions.READ_ONLY)));
+        later.commit();
+    }
+
+    @Test public void abortedWritesAreNeverSeen() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer);
+        Transaction reader = new Transaction(true);
+        reader.start();
+        writer.abort();
+        assertEquals(10, count(bp.getPage(reader.getId(), p0, Permissions.READ_ONLY)));
+        reader.commit();
+    }
+
+    @Test public void oldVersionsAreDropped() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer);
+        writer.commit();
+        assertEquals(2, bp.getVersionStore().getVersionCount());
+        reader.commit();
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    @Test public void lockedPagesAddVersionsOnlyIfChanged() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.getPage(writer.getId(), p0, Permissions.READ_WRITE);
+        writer.commit();
+        // the chain saved when the writer locked the page is dropped too
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+
+        writer = new Transaction();
+        writer.start();
+        bp.getPage(writer.getId(), p0, Permissions.READ_WRITE);
+        insert(writer);
+        writer.commit();
+        assertEquals(2, bp.getVersionStore().getVersionCount());
+        assertEquals(10, count(bp.getPage(reader.getId(), p0, Permissions.READ_ONLY)));
+        reader.commit();
+    }
+
+    @Test(expected = DbException.class)
+    public void readOnlyTransactionCannotWrite() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        try {
+            bp.getPage(reader.getId(), p0, Permissions.READ_WRITE);
+        } finally {
+            reader.commit();
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SortMergeJoin on each comparison it joins on, against the
+ * nested loops Join.
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] OPS = { Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+
+    /**
+     * @return n tuples of (key below keys, row number) in order of key, so
+     *   that most keys repeat
+     */
+    private static List<Tuple> sorted(int n, int keys, long seed) {
+        Random r = new Random(seed);
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            tups.add(Utility.getHeapTuple(new int[] { r.nextInt(keys), i }));
+        Collections.sort(tups, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                int x = ((IntField) a.getField(0)).getValue();
+                int y = ((IntField) b.getField(0)).getValue();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return tups;
+    }
+
+    private static DbIterator scan(List<Tuple> tups) {
+        return new TupleIterator(Utility.getTupleDesc(2), tups);
+    }
+
+    /** @return the tuples it returns, as strings, sorted */
+    private static List<String> read(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    @Test public void duplicateKeysEachOperator() throws Exception {
+        // keys repeat on both sides, and each side has keys the other lacks
+        List<Tuple> tups1 = sorted(300, 40, 1), tups2 = sorted(200, 50, 2);
+        for (Predicate.Op op : OPS) {
+            JoinPredicate p = new JoinPredicate(0, op, 0);
+            Join expected = new Join(p, scan(tups1), scan(tups2));
+            expected.open();
+            List<String> exp = read(expected);
+            expected.close();
+            assertFalse(exp.isEmpty());
+
+            SortMergeJoin j = new SortMergeJoin(p, scan(tups1), scan(tups2));
+            j.open();
+            assertEquals(op.toString(), exp, read(j));
+            j.rewind();
+            assertEquals(op.toString(), exp, read(j));
+            j.close();
+        }
+    }
+
+    @Test public void outputSortedOnLeftKey() throws Exception {
+        List<Tuple> tups1 = sorted(100, 20, 3), tups2 = sorted(100, 20, 4);
+        for (Predicate.Op op : OPS) {
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    scan(tups1), scan(tups2));
+            j.open();
+            int last = Integer.MIN_VALUE;
+            while (j.hasNext()) {
+                int k = ((IntField) j.next().getField(0)).getValue();
+                assertTrue(op.toString(), k >= last);
+                last = k;
+            }
+            j.close();
+        }
+    }
+
+    @Test public void bandJoinsHoldTheRightSide() {
+        int card2 = SortMergeJoin.BAND_TUPLES + 1;
+        assertTrue(Double.isInfinite(JoinOptimizer.sortMergeJoinCost(Predicate.Op.LESS_THAN,
+                10, card2, 1000, 1000, true, true)));
+        assertFalse(Double.isInfinite(JoinOptimizer.sortMergeJoinCost(Predicate.Op.EQUALS,
+                10, card2, 1000, 1000, true, true)));
+    }
+}
@@ -301,6 +301,10 @@ public class TestUtil {
             cur++;
             return tup;
 		}
+
+        public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+            return TupleBatch.read(this, null);
+        }
     }
 
     /**
@@ -384,6 +388,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.fileFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
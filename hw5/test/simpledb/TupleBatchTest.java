@@ -0,0 +1,84 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that TupleBatch returns null for the fields left unset, of int and
+ * string columns alike, however the rows were filled.
+ */
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+    /** @return a tuple of (a, s, c), with no second field if s is null */
+    private static Tuple tuple(int a, String s, int c) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        if (s != null)
+            t.setField(1, new StringField(s, Type.STRING_LEN));
+        t.setField(2, new IntField(c));
+        return t;
+    }
+
+    /** Checks that row r of b has only its last field, c, set. */
+    private static void assertRow(TupleBatch b, int r, int c) {
+        assertFalse(b.isSet(r, 0));
+        assertNull(b.getField(r, 0));
+        assertNull(b.getField(r, 1));
+        assertEquals(new IntField(c), b.getField(r, 2));
+        assertNull(b.getTuple(r).getField(0));
+    }
+
+    @Test public void unsetFieldsAreNull() {
+        TupleBatch b = new TupleBatch(TD, 4);
+        b.addTuple(tuple(1, "x", 2));
+        int r = b.addRow();
+        b.unset(r, 0);
+        b.setField(r, 2, new IntField(3));
+        assertRow(b, r, 3);
+        assertEquals(new IntField(1), b.getField(0, 0));
+
+        // a copy, a projection and a row copied elsewhere keep it unset
+        assertRow(b.copy(), r, 3);
+        assertNull(b.project(new TupleDesc(new Type[] { Type.INT_TYPE }), new int[] { 0 }).getField(r, 0));
+        TupleBatch d = new TupleBatch(TD, 4);
+        d.addTuple(tuple(4, "y", 5));
+        d.copyRow(b, r, 0, 0);
+        assertRow(d, 0, 3);
+        d.copyRow(b, 0, 0, 0);
+        assertEquals(new IntField(1), d.getField(0, 0));
+
+        // the row filled again after clearing is not left unset
+        b.clear();
+        b.addTuple(tuple(6, "z", 7));
+        r = b.addRow();
+        assertEquals(new IntField(6), b.getField(0, 0));
+        assertTrue(b.isSet(r, 0));
+    }
+
+    @Test public void spilledUnsetFieldsStayUnset() throws Exception {
+        TupleBatch b = new TupleBatch(TD, 4);
+        b.addTuple(tuple(1, "x", 2));
+        int r = b.addRow();
+        b.unset(r, 0);
+        b.setField(r, 2, new IntField(3));
+
+        SpillFile f = new SpillFile(TD);
+        f.add(b, 0);
+        f.add(b, r);
+        SpillFile.Reader in = f.iterator();
+        in.open();
+        TupleBatch read = new TupleBatch(TD, 4);
+        assertNotNull(in.nextBatch(read));
+        assertEquals(2, read.numRows());
+        assertEquals(new IntField(1), read.getField(0, 0));
+        assertRow(read, 1, 3);
+        in.close();
+        f.delete();
+    }
+}
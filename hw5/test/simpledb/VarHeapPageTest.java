@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for VarHeapPage: inserts, deletes and updates that need the page
+ * compacted, and tuples read back from its bytes and from disk.
+ */
+public class VarHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+
+    private VarHeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("varpage", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.fileFor(f).deleteOnExit();
+        hf = new VarHeapFile(f, TD);
+        Database.getCatalog().addTable(hf, "varpage" + hf.getId());
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    private static Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    /** @return a string of n characters that differs with i */
+    private static String string(int i, int n) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < n)
+            sb.append((char) ('a' + (i + sb.length()) % 26));
+        return sb.toString();
+    }
+
+    /** @return the tuples of it, as strings, sorted */
+    private static List<String> read(Iterator<Tuple> it) {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** @return the tuples of p, also checking that its bytes give the same */
+    private List<String> contents(VarHeapPage p) throws Exception {
+        List<String> rows = read(p.iterator());
+        assertEquals(rows, read(new VarHeapPage(pid, p.getPageData()).iterator()));
+        return rows;
+    }
+
+    @Test public void insertDeleteUpdateAcrossCompaction() throws Exception {
+        VarHeapPage p = new VarHeapPage(pid, VarHeapPage.createEmptyPageData());
+        ArrayList<Tuple> tups = new ArrayList<Tuple>();
+        for (int i = 0; VarHeapPage.spaceNeeded(tuple(i, string(i, 40))) <= p.getFreeSpace(); i++) {
+            Tuple t = tuple(i, string(i, 40));
+            p.insertTuple(t);
+            tups.add(t);
+        }
+        // every other record deleted leaves holes that are each too small
+        // for the tuples below, so they only fit once the page is compacted
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < tups.size(); i++) {
+            if (i % 2 == 0)
+                p.deleteTuple(tups.get(i));
+            else
+                expected.add(tups.get(i).toString());
+        }
+        assertFalse(p.isSlotUsed(0));
+        Tuple big = tuple(-1, string(7, 100));
+        p.insertTuple(big);
+        // reuses the first free slot
+        assertEquals(0, big.getRecordId().tupleno());
+        expected.add(big.toString());
+
+        // an update that grows a record moves it; one that shrinks it does not
+        Tuple grown = tuple(1, string(3, 120));
+        grown.setRecordId(tups.get(1).getRecordId());
+        p.updateTuple(grown);
+        Tuple shrunk = tuple(3, "x");
+        shrunk.setRecordId(tups.get(3).getRecordId());
+        p.updateTuple(shrunk);
+        expected.remove(tups.get(1).toString());
+        expected.remove(tups.get(3).toString());
+        expected.add(grown.toString());
+        expected.add(shrunk.toString());
+        Collections.sort(expected);
+        assertEquals(expected, contents(p));
+        assertEquals(string(3, 120),
+                ((StringField) p.getField(1, 1)).getValue());
+
+        // once the page is full, a tuple is refused and leaves it as it was
+        for (int i = 0; ; i++) {
+            Tuple t = tuple(1000 + i, string(i, Type.STRING_LEN));
+            try {
+                p.insertTuple(t);
+            } catch (DbException e) {
+                break;
+            }
+            expected.add(t.toString());
+        }
+        Collections.sort(expected);
+        assertEquals(expected, contents(p));
+        p.deleteTuple(big);
+        expected.remove(big.toString());
+        assertEquals(expected, contents(p));
+    }
+
+    @Test public void charactersBeyondAscii() throws Exception {
+        VarHeapPage p = new VarHeapPage(pid, VarHeapPage.createEmptyPageData());
+        String s = "caf\u00e9 \u00fcber \u00ff";
+        p.insertTuple(tuple(1, s));
+        VarHeapPage read = new VarHeapPage(pid, p.getPageData());
+        assertEquals(s, ((StringField) read.getField(0, 1)).getValue());
+    }
+
+    @Test public void roundTripThroughDisk() throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<String> expected = new ArrayList<String>();
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = tuple(i, string(i, i % 60));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            inserted.add(t);
+        }
+        for (int i = 0; i < inserted.size(); i++) {
+            if (i % 3 == 0)
+                Database.getBufferPool().deleteTuple(tid, inserted.get(i));
+            else
+                expected.add(tuple(i, string(i, i % 60)).toString());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.numPages() > 1);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(rows);
+        Collections.sort(expected);
+        assertEquals(expected, rows);
+    }
+}
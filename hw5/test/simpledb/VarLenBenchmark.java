@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Compares a table of short strings stored as a fixed-length HeapFile and as
+ * a VarHeapFile: the pages each takes on disk and the time a SeqScan of each
+ * takes, cold (buffer pool empty) and warm (all pages cached).
+ * <p>
+ * Run with: java simpledb.VarLenBenchmark [rows] [scans]
+ */
+public class VarLenBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.STRING_TYPE };
+        TupleDesc td = new TupleDesc(types, new String[] { "id", "name", "city" });
+
+        File text = File.createTempFile("varlen", ".txt");
+        text.deleteOnExit();
+        writeRows(text, rows);
+
+        File fixedFile = File.createTempFile("fixed", ".dat");
+        File varFile = File.createTempFile("varlen", ".dat");
+        for (File f : new File[] { fixedFile, varFile }) {
+            f.deleteOnExit();
+            FreeSpaceMap.fileFor(f).deleteOnExit();
+        }
+        HeapFileEncoder.convert(text, fixedFile, BufferPool.PAGE_SIZE, types.length, types, ',');
+        HeapFileEncoder.convertVarLen(text, varFile, types, ',');
+
+        HeapFile fixed = new HeapFile(fixedFile, td);
+        HeapFile var = new VarHeapFile(varFile, td);
+        Database.getCatalog().addTable(fixed, "fixed");
+        Database.getCatalog().addTable(var, "varlen");
+
+        System.out.println(rows + " rows of (int, string, string), " + scans + " scans each");
+        System.out.printf("%-8s %8s %12s %12s%n", "format", "pages", "cold ms", "warm ms");
+        report("fixed", fixed, rows, scans);
+        report("varlen", var, rows, scans);
+    }
+
+    private static void writeRows(File f, int rows) throws IOException {
+        String[] cities = { "Boston", "Cambridge", "Somerville", "Rome", "Oslo", "Lima" };
+        Random random = new Random(0);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+        try {
+            for (int i = 0; i < rows; i++) {
+                StringBuilder name = new StringBuilder();
+                int len = 6 + random.nextInt(13);
+                for (int k = 0; k < len; k++)
+                    name.append((char) ('a' + random.nextInt(26)));
+                out.println(i + "," + name + "," + cities[random.nextInt(cities.length)]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void report(String name, HeapFile hf, int rows, int scans)
+            throws Exception {
+        long cold = 0, warm = 0;
+        for (int i = 0; i < scans; i++) {
+            // a pool of the default size cannot hold either table, so size it
+            // to hold this one for the warm scan
+            Database.resetBufferPool(hf.numPages() + 16);
+            cold += scan(hf, rows);
+            warm += scan(hf, rows);
+        }
+        System.out.printf("%-8s %8d %12.1f %12.1f%n", name, hf.numPages(),
+                cold / 1e6 / scans, warm / 1e6 / scans);
+    }
+
+    /** @return the nanoseconds a SeqScan of hf takes */
+    private static long scan(HeapFile hf, int rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        SeqScan ss = new SeqScan(tid, hf.getId(), "t");
+        ss.open();
+        int n = 0;
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        long nanos = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        if (n != rows)
+            throw new RuntimeException("scanned " + n + " rows, expected " + rows);
+        return nanos;
+    }
+}
@@ -240,6 +240,48 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortFlushesOthersPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 dirties a page it does not flush, T2 aborts after flushing
+        // its own, and the rollback of T2 flushes and logs T1's page: the
+        // abort record of T2 must go after that update record, so T1 can
+        // still abort, and recovery can still read the log
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 21, 0);
+        Database.getBufferPool().flushPages(t2.getId());
+        Database.getLogFile().logAbort(t2.getId());
+        Database.getBufferPool().transactionComplete(t2.getId(), false);
+
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 21, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 21, false);
+        t.commit();
+    }
+
     @Test public void TestAbortCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();